@@ -19,8 +19,11 @@
  */
 package cosmos;
 
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableNotFoundException;
@@ -28,6 +31,8 @@ import org.apache.accumulo.core.client.TableNotFoundException;
 import com.google.common.collect.Ordering;
 
 import cosmos.impl.SortableResult;
+import cosmos.options.Bucket;
+import cosmos.options.FilterExpression;
 import cosmos.options.Index;
 import cosmos.options.Paging;
 import cosmos.results.CloseableIterable;
@@ -35,6 +40,7 @@ import cosmos.results.Column;
 import cosmos.results.PagedQueryResult;
 import cosmos.results.QueryResult;
 import cosmos.results.SValue;
+import cosmos.results.impl.LazyQueryResult;
 import cosmos.results.impl.MultimapQueryResult;
 
 public interface Cosmos {
@@ -75,6 +81,16 @@ public interface Cosmos {
    */
   public void index(SortableResult id, Set<Index> columnsToIndex) throws Exception;
   
+  /**
+   * Stop maintaining the given {@link Index} and delete its entries for all records in the SortableResult. The entries for the other direction of the column
+   * are unaffected. A SortableResult which lazily indexes every column will index the column again once it is queried, and one which eagerly indexes
+   * every column cannot drop an index.
+   * 
+   * @param id
+   * @param index
+   */
+  public void dropIndex(SortableResult id, Index index) throws Exception;
+  
   /**
    * Fetch all columns present for a given {@link SortableResult}
    * 
@@ -100,6 +116,16 @@ public interface Cosmos {
    */
   public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Paging limits) throws TableNotFoundException, UnexpectedStateException;
   
+  /**
+   * Fetch all results from the given {@link SortableResult}, only returning the given {@link Column}s of each result. The other columns are dropped on the
+   * server.
+   * 
+   * @param id
+   * @param projection
+   * @return
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException;
+  
   /**
    * Fetch results with the given {@link value} in the given {@link Column}
    * 
@@ -120,6 +146,17 @@ public interface Cosmos {
    */
   public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Paging limits) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
   
+  /**
+   * Fetch results with the given {@link value} in the given {@link Column}, only returning the given {@link Column}s of each result
+   * 
+   * @param id
+   * @param column
+   * @param value
+   * @param projection
+   * @return
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
   /**
    * Fetch results in the provided {@link Ordering}
    * 
@@ -130,11 +167,30 @@ public interface Cosmos {
    */
   public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
 
+  /**
+   * Fetch results ordered by each of the given {@link Index}es in turn. The first column must be indexed. Records which
+   * share a value for the first column are ordered by the values of the remaining columns, which are read from the records,
+   * so the remaining columns need not be indexed.
+   * 
+   * @param id
+   * @param orderings
+   * @param duplicateUidsAllowed
+   * @return
+   * @throws TableNotFoundException
+   * @throws UnexpectedStateException
+   * @throws UnindexedColumnException
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, List<Index> orderings, boolean duplicateUidsAllowed) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+
   /**
    * Fetch results in the provided {@link Ordering}. If {@link duplicateUidsAllowed} is true,
    * records with multiple values for the {@link Column} specified by the {@link ordering} will
    * only be returned once.
    * 
+   * If the {@link Column} is not indexed and the {@link SortableResult} was built with
+   * {@link SortableResult.Builder#sortUnindexed(boolean)}, the records are sorted by the client
+   * instead of throwing an {@link UnindexedColumnException}.
+   * 
    * @param id
    * @param ordering
    * @param duplicateUidsAllowed
@@ -155,6 +211,65 @@ public interface Cosmos {
    */
   public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Index ordering, Paging limits) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
   
+  /**
+   * Fetch results in the provided {@link Ordering}, only returning the given {@link Column}s of each result
+   * 
+   * @param id
+   * @param ordering
+   * @param duplicateUidsAllowed
+   * @param projection
+   * @return
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
+  /**
+   * Fetch the results which match the given {@link FilterExpression}. The expression is evaluated against the contents of each record on the tablet servers,
+   * so it may reference columns which are not indexed.
+   * 
+   * @param id
+   * @param filter
+   * @return
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter) throws TableNotFoundException, UnexpectedStateException;
+  
+  /**
+   * Fetch only the given {@link Column}s of the results which match the given {@link FilterExpression}
+   * 
+   * @param id
+   * @param filter
+   * @param projection
+   * @return
+   */
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException;
+  
+  /**
+   * Fetch all results from the given {@link SortableResult}. Each {@link LazyQueryResult} only decodes the fields which are accessed.
+   * 
+   * @param id
+   * @return
+   */
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id) throws TableNotFoundException, UnexpectedStateException;
+  
+  /**
+   * Fetch results with the given {@link value} in the given {@link Column}. Each {@link LazyQueryResult} only decodes the fields which are accessed.
+   * 
+   * @param id
+   * @param column
+   * @param value
+   * @return
+   */
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Column column, String value) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
+  /**
+   * Fetch results in the provided {@link Ordering}. Each {@link LazyQueryResult} only decodes the fields which are accessed.
+   * 
+   * @param id
+   * @param ordering
+   * @param duplicateUidsAllowed
+   * @return
+   */
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Index ordering, boolean duplicateUidsAllowed) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
   /**
    * Return counts for unique values in the given column
    * 
@@ -175,6 +290,30 @@ public interface Cosmos {
    */
   public PagedQueryResult<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Paging limits) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
   
+  /**
+   * Return counts for the values in the given column, collapsed into the buckets described by {@link Bucket}.
+   * Buckets are returned in ascending order of their lower bound. Values which the {@link Bucket} cannot
+   * interpret are omitted.
+   * 
+   * @param id
+   * @param column
+   * @param bucket
+   * @return
+   */
+  public CloseableIterable<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
+  /**
+   * Return counts for the values in the given column, collapsed into the buckets described by {@link Bucket},
+   * paging through results
+   * 
+   * @param id
+   * @param column
+   * @param bucket
+   * @param limits
+   * @return
+   */
+  public PagedQueryResult<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket, Paging limits) throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException;
+  
   /**
    * Given a docId contained in the {@link SortableResult}, fetch the record  
    * @param id
@@ -185,6 +324,27 @@ public interface Cosmos {
    */
   public MultimapQueryResult contents(SortableResult id, String docId) throws TableNotFoundException, UnexpectedStateException;
   
+  /**
+   * Given a docId contained in the {@link SortableResult}, fetch only the given {@link Column}s of the record
+   * @param id
+   * @param docId
+   * @param projection
+   * @return
+   * @throws TableNotFoundException
+   * @throws UnexpectedStateException
+   */
+  public MultimapQueryResult contents(SortableResult id, String docId, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException;
+  
+  /**
+   * Given a docId contained in the {@link SortableResult}, fetch the record without decoding it
+   * @param id
+   * @param docId
+   * @return
+   * @throws TableNotFoundException
+   * @throws UnexpectedStateException
+   */
+  public LazyQueryResult lazyContents(SortableResult id, String docId) throws TableNotFoundException, UnexpectedStateException;
+  
   /**
    * Clean up references to the data referenced by this SortableResult
    * 
@@ -192,6 +352,20 @@ public interface Cosmos {
    */
   public void delete(SortableResult id) throws TableNotFoundException, MutationsRejectedException, UnexpectedStateException;
   
+  /**
+   * Wait for a {@link #delete(SortableResult)} of the given SortableResult by this instance to finish, as the rows of a SortableResult may be removed in
+   * the background
+   * 
+   * @param id
+   * @param timeout
+   * @param unit
+   * @return True if the SortableResult is not being deleted by this instance
+   * @throws ExecutionException
+   *           If the deletion failed
+   * @throws InterruptedException
+   */
+  public boolean awaitDeletion(SortableResult id, long timeout, TimeUnit unit) throws ExecutionException, InterruptedException;
+  
   /**
    * Cleans up internal resources, such as the Curator/ZooKeeper connection, and should be called by the client
    */
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.Constants;
+import org.apache.accumulo.core.client.BatchDeleter;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cosmos.SortingMetadata.State;
+import cosmos.impl.RowLayout;
+import cosmos.impl.SortableResult;
+import cosmos.options.KeyFormat;
+
+/**
+ * Rewrites the rows of a {@link cosmos.impl.SortableResult} from the {@link KeyFormat#V1} key format into the {@link KeyFormat#V2} key format.
+ *
+ * <p>
+ * The migration is performed while the tables remain online. The rewritten rows are written alongside the originals, the format marker in the metadata
+ * table is then changed, and only then are the original rows removed. Only {@link State#LOADED} results are migrated, as clients still writing a result
+ * would continue to write the original format. Clients which read the result must be restarted after the migration.
+ *
+ * <p>
+ * The shards of the result are read from the options recorded in the metadata table. Results which were registered before the options were recorded
+ * need them to be given on the command line, and are otherwise assumed to be unsharded. Shards which disagree with the recorded options are refused, as
+ * the rows would be parsed incorrectly and then deleted.
+ *
+ * <p>
+ * Usage: {@code MigrateRowKeys instance zookeepers user password dataTable metadataTable uuid [indexShards documentShards]}
+ */
+public class MigrateRowKeys {
+  private static final Logger log = LoggerFactory.getLogger(MigrateRowKeys.class);
+  
+  public static void main(String[] args) throws Exception {
+    if (7 != args.length && 9 != args.length) {
+      System.err.println("Usage: " + MigrateRowKeys.class.getName() + " instance zookeepers user password dataTable metadataTable uuid [indexShards documentShards]");
+      System.exit(1);
+    }
+    
+    ZooKeeperInstance inst = new ZooKeeperInstance(args[0], args[1]);
+    Connector c = inst.getConnector(args[2], new PasswordToken(args[3]));
+    
+    final RowLayout recorded = recordedLayout(c, args[5], args[6]);
+    
+    int indexShards = 1, documentShards = 1;
+    if (9 == args.length) {
+      indexShards = Integer.parseInt(args[7]);
+      documentShards = Integer.parseInt(args[8]);
+      
+      if (null != recorded && (recorded.indexShards() != indexShards || recorded.documentShards() != documentShards)) {
+        System.err.println(args[6] + " was recorded with " + recorded.indexShards() + " index shards and " + recorded.documentShards()
+            + " document shards, not " + indexShards + " and " + documentShards);
+        System.exit(1);
+      }
+    } else if (null != recorded) {
+      indexShards = recorded.indexShards();
+      documentShards = recorded.documentShards();
+    }
+    
+    long migrated = migrate(c, c.securityOperations().getUserAuthorizations(c.whoami()), args[4], args[5], new RowLayout(args[6], indexShards, documentShards,
+        KeyFormat.V1), KeyFormat.V2);
+    
+    System.out.println("Migrated " + migrated + " entries for " + args[6]);
+  }
+  
+  /**
+   * Rewrite the rows described by the given {@link RowLayout} into the target {@link KeyFormat}
+   *
+   * @param connector
+   * @param auths
+   *          Authorizations which can read every entry for the result
+   * @param dataTable
+   * @param metadataTable
+   * @param source
+   *          The current layout of the result
+   * @param targetFormat
+   * @return The number of entries which were rewritten
+   * @throws Exception
+   */
+  public static long migrate(Connector connector, Authorizations auths, String dataTable, String metadataTable, RowLayout source, KeyFormat targetFormat)
+      throws Exception {
+    checkNotNull(connector);
+    checkNotNull(auths);
+    checkNotNull(dataTable);
+    checkNotNull(metadataTable);
+    checkNotNull(source);
+    checkNotNull(targetFormat);
+    
+    final String uuid = source.uuid();
+    
+    State state = getState(connector, metadataTable, uuid);
+    if (!State.LOADED.equals(state)) {
+      throw new UnexpectedStateException("Can only migrate results which are " + State.LOADED + " but " + uuid + " was " + state);
+    }
+    
+    KeyFormat currentFormat = SortingMetadata.getFormat(connector, metadataTable, uuid);
+    if (!currentFormat.equals(source.format())) {
+      throw new IllegalArgumentException("Expected " + uuid + " to be in " + source.format() + " format but was " + currentFormat);
+    }
+    
+    RowLayout recorded = recordedLayout(connector, metadataTable, uuid);
+    if (null != recorded && (recorded.indexShards() != source.indexShards() || recorded.documentShards() != source.documentShards())) {
+      throw new IllegalArgumentException("Expected " + uuid + " to have " + source.indexShards() + " index shards and " + source.documentShards()
+          + " document shards but it has " + recorded.indexShards() + " and " + recorded.documentShards());
+    }
+    
+    if (targetFormat.equals(currentFormat)) {
+      log.info("{} is already in {} format", uuid, targetFormat);
+      return 0;
+    }
+    
+    final RowLayout target = new RowLayout(uuid, source.indexShards(), source.documentShards(), targetFormat);
+    
+    BatchScanner bs = null;
+    BatchWriter bw = null;
+    long count = 0;
+    
+    try {
+      bs = connector.createBatchScanner(dataTable, auths, 10);
+      bs.setRanges(source.resultRanges());
+      
+      bw = connector.createBatchWriter(dataTable, new BatchWriterConfig());
+      
+      final Text row = new Text(), cf = new Text(), cq = new Text();
+      for (Entry<Key,Value> entry : bs) {
+        Key k = entry.getKey();
+        k.getRow(row);
+        k.getColumnFamily(cf);
+        k.getColumnQualifier(cq);
+        
+        Mutation m = new Mutation(source.convert(row, target));
+        m.put(cf, cq, new ColumnVisibility(k.getColumnVisibility()), k.getTimestamp(), entry.getValue());
+        bw.addMutation(m);
+        
+        count++;
+      }
+    } finally {
+      if (null != bs) {
+        bs.close();
+      }
+      if (null != bw) {
+        bw.close();
+      }
+    }
+    
+    // Readers see the new rows as soon as the marker changes
+    SortingMetadata.setFormat(connector, metadataTable, uuid, targetFormat);
+    SortableResult.evict(connector, metadataTable, uuid);
+    
+    BatchDeleter bd = null;
+    try {
+      bd = connector.createBatchDeleter(dataTable, auths, 4, new BatchWriterConfig());
+      bd.setRanges(source.resultRanges());
+      bd.delete();
+    } finally {
+      if (null != bd) {
+        bd.close();
+      }
+    }
+    
+    log.info("Migrated {} entries for {} from {} to {}", new Object[] {count, uuid, currentFormat, targetFormat});
+    
+    return count;
+  }
+  
+  /**
+   * @return The {@link RowLayout} recorded in the options of the given result, which can only interpret rows, or null if its options were not recorded
+   * @throws TableNotFoundException
+   */
+  protected static RowLayout recordedLayout(Connector connector, String metadataTable, String uuid) throws TableNotFoundException {
+    Map<String,String> options = SortingMetadata.getOptions(connector, metadataTable, uuid);
+    
+    if (!options.containsKey(RowLayout.INDEX_SHARDS) && !options.containsKey(RowLayout.DOCUMENT_SHARDS)) {
+      return null;
+    }
+    
+    return RowLayout.fromOptions(options);
+  }
+  
+  protected static State getState(Connector connector, String metadataTable, String uuid) throws Exception {
+    Scanner s = connector.createScanner(metadataTable, Constants.NO_AUTHS);
+    s.setRange(new Range(uuid));
+    s.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    
+    Iterator<Entry<Key,Value>> iter = s.iterator();
+    if (iter.hasNext()) {
+      return SortingMetadata.deserializeState(iter.next().getValue());
+    }
+    
+    return State.UNKNOWN;
+  }
+}
@@ -23,7 +23,10 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.accumulo.core.Constants;
 import org.apache.accumulo.core.client.BatchDeleter;
@@ -38,18 +41,46 @@ import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.LongCombiner;
 import org.apache.hadoop.io.Text;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+import cosmos.options.Order;
 import cosmos.results.Column;
+import cosmos.util.IdentitySet;
 
 public class SortingMetadata {
   public static final Text EMPTY_TEXT = new Text("");
   public static final Text STATE_COLFAM = new Text("state");
   public static final Text COLUMN_COLFAM = new Text("column");
+  public static final Text FORMAT_COLFAM = new Text("format");
+  public static final Text INDEX_COLFAM = new Text("index");
+  public static final Text QUERY_COLFAM = new Text("queries");
+  public static final Text CATALOG_COLFAM = new Text("catalog");
+  public static final Text OPTIONS_COLFAM = new Text("options");
+  public static final Text ACTIVITY_COLFAM = new Text("activity");
+  public static final Text REGISTERED_COLFAM = new Text("registered");
+  public static final Text EPOCH_COLFAM = new Text("epoch");
+  public static final Text CATALOG_VERSION_COLFAM = new Text("catalogVersion");
+  
+  /**
+   * Qualifier in the catalog of a {@link SortableResult} which indexes every column
+   */
+  public static final Text ALL_COLUMNS = new Text("*");
+  
+  /**
+   * Name of the combiner on the metadata table which sums the query counts
+   */
+  public static final String QUERY_COUNTER = "queryCounts";
   
   /**
    * A {@link State} determines the lifecycle phases of a {@link SortableResult}
@@ -86,6 +117,106 @@ public class SortingMetadata {
     UNKNOWN
   }
   
+  /**
+   * The progress of an {@link Index} which is built on demand. {@code BUILDING} means that new records are indexed, but the records which were already
+   * loaded may not be. {@code BUILT} means that every record is indexed.
+   */
+  public enum IndexState {
+    BUILDING,
+    BUILT
+  }
+  
+  /**
+   * The kinds of query which read an {@link Index}
+   */
+  public enum QueryType {
+    ORDER,
+    VALUE,
+    GROUP
+  }
+  
+  /**
+   * The number of queries of one {@link QueryType} which read an {@link Index}, and the time of the most recent
+   */
+  public static class QueryCount {
+    protected final QueryType type;
+    protected final Index index;
+    protected final long count, lastQueried;
+    
+    public QueryCount(QueryType type, Index index, long count, long lastQueried) {
+      this.type = type;
+      this.index = index;
+      this.count = count;
+      this.lastQueried = lastQueried;
+    }
+    
+    public QueryType type() {
+      return this.type;
+    }
+    
+    public Index index() {
+      return this.index;
+    }
+    
+    public long count() {
+      return this.count;
+    }
+    
+    public long lastQueried() {
+      return this.lastQueried;
+    }
+    
+    @Override
+    public String toString() {
+      return this.type + " " + this.index.column() + " " + this.index.order() + ": " + this.count;
+    }
+  }
+  
+  /**
+   * The {@link State} of a result, the time at which any of its metadata was last written, and its {@link SortableResult#ephemeralTtl()}
+   */
+  public static class ResultStatus {
+    protected final String uuid;
+    protected final State state;
+    protected final long lastModified;
+    protected final long ephemeralTtl;
+    
+    public ResultStatus(String uuid, State state, long lastModified) {
+      this(uuid, state, lastModified, 0);
+    }
+    
+    public ResultStatus(String uuid, State state, long lastModified, long ephemeralTtl) {
+      this.uuid = uuid;
+      this.state = state;
+      this.lastModified = lastModified;
+      this.ephemeralTtl = ephemeralTtl;
+    }
+    
+    public String uuid() {
+      return this.uuid;
+    }
+    
+    public State state() {
+      return this.state;
+    }
+    
+    public long lastModified() {
+      return this.lastModified;
+    }
+    
+    /**
+     * @return Milliseconds after which the entries of an ephemeral result age off, or 0 if the result is not ephemeral
+     */
+    public long ephemeralTtl() {
+      return this.ephemeralTtl;
+    }
+    
+    @Override
+    public String toString() {
+      return this.uuid + " " + this.state + " " + this.lastModified;
+    }
+  }
+  
   public static State getState(SortableResult id) throws TableNotFoundException {
     checkNotNull(id);
     
@@ -126,6 +257,550 @@ public class SortingMetadata {
     }
   }
   
+  /**
+   * Return the time at which the given {@link SortableResult} was registered
+   * 
+   * @param id
+   * @return Milliseconds since the epoch, or null if the registration time was not recorded
+   * @throws TableNotFoundException
+   */
+  public static Long getRegistered(SortableResult id) throws TableNotFoundException {
+    checkNotNull(id);
+    
+    Scanner s = id.connector().createScanner(id.metadataTable(), Constants.NO_AUTHS);
+    s.setRange(new Range(id.uuid()));
+    s.fetchColumnFamily(REGISTERED_COLFAM);
+    
+    Iterator<Entry<Key,Value>> iter = s.iterator();
+    
+    if (iter.hasNext()) {
+      return Long.parseLong(iter.next().getValue().toString());
+    }
+    
+    return null;
+  }
+  
+  public static void setRegistered(SortableResult id, long registered) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.put(REGISTERED_COLFAM, EMPTY_TEXT, new Value(Long.toString(registered).getBytes()));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Return the index schema epoch of the given {@link SortableResult}, which is the largest epoch recorded by {@link #bumpEpoch(SortableResult)}
+   * 
+   * @param id
+   * @return The epoch, or 0 if the schema has never changed
+   * @throws TableNotFoundException
+   */
+  public static long getEpoch(SortableResult id) throws TableNotFoundException {
+    checkNotNull(id);
+    
+    return getCounter(id, EPOCH_COLFAM);
+  }
+  
+  /**
+   * Advance the index schema epoch of the given {@link SortableResult}. Each epoch is written as its own entry rather than overwriting the previous one, so
+   * the epoch never decreases even when clients bump it concurrently; such clients may then be given the same epoch.
+   * 
+   * @param id
+   * @return The new epoch
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static long bumpEpoch(SortableResult id) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    
+    return bumpCounter(id, EPOCH_COLFAM);
+  }
+  
+  /**
+   * Return the version of the catalog of indexes of the given {@link SortableResult}, which is advanced whenever an {@link Index} is removed from it
+   * 
+   * @param id
+   * @return The version, or 0 if no {@link Index} has been removed
+   * @throws TableNotFoundException
+   */
+  public static long getCatalogVersion(SortableResult id) throws TableNotFoundException {
+    checkNotNull(id);
+    
+    return getCounter(id, CATALOG_VERSION_COLFAM);
+  }
+  
+  protected static long getCounter(SortableResult id, Text colfam) throws TableNotFoundException {
+    Scanner s = id.connector().createScanner(id.metadataTable(), Constants.NO_AUTHS);
+    s.setRange(new Range(id.uuid()));
+    s.fetchColumnFamily(colfam);
+    
+    // Counters are zero-padded, so the last is the largest
+    long counter = 0;
+    for (Entry<Key,Value> entry : s) {
+      counter = Long.parseLong(entry.getKey().getColumnQualifier().toString());
+    }
+    
+    return counter;
+  }
+  
+  protected static long bumpCounter(SortableResult id, Text colfam) throws TableNotFoundException, MutationsRejectedException {
+    final long counter = getCounter(id, colfam) + 1;
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.put(colfam, new Text(String.format("%019d", counter)), Defaults.EMPTY_VALUE);
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+    
+    return counter;
+  }
+  
+  /**
+   * Note that records were added to the given {@link SortableResult}, so that it is not mistaken for an abandoned result
+   * 
+   * @param id
+   * @return A {@link Mutation} to write to the metadata table
+   */
+  public static Mutation touch(SortableResult id) {
+    checkNotNull(id);
+    
+    Mutation m = new Mutation(id.uuid());
+    m.put(ACTIVITY_COLFAM, EMPTY_TEXT, Defaults.EMPTY_VALUE);
+    return m;
+  }
+  
+  /**
+   * Return the {@link ResultStatus} of every result in the given metadata table
+   * 
+   * @param connector
+   * @param metadataTable
+   * @return
+   * @throws TableNotFoundException
+   */
+  public static List<ResultStatus> statuses(Connector connector, String metadataTable) throws TableNotFoundException {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    
+    Scanner s = connector.createScanner(metadataTable, Constants.NO_AUTHS);
+    
+    List<ResultStatus> statuses = Lists.newArrayList();
+    String uuid = null;
+    State state = State.UNKNOWN;
+    long lastModified = 0, ephemeralTtl = 0;
+    
+    for (Entry<Key,Value> entry : s) {
+      final Key k = entry.getKey();
+      final String row = k.getRow().toString();
+      
+      if (!row.equals(uuid)) {
+        if (null != uuid) {
+          statuses.add(new ResultStatus(uuid, state, lastModified, ephemeralTtl));
+        }
+        
+        uuid = row;
+        state = State.UNKNOWN;
+        lastModified = 0;
+        ephemeralTtl = 0;
+      }
+      
+      if (STATE_COLFAM.equals(k.getColumnFamily())) {
+        state = deserializeState(entry.getValue());
+      } else if (OPTIONS_COLFAM.equals(k.getColumnFamily()) && SortableResult.EPHEMERAL_TTL.equals(k.getColumnQualifier().toString())) {
+        ephemeralTtl = Long.parseLong(entry.getValue().toString());
+      }
+      
+      lastModified = Math.max(lastModified, k.getTimestamp());
+    }
+    
+    if (null != uuid) {
+      statuses.add(new ResultStatus(uuid, state, lastModified, ephemeralTtl));
+    }
+    
+    return statuses;
+  }
+  
+  /**
+   * Return the {@link KeyFormat} of the rows for the given uuid. Results without a format marker were written as {@link KeyFormat#V1}.
+   * 
+   * @param connector
+   * @param metadataTable
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   */
+  public static KeyFormat getFormat(Connector connector, String metadataTable, String uuid) throws TableNotFoundException {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    
+    Scanner s = connector.createScanner(metadataTable, Constants.NO_AUTHS);
+    s.setRange(new Range(uuid));
+    s.fetchColumnFamily(FORMAT_COLFAM);
+    
+    Iterator<Entry<Key,Value>> iter = s.iterator();
+    
+    if (iter.hasNext()) {
+      return KeyFormat.valueOf(iter.next().getValue().toString());
+    }
+    
+    return KeyFormat.V1;
+  }
+  
+  public static void setFormat(Connector connector, String metadataTable, String uuid, KeyFormat format) throws TableNotFoundException,
+      MutationsRejectedException {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    checkNotNull(format);
+    
+    BatchWriter bw = null;
+    try {
+      bw = connector.createBatchWriter(metadataTable, new BatchWriterConfig());
+      Mutation m = new Mutation(uuid);
+      m.put(FORMAT_COLFAM, EMPTY_TEXT, new Value(format.toString().getBytes()));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Return the {@link IndexState} of each {@link Index} which has been built on demand for the given {@link SortableResult}
+   * 
+   * @param id
+   * @return
+   * @throws TableNotFoundException
+   */
+  public static Map<Index,IndexState> indexStates(SortableResult id) throws TableNotFoundException {
+    checkNotNull(id);
+    
+    Scanner s = id.connector().createScanner(id.metadataTable(), Constants.NO_AUTHS);
+    s.setRange(new Range(id.uuid()));
+    s.fetchColumnFamily(INDEX_COLFAM);
+    
+    Map<Index,IndexState> states = Maps.newHashMap();
+    for (Entry<Key,Value> entry : s) {
+      states.put(parseIndex(entry.getKey().getColumnQualifier().toString()), IndexState.valueOf(entry.getValue().toString()));
+    }
+    
+    return states;
+  }
+  
+  public static IndexState getIndexState(SortableResult id, Index index) throws TableNotFoundException {
+    checkNotNull(index);
+    
+    return indexStates(id).get(index);
+  }
+  
+  public static void setIndexState(SortableResult id, Index index, IndexState state) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(index);
+    checkNotNull(state);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.put(INDEX_COLFAM, indexQualifier(index), new Value(state.toString().getBytes()));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  public static void removeIndexState(SortableResult id, Index index) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(index);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.putDelete(INDEX_COLFAM, indexQualifier(index));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Add the given {@link Index}es to the catalog of indexes for the {@link SortableResult}, so that they can be loaded by other clients. An
+   * {@link IdentitySet} is recorded as indexing every column.
+   * 
+   * @param id
+   * @param indexes
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static void addIndexes(SortableResult id, Set<Index> indexes) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(indexes);
+    
+    Mutation m = new Mutation(id.uuid());
+    if (indexes instanceof IdentitySet) {
+      m.put(CATALOG_COLFAM, ALL_COLUMNS, Defaults.EMPTY_VALUE);
+    } else {
+      for (Index index : indexes) {
+        m.put(CATALOG_COLFAM, indexQualifier(index), Defaults.EMPTY_VALUE);
+      }
+    }
+    
+    if (0 == m.size()) {
+      return;
+    }
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Remove the given {@link Index} from the catalog of indexes for the {@link SortableResult}, and advance the version of the catalog so that other
+   * clients stop writing it
+   * 
+   * @param id
+   * @param index
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static void removeIndex(SortableResult id, Index index) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(index);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.putDelete(CATALOG_COLFAM, indexQualifier(index));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+    
+    bumpCounter(id, CATALOG_VERSION_COLFAM);
+  }
+  
+  /**
+   * Return the {@link Index}es in the catalog for the given uuid
+   * 
+   * @param connector
+   * @param metadataTable
+   * @param uuid
+   * @return An {@link IdentitySet} if every column is indexed
+   * @throws TableNotFoundException
+   */
+  public static Set<Index> indexes(Connector connector, String metadataTable, String uuid) throws TableNotFoundException {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    
+    Scanner s = connector.createScanner(metadataTable, Constants.NO_AUTHS);
+    s.setRange(new Range(uuid));
+    s.fetchColumnFamily(CATALOG_COLFAM);
+    
+    Set<Index> indexes = Sets.newHashSet();
+    for (Entry<Key,Value> entry : s) {
+      String qualifier = entry.getKey().getColumnQualifier().toString();
+      if (ALL_COLUMNS.toString().equals(qualifier)) {
+        return IdentitySet.<Index> create();
+      }
+      
+      indexes.add(parseIndex(qualifier));
+    }
+    
+    return indexes;
+  }
+  
+  /**
+   * Record the options of the {@link SortableResult}, as given by {@link SortableResult#toOptions()}
+   * 
+   * @param id
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static void setOptions(SortableResult id) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      for (Entry<String,String> option : id.toOptions().entrySet()) {
+        m.put(OPTIONS_COLFAM, new Text(option.getKey()), new Value(option.getValue().getBytes()));
+      }
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Return the options recorded for the given uuid, which are empty for a result registered before options were recorded
+   * 
+   * @param connector
+   * @param metadataTable
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   */
+  public static Map<String,String> getOptions(Connector connector, String metadataTable, String uuid) throws TableNotFoundException {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    
+    Scanner s = connector.createScanner(metadataTable, Constants.NO_AUTHS);
+    s.setRange(new Range(uuid));
+    s.fetchColumnFamily(OPTIONS_COLFAM);
+    
+    Map<String,String> options = Maps.newHashMap();
+    for (Entry<Key,Value> entry : s) {
+      options.put(entry.getKey().getColumnQualifier().toString(), entry.getValue().toString());
+    }
+    
+    return options;
+  }
+  
+  /**
+   * Count a query of the given {@link Index}. The counts are summed by the {@link #QUERY_COUNTER} combiner.
+   * 
+   * @param id
+   * @param type
+   * @param index
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static void recordQuery(SortableResult id, QueryType type, Index index) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(type);
+    checkNotNull(index);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      m.put(QUERY_COLFAM, new Text(type.toString() + Defaults.NULL_BYTE_STR + indexQualifier(index)), new Value(LongCombiner.STRING_ENCODER.encode(1l)));
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  /**
+   * Return the number of queries of each {@link Index} of the given {@link SortableResult}
+   * 
+   * @param id
+   * @return
+   * @throws TableNotFoundException
+   */
+  public static List<QueryCount> queryCounts(SortableResult id) throws TableNotFoundException {
+    checkNotNull(id);
+    
+    Scanner s = id.connector().createScanner(id.metadataTable(), Constants.NO_AUTHS);
+    s.setRange(new Range(id.uuid()));
+    s.fetchColumnFamily(QUERY_COLFAM);
+    
+    List<QueryCount> counts = Lists.newArrayList();
+    for (Entry<Key,Value> entry : s) {
+      String qualifier = entry.getKey().getColumnQualifier().toString();
+      int index = qualifier.indexOf(Defaults.NULL_BYTE_STR);
+      
+      // The combined key carries the timestamp of the most recent query
+      counts.add(new QueryCount(QueryType.valueOf(qualifier.substring(0, index)), parseIndex(qualifier.substring(index + 1)),
+          LongCombiner.STRING_ENCODER.decode(entry.getValue().get()), entry.getKey().getTimestamp()));
+    }
+    
+    return counts;
+  }
+  
+  /**
+   * Forget the queries of the given {@link Index}, so that it is only built again once it has been queried as often as before it was dropped
+   * 
+   * @param id
+   * @param index
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public static void clearQueries(SortableResult id, Index index) throws TableNotFoundException, MutationsRejectedException {
+    checkNotNull(id);
+    checkNotNull(index);
+    
+    BatchWriter bw = null;
+    try {
+      bw = id.connector().createBatchWriter(id.metadataTable(), new BatchWriterConfig());
+      Mutation m = new Mutation(id.uuid());
+      for (QueryType type : QueryType.values()) {
+        m.putDelete(QUERY_COLFAM, new Text(type.toString() + Defaults.NULL_BYTE_STR + indexQualifier(index)));
+      }
+      
+      bw.addMutation(m);
+      bw.flush();
+    } finally {
+      if (null != bw) {
+        bw.close();
+      }
+    }
+  }
+  
+  protected static Text indexQualifier(Index index) {
+    return new Text(Order.direction(index.order()) + Defaults.NULL_BYTE_STR + index.column().column());
+  }
+  
+  protected static Index parseIndex(String qualifier) {
+    int index = qualifier.indexOf(Defaults.NULL_BYTE_STR);
+    
+    Order order = Order.FORWARD.equals(qualifier.substring(0, index)) ? Order.ASCENDING : Order.DESCENDING;
+    return Index.define(Column.create(qualifier.substring(index + 1)), order);
+  }
+  
   public static void remove(SortableResult id) throws TableNotFoundException, MutationsRejectedException {
     checkNotNull(id);
     
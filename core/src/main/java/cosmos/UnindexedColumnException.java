@@ -26,4 +26,12 @@ public class UnindexedColumnException extends Exception {
 
   private static final long serialVersionUID = 1L;
   
+  public UnindexedColumnException() {
+    super();
+  }
+  
+  public UnindexedColumnException(String message) {
+    super(message);
+  }
+  
 }
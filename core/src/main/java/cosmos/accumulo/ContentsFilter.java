@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.accumulo;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import com.google.common.base.Preconditions;
+
+import cosmos.options.Defaults;
+import cosmos.options.FilterExpression;
+import cosmos.results.impl.LazyQueryResult;
+
+/**
+ * Evaluates a {@link FilterExpression} against each document in the CONTENTS column, returning only the documents which match it. Each document is wrapped
+ * in a {@link LazyQueryResult}, so only the columns referenced by the expression are decoded. Entries in other column families are returned unchanged.
+ */
+public class ContentsFilter extends Filter {
+  
+  protected static final ByteSequence CONTENTS = new ArrayByteSequence(Defaults.CONTENTS_COLFAM);
+  
+  protected FilterExpression expression;
+  
+  /**
+   * Set the expression to evaluate on the given {@link IteratorSetting}
+   * 
+   * @param cfg
+   * @param expression
+   */
+  public static void setExpression(IteratorSetting cfg, FilterExpression expression) {
+    Preconditions.checkNotNull(cfg);
+    Preconditions.checkNotNull(expression);
+    
+    cfg.addOptions(expression.toOptions());
+  }
+  
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+    validateOptions(options);
+  }
+  
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    if (!super.validateOptions(options)) {
+      throw new IllegalArgumentException("Could not initialize ContentsFilter");
+    }
+    
+    this.expression = FilterExpression.fromOptions(options);
+    
+    return true;
+  }
+  
+  @Override
+  public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+    ContentsFilter copy = (ContentsFilter) super.deepCopy(env);
+    copy.expression = this.expression;
+    return copy;
+  }
+  
+  @Override
+  public boolean accept(Key k, Value v) {
+    if (!CONTENTS.equals(k.getColumnFamilyData())) {
+      return true;
+    }
+    
+    return this.expression.matches(LazyQueryResult.create(v));
+  }
+}
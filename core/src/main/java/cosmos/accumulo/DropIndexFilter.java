@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.accumulo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.Text;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+import cosmos.impl.RowLayout;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.Order;
+
+/**
+ * Removes the entries of one direction of an {@link Index} for a single {@link cosmos.impl.SortableResult}, intended to be run as a compaction iterator so
+ * that the entries are dropped as the tablets are rewritten. An entry is removed when its row begins with one of the prefixes from
+ * {@link RowLayout#resultRanges()}, its column family is the indexed column, and its column qualifier begins with the direction of the {@link Index}. Every
+ * other entry, including those of other results sharing the compacted tablets, is returned unchanged.
+ */
+public class DropIndexFilter extends Filter {
+  
+  public static final String COLUMN = "drop.column";
+  public static final String DIRECTION = "drop.direction";
+  public static final String ROW_PREFIXES = "drop.rows";
+  
+  protected ByteSequence column;
+  protected byte[] direction;
+  protected List<byte[]> rowPrefixes;
+  
+  /**
+   * Configure the given {@link IteratorSetting} to drop the entries for the {@link Index} from the rows of the {@link RowLayout}
+   * 
+   * @param cfg
+   * @param layout
+   * @param index
+   */
+  public static void setIndex(IteratorSetting cfg, RowLayout layout, Index index) {
+    Preconditions.checkNotNull(cfg);
+    Preconditions.checkNotNull(layout);
+    Preconditions.checkNotNull(index);
+    
+    List<String> prefixes = Lists.newArrayList();
+    for (Range range : layout.resultRanges()) {
+      Text row = range.getStartKey().getRow();
+      byte[] prefix = new byte[row.getLength()];
+      System.arraycopy(row.getBytes(), 0, prefix, 0, prefix.length);
+      
+      prefixes.add(new String(Base64.encodeBase64(prefix)));
+    }
+    
+    cfg.addOption(COLUMN, index.column().column());
+    cfg.addOption(DIRECTION, Order.direction(index.order()));
+    cfg.addOption(ROW_PREFIXES, Joiner.on(',').join(prefixes));
+  }
+  
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+    validateOptions(options);
+  }
+  
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    if (!super.validateOptions(options)) {
+      throw new IllegalArgumentException("Could not initialize DropIndexFilter");
+    }
+    
+    if (!options.containsKey(COLUMN) || !options.containsKey(DIRECTION) || !options.containsKey(ROW_PREFIXES)) {
+      throw new IllegalArgumentException("Expected options " + COLUMN + ", " + DIRECTION + " and " + ROW_PREFIXES);
+    }
+    
+    this.column = new ArrayByteSequence(options.get(COLUMN));
+    
+    // Entries for the direction have a qualifier of the direction followed by a null byte
+    this.direction = (options.get(DIRECTION) + Defaults.NULL_BYTE_STR).getBytes();
+    
+    this.rowPrefixes = Lists.newArrayList();
+    for (String prefix : Splitter.on(',').omitEmptyStrings().split(options.get(ROW_PREFIXES))) {
+      this.rowPrefixes.add(Base64.decodeBase64(prefix.getBytes()));
+    }
+    
+    return true;
+  }
+  
+  @Override
+  public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+    DropIndexFilter copy = (DropIndexFilter) super.deepCopy(env);
+    copy.column = this.column;
+    copy.direction = this.direction;
+    copy.rowPrefixes = this.rowPrefixes;
+    return copy;
+  }
+  
+  @Override
+  public boolean accept(Key k, Value v) {
+    if (!this.column.equals(k.getColumnFamilyData()) || !startsWith(k.getColumnQualifierData(), this.direction)) {
+      return true;
+    }
+    
+    final ByteSequence row = k.getRowData();
+    for (byte[] prefix : this.rowPrefixes) {
+      if (startsWith(row, prefix)) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  protected static boolean startsWith(ByteSequence bytes, byte[] prefix) {
+    if (bytes.length() < prefix.length) {
+      return false;
+    }
+    
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes.byteAt(i) != prefix[i]) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.accumulo;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import com.google.common.base.Preconditions;
+
+import cosmos.options.Defaults;
+
+/**
+ * Returns only the docId entries of the documents which were written under an index schema epoch in a given range. The value of a docId entry is the epoch
+ * its writer read, and a docId entry without a value was written before its result used epochs, which is epoch 0. Entries in other column families are
+ * returned unchanged.
+ */
+public class EpochFilter extends Filter {
+  
+  public static final String MIN_EPOCH = "epoch.min";
+  public static final String MAX_EPOCH = "epoch.max";
+  
+  protected static final ByteSequence DOCID = new ArrayByteSequence(Defaults.DOCID_FIELD_NAME);
+  
+  protected long minEpoch, maxEpoch;
+  
+  /**
+   * Configure the given {@link IteratorSetting} to return the documents written under an epoch in {@code [minEpoch, maxEpoch)}
+   * 
+   * @param cfg
+   * @param minEpoch
+   * @param maxEpoch
+   */
+  public static void setEpochs(IteratorSetting cfg, long minEpoch, long maxEpoch) {
+    Preconditions.checkNotNull(cfg);
+    Preconditions.checkArgument(minEpoch < maxEpoch, "Expected a minimum epoch less than the maximum epoch");
+    
+    cfg.addOption(MIN_EPOCH, Long.toString(minEpoch));
+    cfg.addOption(MAX_EPOCH, Long.toString(maxEpoch));
+  }
+  
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+    validateOptions(options);
+  }
+  
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    if (!super.validateOptions(options)) {
+      throw new IllegalArgumentException("Could not initialize EpochFilter");
+    }
+    
+    if (!options.containsKey(MIN_EPOCH) || !options.containsKey(MAX_EPOCH)) {
+      throw new IllegalArgumentException("Expected options " + MIN_EPOCH + " and " + MAX_EPOCH);
+    }
+    
+    this.minEpoch = Long.parseLong(options.get(MIN_EPOCH));
+    this.maxEpoch = Long.parseLong(options.get(MAX_EPOCH));
+    
+    return true;
+  }
+  
+  @Override
+  public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+    EpochFilter copy = (EpochFilter) super.deepCopy(env);
+    copy.minEpoch = this.minEpoch;
+    copy.maxEpoch = this.maxEpoch;
+    return copy;
+  }
+  
+  @Override
+  public boolean accept(Key k, Value v) {
+    if (!DOCID.equals(k.getColumnFamilyData())) {
+      return true;
+    }
+    
+    final long epoch = 0 == v.getSize() ? 0 : Long.parseLong(v.toString());
+    
+    return this.minEpoch <= epoch && epoch < this.maxEpoch;
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.accumulo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.collect.Maps;
+
+import cosmos.impl.RowLayout;
+import cosmos.options.Bucket;
+
+/**
+ * Counts the keys for each row like the {@link GroupByRowSuffixIterator}, but collapses the row suffixes into the buckets described by a {@link Bucket}. Rows
+ * whose suffix cannot be interpreted by the {@link Bucket} are skipped.
+ *
+ * <p>
+ * As the values in a bucket are not necessarily contiguous in the table, all of the rows within the seek'ed {@link Range} are consumed and a single
+ * histogram is returned, keyed by the last {@link Key} that was read. A client scanning multiple tablets will receive one partial histogram per tablet which
+ * need to be merged via {@link #merge(SortedMap, Value)}.
+ */
+public class GroupByBucketIterator extends GroupByRowSuffixIterator {
+  
+  private static final DoubleLexicoder lex = new DoubleLexicoder();
+  
+  protected Bucket bucket;
+  protected Value histogram;
+  
+  private final Text _rowHolder = new Text();
+  
+  public GroupByBucketIterator() {
+    super();
+  }
+  
+  public GroupByBucketIterator(GroupByBucketIterator other, IteratorEnvironment env) {
+    super(other, env);
+    this.bucket = Bucket.fromOptions(other.bucket.toOptions());
+  }
+  
+  @Override
+  public void next() throws IOException {
+    // The entire range was consumed in seek()
+    this.topKey = null;
+    this.histogram = null;
+  }
+  
+  @Override
+  public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+    getSource().seek(range, columnFamilies, inclusive);
+    
+    buildHistogram();
+  }
+  
+  @Override
+  public Value getTopValue() {
+    return this.histogram;
+  }
+  
+  @Override
+  public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+    return new GroupByBucketIterator(this, env);
+  }
+  
+  @Override
+  public IteratorOptions describeOptions() {
+    Map<String,String> options = Maps.newHashMap();
+    options.put(Bucket.TYPE, "One of " + Arrays.toString(Bucket.Type.values()));
+    options.put(Bucket.UNIT, "For date buckets, one of " + Arrays.toString(Bucket.DateUnit.values()));
+    options.put(Bucket.PATTERN, "For date buckets, an optional SimpleDateFormat pattern. Milliseconds since the epoch are expected otherwise");
+    options.put(Bucket.WIDTH, "For fixed-width buckets, the width of each bucket");
+    options.put(Bucket.BASE, "For log-scale buckets, the logarithm base");
+    
+    return new IteratorOptions("groupByBucket", "Counts the number of records whose row suffix falls in each bucket", options, null);
+  }
+  
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    try {
+      RowLayout.fromOptions(options);
+      Bucket.fromOptions(options);
+    } catch (RuntimeException e) {
+      return false;
+    }
+    
+    return true;
+  }
+  
+  @Override
+  protected void setOptions(Map<String,String> options) {
+    super.setOptions(options);
+    this.bucket = Bucket.fromOptions(options);
+  }
+  
+  protected void buildHistogram() throws IOException {
+    final SortedMap<Double,Long> buckets = Maps.newTreeMap();
+    Key lastKey = null;
+    
+    while (getSource().hasTop()) {
+      // Counts the next row, leaving the source on the following row
+      countKeys();
+      
+      lastKey = this.topKey;
+      
+      Double lowerBound = bucket.lowerBound(getRowSuffix(lastKey));
+      if (null != lowerBound) {
+        Long current = buckets.get(lowerBound);
+        buckets.put(lowerBound, null == current ? this.count.get() : current + this.count.get());
+      }
+    }
+    
+    if (null == lastKey || buckets.isEmpty()) {
+      this.topKey = null;
+      this.histogram = null;
+    } else {
+      this.topKey = new Key(lastKey);
+      this.histogram = encode(buckets);
+    }
+  }
+  
+  protected String getRowSuffix(Key k) {
+    k.getRow(_rowHolder);
+    
+    return layout.value(_rowHolder);
+  }
+  
+  /**
+   * Serialize the histogram, lexicoding the lower bound of each bucket so that the encoded buckets sort the same as the numeric bounds.
+   *
+   * @param buckets
+   * @return
+   */
+  public static Value encode(SortedMap<Double,Long> buckets) {
+    DataOutputBuffer out = new DataOutputBuffer();
+    
+    try {
+      WritableUtils.writeVInt(out, buckets.size());
+      for (Entry<Double,Long> entry : buckets.entrySet()) {
+        byte[] bound = lex.encode(entry.getKey());
+        WritableUtils.writeVInt(out, bound.length);
+        out.write(bound);
+        WritableUtils.writeVLong(out, entry.getValue());
+      }
+    } catch (IOException e) {
+      // DataOutputBuffer doesn't throw IOExceptions
+      throw new RuntimeException(e);
+    }
+    
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+    
+    return new Value(bytes);
+  }
+  
+  /**
+   * Add the counts from the serialized histogram into the provided buckets
+   *
+   * @param buckets
+   * @param v
+   */
+  public static void merge(SortedMap<Double,Long> buckets, Value v) {
+    if (null == v) {
+      throw new IllegalArgumentException("Value cannot be null");
+    }
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(v.get(), v.getSize());
+    
+    try {
+      final int size = WritableUtils.readVInt(in);
+      for (int i = 0; i < size; i++) {
+        byte[] bound = new byte[WritableUtils.readVInt(in)];
+        in.readFully(bound);
+        
+        Double lowerBound = lex.decode(bound);
+        long count = WritableUtils.readVLong(in);
+        
+        Long current = buckets.get(lowerBound);
+        buckets.put(lowerBound, null == current ? count : current + count);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 import org.apache.accumulo.core.data.ByteSequence;
@@ -37,6 +38,8 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.VLongWritable;
 
+import cosmos.impl.RowLayout;
+
 /**
  * 
  */
@@ -45,6 +48,7 @@ public class GroupByRowSuffixIterator implements SortedKeyValueIterator<Key,Valu
   protected SortedKeyValueIterator<Key,Value> source;
   protected Key topKey = null;
   protected VLongWritable count = null;
+  protected RowLayout layout = RowLayout.fromOptions(Collections.<String,String> emptyMap());
   
   private final Text _holder = new Text(); 
   
@@ -55,6 +59,7 @@ public class GroupByRowSuffixIterator implements SortedKeyValueIterator<Key,Valu
   public GroupByRowSuffixIterator(GroupByRowSuffixIterator other, IteratorEnvironment env) {
     this();
     this.source = other.getSource().deepCopy(env);
+    this.layout = RowLayout.fromOptions(other.layout.toOptions());
   }
   
   @Override
@@ -118,11 +123,17 @@ public class GroupByRowSuffixIterator implements SortedKeyValueIterator<Key,Valu
 
   @Override
   public boolean validateOptions(Map<String,String> options) {
+    try {
+      RowLayout.fromOptions(options);
+    } catch (RuntimeException e) {
+      return false;
+    }
+    
     return true;
   }
   
   protected void setOptions(Map<String,String> options) {
-    
+    this.layout = RowLayout.fromOptions(options);
   }
 
   protected void countKeys() throws IOException {
@@ -136,7 +147,8 @@ public class GroupByRowSuffixIterator implements SortedKeyValueIterator<Key,Valu
     this.topKey = getSource().getTopKey();
     this.topKey.getRow(_holder);
     
-    final Range searchSpace = Range.exact(_holder);
+    // Every shard of the value in this row
+    final Range searchSpace = layout.groupRange(_holder);
     long keyCount = 0;
     Key currentKey = this.topKey;
     
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.accumulo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import cosmos.options.Defaults;
+import cosmos.results.Column;
+import cosmos.results.SValue;
+import cosmos.results.impl.DocumentFormat;
+
+/**
+ * Decodes each document in the CONTENTS column and returns it with only the requested {@link Column}s, so that the rest of the document is never sent to
+ * the client. Entries in other column families are returned unchanged.
+ */
+public class ProjectionIterator extends WrappingIterator {
+  
+  public static final String COLUMNS = "columns";
+  
+  protected static final ByteSequence CONTENTS = new ArrayByteSequence(Defaults.CONTENTS_COLFAM);
+  
+  protected Set<Column> columns;
+  protected Value projected = null;
+  
+  public ProjectionIterator() {}
+  
+  protected ProjectionIterator(ProjectionIterator other, IteratorEnvironment env) {
+    this.columns = other.columns;
+    setSource(other.getSource().deepCopy(env));
+  }
+  
+  /**
+   * Set the columns to return on the given {@link IteratorSetting}
+   * 
+   * @param cfg
+   * @param columns
+   */
+  public static void setColumns(IteratorSetting cfg, Collection<Column> columns) {
+    Preconditions.checkNotNull(cfg);
+    Preconditions.checkNotNull(columns);
+    
+    cfg.addOption(COLUMNS, encodeColumns(columns));
+  }
+  
+  protected static String encodeColumns(Collection<Column> columns) {
+    DataOutputBuffer out = new DataOutputBuffer();
+    
+    try {
+      WritableUtils.writeVInt(out, columns.size());
+      for (Column column : columns) {
+        column.write(out);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    
+    return new String(Base64.encodeBase64(bytes));
+  }
+  
+  protected static Set<Column> decodeColumns(String encoded) {
+    byte[] bytes = Base64.decodeBase64(encoded.getBytes());
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    
+    try {
+      final int count = WritableUtils.readVInt(in);
+      Set<Column> columns = Sets.newHashSetWithExpectedSize(count);
+      for (int i = 0; i < count; i++) {
+        columns.add(Column.recreate(in));
+      }
+      
+      return columns;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not decode columns: " + encoded, e);
+    }
+  }
+  
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+    
+    if (!options.containsKey(COLUMNS)) {
+      throw new IllegalArgumentException("No columns were provided: " + COLUMNS);
+    }
+    
+    this.columns = decodeColumns(options.get(COLUMNS));
+  }
+  
+  @Override
+  public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+    return new ProjectionIterator(this, env);
+  }
+  
+  @Override
+  public void next() throws IOException {
+    this.projected = null;
+    super.next();
+  }
+  
+  @Override
+  public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+    this.projected = null;
+    super.seek(range, columnFamilies, inclusive);
+  }
+  
+  @Override
+  public Value getTopValue() {
+    if (!CONTENTS.equals(getTopKey().getColumnFamilyData())) {
+      return super.getTopValue();
+    }
+    
+    if (null == this.projected) {
+      try {
+        this.projected = project(super.getTopValue());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    return this.projected;
+  }
+  
+  protected Value project(Value value) throws IOException {
+    final List<Entry<Column,SValue>> entries = Lists.newArrayList();
+    final String[] docId = new String[1];
+    final ColumnVisibility[] docVisibility = new ColumnVisibility[1];
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(value.get(), value.getSize());
+    
+    DocumentFormat.read(in, new DocumentFormat.Receiver() {
+      @Override
+      public void header(String id, ColumnVisibility visibility, int numEntries) {
+        docId[0] = id;
+        docVisibility[0] = visibility;
+      }
+      
+      @Override
+      public void entry(Column column, SValue svalue) {
+        if (columns.contains(column)) {
+          entries.add(Maps.immutableEntry(column, svalue));
+        }
+      }
+    });
+    
+    DataOutputBuffer out = new DataOutputBuffer();
+    DocumentFormat.write(out, docId[0], docVisibility[0], entries);
+    
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    
+    return new Value(bytes);
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+import cosmos.accumulo.GroupByBucketIterator;
+import cosmos.options.Bucket;
+import cosmos.results.SValue;
+
+/**
+ * Merges the partial histograms returned by each tablet running the {@link GroupByBucketIterator} into a single histogram, ordered by the lower bound of
+ * each bucket. The source is only consumed once the histogram is first iterated over.
+ *
+ * <p>
+ * As a bucket may contain values with differing visibilities, each bucket is returned with an empty {@link ColumnVisibility}. The counts only include the
+ * records that were visible to the {@link org.apache.accumulo.core.security.Authorizations} used to scan.
+ */
+public class BucketHistogram implements Iterable<Entry<SValue,Long>> {
+  
+  protected static final ColumnVisibility EMPTY_VIZ = new ColumnVisibility();
+  
+  protected final Iterable<Entry<Key,Value>> source;
+  protected final Bucket bucket;
+  protected SortedMap<Double,Long> histogram = null;
+  
+  public BucketHistogram(Iterable<Entry<Key,Value>> source, Bucket bucket) {
+    checkNotNull(source);
+    checkNotNull(bucket);
+    
+    this.source = source;
+    this.bucket = bucket;
+  }
+  
+  protected synchronized SortedMap<Double,Long> histogram() {
+    if (null == this.histogram) {
+      SortedMap<Double,Long> merged = Maps.newTreeMap();
+      
+      for (Entry<Key,Value> partial : source) {
+        GroupByBucketIterator.merge(merged, partial.getValue());
+      }
+      
+      this.histogram = merged;
+    }
+    
+    return this.histogram;
+  }
+  
+  @Override
+  public Iterator<Entry<SValue,Long>> iterator() {
+    return Iterators.unmodifiableIterator(Iterators.transform(histogram().entrySet().iterator(), new Function<Entry<Double,Long>,Entry<SValue,Long>>() {
+      @Override
+      public Entry<SValue,Long> apply(Entry<Double,Long> input) {
+        return Maps.immutableEntry(SValue.create(bucket.label(input.getKey()), EMPTY_VIZ), input.getValue());
+      }
+    }));
+  }
+  
+}
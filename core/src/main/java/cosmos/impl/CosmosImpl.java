@@ -19,6 +19,7 @@
  */
 package cosmos.impl;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
@@ -26,48 +27,85 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchDeleter;
 import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.ScannerBase;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.lexicoder.ReverseLexicoder;
-import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.client.admin.TableOperations;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.hadoop.io.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Predicates;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import cosmos.Cosmos;
+import cosmos.IndexBuildingException;
 import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.IndexState;
+import cosmos.SortingMetadata.QueryType;
 import cosmos.SortingMetadata.State;
 import cosmos.UnexpectedStateException;
 import cosmos.UnindexedColumnException;
+import cosmos.accumulo.ContentsFilter;
+import cosmos.accumulo.DropIndexFilter;
+import cosmos.accumulo.EpochFilter;
+import cosmos.accumulo.GroupByBucketIterator;
 import cosmos.accumulo.GroupByRowSuffixIterator;
 import cosmos.accumulo.OrderFilter;
+import cosmos.accumulo.ProjectionIterator;
+import cosmos.options.Bucket;
 import cosmos.options.Defaults;
+import cosmos.options.FilterExpression;
 import cosmos.options.Index;
+import cosmos.options.IndexBuildPolicy;
+import cosmos.options.KeyFormat;
 import cosmos.options.Order;
 import cosmos.options.Paging;
 import cosmos.results.CloseableIterable;
@@ -75,7 +113,11 @@ import cosmos.results.Column;
 import cosmos.results.PagedQueryResult;
 import cosmos.results.QueryResult;
 import cosmos.results.SValue;
+import cosmos.results.impl.DocumentFormat;
+import cosmos.results.impl.LazyQueryResult;
 import cosmos.results.impl.MultimapQueryResult;
+import cosmos.trace.Tracer;
+import cosmos.util.IdentitySet;
 import cosmos.util.IndexHelper;
 import cosmos.util.Single;
 
@@ -83,10 +125,24 @@ public class CosmosImpl implements Cosmos {
   private static final Logger log = LoggerFactory.getLogger(CosmosImpl.class);
   
   public static final long LOCK_SECS = 10;
+  public static final int LOCK_ATTEMPTS = 3;
   
   private final BatchWriterConfig DEFAULT_BW_CONFIG = new BatchWriterConfig();
   private final CuratorFramework curator;
-  private final ReverseLexicoder<String> revLex = new ReverseLexicoder<String>(new StringLexicoder());
+  
+  // Indexes which are being built on demand by this client
+  private final ExecutorService indexBuilders = Executors.newFixedThreadPool(Defaults.INDEX_BUILD_THREADS, new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("cosmos-index-builder-%d").build());
+  private final ConcurrentMap<String,Future<?>> indexBuilds = Maps.newConcurrentMap();
+  
+  // Results which are being deleted by this client
+  private final ExecutorService reclaimers = Executors.newFixedThreadPool(Defaults.RECLAIM_THREADS, new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("cosmos-reclaimer-%d").build());
+  private final ConcurrentMap<String,Future<?>> deletions = Maps.newConcurrentMap();
+  
+  // Periodic maintenance, such as index advisors and reclaimers
+  private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("cosmos-maintenance-%d").build());
   
   public CosmosImpl(String zookeepers) {
     RetryPolicy retryPolicy = new ExponentialBackoffRetry(2000, 3);
@@ -109,6 +165,20 @@ public class CosmosImpl implements Cosmos {
   
   @Override
   public void close() {
+    // Let running index builds finish, but start no more
+    indexBuilders.shutdown();
+    maintenance.shutdownNow();
+    
+    // Give pending deletions a chance to finish. Any which do not are left DELETING, to be found by a Reclaimer
+    reclaimers.shutdown();
+    try {
+      if (!reclaimers.awaitTermination(Defaults.RECLAIM_SHUTDOWN_SECS, TimeUnit.SECONDS)) {
+        log.warn("{} deletions did not finish before closing", deletions.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    
     synchronized (curator) {
       CuratorFrameworkState state = curator.getState();
       
@@ -151,6 +221,29 @@ public class CosmosImpl implements Cosmos {
       log.debug("Setting state for {} from {} to {}", new Object[] {id, s, targetState});
       
       SortingMetadata.setState(id, targetState);
+      
+      // Only an ephemeral result needs its registration time, to tell when its entries have aged off
+      if (id.isEphemeral()) {
+        final long registered = System.currentTimeMillis();
+        SortingMetadata.setRegistered(id, registered);
+        id.registered(registered);
+      }
+      
+      // Only record the format when it differs from the format of results written before there was a choice
+      if (!KeyFormat.V1.equals(id.layout().format())) {
+        SortingMetadata.setFormat(id.connector(), id.metadataTable(), id.uuid(), id.layout().format());
+      }
+      
+      // Record the options and indexes so that other clients can open the result
+      SortingMetadata.setOptions(id);
+      SortingMetadata.addIndexes(id, id.columnsToIndex());
+      
+      // No records have been added, so the indexes are already built unless they are built on demand
+      if (!id.isLazilyIndexed() && !(id.columnsToIndex() instanceof IdentitySet)) {
+        for (Index index : id.columnsToIndex()) {
+          SortingMetadata.setIndexState(id, index, IndexState.BUILT);
+        }
+      }
     } finally {
       sw.stop();
       id.tracer().addTiming("Cosmos:register", sw.elapsed(TimeUnit.MILLISECONDS));
@@ -186,31 +279,21 @@ public class CosmosImpl implements Cosmos {
         throw e;
       }
       
-      InterProcessMutex lock = getMutex(id);
-      
-      // TODO We don't need to lock on multiple calls to addResults; however, we need to lock over adding the
-      // new records to make sure a call to index() doesn't come in while we're processing a stale set of Columns to index
-      boolean locked = false;
-      int count = 1;
-      
-      if (id.lockOnUpdates()) {
-        while (!locked && count < 4) {
-          if (locked = lock.acquire(10, TimeUnit.SECONDS)) {
-            try {
-              performAdd(id, queryResults);
-            } finally {
-              // Don't hog the lock
-              lock.release();
-            }
-          } else {
-            count++;
-            log.warn("addResults() on {} could not acquire lock after {} seconds. Attempting acquire #{}", new Object[] {id.uuid(), LOCK_SECS, count});
-          }
-          
-          throw new IllegalStateException("Could not acquire lock during index() after " + count + " attempts");
+      // Concurrent calls to addResults share the read lock, while index() takes the write lock to make sure
+      // that no records are being added with a stale set of Columns to index
+      if (id.usesSchemaEpochs()) {
+        performAddWithEpoch(id, queryResults);
+      } else if (id.lockOnUpdates()) {
+        InterProcessMutex lock = acquire(id, getLock(id).readLock(), "addResults");
+        
+        try {
+          performAdd(id, queryResults, 0);
+        } finally {
+          // Don't hog the lock
+          lock.release();
         }
       } else {
-        performAdd(id, queryResults);
+        performAdd(id, queryResults, 0);
       }
     } finally {
       sw.stop();
@@ -218,14 +301,80 @@ public class CosmosImpl implements Cosmos {
     }
   }
   
-  protected void performAdd(SortableResult id, Iterable<? extends QueryResult<?>> queryResults) throws MutationsRejectedException, TableNotFoundException,
-      IOException {
+  /**
+   * Add the records without locking. The index schema epoch is read before the indexes to write, so an {@link #index(SortableResult, Set)} which advances
+   * the epoch after it is read either finds these records when it back-fills, or is seen here once they are written, in which case the records written
+   * under the epoch which was read are back-filled here.
+   * 
+   * @param id
+   * @param queryResults
+   * @throws MutationsRejectedException
+   * @throws TableNotFoundException
+   * @throws IOException
+   * @throws UnexpectedStateException
+   */
+  protected void performAddWithEpoch(SortableResult id, Iterable<? extends QueryResult<?>> queryResults) throws MutationsRejectedException,
+      TableNotFoundException, IOException, UnexpectedStateException {
+    final long epoch = SortingMetadata.getEpoch(id);
+    
+    // Another client changed the indexes since they were last read
+    if (epoch != id.epoch()) {
+      id.refreshIndexes();
+      id.epoch(epoch);
+    }
+    
+    final Set<Index> written = id.columnsToIndex() instanceof IdentitySet ? id.columnsToIndex() : Sets.newHashSet(id.columnsToIndex());
+    
+    performAdd(id, queryResults, epoch);
+    
+    final long current = SortingMetadata.getEpoch(id);
+    
+    // The indexes did not change, or every column was already indexed
+    if (current == epoch || written instanceof IdentitySet) {
+      return;
+    }
+    
+    id.refreshIndexes();
+    id.epoch(current);
+    
+    final Set<Index> missing;
+    if (id.columnsToIndex() instanceof IdentitySet) {
+      missing = id.columnsToIndex();
+    } else {
+      missing = Sets.newHashSet(Sets.difference(id.columnsToIndex(), written));
+    }
+    
+    if (!missing.isEmpty()) {
+      log.debug("Index schema epoch of {} changed from {} to {} while adding results, back-filling {}", new Object[] {id, epoch, current, missing});
+      
+      addIndices(id, missing, fetchEpochs(id, epoch, epoch + 1));
+    }
+  }
+  
+  protected void performAdd(SortableResult id, Iterable<? extends QueryResult<?>> queryResults, long epoch) throws MutationsRejectedException,
+      TableNotFoundException, IOException {
     BatchWriter bw = null, metadataBw = null;
+    Set<Index> written = null;
+    List<Range> documents = null;
     
     try {
+      // Stop writing any index which another client dropped
+      id.refreshDroppedIndexes();
+      
       // Add the values of columns to the sortableresult as we want
       Set<Index> columnsToIndex = id.columnsToIndex();
       
+      // Only maintain the indexes which have been requested
+      if (id.isLazilyIndexed()) {
+        columnsToIndex = Sets.newHashSet(Sets.filter(SortingMetadata.indexStates(id).keySet(), Predicates.in(columnsToIndex)));
+      }
+      
+      // Without the lock, a build may start after the indexes were read and scan past these records before they are written
+      if (id.isLazilyIndexed() && !locksWriters(id)) {
+        written = columnsToIndex;
+        documents = Lists.newArrayList();
+      }
+      
       bw = id.connector().createBatchWriter(id.dataTable(), DEFAULT_BW_CONFIG);
       metadataBw = id.connector().createBatchWriter(id.metadataTable(), DEFAULT_BW_CONFIG);
       
@@ -234,7 +383,14 @@ public class CosmosImpl implements Cosmos {
       final Set<Column> columnsAlreadyIndexed = Sets.newHashSet();
       
       for (QueryResult<?> result : queryResults) {
-        bw.addMutation(addDocument(id, result));
+        Mutation document = addDocument(id, result, epoch);
+        bw.addMutation(document);
+        id.splitManager().record(document.getRow());
+        
+        if (null != documents) {
+          documents.add(id.layout().documentRange(result.docId()));
+        }
+        
         Mutation columnMutation = new Mutation(id.uuid());
         boolean newColumnIndexed = false;
         
@@ -251,12 +407,13 @@ public class CosmosImpl implements Cosmos {
           
           if (indexHelper.shouldIndex(c)) {
             for (Index index : indexHelper.indicesForColumn(c)) {
-              Mutation m = getDocumentPrefix(id, result, v.value(), index.order());
+              Mutation m = new Mutation(id.layout().indexRow(v.value(), index.order(), result.docId()));
               
               final String direction = Order.direction(index.order());
               m.put(index.column().toString(), direction + Defaults.NULL_BYTE_STR + result.docId(), v.visibility(), Defaults.EMPTY_VALUE);
               
               bw.addMutation(m);
+              id.splitManager().record(m.getRow());
             }
           }
         }
@@ -265,6 +422,8 @@ public class CosmosImpl implements Cosmos {
           metadataBw.addMutation(columnMutation);
         }
       }
+      
+      metadataBw.addMutation(SortingMetadata.touch(id));
     } catch (MutationsRejectedException e) {
       log.error("Caught exception adding results for {}", id, e);
       throw e;
@@ -285,6 +444,21 @@ public class CosmosImpl implements Cosmos {
         metadataBw.close();
       }
     }
+    
+    if (null != documents && !documents.isEmpty()) {
+      // Indexes whose build started while these records were written
+      final Set<Index> missing = Sets.newHashSet(Sets.filter(SortingMetadata.indexStates(id).keySet(), Predicates.in(id.columnsToIndex())));
+      missing.removeAll(written);
+      
+      if (!missing.isEmpty()) {
+        log.debug("Building of {} started while adding results to {}, back-filling", missing, id);
+        
+        addIndicesFromContents(id, missing, documents, Collections.<IteratorSetting> emptyList());
+      }
+    }
+    
+    // Split any tablets which these results overloaded
+    id.splitManager().rebalance(id.tracer());
   }
   
   @Override
@@ -326,29 +500,14 @@ public class CosmosImpl implements Cosmos {
         throw unexpectedState(id, new State[] {State.LOADING, State.LOADED}, s);
       }
       
-      InterProcessMutex lock = getMutex(id);
-      
-      boolean locked = false;
-      int count = 1;
-      
-      // Only perform locking when the client requests it
-      if (id.lockOnUpdates) {
-        while (!locked && count < 4) {
-          if (locked = lock.acquire(10, TimeUnit.SECONDS)) {
-            try {
-              performUpdate(id, columnsToIndex);
-              
-            } finally {
-              lock.release();
-            }
-            
-            return;
-          } else {
-            count++;
-            log.warn("index() on {} could not acquire lock after {} seconds. Attempting acquire #{}", new Object[] {id.uuid(), LOCK_SECS, count});
-          }
-          
-          throw new IllegalStateException("Could not acquire lock during index() after " + count + " attempts");
+      // Only perform locking when the client requests it, and epochs are not used instead
+      if (id.lockOnUpdates && !id.usesSchemaEpochs()) {
+        InterProcessMutex lock = acquire(id, getLock(id).writeLock(), "index");
+        
+        try {
+          performUpdate(id, columnsToIndex);
+        } finally {
+          lock.release();
         }
       } else {
         performUpdate(id, columnsToIndex);
@@ -361,18 +520,48 @@ public class CosmosImpl implements Cosmos {
   
   protected void performUpdate(SortableResult id, Set<Index> columnsToIndex) throws TableNotFoundException, UnexpectedStateException,
       MutationsRejectedException, IOException {
+    // Add the values of columns to the sortableresult as we want future results to be indexed the same way. The catalog is written first, so that
+    // checking for dropped indexes does not remove these.
+    SortingMetadata.addIndexes(id, columnsToIndex);
+    id.addColumnsToIndex(columnsToIndex);
+    
+    if (id.usesSchemaEpochs()) {
+      // Writers which read an older epoch from now on back-fill their own records
+      final long epoch = SortingMetadata.bumpEpoch(id);
+      
+      addIndices(id, columnsToIndex, fetchEpochs(id, 0, epoch));
+    } else {
+      // Get the results we have to update
+      addIndices(id, columnsToIndex, fetch(id));
+    }
+    
+    // The given indexes are built, and no longer need to be built on demand
+    if (!(columnsToIndex instanceof IdentitySet)) {
+      for (Index index : columnsToIndex) {
+        SortingMetadata.setIndexState(id, index, IndexState.BUILT);
+      }
+    }
+    
+    id.splitManager().rebalance(id.tracer());
+  }
+  
+  /**
+   * Write the entries for the given indexes for each of the results, closing them afterwards
+   * 
+   * @param id
+   * @param columnsToIndex
+   * @param results
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   * @throws IOException
+   */
+  protected void addIndices(SortableResult id, Set<Index> columnsToIndex, CloseableIterable<MultimapQueryResult> results) throws TableNotFoundException,
+      MutationsRejectedException, IOException {
     final IndexHelper indexHelper = IndexHelper.create(columnsToIndex);
     final int numCols = indexHelper.columnCount();
-    CloseableIterable<MultimapQueryResult> results = null;
     BatchWriter bw = null;
     
     try {
-      // Add the values of columns to the sortableresult as we want future results to be indexed the same way
-      id.addColumnsToIndex(columnsToIndex);
-      
-      // Get the results we have to update
-      results = fetch(id);
-      
       bw = id.connector().createBatchWriter(id.dataTable(), DEFAULT_BW_CONFIG);
       
       // Iterate over the results we have
@@ -412,10 +601,349 @@ public class CosmosImpl implements Cosmos {
       if (null != bw) {
         bw.close();
       }
-      if (null != results) {
-        results.close();
+      results.close();
+    }
+  }
+  
+  /**
+   * Fetch the records which were written under an index schema epoch in {@code [minEpoch, maxEpoch)}
+   * 
+   * @param id
+   * @param minEpoch
+   * @param maxEpoch
+   * @return
+   * @throws TableNotFoundException
+   * @throws UnexpectedStateException
+   */
+  protected CloseableIterable<MultimapQueryResult> fetchEpochs(SortableResult id, long minEpoch, long maxEpoch) throws TableNotFoundException,
+      UnexpectedStateException {
+    IteratorSetting cfg = new IteratorSetting(50, "epochs", EpochFilter.class);
+    EpochFilter.setEpochs(cfg, minEpoch, maxEpoch);
+    
+    return fetch(id, Defaults.DOCID_FIELD_NAME_TEXT, Collections.singletonList(cfg), new IndexToMultimapQueryResult(this, id));
+  }
+  
+  /**
+   * Count a query of the given {@link Index}, if the {@link SortableResult} records its queries. A failure to count the query does not fail it.
+   * 
+   * @param id
+   * @param type
+   * @param index
+   */
+  protected void recordQuery(SortableResult id, QueryType type, Index index) {
+    if (!id.recordQueries()) {
+      return;
+    }
+    
+    try {
+      SortingMetadata.recordQuery(id, type, index);
+    } catch (TableNotFoundException e) {
+      log.warn("Could not record {} query of {} for {}", new Object[] {type, index.column(), id, e});
+    } catch (MutationsRejectedException e) {
+      log.warn("Could not record {} query of {} for {}", new Object[] {type, index.column(), id, e});
+    }
+  }
+  
+  /**
+   * Periodically apply the decisions of the given {@link IndexAdvisor} until this client is closed
+   * 
+   * @param advisor
+   * @param period
+   * @param unit
+   * @return
+   */
+  public ScheduledFuture<?> startAdvisor(IndexAdvisor advisor, long period, TimeUnit unit) {
+    checkNotNull(advisor);
+    checkNotNull(unit);
+    
+    return maintenance.scheduleWithFixedDelay(advisor, period, period, unit);
+  }
+  
+  /**
+   * Periodically run the given {@link Reclaimer} until this client is closed
+   * 
+   * @param reclaimer
+   * @param period
+   * @param unit
+   * @return
+   */
+  public ScheduledFuture<?> startReclaimer(Reclaimer reclaimer, long period, TimeUnit unit) {
+    checkNotNull(reclaimer);
+    checkNotNull(unit);
+    
+    return maintenance.scheduleWithFixedDelay(reclaimer, period, period, unit);
+  }
+  
+  @Override
+  public void dropIndex(SortableResult id, Index index) throws Exception {
+    checkNotNull(id);
+    checkNotNull(index);
+    checkArgument(id.isLazilyIndexed() || !(id.columnsToIndex() instanceof IdentitySet), "Cannot drop an index from " + id
+        + ", which eagerly indexes every column");
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      State s = SortingMetadata.getState(id);
+      
+      if (!State.LOADING.equals(s) && !State.LOADED.equals(s)) {
+        throw unexpectedState(id, new State[] {State.LOADING, State.LOADED}, s);
+      }
+      
+      // Only perform locking when the client requests it
+      if (id.lockOnUpdates) {
+        InterProcessMutex lock = acquire(id, getLock(id).writeLock(), "dropIndex");
+        
+        try {
+          performDrop(id, index);
+        } finally {
+          lock.release();
+        }
+      } else {
+        performDrop(id, index);
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:dropIndex", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  /**
+   * Stop maintaining the given {@link Index} and delete its entries. The entries are removed by compacting the tablets which hold the result with a
+   * {@link DropIndexFilter}, so they are never read back to the client. Entries which remain after the compaction, either written while it ran or left by an
+   * instance which does not compact, are then removed by a {@link BatchDeleter} which only returns the remaining entries.
+   * 
+   * @param id
+   * @param index
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   * @throws AccumuloException
+   * @throws AccumuloSecurityException
+   */
+  protected void performDrop(SortableResult id, Index index) throws TableNotFoundException, MutationsRejectedException, AccumuloException,
+      AccumuloSecurityException {
+    // Update the catalog first so that no new entries are written for the index
+    id.removeColumnToIndex(index);
+    SortingMetadata.removeIndexState(id, index);
+    if (!(id.columnsToIndex() instanceof IdentitySet)) {
+      SortingMetadata.removeIndex(id, index);
+    }
+    
+    // Queries made before the drop no longer count towards building the index again
+    SortingMetadata.clearQueries(id, index);
+    SortableResult.evict(id.connector(), id.metadataTable(), id.uuid());
+    
+    IteratorSetting dropper = new IteratorSetting(50, "dropIndex", DropIndexFilter.class);
+    DropIndexFilter.setIndex(dropper, id.layout(), index);
+    
+    final TableOperations tops = id.connector().tableOperations();
+    for (Range range : id.layout().resultRanges()) {
+      // Compacts the tablets which overlap the rows after the start row, up to and including the end row
+      tops.compact(id.dataTable(), range.getStartKey().getRow(), range.getEndKey().getRow(), Collections.singletonList(dropper), true, true);
+    }
+    
+    BatchDeleter bd = null;
+    try {
+      bd = id.connector().createBatchDeleter(id.dataTable(), id.auths(), 4, DEFAULT_BW_CONFIG);
+      bd.setRanges(id.layout().resultRanges());
+      bd.fetchColumnFamily(new Text(index.column().column()));
+      
+      IteratorSetting filter = new IteratorSetting(50, "cqFilter", OrderFilter.class);
+      filter.addOption(OrderFilter.PREFIX, Order.direction(index.order()));
+      bd.addScanIterator(filter);
+      
+      bd.delete();
+    } finally {
+      if (null != bd) {
+        bd.close();
+      }
+    }
+  }
+  
+  /**
+   * Check whether the {@link SortableResult} is indexed by the given {@link Index}, reloading the catalog of indexes if it is not, as the index may have
+   * been added by another client, or if its version changed, as the index may have been dropped.
+   * 
+   * @param id
+   * @param index
+   * @return
+   * @throws TableNotFoundException
+   */
+  protected boolean isIndexed(SortableResult id, Index index) throws TableNotFoundException {
+    // The index may also have been dropped by another client
+    if (id.columnsToIndex().contains(index)) {
+      return !id.refreshDroppedIndexes() || id.columnsToIndex().contains(index);
+    }
+    
+    return id.refreshIndexes() && id.columnsToIndex().contains(index);
+  }
+  
+  /**
+   * Ensure that the given {@link Index} is built for a {@link SortableResult} which is lazily indexed, starting a build if one is not already running.
+   * 
+   * @param id
+   * @param index
+   * @throws TableNotFoundException
+   * @throws IndexBuildingException
+   *           If the index is not yet built and the {@link IndexBuildPolicy} does not allow waiting, or the wait timed out
+   */
+  protected void ensureIndexed(SortableResult id, Index index) throws TableNotFoundException, IndexBuildingException {
+    if (!id.isLazilyIndexed() || !id.columnsToIndex().contains(index)) {
+      return;
+    }
+    
+    if (IndexState.BUILT.equals(SortingMetadata.getIndexState(id, index))) {
+      return;
+    }
+    
+    Future<?> build = buildIndex(id, index);
+    
+    if (IndexBuildPolicy.FAIL_FAST.equals(id.indexBuildPolicy())) {
+      throw new IndexBuildingException(index.column() + " is being indexed for " + id.uuid());
+    }
+    
+    Stopwatch sw = new Stopwatch().start();
+    try {
+      build.get(id.indexBuildTimeout(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IndexBuildingException(index.column() + " was not indexed for " + id.uuid() + " after " + id.indexBuildTimeout() + "ms");
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Could not index " + index.column() + " for " + id.uuid(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:awaitIndex", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  /**
+   * Build the given {@link Index} in the background, unless this client is already building it
+   * 
+   * @param id
+   * @param index
+   * @return The build
+   */
+  protected Future<?> buildIndex(final SortableResult id, final Index index) {
+    final String key = id.uuid() + Defaults.NULL_BYTE_STR + Order.direction(index.order()) + Defaults.NULL_BYTE_STR + index.column().column();
+    
+    FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          performBuild(id, index);
+          return null;
+        } finally {
+          indexBuilds.remove(key);
+        }
+      }
+    });
+    
+    Future<?> existing = indexBuilds.putIfAbsent(key, task);
+    if (null != existing) {
+      return existing;
+    }
+    
+    indexBuilders.execute(task);
+    
+    return task;
+  }
+  
+  /**
+   * Build the given {@link Index} from the contents of the records. When writers take the lock, the write lock is held only while the index is marked as
+   * {@link IndexState#BUILDING}. Acquiring it waits for every writer which read the index states beforehand to flush its records, so the scan, which runs
+   * after the lock is released, cannot miss them. Otherwise, writers back-fill their own records when they find that a build started while they wrote
+   * them.
+   * 
+   * @param id
+   * @param index
+   * @throws Exception
+   */
+  protected void performBuild(SortableResult id, Index index) throws Exception {
+    Stopwatch sw = new Stopwatch().start();
+    
+    final InterProcessMutex lock = locksWriters(id) ? acquire(id, getLock(id).writeLock(), "buildIndex") : null;
+    try {
+      // Records added from here on are indexed as they are written
+      SortingMetadata.setIndexState(id, index, IndexState.BUILDING);
+    } finally {
+      if (null != lock) {
+        lock.release();
+      }
+    }
+    
+    log.info("Building {} for {}", index.column(), id);
+    
+    // Only the records which contain the column need to be returned
+    IteratorSetting filter = new IteratorSetting(50, "filter", ContentsFilter.class);
+    ContentsFilter.setExpression(filter, FilterExpression.exists(index.column()));
+    
+    long count = addIndicesFromContents(id, Collections.singleton(index), id.layout().resultRanges(), Collections.singletonList(filter));
+    
+    SortingMetadata.setIndexState(id, index, IndexState.BUILT);
+    
+    sw.stop();
+    id.tracer().addTiming("Cosmos:buildIndex", sw.elapsed(TimeUnit.MILLISECONDS));
+    
+    log.info("Built {} for {} with {} entries", new Object[] {index.column(), id, count});
+    
+    id.splitManager().rebalance(id.tracer());
+  }
+  
+  /**
+   * Write the entries for the given indexes from the contents of the records in the given ranges
+   * 
+   * @param id
+   * @param indices
+   * @param ranges
+   * @param iterators
+   *          Applied to the contents of the records before they are returned
+   * @return The number of entries written
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  protected long addIndicesFromContents(SortableResult id, Collection<Index> indices, Collection<Range> ranges, List<IteratorSetting> iterators)
+      throws TableNotFoundException, MutationsRejectedException {
+    BatchScanner bs = null;
+    BatchWriter bw = null;
+    long count = 0;
+    
+    try {
+      bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
+      bs.setRanges(ranges);
+      bs.fetchColumnFamily(Defaults.CONTENTS_COLFAM_TEXT);
+      for (IteratorSetting cfg : iterators) {
+        bs.addScanIterator(cfg);
+      }
+      
+      bw = id.connector().createBatchWriter(id.dataTable(), DEFAULT_BW_CONFIG);
+      
+      for (Entry<Key,Value> entry : bs) {
+        LazyQueryResult record = LazyQueryResult.create(entry.getValue());
+        
+        for (Index index : indices) {
+          final String direction = Order.direction(index.order());
+          
+          for (SValue value : record.get(index.column())) {
+            Mutation m = new Mutation(id.layout().indexRow(value.value(), index.order(), record.docId()));
+            m.put(index.column().toString(), direction + Defaults.NULL_BYTE_STR + record.docId(), value.visibility(), Defaults.EMPTY_VALUE);
+            bw.addMutation(m);
+            id.splitManager().record(m.getRow());
+            count++;
+          }
+        }
+      }
+    } finally {
+      if (null != bs) {
+        bs.close();
+      }
+      if (null != bw) {
+        bw.close();
       }
     }
+    
+    return count;
   }
   
   /**
@@ -434,11 +962,12 @@ public class CosmosImpl implements Cosmos {
     // Place an Index entry for each value in each direction defined
     for (Index index : indices) {
       for (SValue value : values) {
-        Mutation m = getDocumentPrefix(id, result, value.value(), index.order());
+        Mutation m = new Mutation(id.layout().indexRow(value.value(), index.order(), result.docId()));
         
         final String direction = Order.direction(index.order());
         m.put(index.column().toString(), direction + Defaults.NULL_BYTE_STR + result.docId(), value.visibility(), Defaults.EMPTY_VALUE);
         bw.addMutation(m);
+        id.splitManager().record(m.getRow());
       }
     }
   }
@@ -468,6 +997,79 @@ public class CosmosImpl implements Cosmos {
   public CloseableIterable<MultimapQueryResult> fetch(SortableResult id) throws TableNotFoundException, UnexpectedStateException {
     checkNotNull(id);
     
+    return fetch(id, new IndexToMultimapQueryResult(this, id));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(projection);
+    
+    return fetch(id, new IndexToMultimapQueryResult(this, id, projection));
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id) throws TableNotFoundException, UnexpectedStateException {
+    checkNotNull(id);
+    
+    return fetch(id, new IndexToLazyQueryResult(this, id));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter) throws TableNotFoundException, UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(filter);
+    
+    return fetch(id, filter, null);
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter, Set<Column> projection) throws TableNotFoundException,
+      UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(filter);
+    
+    // Evaluate the filter against the full record before any columns are dropped
+    List<IteratorSetting> iterators = Lists.newArrayList();
+    
+    IteratorSetting filterCfg = new IteratorSetting(50, "filter", ContentsFilter.class);
+    ContentsFilter.setExpression(filterCfg, filter);
+    iterators.add(filterCfg);
+    
+    if (null != projection) {
+      IteratorSetting projectionCfg = new IteratorSetting(60, "projection", ProjectionIterator.class);
+      ProjectionIterator.setColumns(projectionCfg, projection);
+      iterators.add(projectionCfg);
+    }
+    
+    // Read the records directly instead of following the docIds
+    return fetch(id, Defaults.CONTENTS_COLFAM_TEXT, iterators, new KeyValueToMultimapQueryResult());
+  }
+  
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Function<Entry<Key,Value>,T> transform) throws TableNotFoundException,
+      UnexpectedStateException {
+    return fetch(id, Defaults.DOCID_FIELD_NAME_TEXT, Collections.<IteratorSetting> emptyList(), transform);
+  }
+  
+  /**
+   * @return The transformed entries, without the nulls returned for records of an ephemeral result which aged off before their index entries
+   */
+  protected static <T> Iterable<T> present(Iterable<Entry<Key,Value>> entries, Function<Entry<Key,Value>,T> transform) {
+    return Iterables.filter(Iterables.transform(entries, transform), Predicates.notNull());
+  }
+  
+  /**
+   * Scan every entry for the result in the given column family
+   * 
+   * @param id
+   * @param colfam
+   * @param iterators
+   *          Iterators to apply on the tablet servers
+   * @param transform
+   * @return
+   */
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Text colfam, List<IteratorSetting> iterators, Function<Entry<Key,Value>,T> transform)
+      throws TableNotFoundException, UnexpectedStateException {
     final String description = "Cosmos:fetch";
     Stopwatch sw = new Stopwatch().start();
     
@@ -481,11 +1083,15 @@ public class CosmosImpl implements Cosmos {
       }
       
       BatchScanner bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
-      bs.setRanges(Collections.singleton(Range.prefix(id.uuid())));
-      bs.fetchColumnFamily(Defaults.DOCID_FIELD_NAME_TEXT);
+      bs.setRanges(id.layout().resultRanges());
+      bs.fetchColumnFamily(colfam);
+      
+      for (IteratorSetting cfg : iterators) {
+        bs.addScanIterator(cfg);
+      }
       
       // Handles stoping the stopwatch
-      return CloseableIterable.transform(bs, new IndexToMultimapQueryResult(this, id), id.tracer(), description, sw);
+      return CloseableIterable.create(bs, present(bs, transform), id.tracer(), description, sw);
     } catch (TableNotFoundException e) {
       // In the exceptional case, stop the timer
       sw.stop();
@@ -516,11 +1122,41 @@ public class CosmosImpl implements Cosmos {
   }
   
   @Override
-  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value) throws TableNotFoundException, UnexpectedStateException {
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value) throws TableNotFoundException, UnexpectedStateException,
+      UnindexedColumnException {
     checkNotNull(id);
     checkNotNull(column);
     checkNotNull(value);
     
+    return fetch(id, column, value, new IndexToMultimapQueryResult(this, id));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Set<Column> projection) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(value);
+    checkNotNull(projection);
+    
+    return fetch(id, column, value, new IndexToMultimapQueryResult(this, id, projection));
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Column column, String value) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(value);
+    
+    return fetch(id, column, value, new IndexToLazyQueryResult(this, id));
+  }
+  
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Column column, String value, Function<Entry<Key,Value>,T> transform)
+      throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException {
+    recordQuery(id, QueryType.VALUE, Index.define(column, Order.ASCENDING));
+    ensureIndexed(id, Index.define(column, Order.ASCENDING));
+    
     final String description = "Cosmos:fetchWithColumnValue";
     Stopwatch sw = new Stopwatch().start();
     
@@ -535,10 +1171,10 @@ public class CosmosImpl implements Cosmos {
       }
       
       BatchScanner bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
-      bs.setRanges(Collections.singleton(Range.exact(id.uuid() + Defaults.NULL_BYTE_STR + value)));
+      bs.setRanges(id.layout().valueRanges(value));
       bs.fetchColumnFamily(new Text(column.column()));
       
-      return CloseableIterable.transform(bs, new IndexToMultimapQueryResult(this, id), id.tracer(), description, sw);
+      return CloseableIterable.create(bs, present(bs, transform), id.tracer(), description, sw);
     } catch (TableNotFoundException e) {
       // In the exceptional case, stop the timer
       sw.stop();
@@ -560,7 +1196,7 @@ public class CosmosImpl implements Cosmos {
   
   @Override
   public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Paging limits) throws TableNotFoundException,
-      UnexpectedStateException {
+      UnexpectedStateException, UnindexedColumnException {
     checkNotNull(limits);
     
     CloseableIterable<MultimapQueryResult> results = fetch(id, column, value);
@@ -580,6 +1216,226 @@ public class CosmosImpl implements Cosmos {
     checkNotNull(id);
     checkNotNull(ordering);
     
+    if (id.sortUnindexed() && !isIndexed(id, ordering)) {
+      return sort(id, ordering, duplicateUidsAllowed, null);
+    }
+    
+    return fetch(id, ordering, duplicateUidsAllowed, new IndexToMultimapQueryResult(this, id));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Set<Column> projection)
+      throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(ordering);
+    checkNotNull(projection);
+    
+    if (id.sortUnindexed() && !isIndexed(id, ordering)) {
+      return sort(id, ordering, duplicateUidsAllowed, projection);
+    }
+    
+    return fetch(id, ordering, duplicateUidsAllowed, new IndexToMultimapQueryResult(this, id, projection));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, List<Index> orderings, boolean duplicateUidsAllowed) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(orderings);
+    checkArgument(!orderings.isEmpty(), "At least one ordering is required");
+    
+    if (1 == orderings.size()) {
+      return fetch(id, orderings.get(0), duplicateUidsAllowed);
+    }
+    
+    final String description = "Cosmos:fetchWithIndices";
+    Stopwatch sw = new Stopwatch().start();
+    
+    final CloseableIterable<Entry<Key,Value>> entries;
+    try {
+      entries = fetch(id, orderings.get(0), duplicateUidsAllowed, Functions.<Entry<Key,Value>> identity());
+    } catch (TableNotFoundException e) {
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (UnexpectedStateException e) {
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (UnindexedColumnException e) {
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    }
+    
+    // Ties on the first column are broken on the client, one value at a time
+    final SecondarySort<Entry<Key,Value>> sorted = new SecondarySort<Entry<Key,Value>>(entries, SecondarySort.byValue(id.layout()),
+        new IndexToMultimapQueryResult(this, id), orderings.subList(1, orderings.size()), id.sortBufferSize(), id.sortDirectory());
+    
+    return new CloseableIterable<MultimapQueryResult>(Collections.<ScannerBase> emptyList(), sorted, id.tracer(), description, sw) {
+      @Override
+      public void close() {
+        super.close();
+        entries.close();
+        sorted.close();
+      }
+    };
+  }
+  
+  /**
+   * Order the records by a column which is not indexed. Every record is read from the CONTENTS column and sorted on the client by an {@link ExternalSort}.
+   * As with an index, a record is returned once for each of its values in the column, and records without the column are not returned.
+   * 
+   * @param id
+   * @param ordering
+   * @param duplicateUidsAllowed
+   * @param projection
+   *          The columns to return, or null for all columns
+   * @return
+   */
+  protected CloseableIterable<MultimapQueryResult> sort(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Set<Column> projection)
+      throws TableNotFoundException, UnexpectedStateException {
+    recordQuery(id, QueryType.ORDER, ordering);
+    
+    final String description = "Cosmos:sortUnindexed";
+    Stopwatch sw = new Stopwatch().start();
+    
+    final ExternalSort sorter = new ExternalSort(ordering.order(), id.sortBufferSize(), id.sortDirectory());
+    BatchScanner bs = null;
+    
+    try {
+      State s = SortingMetadata.getState(id);
+      
+      if (!State.LOADING.equals(s) && !State.LOADED.equals(s)) {
+        throw unexpectedState(id, new State[] {State.LOADING, State.LOADED}, s);
+      }
+      
+      final Column column = ordering.column();
+      
+      bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
+      bs.setRanges(id.layout().resultRanges());
+      bs.fetchColumnFamily(Defaults.CONTENTS_COLFAM_TEXT);
+      
+      // The sort column is needed even when it was not requested
+      if (null != projection) {
+        IteratorSetting cfg = new IteratorSetting(50, "projection", ProjectionIterator.class);
+        ProjectionIterator.setColumns(cfg, Sets.union(projection, Collections.singleton(column)));
+        bs.addScanIterator(cfg);
+      }
+      
+      final boolean dropColumn = null != projection && !projection.contains(column);
+      
+      for (Entry<Key,Value> entry : bs) {
+        LazyQueryResult record = LazyQueryResult.create(entry.getValue());
+        Collection<SValue> values = record.get(column);
+        
+        if (values.isEmpty()) {
+          continue;
+        }
+        
+        // Without duplicates, a record is only returned at its first value
+        if (!duplicateUidsAllowed) {
+          values = Collections.singleton(firstValue(values, ordering.order()));
+        }
+        
+        Value document = dropColumn ? without(record, column) : entry.getValue();
+        for (SValue value : values) {
+          sorter.add(value.value(), record.docId(), document);
+        }
+      }
+      
+      log.debug("Sorted {} by {} with {} spills", new Object[] {id, ordering, sorter.spills()});
+      
+      Iterable<MultimapQueryResult> results = Iterables.transform(sorter.sorted(), new Function<Value,MultimapQueryResult>() {
+        @Override
+        public MultimapQueryResult apply(Value input) {
+          return KeyValueToMultimapQueryResult.transform(input);
+        }
+      });
+      
+      // The scanner has already been read, the sorted files remain until the results are closed
+      return new CloseableIterable<MultimapQueryResult>(Collections.<ScannerBase> emptyList(), results, id.tracer(), description, sw) {
+        @Override
+        public void close() {
+          super.close();
+          sorter.close();
+        }
+      };
+    } catch (TableNotFoundException e) {
+      // In the exceptional case, stop the timer
+      sorter.close();
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      sorter.close();
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (IOException e) {
+      // In the exceptional case, stop the timer
+      sorter.close();
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw new RuntimeException(e);
+    } catch (RuntimeException e) {
+      // In the exceptional case, stop the timer
+      sorter.close();
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } finally {
+      if (null != bs) {
+        bs.close();
+      }
+    }
+  }
+  
+  /**
+   * @return The value at which a record is first returned when sorting in the given order
+   */
+  protected SValue firstValue(Collection<SValue> values, Order order) {
+    SValue first = null;
+    for (SValue value : values) {
+      if (null == first) {
+        first = value;
+      } else {
+        int result = value.value().compareTo(first.value());
+        if (Order.ASCENDING.equals(order) ? result < 0 : result > 0) {
+          first = value;
+        }
+      }
+    }
+    
+    return first;
+  }
+  
+  protected Value without(LazyQueryResult record, Column column) throws IOException {
+    Multimap<Column,SValue> document = HashMultimap.create();
+    for (Entry<Column,SValue> entry : record.columnValues()) {
+      if (!column.equals(entry.getKey())) {
+        document.put(entry.getKey(), entry.getValue());
+      }
+    }
+    
+    return new MultimapQueryResult(document, record.docId(), record.documentVisibility()).toValue();
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Index ordering, boolean duplicateUidsAllowed) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(ordering);
+    
+    return fetch(id, ordering, duplicateUidsAllowed, new IndexToLazyQueryResult(this, id));
+  }
+  
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Function<Entry<Key,Value>,T> transform)
+      throws TableNotFoundException, UnexpectedStateException, UnindexedColumnException {
+    recordQuery(id, QueryType.ORDER, ordering);
+    ensureIndexed(id, ordering);
+    
     final String description = "Cosmos:fetchWithIndex";
     Stopwatch sw = new Stopwatch().start();
     
@@ -593,7 +1449,7 @@ public class CosmosImpl implements Cosmos {
       
       Index.define(ordering.column());
       
-      if (!id.columnsToIndex().contains(ordering)) {
+      if (!isIndexed(id, ordering)) {
         log.error("{} is not indexed by {}", ordering, id);
         
         sw.stop();
@@ -602,22 +1458,36 @@ public class CosmosImpl implements Cosmos {
         throw new UnindexedColumnException();
       }
       
-      Scanner scanner = id.connector().createScanner(id.dataTable(), id.auths());
-      scanner.setRange(Range.prefix(id.uuid()));
-      scanner.fetchColumnFamily(new Text(ordering.column().column()));
-      scanner.setBatchSize(200);
+      // A BatchScanner would lose the ordering, so use a Scanner for each document shard
+      List<Scanner> scanners = Lists.newArrayList();
+      for (Range range : id.layout().resultRanges()) {
+        Scanner scanner = id.connector().createScanner(id.dataTable(), id.auths());
+        scanner.setRange(range);
+        scanner.fetchColumnFamily(new Text(ordering.column().column()));
+        scanner.setBatchSize(200);
+        
+        // Filter on cq-prefix to only look at the ordering we want
+        IteratorSetting filter = new IteratorSetting(50, "cqFilter", OrderFilter.class);
+        filter.addOption(OrderFilter.PREFIX, Order.direction(ordering.order()));
+        scanner.addScanIterator(filter);
+        
+        scanners.add(scanner);
+      }
       
-      // Filter on cq-prefix to only look at the ordering we want
-      IteratorSetting filter = new IteratorSetting(50, "cqFilter", OrderFilter.class);
-      filter.addOption(OrderFilter.PREFIX, Order.direction(ordering.order()));
-      scanner.addScanIterator(filter);
+      // Each document shard is sorted on its own, merge them back into a single ordering
+      Iterable<Entry<Key,Value>> entries;
+      if (1 == scanners.size()) {
+        entries = scanners.get(0);
+      } else {
+        entries = Iterables.<Entry<Key,Value>> mergeSorted(scanners, new IndexEntryComparator(id.layout()));
+      }
       
       // If the client has told us they don't want duplicate records, lets not give them duplicate records
-      if (duplicateUidsAllowed) {
-        return CloseableIterable.transform(scanner, new IndexToMultimapQueryResult(this, id), id.tracer(), description, sw);
-      } else {
-        return CloseableIterable.filterAndTransform(scanner, new DedupingPredicate(), new IndexToMultimapQueryResult(this, id), id.tracer(), description, sw);
+      if (!duplicateUidsAllowed) {
+        entries = Iterables.filter(entries, new DedupingPredicate());
       }
+      
+      return CloseableIterable.create(scanners, present(entries, transform), id.tracer(), description, sw);
     } catch (TableNotFoundException e) {
       // In the exceptional case, stop the timer
       sw.stop();
@@ -652,6 +1522,11 @@ public class CosmosImpl implements Cosmos {
   public CloseableIterable<Entry<SValue,Long>> groupResults(SortableResult id, Column column) throws TableNotFoundException, UnexpectedStateException,
       UnindexedColumnException {
     checkNotNull(id);
+    checkNotNull(column);
+    
+    // Grouping reads the ascending index
+    recordQuery(id, QueryType.GROUP, Index.define(column, Order.ASCENDING));
+    ensureIndexed(id, Index.define(column, Order.ASCENDING));
     
     Stopwatch sw = new Stopwatch().start();
     final String description = "Cosmos:groupResults";
@@ -669,7 +1544,7 @@ public class CosmosImpl implements Cosmos {
       Text colf = new Text(column.column());
       
       BatchScanner bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
-      bs.setRanges(Collections.singleton(Range.prefix(id.uuid())));
+      bs.setRanges(id.layout().resultRanges());
       bs.fetchColumnFamily(colf);
       
       // Filter on cq-prefix to only look at the ordering we want
@@ -678,9 +1553,16 @@ public class CosmosImpl implements Cosmos {
       bs.addScanIterator(filter);
       
       IteratorSetting cfg = new IteratorSetting(60, GroupByRowSuffixIterator.class);
+      cfg.addOptions(id.layout().toOptions());
       bs.addScanIterator(cfg);
       
-      return CloseableIterable.transform(bs, new GroupByFunction(), id.tracer(), description, sw);
+      // The shards for a value might span multiple tablets, each returning a partial count
+      if (id.layout().valuesSpanShards()) {
+        Iterable<Entry<SValue,Long>> partials = Iterables.transform(bs, new GroupByFunction(id.layout()));
+        return CloseableIterable.create(bs, new GroupByMerger(partials), id.tracer(), description, sw);
+      }
+      
+      return CloseableIterable.transform(bs, new GroupByFunction(id.layout()), id.tracer(), description, sw);
     } catch (TableNotFoundException e) {
       // In the exceptional case, stop the timer
       sw.stop();
@@ -710,11 +1592,110 @@ public class CosmosImpl implements Cosmos {
     return PagedQueryResult.create(results, limits);
   }
   
+  @Override
+  public CloseableIterable<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(column);
+    
+    // Grouping reads the ascending index
+    recordQuery(id, QueryType.GROUP, Index.define(column, Order.ASCENDING));
+    ensureIndexed(id, Index.define(column, Order.ASCENDING));
+    
+    Stopwatch sw = new Stopwatch().start();
+    final String description = "Cosmos:groupResultsByBucket";
+    
+    try {
+      State s = SortingMetadata.getState(id);
+      
+      if (!State.LOADING.equals(s) && !State.LOADED.equals(s)) {
+        sw.stop();
+        throw unexpectedState(id, new State[] {State.LOADING, State.LOADED}, s);
+      }
+      
+      checkNotNull(column);
+      checkNotNull(bucket);
+      
+      Text colf = new Text(column.column());
+      
+      BatchScanner bs = id.connector().createBatchScanner(id.dataTable(), id.auths(), 10);
+      bs.setRanges(id.layout().resultRanges());
+      bs.fetchColumnFamily(colf);
+      
+      // Filter on cq-prefix to only look at the ordering we want
+      IteratorSetting filter = new IteratorSetting(50, "cqFilter", OrderFilter.class);
+      filter.addOption(OrderFilter.PREFIX, Order.FORWARD);
+      bs.addScanIterator(filter);
+      
+      // Each tablet returns a single, partial histogram
+      IteratorSetting cfg = new IteratorSetting(60, GroupByBucketIterator.class);
+      cfg.addOptions(id.layout().toOptions());
+      cfg.addOptions(bucket.toOptions());
+      bs.addScanIterator(cfg);
+      
+      return CloseableIterable.create(bs, new BucketHistogram(bs, bucket), id.tracer(), description, sw);
+    } catch (TableNotFoundException e) {
+      // In the exceptional case, stop the timer
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    } catch (RuntimeException e) {
+      // In the exceptional case, stop the timer
+      sw.stop();
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+      throw e;
+    }
+    // no finally as the trace is stopped by the CloseableIterable
+  }
+  
+  @Override
+  public PagedQueryResult<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket, Paging limits) throws TableNotFoundException,
+      UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(limits);
+    
+    CloseableIterable<Entry<SValue,Long>> results = groupResults(id, column, bucket);
+    
+    return PagedQueryResult.create(results, limits);
+  }
+  
   @Override
   public MultimapQueryResult contents(SortableResult id, String docId) throws TableNotFoundException, UnexpectedStateException {
     checkNotNull(id);
     checkNotNull(docId);
     
+    return KeyValueToMultimapQueryResult.transform(serializedContents(id, docId, null));
+  }
+  
+  @Override
+  public MultimapQueryResult contents(SortableResult id, String docId, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(docId);
+    checkNotNull(projection);
+    
+    return KeyValueToMultimapQueryResult.transform(serializedContents(id, docId, projection));
+  }
+  
+  @Override
+  public LazyQueryResult lazyContents(SortableResult id, String docId) throws TableNotFoundException, UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(docId);
+    
+    return LazyQueryResult.create(serializedContents(id, docId, null));
+  }
+  
+  /**
+   * @param id
+   * @param docId
+   * @param projection
+   *          The columns to return, or null for all columns
+   * @return The serialized record
+   */
+  protected Value serializedContents(SortableResult id, String docId, Set<Column> projection) throws TableNotFoundException, UnexpectedStateException {
     // Omit tracing here just due to sheer magnitude of these calls.
     
     State s = SortingMetadata.getState(id);
@@ -724,9 +1705,16 @@ public class CosmosImpl implements Cosmos {
     }
     
     Scanner scanner = id.connector().createScanner(id.dataTable(), id.auths());
-    scanner.setRange(Range.exact(id.uuid() + Defaults.NULL_BYTE_STR + docId));
+    scanner.setRange(id.layout().documentRange(docId));
     scanner.fetchColumnFamily(Defaults.CONTENTS_COLFAM_TEXT);
     
+    // Drop the columns which weren't requested on the server
+    if (null != projection) {
+      IteratorSetting cfg = new IteratorSetting(50, "projection", ProjectionIterator.class);
+      ProjectionIterator.setColumns(cfg, projection);
+      scanner.addScanIterator(cfg);
+    }
+    
     Iterator<Entry<Key,Value>> iter = scanner.iterator();
     if (!iter.hasNext()) {
       scanner.close();
@@ -736,10 +1724,14 @@ public class CosmosImpl implements Cosmos {
       Value value = iter.next().getValue();
       scanner.close();
       
-      return KeyValueToMultimapQueryResult.transform(value);
+      return value;
     }
   }
   
+  /**
+   * Mark the {@link SortableResult} as {@link State#DELETING} and return. Its rows, metadata and traces are removed in the background by one of a bounded
+   * number of threads; {@link #awaitDeletion(SortableResult, long, TimeUnit)} waits for that to finish.
+   */
   @Override
   public void delete(SortableResult id) throws TableNotFoundException, MutationsRejectedException, UnexpectedStateException {
     checkNotNull(id);
@@ -759,54 +1751,188 @@ public class CosmosImpl implements Cosmos {
       
       SortingMetadata.setState(id, desiredState);
       
-      // Delete of the Keys
-      BatchDeleter bd = null;
-      try {
-        bd = id.connector().createBatchDeleter(id.dataTable(), id.auths(), 4, new BatchWriterConfig());
-        bd.setRanges(Collections.singleton(Range.prefix(id.uuid())));
-        
-        bd.delete();
-      } finally {
-        if (null != bd) {
-          bd.close();
+      // Readers in this process which open the result from now on find it is being deleted
+      SortableResult.evict(id.connector(), id.metadataTable(), id.uuid());
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:delete", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+    
+    // Only after the timing was recorded, as the traces are sent with the deletion
+    reclaim(id);
+  }
+  
+  @Override
+  public boolean awaitDeletion(SortableResult id, long timeout, TimeUnit unit) throws ExecutionException, InterruptedException {
+    checkNotNull(id);
+    checkNotNull(unit);
+    
+    Future<?> deletion = deletions.get(id.uuid());
+    if (null == deletion) {
+      return true;
+    }
+    
+    try {
+      deletion.get(timeout, unit);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Remove the rows, metadata and traces of the given {@link SortableResult} in the background, unless this client is already doing so. The traces
+   * recorded so far are copied, so that the caller may keep recording into its {@link Tracer} while the copy is sent.
+   * 
+   * @param id
+   * @return
+   */
+  protected Future<?> reclaim(final SortableResult id) {
+    Future<?> deletion = deletions.get(id.uuid());
+    if (null != deletion) {
+      return deletion;
+    }
+    
+    final Tracer tracer = new Tracer(id.tracer());
+    FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          purge(id, tracer);
+        } finally {
+          deletions.remove(id.uuid());
         }
+        
+        return null;
+      }
+    });
+    
+    deletion = deletions.putIfAbsent(id.uuid(), task);
+    if (null != deletion) {
+      return deletion;
+    }
+    
+    reclaimers.execute(task);
+    
+    return task;
+  }
+  
+  protected void purge(SortableResult id, Tracer tracer) throws TableNotFoundException, MutationsRejectedException {
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      if (id.isTablePerResult()) {
+        deleteTable(id);
+      } else {
+        deleteRows(id);
       }
       
       log.debug("Removing state for {}", id);
       
       SortingMetadata.remove(id);
+    } catch (TableNotFoundException e) {
+      log.error("Could not delete {}", id, e);
+      throw e;
+    } catch (MutationsRejectedException e) {
+      log.error("Could not delete {}", id, e);
+      throw e;
+    } catch (RuntimeException e) {
+      log.error("Could not delete {}", id, e);
+      throw e;
     } finally {
       sw.stop();
-      id.tracer().addTiming("Cosmos:delete", sw.elapsed(TimeUnit.MILLISECONDS));
+      tracer.addTiming("Cosmos:purge", sw.elapsed(TimeUnit.MILLISECONDS));
       
       // Be nice and when the client deletes these results, automatically flush the traces for them too
-      id.sendTraces();
+      id.sendTraces(tracer);
     }
   }
   
-  protected Mutation getDocumentPrefix(SortableResult id, QueryResult<?> queryResult, String suffix, Order order) {
-    final Text t = new Text();
-    byte[] b = id.uuid().getBytes();
-    t.append(b, 0, b.length);
-    t.append(new byte[] {0}, 0, 1);
-    if (Order.ASCENDING.equals(order)) {
-      t.append(suffix.getBytes(), 0, suffix.getBytes().length);
-    } else {
-      b = this.revLex.encode(suffix);
-      t.append(b, 0, b.length);
+  /**
+   * Delete the table which holds only the given {@link SortableResult}
+   * 
+   * @param id
+   * @throws TableNotFoundException
+   */
+  protected void deleteTable(SortableResult id) throws TableNotFoundException {
+    // A previous attempt may have deleted the table but not the metadata
+    if (!id.connector().tableOperations().exists(id.dataTable())) {
+      return;
+    }
+    
+    try {
+      id.connector().tableOperations().delete(id.dataTable());
+    } catch (AccumuloException e) {
+      log.error("Could not delete table '{}'", id.dataTable(), e);
+      throw new RuntimeException(e);
+    } catch (AccumuloSecurityException e) {
+      log.error("Could not delete table '{}'", id.dataTable(), e);
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Delete the rows of the given {@link SortableResult} with {@link TableOperations#deleteRows(String, Text, Text)}. No row of any result is equal to a
+   * prefix of {@link RowLayout#resultRanges()}, or to the row which follows it, so only this result is removed.
+   * 
+   * @param id
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  protected void deleteRows(SortableResult id) throws TableNotFoundException, MutationsRejectedException {
+    deleteRows(id.connector(), id.dataTable(), id.auths(), id.layout().resultRanges());
+  }
+  
+  /**
+   * Delete the given ranges with {@link TableOperations#deleteRows(String, Text, Text)}, which removes whole tablets rather than writing a delete for
+   * every key. Each range must be a {@link Range#prefix(Text)} of a prefix which no row is equal to, so that deleting the rows after its start, up to and
+   * including its end, removes exactly the range. A user who may not alter the table falls back to a {@link BatchDeleter}.
+   * 
+   * @param connector
+   * @param table
+   * @param auths
+   * @param ranges
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  protected void deleteRows(Connector connector, String table, Authorizations auths, Collection<Range> ranges) throws TableNotFoundException,
+      MutationsRejectedException {
+    try {
+      final TableOperations tops = connector.tableOperations();
+      for (Range range : ranges) {
+        // A prefix of only maximal bytes has no following row
+        tops.deleteRows(table, range.getStartKey().getRow(), null == range.getEndKey() ? null : range.getEndKey().getRow());
+      }
+      
+      return;
+    } catch (AccumuloException e) {
+      log.warn("Could not delete the rows in '{}', deleting each entry instead", table, e);
+    } catch (AccumuloSecurityException e) {
+      log.warn("Could not delete the rows in '{}', deleting each entry instead", table, e);
     }
     
-    return new Mutation(t);
+    BatchDeleter bd = null;
+    try {
+      bd = connector.createBatchDeleter(table, auths, 4, new BatchWriterConfig());
+      bd.setRanges(ranges);
+      
+      bd.delete();
+    } finally {
+      if (null != bd) {
+        bd.close();
+      }
+    }
   }
   
-  protected Mutation addDocument(SortableResult id, QueryResult<?> queryResult) throws IOException {
-    Mutation m = getDocumentPrefix(id, queryResult, queryResult.docId(), Order.ASCENDING);
+  protected Mutation addDocument(SortableResult id, QueryResult<?> queryResult, long epoch) throws IOException {
+    Mutation m = new Mutation(id.layout().documentRow(queryResult.docId()));
     
-    // Store the docId as a searchable entry
-    m.put(Defaults.DOCID_FIELD_NAME, Order.FORWARD + Defaults.NULL_BYTE_STR + queryResult.docId(), queryResult.documentVisibility(), Defaults.EMPTY_VALUE);
+    // Store the docId as a searchable entry, tagged with the index schema epoch it was written under
+    final Value docIdValue = id.usesSchemaEpochs() ? new Value(Long.toString(epoch).getBytes()) : Defaults.EMPTY_VALUE;
+    m.put(Defaults.DOCID_FIELD_NAME, Order.FORWARD + Defaults.NULL_BYTE_STR + queryResult.docId(), queryResult.documentVisibility(), docIdValue);
     
     // Write the contents for this record once
-    m.put(Defaults.CONTENTS_COLFAM_TEXT, new Text(), queryResult.documentVisibility(), queryResult.toValue());
+    m.put(Defaults.CONTENTS_COLFAM_TEXT, new Text(), queryResult.documentVisibility(), DocumentFormat.compress(queryResult.toValue(), id.contentsCodec()));
     
     return m;
   }
@@ -819,8 +1945,46 @@ public class CosmosImpl implements Cosmos {
     return new UnexpectedStateException("Invalid state " + id + " for " + id + ". Expected " + expected + " but was " + actual);
   }
   
-  protected final InterProcessMutex getMutex(SortableResult id) {
-    return new InterProcessMutex(curator, Defaults.CURATOR_PREFIX + id.uuid());
+  /**
+   * @param id
+   * @return True if writers of the {@link SortableResult} hold the read lock, rather than relying on index schema epochs
+   */
+  protected boolean locksWriters(SortableResult id) {
+    return id.lockOnUpdates() && !id.usesSchemaEpochs();
+  }
+  
+  protected final InterProcessReadWriteLock getLock(SortableResult id) {
+    return new InterProcessReadWriteLock(curator, Defaults.CURATOR_PREFIX + id.uuid());
+  }
+  
+  /**
+   * Acquire the given lock, waiting {@link #LOCK_SECS} for each of {@link #LOCK_ATTEMPTS} attempts. The time spent waiting is recorded in the
+   * {@link cosmos.trace.Tracer} of the {@link SortableResult}.
+   * 
+   * @param id
+   * @param lock
+   * @param operation
+   *          The name of the method which needs the lock
+   * @return The acquired lock
+   * @throws Exception
+   */
+  protected InterProcessMutex acquire(SortableResult id, InterProcessMutex lock, String operation) throws Exception {
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      for (int attempt = 1; attempt <= LOCK_ATTEMPTS; attempt++) {
+        if (lock.acquire(LOCK_SECS, TimeUnit.SECONDS)) {
+          return lock;
+        }
+        
+        log.warn("{}() on {} could not acquire lock after {} seconds on attempt #{}", new Object[] {operation, id.uuid(), LOCK_SECS, attempt});
+      }
+      
+      throw new IllegalStateException("Could not acquire lock during " + operation + "() after " + LOCK_ATTEMPTS + " attempts");
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:" + operation + ":lockWait", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
   }
   
 }
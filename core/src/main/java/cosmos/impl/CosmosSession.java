@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.security.Authorizations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Maps;
+
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+
+/**
+ * Creates {@link SortableResult}s for one {@link Connector}, verifying the setup of the tables they use only once. Constructing a {@link SortableResult}
+ * directly creates, splits and configures its tables, which requires several round trips to the master and ZooKeeper. A session instead remembers each
+ * combination of tables and table options which it has already set up, so that creating further results with them makes no calls to Accumulo. The
+ * results of a session which write to the same table also share one {@link SplitManager}, so that only the first of them reads the splits of the table.
+ * 
+ * <p>
+ * A session assumes that the tables are not deleted or reconfigured behind its back; {@link #invalidate()} forgets what was set up so the tables are
+ * verified again.
+ */
+public class CosmosSession {
+  private static final Logger log = LoggerFactory.getLogger(CosmosSession.class);
+  
+  protected final Connector connector;
+  protected final Authorizations auths;
+  protected final String dataTable, metadataTable;
+  protected final ConcurrentMap<String,Boolean> setUp;
+  protected final ConcurrentMap<String,SplitManager> splitManagers;
+  
+  public CosmosSession(Connector connector, Authorizations auths) {
+    this(connector, auths, Defaults.DATA_TABLE, Defaults.METADATA_TABLE);
+  }
+  
+  public CosmosSession(Connector connector, Authorizations auths, String dataTable, String metadataTable) {
+    checkNotNull(connector);
+    checkNotNull(auths);
+    checkNotNull(dataTable);
+    checkNotNull(metadataTable);
+    
+    this.connector = connector;
+    this.auths = auths;
+    this.dataTable = dataTable;
+    this.metadataTable = metadataTable;
+    this.setUp = Maps.newConcurrentMap();
+    this.splitManagers = Maps.newConcurrentMap();
+  }
+  
+  public Connector connector() {
+    return this.connector;
+  }
+  
+  public Authorizations auths() {
+    return this.auths;
+  }
+  
+  public String dataTable() {
+    return this.dataTable;
+  }
+  
+  public String metadataTable() {
+    return this.metadataTable;
+  }
+  
+  /**
+   * @param columnsToIndex
+   * @return A {@link SortableResult.Builder} for the tables of this session, whose results are created through this session
+   */
+  public SortableResult.Builder builder(Set<Index> columnsToIndex) {
+    SortableResult.Builder builder = SortableResult.builder(this.connector, this.auths, columnsToIndex).dataTable(this.dataTable)
+        .metadataTable(this.metadataTable);
+    builder.session = this;
+    
+    return builder;
+  }
+  
+  public SortableResult create(Set<Index> columnsToIndex) {
+    return builder(columnsToIndex).build();
+  }
+  
+  /**
+   * Open a {@link SortableResult} in the metadata table of this session
+   * 
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   * @see SortableResult#open(Connector, Authorizations, String, String)
+   */
+  public SortableResult open(String uuid) throws TableNotFoundException {
+    return SortableResult.open(this.connector, this.auths, this.metadataTable, uuid);
+  }
+  
+  /**
+   * Forget which tables have been set up, so that they are verified by the next {@link SortableResult} which uses them
+   */
+  public void invalidate() {
+    this.setUp.clear();
+    this.splitManagers.clear();
+  }
+  
+  /**
+   * @param table
+   * @param alphabet
+   * @param splitThreshold
+   * @return The {@link SplitManager} shared by the results of this session which write to the given table
+   */
+  protected SplitManager splitManager(String table, byte[] alphabet, long splitThreshold) {
+    final String key = table + Defaults.NULL_BYTE_STR + alphabet.length + Defaults.NULL_BYTE_STR + splitThreshold;
+    
+    SplitManager splitManager = this.splitManagers.get(key);
+    if (null == splitManager) {
+      splitManager = new SplitManager(this.connector, table, alphabet, splitThreshold);
+      
+      SplitManager existing = this.splitManagers.putIfAbsent(key, splitManager);
+      if (null != existing) {
+        splitManager = existing;
+      }
+    }
+    
+    return splitManager;
+  }
+  
+  /**
+   * Set up the tables for the given {@link SortableResult}, unless a result with the same tables and table options was already set up by this session
+   * 
+   * @param id
+   */
+  protected void setUp(SortableResult id) {
+    final String key = setUpKey(id);
+    
+    if (this.setUp.containsKey(key)) {
+      return;
+    }
+    
+    synchronized (this) {
+      if (this.setUp.containsKey(key)) {
+        return;
+      }
+      
+      Stopwatch sw = new Stopwatch().start();
+      try {
+        verify(id);
+      } finally {
+        sw.stop();
+        id.tracer().addTiming("CosmosSession:setUp", sw.elapsed(TimeUnit.MILLISECONDS));
+      }
+      
+      log.debug("Set up tables {} and {}", id.dataTable(), id.metadataTable());
+      
+      this.setUp.put(key, Boolean.TRUE);
+    }
+  }
+  
+  /**
+   * Create and configure the tables for the given {@link SortableResult}
+   * 
+   * @param id
+   */
+  protected void verify(SortableResult id) {
+    id.setUpTables();
+  }
+  
+  /**
+   * The split points depend on the {@link cosmos.options.KeyFormat} and the file compression is set on the data table, so both distinguish a setup.
+   */
+  protected String setUpKey(SortableResult id) {
+    StringBuilder sb = new StringBuilder(64);
+    sb.append(id.dataTable()).append(Defaults.NULL_BYTE_STR).append(id.metadataTable()).append(Defaults.NULL_BYTE_STR).append(id.layout().format());
+    
+    if (null != id.tableCompression()) {
+      sb.append(Defaults.NULL_BYTE_STR).append(id.tableCompression());
+    }
+    
+    return sb.toString();
+  }
+}
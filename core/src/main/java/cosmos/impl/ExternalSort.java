@@ -0,0 +1,390 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
+import cosmos.options.Order;
+
+/**
+ * Sorts serialized documents by one or more values taken from each document, holding at most a fixed number of bytes in memory. Once the buffer is full, its contents
+ * are sorted and written to a temporary file. The sorted files and the remaining buffer are then merged as they are read. At most a fixed number of files
+ * are read at once, so when more were written, they are first merged into fewer, larger files. Documents without a value for a key are placed after
+ * those with one, and documents with equal values are ordered by docId, as the entries of an index are.
+ */
+public class ExternalSort implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(ExternalSort.class);
+  
+  /**
+   * Approximate size of a {@link Record} and its Strings, excluding their characters
+   */
+  protected static final int RECORD_OVERHEAD = 128;
+  
+  /**
+   * Default number of sorted files which are read at once
+   */
+  public static final int DEFAULT_FAN_IN = 64;
+  
+  protected final List<Order> orders;
+  protected final Comparator<Record> comparator;
+  protected final long bufferSize;
+  protected final File directory;
+  protected final int fanIn;
+  
+  protected final List<Record> buffer = Lists.newArrayList();
+  protected long bufferedBytes = 0;
+  
+  protected final List<File> runs = Lists.newArrayList();
+  protected final List<Long> runLengths = Lists.newArrayList();
+  protected final List<Closeable> openRuns = Lists.newArrayList();
+  
+  /**
+   * @param order
+   *          Direction to sort the values
+   * @param bufferSize
+   *          Number of bytes to buffer before spilling to disk
+   * @param directory
+   *          Directory for the sorted files, or null for the default temporary directory
+   */
+  public ExternalSort(Order order, long bufferSize, File directory) {
+    this(Collections.singletonList(order), bufferSize, directory, DEFAULT_FAN_IN);
+  }
+  
+  /**
+   * @param orders
+   *          Direction to sort each of the values of a document, in the order they are compared
+   * @param bufferSize
+   *          Number of bytes to buffer before spilling to disk
+   * @param directory
+   *          Directory for the sorted files, or null for the default temporary directory
+   * @param fanIn
+   *          Number of sorted files, including the buffer, which are merged at once
+   */
+  public ExternalSort(List<Order> orders, long bufferSize, File directory, int fanIn) {
+    checkNotNull(orders);
+    checkArgument(!orders.isEmpty(), "At least one order is required");
+    checkArgument(0 < bufferSize, "Buffer size must be positive");
+    checkArgument(1 < fanIn, "Fan-in must be at least 2");
+    
+    this.orders = ImmutableList.copyOf(orders);
+    this.bufferSize = bufferSize;
+    this.directory = directory;
+    this.fanIn = fanIn;
+    this.comparator = new Comparator<Record>() {
+      @Override
+      public int compare(Record o1, Record o2) {
+        for (int i = 0; i < o1.values.length; i++) {
+          String v1 = o1.values[i], v2 = o2.values[i];
+          
+          if (null == v1 || null == v2) {
+            if (v1 != v2) {
+              // Missing values sort last
+              return null == v1 ? 1 : -1;
+            }
+            
+            continue;
+          }
+          
+          int result = v1.compareTo(v2);
+          if (0 != result) {
+            return Order.DESCENDING.equals(ExternalSort.this.orders.get(i)) ? -result : result;
+          }
+        }
+        
+        return o1.docId.compareTo(o2.docId);
+      }
+    };
+  }
+  
+  /**
+   * A document and the values it is sorted by
+   */
+  protected static class Record {
+    protected final String[] values;
+    protected final String docId;
+    protected final byte[] document;
+    
+    protected Record(String[] values, String docId, byte[] document) {
+      this.values = values;
+      this.docId = docId;
+      this.document = document;
+    }
+    
+    protected long size() {
+      long chars = docId.length();
+      for (String value : values) {
+        chars += null == value ? 0 : value.length();
+      }
+      
+      return RECORD_OVERHEAD + 2l * chars + document.length;
+    }
+  }
+  
+  /**
+   * @param value
+   *          The value to sort the document by
+   * @param docId
+   * @param document
+   *          The serialized document
+   * @throws IOException
+   */
+  public void add(String value, String docId, Value document) throws IOException {
+    checkNotNull(value);
+    
+    add(Collections.singletonList(value), docId, document);
+  }
+  
+  /**
+   * @param values
+   *          The values to sort the document by, one for each order, any of which may be null
+   * @param docId
+   * @param document
+   *          The serialized document
+   * @throws IOException
+   */
+  public void add(List<String> values, String docId, Value document) throws IOException {
+    checkNotNull(values);
+    checkArgument(this.orders.size() == values.size(), "Expected " + this.orders.size() + " values");
+    checkNotNull(docId);
+    checkNotNull(document);
+    
+    byte[] bytes = new byte[document.getSize()];
+    System.arraycopy(document.get(), 0, bytes, 0, bytes.length);
+    
+    Record record = new Record(values.toArray(new String[values.size()]), docId, bytes);
+    this.buffer.add(record);
+    this.bufferedBytes += record.size();
+    
+    if (this.bufferedBytes >= this.bufferSize) {
+      spill();
+    }
+  }
+  
+  /**
+   * @return The number of sorted files written to disk
+   */
+  public int spills() {
+    return this.runs.size();
+  }
+  
+  protected void spill() throws IOException {
+    Collections.sort(this.buffer, this.comparator);
+    
+    File run = write(this.buffer);
+    
+    log.debug("Spilled {} records ({} bytes) to {}", new Object[] {this.buffer.size(), this.bufferedBytes, run});
+    
+    this.buffer.clear();
+    this.bufferedBytes = 0;
+  }
+  
+  /**
+   * Write the given sorted records to a new sorted file
+   * 
+   * @param records
+   * @return The file
+   * @throws IOException
+   */
+  protected File write(Iterable<Record> records) throws IOException {
+    File run = File.createTempFile("cosmos-sort-", ".run", this.directory);
+    this.runs.add(run);
+    
+    long length = 0;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+    boolean threw = true;
+    try {
+      for (Record record : records) {
+        for (String value : record.values) {
+          out.writeBoolean(null != value);
+          if (null != value) {
+            Text.writeString(out, value);
+          }
+        }
+        Text.writeString(out, record.docId);
+        WritableUtils.writeVInt(out, record.document.length);
+        out.write(record.document);
+        length++;
+      }
+      
+      threw = false;
+    } finally {
+      Closeables.close(out, threw);
+    }
+    
+    this.runLengths.add(length);
+    
+    return run;
+  }
+  
+  /**
+   * Merge the oldest sorted files into one, until the remaining files and the buffer can be merged at once
+   * 
+   * @throws IOException
+   */
+  protected void mergeRuns() throws IOException {
+    while (this.runs.size() + 1 > this.fanIn) {
+      final List<File> merged = Lists.newArrayList(this.runs.subList(0, this.fanIn));
+      
+      List<Iterable<Record>> sources = Lists.newArrayListWithCapacity(this.fanIn);
+      for (int i = 0; i < this.fanIn; i++) {
+        sources.add(run(this.runs.get(i), this.runLengths.get(i)));
+      }
+      
+      File run = write(Iterables.mergeSorted(sources, this.comparator));
+      
+      log.debug("Merged {} sorted files into {}", this.fanIn, run);
+      
+      this.runs.subList(0, this.fanIn).clear();
+      this.runLengths.subList(0, this.fanIn).clear();
+      
+      for (File file : merged) {
+        if (!file.delete()) {
+          log.warn("Could not delete {}", file);
+        }
+      }
+    }
+  }
+  
+  /**
+   * @return The serialized documents in sorted order. No more documents may be added once this is called.
+   * @throws IOException
+   */
+  public Iterable<Value> sorted() throws IOException {
+    Collections.sort(this.buffer, this.comparator);
+    
+    mergeRuns();
+    
+    List<Iterable<Record>> sources = Lists.newArrayListWithCapacity(this.runs.size() + 1);
+    for (int i = 0; i < this.runs.size(); i++) {
+      sources.add(run(this.runs.get(i), this.runLengths.get(i)));
+    }
+    
+    sources.add(Collections.unmodifiableList(this.buffer));
+    
+    Iterable<Record> records = 1 == sources.size() ? sources.get(0) : Iterables.mergeSorted(sources, this.comparator);
+    
+    return Iterables.transform(records, new Function<Record,Value>() {
+      @Override
+      public Value apply(Record input) {
+        return new Value(input.document, false);
+      }
+    });
+  }
+  
+  protected Iterable<Record> run(final File file, final long length) {
+    return new Iterable<Record>() {
+      @Override
+      public Iterator<Record> iterator() {
+        final DataInputStream in;
+        try {
+          in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        
+        openRuns.add(in);
+        
+        return new AbstractIterator<Record>() {
+          private long read = 0;
+          
+          @Override
+          protected Record computeNext() {
+            if (read >= length) {
+              closeQuietly(in);
+              return endOfData();
+            }
+            
+            try {
+              String[] values = new String[orders.size()];
+              for (int i = 0; i < values.length; i++) {
+                values[i] = in.readBoolean() ? Text.readString(in) : null;
+              }
+              String docId = Text.readString(in);
+              byte[] document = new byte[WritableUtils.readVInt(in)];
+              in.readFully(document);
+              
+              read++;
+              return new Record(values, docId, document);
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      }
+    };
+  }
+  
+  protected static void closeQuietly(Closeable in) {
+    try {
+      Closeables.close(in, true);
+    } catch (IOException e) {
+      // Swallowed by Closeables
+    }
+  }
+  
+  /**
+   * Remove the sorted files from disk
+   */
+  @Override
+  public void close() {
+    for (Closeable in : this.openRuns) {
+      closeQuietly(in);
+    }
+    
+    for (File run : this.runs) {
+      if (!run.delete()) {
+        log.warn("Could not delete {}", run);
+      }
+    }
+    
+    this.openRuns.clear();
+    this.runs.clear();
+    this.runLengths.clear();
+    this.buffer.clear();
+  }
+}
@@ -19,7 +19,6 @@
  */
 package cosmos.impl;
 
-import java.nio.charset.CharacterCodingException;
 import java.util.Map.Entry;
 
 import org.apache.accumulo.core.data.Key;
@@ -32,8 +31,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 
 import cosmos.accumulo.GroupByRowSuffixIterator;
-import cosmos.options.Defaults;
 import cosmos.results.SValue;
+import cosmos.util.Interning;
 
 /**
  * 
@@ -41,13 +40,23 @@ import cosmos.results.SValue;
 public class GroupByFunction implements Function<Entry<Key,Value>,Entry<SValue,Long>> {
 
   private final Text _holder = new Text();
+  private final RowLayout layout;
+  
+  public GroupByFunction() {
+    this(new RowLayout(null));
+  }
+  
+  public GroupByFunction(RowLayout layout) {
+    Preconditions.checkNotNull(layout);
+    
+    this.layout = layout;
+  }
   
   @Override
   public Entry<SValue,Long> apply(Entry<Key,Value> entry) {
     String value = getValueFromKey(entry.getKey());
     
-    //TODO Add Cache for CV
-    SValue sval = SValue.create(value, entry.getKey().getColumnVisibilityParsed());
+    SValue sval = SValue.create(value, Interning.visibility(entry.getKey().getColumnVisibilityData()));
     VLongWritable writable = GroupByRowSuffixIterator.getWritable(entry.getValue());
     
     return Maps.immutableEntry(sval, writable.get());
@@ -58,17 +67,7 @@ public class GroupByFunction implements Function<Entry<Key,Value>,Entry<SValue,L
     
     k.getRow(_holder);
     
-    int index = _holder.find(Defaults.NULL_BYTE_STR);
-    
-    if (-1 == index) {
-      throw new IllegalArgumentException("Found no null byte in key: " + k);
-    }
-    
-    try {
-      return Text.decode(_holder.getBytes(), index + 1, _holder.getLength() - (index + 1));
-    } catch (CharacterCodingException e) {
-      throw new IllegalArgumentException(e);
-    }
+    return layout.value(_holder);
   }
   
 }
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+import cosmos.results.SValue;
+
+/**
+ * Sums the partial counts for the same {@link SValue}. When the index rows for a value are sharded, the shards may be hosted by different tablets, each of
+ * which returns its own count for the value. The source is only consumed once the merged counts are first iterated over.
+ */
+public class GroupByMerger implements Iterable<Entry<SValue,Long>> {
+  
+  protected final Iterable<Entry<SValue,Long>> source;
+  protected SortedMap<SValue,Long> counts = null;
+  
+  public GroupByMerger(Iterable<Entry<SValue,Long>> source) {
+    checkNotNull(source);
+    
+    this.source = source;
+  }
+  
+  protected synchronized SortedMap<SValue,Long> counts() {
+    if (null == this.counts) {
+      SortedMap<SValue,Long> merged = Maps.newTreeMap();
+      
+      for (Entry<SValue,Long> partial : source) {
+        Long current = merged.get(partial.getKey());
+        merged.put(partial.getKey(), null == current ? partial.getValue() : current + partial.getValue());
+      }
+      
+      this.counts = merged;
+    }
+    
+    return this.counts;
+  }
+  
+  @Override
+  public Iterator<Entry<SValue,Long>> iterator() {
+    return Iterators.unmodifiableIterator(counts().entrySet().iterator());
+  }
+  
+}
@@ -0,0 +1,1060 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.ScannerBase;
+import org.apache.accumulo.core.client.lexicoder.ReverseLexicoder;
+import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.security.VisibilityEvaluator;
+import org.apache.accumulo.core.security.VisibilityParseException;
+import org.apache.hadoop.io.WritableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.SortingMetadata.State;
+import cosmos.UnexpectedStateException;
+import cosmos.UnindexedColumnException;
+import cosmos.options.Bucket;
+import cosmos.options.FilterExpression;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.options.Paging;
+import cosmos.results.CloseableIterable;
+import cosmos.results.Column;
+import cosmos.results.PagedQueryResult;
+import cosmos.results.QueryResult;
+import cosmos.results.SValue;
+import cosmos.results.impl.DocumentFormat;
+import cosmos.results.impl.LazyQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+import cosmos.util.IndexHelper;
+
+/**
+ * A {@link Cosmos} which holds each {@link SortableResult} in memory instead of in Accumulo, so that it can be used without a cluster or ZooKeeper, e.g. in
+ * unit tests. The serialized records are kept in a {@link ConcurrentSkipListMap} by docId, and each {@link Index} in a {@link ConcurrentSkipListMap} ordered
+ * as the index rows of a {@link CosmosImpl} are: by the UTF-8 bytes of the value, or the {@link ReverseLexicoder} encoding of the value for
+ * {@link Order#DESCENDING}, and then by docId. Entries are only returned when their visibility is satisfied by the {@link Authorizations} of the result.
+ * 
+ * <p>
+ * The metadata of a result lives in this instance only, so a result cannot be opened by another client. Options which configure the tables, such as shards,
+ * split thresholds and ephemeral age-off, have no effect, and every {@link Index} is built when it is added, even for a lazily indexed result. A
+ * {@link SortableResult} which is not backed by any tables can be created with a {@link CosmosSession} from {@link #session(Connector, Authorizations)}.
+ */
+public class InMemoryCosmos implements Cosmos {
+  private static final Logger log = LoggerFactory.getLogger(InMemoryCosmos.class);
+  
+  protected static final ColumnVisibility EMPTY_VIZ = new ColumnVisibility();
+  protected static final State[] WRITABLE = new State[] {State.LOADING}, READABLE = new State[] {State.LOADING, State.LOADED};
+  
+  protected static final StringLexicoder LEX = new StringLexicoder();
+  protected static final ReverseLexicoder<String> REV_LEX = new ReverseLexicoder<String>(LEX);
+  
+  protected final ConcurrentMap<String,Store> stores = Maps.newConcurrentMap();
+  
+  /**
+   * @param connector
+   *          Any {@link Connector}, e.g. one for a {@link org.apache.accumulo.core.client.mock.MockInstance}, as it is never used to create tables
+   * @param auths
+   * @return A {@link CosmosSession} whose {@link SortableResult}s do not create or verify any tables
+   */
+  public static CosmosSession session(Connector connector, Authorizations auths) {
+    return new Session(connector, auths);
+  }
+  
+  @Override
+  public void close() {
+    stores.clear();
+  }
+  
+  /**
+   * finalize is not guaranteed to be called, as such, care should be taken to ensure that {@link close} is called.
+   */
+  @Override
+  public void finalize() throws IOException {
+    this.close();
+  }
+  
+  @Override
+  public void register(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store existing = stores.putIfAbsent(id.uuid(), new Store());
+      
+      if (null != existing) {
+        UnexpectedStateException e = unexpectedState(id, new State[] {State.UNKNOWN}, existing.state);
+        log.error(e.getMessage());
+        throw e;
+      }
+      
+      if (id.isEphemeral()) {
+        id.registered(System.currentTimeMillis());
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:register", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public void addResult(SortableResult id, QueryResult<?> queryResult) throws Exception {
+    checkNotNull(queryResult);
+    
+    addResults(id, Collections.singleton(queryResult));
+  }
+  
+  @Override
+  public void addResults(SortableResult id, Iterable<? extends QueryResult<?>> queryResults) throws Exception {
+    checkNotNull(id);
+    checkNotNull(queryResults);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store store = store(id, WRITABLE);
+      
+      // As with the lock of a CosmosImpl, index() waits for records which are being written with the previous indexes
+      store.lock.readLock().lock();
+      try {
+        performAdd(id, store, queryResults);
+      } finally {
+        store.lock.readLock().unlock();
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:addResults", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  protected void performAdd(SortableResult id, Store store, Iterable<? extends QueryResult<?>> queryResults) throws IOException {
+    final IndexHelper indexHelper = IndexHelper.create(id.columnsToIndex());
+    
+    for (QueryResult<?> result : queryResults) {
+      final String docId = result.docId();
+      
+      store.documents.put(docId, DocumentFormat.compress(result.toValue(), id.contentsCodec()));
+      
+      for (Entry<Column,SValue> entry : result.columnValues()) {
+        final Column c = entry.getKey();
+        final SValue v = entry.getValue();
+        
+        store.columns.putIfAbsent(c.column(), c);
+        
+        if (indexHelper.shouldIndex(c)) {
+          for (Index index : indexHelper.indicesForColumn(c)) {
+            store.index(index).put(new IndexKey(v.value(), index.order(), docId), v.visibility());
+          }
+        }
+      }
+    }
+  }
+  
+  @Override
+  public void finalize(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store store = store(id, WRITABLE);
+      
+      // Let the records which are being written finish
+      store.lock.writeLock().lock();
+      try {
+        final State desiredState = State.LOADED;
+        
+        log.debug("Changing state for {} from {} to {}", new Object[] {id, store.state, desiredState});
+        
+        store.state = desiredState;
+      } finally {
+        store.lock.writeLock().unlock();
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:finalize", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public void index(SortableResult id, Set<Index> columnsToIndex) throws Exception {
+    checkNotNull(id);
+    checkNotNull(columnsToIndex);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store store = store(id, READABLE);
+      
+      store.lock.writeLock().lock();
+      try {
+        id.addColumnsToIndex(columnsToIndex);
+        
+        final IndexHelper indexHelper = IndexHelper.create(columnsToIndex);
+        
+        // Index the records which were already added
+        for (Value document : store.documents.values()) {
+          final LazyQueryResult record = LazyQueryResult.create(document);
+          
+          for (Entry<Column,SValue> entry : record.columnValues()) {
+            if (indexHelper.shouldIndex(entry.getKey())) {
+              for (Index index : indexHelper.indicesForColumn(entry.getKey())) {
+                store.index(index).put(new IndexKey(entry.getValue().value(), index.order(), record.docId()), entry.getValue().visibility());
+              }
+            }
+          }
+        }
+      } finally {
+        store.lock.writeLock().unlock();
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:index", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public void dropIndex(SortableResult id, Index index) throws Exception {
+    checkNotNull(id);
+    checkNotNull(index);
+    checkArgument(id.isLazilyIndexed() || !(id.columnsToIndex() instanceof IdentitySet), "Cannot drop an index from " + id
+        + ", which eagerly indexes every column");
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store store = store(id, READABLE);
+      
+      store.lock.writeLock().lock();
+      try {
+        id.removeColumnToIndex(index);
+        store.indexes.remove(index);
+      } finally {
+        store.lock.writeLock().unlock();
+      }
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:dropIndex", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public Iterable<Column> columns(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      return ImmutableList.copyOf(store(id, READABLE).columns.values());
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:columns", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    return fetch(id, (FilterExpression) null, toMultimap(null));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Set<Column> projection) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(projection);
+    
+    return fetch(id, (FilterExpression) null, toMultimap(projection));
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    return fetch(id, (FilterExpression) null, toLazy());
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(filter);
+    
+    return fetch(id, filter, toMultimap(null));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, FilterExpression filter, Set<Column> projection) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(filter);
+    
+    return fetch(id, filter, toMultimap(projection));
+  }
+  
+  /**
+   * Read every record of the result, in docId order
+   * 
+   * @param id
+   * @param filter
+   *          The expression which the records must match, or null for all records
+   * @param transform
+   * @return
+   */
+  protected <T> CloseableIterable<T> fetch(SortableResult id, final FilterExpression filter, Function<Value,T> transform) throws UnexpectedStateException {
+    final String description = "Cosmos:fetch";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+      
+      Iterable<Value> documents = Iterables.filter(store(id, READABLE).documents.values(), new Predicate<Value>() {
+        @Override
+        public boolean apply(Value input) {
+          LazyQueryResult record = LazyQueryResult.create(input);
+          return visible(evaluator, record.documentVisibility()) && (null == filter || filter.matches(record));
+        }
+      });
+      
+      return results(id, Iterables.transform(documents, transform), description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Paging limits) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(limits);
+    
+    return PagedQueryResult.create(fetch(id), limits);
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(value);
+    
+    return fetch(id, column, value, toMultimap(null));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Set<Column> projection)
+      throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(value);
+    checkNotNull(projection);
+    
+    return fetch(id, column, value, toMultimap(projection));
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Column column, String value) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(value);
+    
+    return fetch(id, column, value, toLazy());
+  }
+  
+  /**
+   * Read the records with the given value from the ascending index of the column, in docId order. As with a {@link CosmosImpl}, a column which is not
+   * indexed has no records.
+   */
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Column column, String value, Function<Value,T> transform) throws UnexpectedStateException {
+    final String description = "Cosmos:fetchWithColumnValue";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final Store store = store(id, READABLE);
+      final ConcurrentSkipListMap<IndexKey,ColumnVisibility> index = store.indexes.get(Index.define(column, Order.ASCENDING));
+      
+      if (null == index) {
+        return results(id, Collections.<T> emptyList(), description, sw);
+      }
+      
+      // The smallest key after every key with the value
+      final byte[] start = encode(value, Order.ASCENDING), end = Arrays.copyOf(start, start.length + 1);
+      final Map<IndexKey,ColumnVisibility> entries = index.subMap(new IndexKey(start, value, ""), new IndexKey(end, value, ""));
+      
+      final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+      
+      return results(id, Iterables.transform(documents(store, evaluator, entries(evaluator, entries)), transform), description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Column column, String value, Paging limits) throws UnexpectedStateException {
+    checkNotNull(limits);
+    
+    return PagedQueryResult.create(fetch(id, column, value), limits);
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering) throws UnexpectedStateException, UnindexedColumnException {
+    return fetch(id, ordering, true);
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed) throws UnexpectedStateException,
+      UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(ordering);
+    
+    if (id.sortUnindexed() && !isIndexed(id, ordering)) {
+      return sort(id, ordering, duplicateUidsAllowed, null);
+    }
+    
+    return fetch(id, ordering, duplicateUidsAllowed, toMultimap(null));
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Set<Column> projection)
+      throws UnexpectedStateException, UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(ordering);
+    checkNotNull(projection);
+    
+    if (id.sortUnindexed() && !isIndexed(id, ordering)) {
+      return sort(id, ordering, duplicateUidsAllowed, projection);
+    }
+    
+    return fetch(id, ordering, duplicateUidsAllowed, toMultimap(projection));
+  }
+  
+  @Override
+  public CloseableIterable<LazyQueryResult> fetchLazily(SortableResult id, Index ordering, boolean duplicateUidsAllowed) throws UnexpectedStateException,
+      UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(ordering);
+    
+    return fetch(id, ordering, duplicateUidsAllowed, toLazy());
+  }
+  
+  protected <T> CloseableIterable<T> fetch(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Function<Value,T> transform)
+      throws UnexpectedStateException, UnindexedColumnException {
+    final String description = "Cosmos:fetchWithIndex";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final Store store = store(id, READABLE);
+      final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+      
+      return results(id, Iterables.transform(documents(store, evaluator, ordered(id, store, evaluator, ordering, duplicateUidsAllowed)), transform),
+          description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    } catch (UnindexedColumnException e) {
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public CloseableIterable<MultimapQueryResult> fetch(SortableResult id, List<Index> orderings, boolean duplicateUidsAllowed) throws UnexpectedStateException,
+      UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(orderings);
+    checkArgument(!orderings.isEmpty(), "At least one ordering is required");
+    
+    if (1 == orderings.size()) {
+      return fetch(id, orderings.get(0), duplicateUidsAllowed);
+    }
+    
+    final String description = "Cosmos:fetchWithIndices";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final Store store = store(id, READABLE);
+      final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+      final Iterable<IndexKey> keys = ordered(id, store, evaluator, orderings.get(0), duplicateUidsAllowed);
+      final Function<IndexKey,MultimapQueryResult> lookup = Functions.compose(toMultimap(null), document(store, evaluator));
+      
+      // Ties on the first column are broken one value at a time. Records which were deleted or are not visible are dropped
+      final SecondarySort<IndexKey> sorted = new SecondarySort<IndexKey>(keys, new SecondarySort.Grouping<IndexKey>() {
+        @Override
+        public boolean sameValue(IndexKey first, IndexKey other) {
+          return first.sameValue(other);
+        }
+      }, lookup, orderings.subList(1, orderings.size()), id.sortBufferSize(), id.sortDirectory());
+      
+      return new CloseableIterable<MultimapQueryResult>(Collections.<ScannerBase> emptyList(), sorted, id.tracer(), description, sw) {
+        @Override
+        public void close() {
+          super.close();
+          sorted.close();
+        }
+      };
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    } catch (UnindexedColumnException e) {
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  /**
+   * Order the records by a column which is not indexed, by building a temporary index of the column. As with an index, a record is returned once for each
+   * of its values in the column, and records without the column are not returned.
+   * 
+   * @param id
+   * @param ordering
+   * @param duplicateUidsAllowed
+   * @param projection
+   *          The columns to return, or null for all columns
+   * @return
+   */
+  protected CloseableIterable<MultimapQueryResult> sort(SortableResult id, Index ordering, boolean duplicateUidsAllowed, Set<Column> projection)
+      throws UnexpectedStateException {
+    final String description = "Cosmos:sortUnindexed";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final Store store = store(id, READABLE);
+      final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+      final SortedMap<IndexKey,Value> sorted = Maps.newTreeMap();
+      
+      for (Value document : store.documents.values()) {
+        LazyQueryResult record = LazyQueryResult.create(document);
+        
+        if (visible(evaluator, record.documentVisibility())) {
+          for (SValue value : record.get(ordering.column())) {
+            sorted.put(new IndexKey(value.value(), ordering.order(), record.docId()), document);
+          }
+        }
+      }
+      
+      Iterable<IndexKey> keys = sorted.keySet();
+      if (!duplicateUidsAllowed) {
+        keys = distinct(keys);
+      }
+      
+      return results(id, Iterables.transform(keys, Functions.compose(toMultimap(projection), Functions.forMap(sorted))), description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public PagedQueryResult<MultimapQueryResult> fetch(SortableResult id, Index ordering, Paging limits) throws UnexpectedStateException,
+      UnindexedColumnException {
+    checkNotNull(id);
+    checkNotNull(limits);
+    
+    return PagedQueryResult.create(fetch(id, ordering), limits);
+  }
+  
+  @Override
+  public CloseableIterable<Entry<SValue,Long>> groupResults(SortableResult id, Column column) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(column);
+    
+    final String description = "Cosmos:groupResults";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      return results(id, groups(id, store(id, READABLE), column), description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public PagedQueryResult<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Paging limits) throws UnexpectedStateException {
+    checkNotNull(limits);
+    
+    return PagedQueryResult.create(groupResults(id, column), limits);
+  }
+  
+  @Override
+  public CloseableIterable<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(column);
+    checkNotNull(bucket);
+    
+    final String description = "Cosmos:groupResultsByBucket";
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      final SortedMap<Double,Long> histogram = Maps.newTreeMap();
+      
+      for (Entry<SValue,Long> group : groups(id, store(id, READABLE), column)) {
+        Double lowerBound = bucket.lowerBound(group.getKey().value());
+        if (null != lowerBound) {
+          Long current = histogram.get(lowerBound);
+          histogram.put(lowerBound, null == current ? group.getValue() : current + group.getValue());
+        }
+      }
+      
+      // As a bucket may contain values with differing visibilities, each bucket has an empty visibility
+      List<Entry<SValue,Long>> buckets = Lists.newArrayListWithCapacity(histogram.size());
+      for (Entry<Double,Long> entry : histogram.entrySet()) {
+        buckets.add(Maps.immutableEntry(SValue.create(bucket.label(entry.getKey()), EMPTY_VIZ), entry.getValue()));
+      }
+      
+      return results(id, buckets, description, sw);
+    } catch (UnexpectedStateException e) {
+      // In the exceptional case, stop the timer
+      stop(id, description, sw);
+      throw e;
+    }
+  }
+  
+  @Override
+  public PagedQueryResult<Entry<SValue,Long>> groupResults(SortableResult id, Column column, Bucket bucket, Paging limits) throws UnexpectedStateException {
+    checkNotNull(limits);
+    
+    return PagedQueryResult.create(groupResults(id, column, bucket), limits);
+  }
+  
+  /**
+   * Count the records for each value of the ascending index of the column, in the order of the index. As with the {@link GroupByFunction}, each value has
+   * the visibility of its last entry.
+   */
+  protected List<Entry<SValue,Long>> groups(SortableResult id, Store store, Column column) {
+    final Map<IndexKey,ColumnVisibility> index = store.indexes.get(Index.define(column, Order.ASCENDING));
+    final List<Entry<SValue,Long>> groups = Lists.newArrayList();
+    
+    if (null == index) {
+      return groups;
+    }
+    
+    final VisibilityEvaluator evaluator = new VisibilityEvaluator(id.auths());
+    IndexKey current = null;
+    ColumnVisibility visibility = null;
+    long count = 0;
+    
+    for (Entry<IndexKey,ColumnVisibility> entry : index.entrySet()) {
+      if (!visible(evaluator, entry.getValue())) {
+        continue;
+      }
+      
+      if (null != current && !current.sameValue(entry.getKey())) {
+        groups.add(Maps.immutableEntry(SValue.create(current.value, visibility), count));
+        count = 0;
+      }
+      
+      current = entry.getKey();
+      visibility = entry.getValue();
+      count++;
+    }
+    
+    if (null != current) {
+      groups.add(Maps.immutableEntry(SValue.create(current.value, visibility), count));
+    }
+    
+    return groups;
+  }
+  
+  @Override
+  public MultimapQueryResult contents(SortableResult id, String docId) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(docId);
+    
+    return project(serializedContents(id, docId), null);
+  }
+  
+  @Override
+  public MultimapQueryResult contents(SortableResult id, String docId, Set<Column> projection) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(docId);
+    checkNotNull(projection);
+    
+    return project(serializedContents(id, docId), projection);
+  }
+  
+  @Override
+  public LazyQueryResult lazyContents(SortableResult id, String docId) throws UnexpectedStateException {
+    checkNotNull(id);
+    checkNotNull(docId);
+    
+    return LazyQueryResult.create(serializedContents(id, docId));
+  }
+  
+  protected Value serializedContents(SortableResult id, String docId) throws UnexpectedStateException {
+    // Omit tracing here just due to sheer magnitude of these calls.
+    
+    Value document = document(store(id, READABLE), new VisibilityEvaluator(id.auths())).apply(new IndexKey(docId));
+    
+    if (null == document) {
+      throw new NoSuchElementException("No such result for " + docId + " in " + id.uuid());
+    }
+    
+    return document;
+  }
+  
+  /**
+   * Remove the records and indexes of the {@link SortableResult}, which returns it to {@link State#UNKNOWN}
+   */
+  @Override
+  public void delete(SortableResult id) throws UnexpectedStateException {
+    checkNotNull(id);
+    
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      Store store = store(id, READABLE);
+      
+      log.debug("Changing state for {} from {} to {}", new Object[] {id, store.state, State.DELETING});
+      
+      store.state = State.DELETING;
+      stores.remove(id.uuid(), store);
+    } finally {
+      sw.stop();
+      id.tracer().addTiming("Cosmos:delete", sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  /**
+   * A result is removed as soon as it is deleted, so there is never a deletion to wait for
+   */
+  @Override
+  public boolean awaitDeletion(SortableResult id, long timeout, TimeUnit unit) {
+    checkNotNull(id);
+    checkNotNull(unit);
+    
+    return true;
+  }
+  
+  /**
+   * @return The state of the {@link SortableResult} in this instance
+   */
+  public State state(SortableResult id) {
+    checkNotNull(id);
+    
+    Store store = stores.get(id.uuid());
+    
+    return null == store ? State.UNKNOWN : store.state;
+  }
+  
+  /**
+   * @param id
+   * @param expected
+   * @return The {@link Store} for the {@link SortableResult}, which is in one of the expected {@link State}s
+   * @throws UnexpectedStateException
+   */
+  protected Store store(SortableResult id, State[] expected) throws UnexpectedStateException {
+    Store store = stores.get(id.uuid());
+    State s = null == store ? State.UNKNOWN : store.state;
+    
+    if (!Arrays.asList(expected).contains(s)) {
+      throw unexpectedState(id, expected, s);
+    }
+    
+    return store;
+  }
+  
+  protected boolean isIndexed(SortableResult id, Index index) {
+    return id.columnsToIndex().contains(index);
+  }
+  
+  /**
+   * @return The visible entries of the {@link Index}, in its order
+   */
+  protected Iterable<IndexKey> ordered(SortableResult id, Store store, VisibilityEvaluator evaluator, Index ordering, boolean duplicateUidsAllowed)
+      throws UnindexedColumnException {
+    if (!isIndexed(id, ordering)) {
+      log.error("{} is not indexed by {}", ordering, id);
+      
+      throw new UnindexedColumnException();
+    }
+    
+    Iterable<IndexKey> keys = entries(evaluator, store.index(ordering));
+    
+    // If the client has told us they don't want duplicate records, lets not give them duplicate records
+    if (!duplicateUidsAllowed) {
+      keys = distinct(keys);
+    }
+    
+    return keys;
+  }
+  
+  protected static Iterable<IndexKey> entries(final VisibilityEvaluator evaluator, Map<IndexKey,ColumnVisibility> index) {
+    Iterable<Entry<IndexKey,ColumnVisibility>> visible = Iterables.filter(index.entrySet(), new Predicate<Entry<IndexKey,ColumnVisibility>>() {
+      @Override
+      public boolean apply(Entry<IndexKey,ColumnVisibility> input) {
+        return visible(evaluator, input.getValue());
+      }
+    });
+    
+    return Iterables.transform(visible, new Function<Entry<IndexKey,ColumnVisibility>,IndexKey>() {
+      @Override
+      public IndexKey apply(Entry<IndexKey,ColumnVisibility> input) {
+        return input.getKey();
+      }
+    });
+  }
+  
+  /**
+   * @return The first key for each docId, tracked separately for each iteration
+   */
+  protected static Iterable<IndexKey> distinct(final Iterable<IndexKey> keys) {
+    return new Iterable<IndexKey>() {
+      @Override
+      public Iterator<IndexKey> iterator() {
+        final Set<String> docIds = Sets.newHashSet();
+        
+        return Iterators.filter(keys.iterator(), new Predicate<IndexKey>() {
+          @Override
+          public boolean apply(IndexKey input) {
+            return docIds.add(input.docId);
+          }
+        });
+      }
+    };
+  }
+  
+  /**
+   * @return The records for the keys, skipping those which were deleted or are not visible
+   */
+  protected static Iterable<Value> documents(Store store, VisibilityEvaluator evaluator, Iterable<IndexKey> keys) {
+    return Iterables.filter(Iterables.transform(keys, document(store, evaluator)), Predicates.notNull());
+  }
+  
+  /**
+   * @return A function from a key to its serialized record, or null if the record does not exist or is not visible
+   */
+  protected static Function<IndexKey,Value> document(final Store store, final VisibilityEvaluator evaluator) {
+    return new Function<IndexKey,Value>() {
+      @Override
+      public Value apply(IndexKey input) {
+        Value document = store.documents.get(input.docId);
+        
+        if (null == document || !visible(evaluator, LazyQueryResult.create(document).documentVisibility())) {
+          return null;
+        }
+        
+        return document;
+      }
+    };
+  }
+  
+  protected static boolean visible(VisibilityEvaluator evaluator, ColumnVisibility visibility) {
+    try {
+      return evaluator.evaluate(visibility);
+    } catch (VisibilityParseException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  protected static Function<Value,MultimapQueryResult> toMultimap(final Set<Column> projection) {
+    return new Function<Value,MultimapQueryResult>() {
+      @Override
+      public MultimapQueryResult apply(Value input) {
+        return null == input ? null : project(input, projection);
+      }
+    };
+  }
+  
+  protected static Function<Value,LazyQueryResult> toLazy() {
+    return new Function<Value,LazyQueryResult>() {
+      @Override
+      public LazyQueryResult apply(Value input) {
+        return LazyQueryResult.create(input);
+      }
+    };
+  }
+  
+  /**
+   * @param document
+   * @param projection
+   *          The columns to return, or null for all columns
+   * @return The decoded record
+   */
+  protected static MultimapQueryResult project(Value document, Set<Column> projection) {
+    if (null == projection) {
+      return KeyValueToMultimapQueryResult.transform(document);
+    }
+    
+    LazyQueryResult record = LazyQueryResult.create(document);
+    Multimap<Column,SValue> projected = HashMultimap.create();
+    for (Column column : projection) {
+      projected.putAll(column, record.get(column));
+    }
+    
+    return new MultimapQueryResult(projected, record.docId(), record.documentVisibility());
+  }
+  
+  protected static byte[] encode(String value, Order order) {
+    return Order.ASCENDING.equals(order) ? LEX.encode(value) : REV_LEX.encode(value);
+  }
+  
+  protected <T> CloseableIterable<T> results(SortableResult id, Iterable<T> iterable, String description, Stopwatch sw) {
+    // Handles stopping the stopwatch
+    return CloseableIterable.create(Collections.<ScannerBase> emptyList(), iterable, id.tracer(), description, sw);
+  }
+  
+  protected void stop(SortableResult id, String description, Stopwatch sw) {
+    sw.stop();
+    id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+  }
+  
+  protected UnexpectedStateException unexpectedState(SortableResult id, State[] expected, State actual) {
+    return new UnexpectedStateException("Invalid state " + id + " for " + id + ". Expected one of " + Arrays.asList(expected) + " but was " + actual);
+  }
+  
+  /**
+   * The records and indexes of one {@link SortableResult}
+   */
+  protected static class Store {
+    protected volatile State state = State.LOADING;
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+    protected final ConcurrentSkipListMap<String,Value> documents = new ConcurrentSkipListMap<String,Value>();
+    protected final ConcurrentSkipListMap<String,Column> columns = new ConcurrentSkipListMap<String,Column>();
+    protected final ConcurrentMap<Index,ConcurrentSkipListMap<IndexKey,ColumnVisibility>> indexes = Maps.newConcurrentMap();
+    
+    protected ConcurrentSkipListMap<IndexKey,ColumnVisibility> index(Index index) {
+      ConcurrentSkipListMap<IndexKey,ColumnVisibility> entries = indexes.get(index);
+      
+      if (null == entries) {
+        entries = new ConcurrentSkipListMap<IndexKey,ColumnVisibility>();
+        
+        ConcurrentSkipListMap<IndexKey,ColumnVisibility> existing = indexes.putIfAbsent(index, entries);
+        if (null != existing) {
+          entries = existing;
+        }
+      }
+      
+      return entries;
+    }
+  }
+  
+  /**
+   * An entry of an {@link Index}, ordered as the row and column qualifier of an index entry in the data table, ignoring any shards
+   */
+  protected static class IndexKey implements Comparable<IndexKey> {
+    protected final byte[] sortKey, docIdBytes;
+    protected final String value, docId;
+    
+    public IndexKey(String value, Order order, String docId) {
+      this(encode(value, order), value, docId);
+    }
+    
+    protected IndexKey(byte[] sortKey, String value, String docId) {
+      this.sortKey = sortKey;
+      this.value = value;
+      this.docId = docId;
+      this.docIdBytes = LEX.encode(docId);
+    }
+    
+    /**
+     * A key which only identifies a record
+     */
+    protected IndexKey(String docId) {
+      this(new byte[0], "", docId);
+    }
+    
+    public boolean sameValue(IndexKey other) {
+      return Arrays.equals(this.sortKey, other.sortKey);
+    }
+    
+    @Override
+    public int compareTo(IndexKey o) {
+      int result = WritableComparator.compareBytes(this.sortKey, 0, this.sortKey.length, o.sortKey, 0, o.sortKey.length);
+      
+      if (0 != result) {
+        return result;
+      }
+      
+      return WritableComparator.compareBytes(this.docIdBytes, 0, this.docIdBytes.length, o.docIdBytes, 0, o.docIdBytes.length);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof IndexKey && 0 == compareTo((IndexKey) o);
+    }
+    
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(this.sortKey) + Arrays.hashCode(this.docIdBytes);
+    }
+    
+    @Override
+    public String toString() {
+      return this.value + " " + this.docId;
+    }
+  }
+  
+  /**
+   * A {@link CosmosSession} whose results are held in memory, so their tables are never created or verified
+   */
+  protected static class Session extends CosmosSession {
+    public Session(Connector connector, Authorizations auths) {
+      super(connector, auths);
+    }
+    
+    @Override
+    protected void setUp(SortableResult id) {}
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.IndexState;
+import cosmos.SortingMetadata.QueryCount;
+import cosmos.options.Index;
+import cosmos.util.IdentitySet;
+
+/**
+ * Decides which indexes a {@link SortableResult} should maintain from the queries recorded in the metadata table. An {@link Index} which has been queried
+ * at least a threshold number of times is built, and an {@link Index} which has not been queried for a grace period is dropped, so that the cost of
+ * writing indexes follows the queries which are actually made. The queries of a dropped {@link Index} are forgotten, so it is only built again once it
+ * is queried the threshold number of times after the drop. Each decision is recorded in the {@link cosmos.trace.Tracer} of the
+ * {@link SortableResult}.
+ * 
+ * <p>
+ * Every column is indexed by an {@link IdentitySet}, so an advisor can only drop indexes from a {@link SortableResult} which indexes an {@link IdentitySet}
+ * lazily. The {@link SortableResult} must record its queries, as otherwise every index would appear unused.
+ */
+public class IndexAdvisor implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(IndexAdvisor.class);
+  
+  public enum Action {
+    BUILD,
+    DROP
+  }
+  
+  public static class Decision {
+    protected final Action action;
+    protected final Index index;
+    protected final String reason;
+    
+    public Decision(Action action, Index index, String reason) {
+      this.action = action;
+      this.index = index;
+      this.reason = reason;
+    }
+    
+    public Action action() {
+      return this.action;
+    }
+    
+    public Index index() {
+      return this.index;
+    }
+    
+    public String reason() {
+      return this.reason;
+    }
+    
+    @Override
+    public String toString() {
+      return this.action + " " + this.index.column() + " " + this.index.order() + ": " + this.reason;
+    }
+  }
+  
+  protected final CosmosImpl cosmos;
+  protected final SortableResult id;
+  protected final long hotThreshold;
+  protected final long gracePeriod;
+  protected final long started;
+  
+  /**
+   * @param cosmos
+   * @param id
+   * @param hotThreshold
+   *          Number of queries after which an {@link Index} is built
+   * @param gracePeriod
+   *          Time without a query after which an {@link Index} is dropped
+   * @param unit
+   */
+  public IndexAdvisor(CosmosImpl cosmos, SortableResult id, long hotThreshold, long gracePeriod, TimeUnit unit) {
+    checkNotNull(cosmos);
+    checkNotNull(id);
+    checkArgument(id.recordQueries(), "Queries are not recorded for " + id + ", so every index would be dropped as unused");
+    checkArgument(0 < hotThreshold, "Threshold must be positive");
+    checkArgument(0 < gracePeriod, "Grace period must be positive");
+    checkNotNull(unit);
+    
+    this.cosmos = cosmos;
+    this.id = id;
+    this.hotThreshold = hotThreshold;
+    this.gracePeriod = unit.toMillis(gracePeriod);
+    this.started = System.currentTimeMillis();
+  }
+  
+  /**
+   * @return The indexes to build and drop, given the queries recorded so far
+   * @throws TableNotFoundException
+   */
+  public List<Decision> advise() throws TableNotFoundException {
+    final long now = System.currentTimeMillis();
+    
+    // Combine the queries of each type for an Index
+    Map<Index,Long> counts = Maps.newHashMap(), lastQueried = Maps.newHashMap();
+    for (QueryCount count : SortingMetadata.queryCounts(id)) {
+      Long total = counts.get(count.index());
+      counts.put(count.index(), (null == total ? 0 : total) + count.count());
+      
+      Long last = lastQueried.get(count.index());
+      lastQueried.put(count.index(), null == last ? count.lastQueried() : Math.max(last, count.lastQueried()));
+    }
+    
+    final Set<Index> indexed = indexed();
+    List<Decision> decisions = Lists.newArrayList();
+    
+    for (Entry<Index,Long> entry : counts.entrySet()) {
+      if (entry.getValue() >= hotThreshold && !indexed.contains(entry.getKey())) {
+        decisions.add(new Decision(Action.BUILD, entry.getKey(), "queried " + entry.getValue() + " times"));
+      }
+    }
+    
+    for (Index index : indexed) {
+      // An Index which was never queried is given the grace period from when the advisor started
+      Long last = lastQueried.get(index);
+      long idle = now - Math.max(null == last ? 0 : last, started);
+      
+      if (idle >= gracePeriod) {
+        decisions.add(new Decision(Action.DROP, index, "not queried for " + idle + "ms"));
+      }
+    }
+    
+    return decisions;
+  }
+  
+  /**
+   * @return The indexes which the advisor could drop
+   * @throws TableNotFoundException
+   */
+  protected Set<Index> indexed() throws TableNotFoundException {
+    if (id.isLazilyIndexed()) {
+      return Sets.newHashSet(SortingMetadata.indexStates(id).keySet());
+    }
+    
+    if (id.columnsToIndex() instanceof IdentitySet) {
+      return Collections.emptySet();
+    }
+    
+    return Sets.newHashSet(id.columnsToIndex());
+  }
+  
+  public void apply(List<Decision> decisions) throws Exception {
+    checkNotNull(decisions);
+    
+    for (Decision decision : decisions) {
+      log.info("{} for {}", decision, id);
+      
+      Stopwatch sw = new Stopwatch().start();
+      
+      switch (decision.action()) {
+        case BUILD:
+          if (id.isLazilyIndexed() && id.columnsToIndex().contains(decision.index())
+              && !IndexState.BUILT.equals(SortingMetadata.getIndexState(id, decision.index()))) {
+            cosmos.buildIndex(id, decision.index());
+          } else {
+            cosmos.index(id, Sets.newHashSet(decision.index()));
+          }
+          break;
+        case DROP:
+          cosmos.dropIndex(id, decision.index());
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown action: " + decision.action());
+      }
+      
+      sw.stop();
+      
+      final String description = "IndexAdvisor:" + decision.action() + ":" + decision.index().column() + ":" + decision.index().order();
+      id.tracer().addMetadata(description, decision.reason());
+      id.tracer().addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+  
+  @Override
+  public void run() {
+    try {
+      apply(advise());
+    } catch (Exception e) {
+      // Throwing would cancel any later runs
+      log.error("Could not apply index advice for {}", id, e);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import java.util.Comparator;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Orders index entries from different document shards as if they were read from a single shard, ignoring the leading shard prefix of each row.
+ */
+public class IndexEntryComparator implements Comparator<Entry<Key,Value>> {
+  
+  protected final int prefixLength;
+  
+  public IndexEntryComparator(RowLayout layout) {
+    this.prefixLength = layout.shardPrefixLength();
+  }
+  
+  @Override
+  public int compare(Entry<Key,Value> o1, Entry<Key,Value> o2) {
+    ByteSequence row1 = o1.getKey().getRowData(), row2 = o2.getKey().getRowData();
+    
+    int result = WritableComparator.compareBytes(row1.getBackingArray(), row1.offset() + prefixLength, row1.length() - prefixLength,
+        row2.getBackingArray(), row2.offset() + prefixLength, row2.length() - prefixLength);
+    
+    if (0 != result) {
+      return result;
+    }
+    
+    result = o1.getKey().getColumnFamilyData().compareTo(o2.getKey().getColumnFamilyData());
+    
+    if (0 != result) {
+      return result;
+    }
+    
+    return o1.getKey().getColumnQualifierData().compareTo(o2.getKey().getColumnQualifierData());
+  }
+  
+}
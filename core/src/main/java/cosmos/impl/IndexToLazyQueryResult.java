@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+import com.google.common.base.Function;
+
+import cosmos.Cosmos;
+import cosmos.UnexpectedStateException;
+import cosmos.results.impl.LazyQueryResult;
+
+/**
+ * Fetches the {@link LazyQueryResult} referenced by an entry in the index, or null if the record of an ephemeral {@link SortableResult} has aged off
+ */
+public class IndexToLazyQueryResult implements Function<Entry<Key,Value>,LazyQueryResult> {
+  
+  protected final Cosmos sorts;
+  protected final SortableResult id;
+  
+  public IndexToLazyQueryResult(Cosmos sorts, SortableResult id) {
+    this.sorts = sorts;
+    this.id = id;
+  }
+  
+  @Override
+  public LazyQueryResult apply(Entry<Key,Value> input) {
+    try {
+      return sorts.lazyContents(id, IndexToMultimapQueryResult.docId(input.getKey()));
+    } catch (TableNotFoundException e) {
+      throw new RuntimeException(e);
+    } catch (UnexpectedStateException e) {
+      throw new RuntimeException(e);
+    } catch (NoSuchElementException e) {
+      if (id.isEphemeral()) {
+        return null;
+      }
+      
+      throw e;
+    }
+  }
+  
+}
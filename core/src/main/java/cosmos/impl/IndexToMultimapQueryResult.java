@@ -21,6 +21,8 @@ package cosmos.impl;
 
 import java.nio.charset.CharacterCodingException;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.data.Key;
@@ -32,25 +34,64 @@ import com.google.common.base.Function;
 import cosmos.Cosmos;
 import cosmos.UnexpectedStateException;
 import cosmos.options.Defaults;
+import cosmos.results.Column;
 import cosmos.results.impl.MultimapQueryResult;
 
 /**
- * 
+ * Fetches the {@link MultimapQueryResult} referenced by an entry in the index. The record of an ephemeral {@link SortableResult} may have aged off before
+ * the index entries which reference it, in which case null is returned.
  */
 public class IndexToMultimapQueryResult implements Function<Entry<Key,Value>,MultimapQueryResult> {
   
   protected final Cosmos sorts;
   protected final SortableResult id;
+  protected final Set<Column> projection;
   
   public IndexToMultimapQueryResult(Cosmos sorts, SortableResult id) {
+    this(sorts, id, null);
+  }
+  
+  /**
+   * @param sorts
+   * @param id
+   * @param projection
+   *          The columns to fetch for each record, or null for all columns
+   */
+  public IndexToMultimapQueryResult(Cosmos sorts, SortableResult id, Set<Column> projection) {
     this.sorts = sorts;
     this.id = id;
+    this.projection = projection;
   }
   
   @Override
   public MultimapQueryResult apply(Entry<Key,Value> input) {
-    Key k = input.getKey();
-    
+    try {
+      final String docId = docId(input.getKey());
+      
+      if (null == projection) {
+        return sorts.contents(id, docId);
+      }
+      
+      return sorts.contents(id, docId, projection);
+    } catch (TableNotFoundException e) {
+      throw new RuntimeException(e);
+    } catch (UnexpectedStateException e) {
+      throw new RuntimeException(e);
+    } catch (NoSuchElementException e) {
+      if (id.isEphemeral()) {
+        return null;
+      }
+      
+      throw e;
+    }
+  }
+  
+  /**
+   * @param k
+   *          A key from the index
+   * @return The docId which the key references
+   */
+  public static String docId(Key k) {
     Text colqual = k.getColumnQualifier();
     
     int index = colqual.find(Defaults.NULL_BYTE_STR);
@@ -60,14 +101,7 @@ public class IndexToMultimapQueryResult implements Function<Entry<Key,Value>,Mul
     
     int start = index + 1;
     try {
-      String docId = Text.decode(colqual.getBytes(), start, colqual.getLength() - start);
-      
-      return sorts.contents(id, docId);
-      
-    } catch (TableNotFoundException e) {
-      throw new RuntimeException(e);
-    } catch (UnexpectedStateException e) {
-      throw new RuntimeException(e);
+      return Text.decode(colqual.getBytes(), start, colqual.getLength() - start);
     } catch (CharacterCodingException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,457 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.Constants;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.user.TimestampFilter;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.ResultStatus;
+import cosmos.SortingMetadata.State;
+import cosmos.UnexpectedStateException;
+
+/**
+ * Finds the results in the tables of a {@link CosmosSession} which were abandoned by their clients and deletes them with a {@link CosmosImpl}.
+ * 
+ * <p>
+ * A result which has been {@link State#LOADING}, {@link State#ERROR} or {@link State#DELETING} without being modified for longer than a time-to-live is
+ * deleted, as its client is assumed to have gone away. An ephemeral result which is {@link State#LOADED} is deleted once its metadata has not been
+ * modified for its {@link SortableResult#ephemeralTtl()}, as records and index entries are written before the metadata which notes them, so all of
+ * them have aged off by then.
+ * 
+ * <p>
+ * Rows in the data table with no metadata are also deleted, whether in a table created by {@link SortableResult.Builder#tablePerResult(boolean)} or in
+ * a shared data table, including the table shared by the {@link SortableResult.Builder#ephemeral(long, TimeUnit)} results with the same time-to-live.
+ * As a result may be registered after the uuids with metadata were read, rows are only deleted when none of them were written within the time-to-live,
+ * and when the metadata of their uuid is still missing immediately before they are deleted.
+ * 
+ * <p>
+ * The rows of a {@link cosmos.options.KeyFormat#V2} result in a shared data table cannot be attributed to a uuid without its metadata, so only
+ * {@link cosmos.options.KeyFormat#V1} rows are reclaimed from the shared data tables.
+ */
+public class Reclaimer implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(Reclaimer.class);
+  
+  protected static final int UUID_CHARS = 36;
+  protected static final String EPHEMERAL = "ephemeral_";
+  
+  protected final CosmosImpl cosmos;
+  protected final CosmosSession session;
+  protected final long ttl;
+  
+  /**
+   * @param cosmos
+   * @param session
+   *          The tables to reclaim results from
+   * @param ttl
+   *          Time without a modification after which a result which is not {@link State#LOADED} is deleted
+   * @param unit
+   */
+  public Reclaimer(CosmosImpl cosmos, CosmosSession session, long ttl, TimeUnit unit) {
+    checkNotNull(cosmos);
+    checkNotNull(session);
+    checkArgument(0 < ttl, "TTL must be positive");
+    checkNotNull(unit);
+    
+    this.cosmos = cosmos;
+    this.session = session;
+    this.ttl = unit.toMillis(ttl);
+  }
+  
+  /**
+   * Delete the results which were abandoned while being loaded or deleted, and the ephemeral results whose entries have all aged off
+   * 
+   * @return The results which are being deleted
+   * @throws TableNotFoundException
+   */
+  public List<SortableResult> reclaimStale() throws TableNotFoundException {
+    final long now = System.currentTimeMillis();
+    List<SortableResult> reclaimed = Lists.newArrayList();
+    
+    for (ResultStatus status : SortingMetadata.statuses(session.connector(), session.metadataTable())) {
+      final long idle = now - status.lastModified();
+      
+      switch (status.state()) {
+        case LOADING:
+        case ERROR:
+        case DELETING:
+          if (idle < ttl) {
+            continue;
+          }
+          break;
+        case LOADED:
+          // Nothing was written to an ephemeral result since its metadata was last modified, so every entry has aged off
+          if (0 == status.ephemeralTtl() || idle < status.ephemeralTtl()) {
+            continue;
+          }
+          break;
+        default:
+          continue;
+      }
+      
+      log.info("Reclaiming {} which has been {} for {}ms", new Object[] {status.uuid(), status.state(), idle});
+      
+      SortableResult id = SortableResult.reopen(session.connector(), session.auths(), session.dataTable(), session.metadataTable(), status.uuid(),
+          SortingMetadata.getOptions(session.connector(), session.metadataTable(), status.uuid()));
+      
+      if (State.LOADED.equals(status.state())) {
+        // Mark it as being deleted first, so that other clients no longer read it
+        try {
+          cosmos.delete(id);
+        } catch (UnexpectedStateException e) {
+          // Deleted by someone else
+          continue;
+        } catch (MutationsRejectedException e) {
+          log.error("Could not delete {}", status.uuid(), e);
+          continue;
+        }
+      } else {
+        cosmos.reclaim(id);
+      }
+      
+      reclaimed.add(id);
+    }
+    
+    return reclaimed;
+  }
+  
+  /**
+   * Delete the rows in the data tables which belong to no result
+   * 
+   * @return The number of tables and row prefixes which were deleted
+   * @throws TableNotFoundException
+   * @throws MutationsRejectedException
+   */
+  public int reclaimUnregistered() throws TableNotFoundException, MutationsRejectedException {
+    final Set<String> registered = registered();
+    
+    int reclaimed = reclaimTables(registered);
+    for (String table : sharedTables()) {
+      reclaimed += reclaimRows(table, registered);
+    }
+    
+    return reclaimed;
+  }
+  
+  /**
+   * @return The data tables shared by many results: the data table of the session, and the table for each time-to-live of ephemeral results
+   */
+  protected List<String> sharedTables() {
+    final List<String> tables = Lists.newArrayList(session.dataTable());
+    final String ephemeralPrefix = session.dataTable() + "_" + EPHEMERAL;
+    
+    for (String table : session.connector().tableOperations().list()) {
+      if (table.startsWith(ephemeralPrefix) && isTtl(table.substring(ephemeralPrefix.length()))) {
+        tables.add(table);
+      }
+    }
+    
+    return tables;
+  }
+  
+  /**
+   * @param table
+   * @return The uuid of a table created for a single result, {@code dataTable_uuid} or {@code dataTable_ephemeral_ttl_uuid} with underscores for
+   *         dashes, or null if the table was not created for a single result
+   */
+  protected String tableUuid(String table) {
+    final String tablePrefix = session.dataTable() + "_";
+    if (!table.startsWith(tablePrefix)) {
+      return null;
+    }
+    
+    String suffix = table.substring(tablePrefix.length());
+    if (suffix.startsWith(EPHEMERAL)) {
+      // Skip the time-to-live of an ephemeral table
+      final String rest = suffix.substring(EPHEMERAL.length());
+      final int separator = rest.indexOf('_');
+      if (-1 == separator || !isTtl(rest.substring(0, separator))) {
+        return null;
+      }
+      
+      suffix = rest.substring(separator + 1);
+    }
+    
+    final String uuid = suffix.replace('_', '-');
+    return isUuid(uuid) ? uuid : null;
+  }
+  
+  /**
+   * @return The uuids which currently have metadata
+   * @throws TableNotFoundException
+   */
+  protected Set<String> registered() throws TableNotFoundException {
+    final Set<String> registered = Sets.newHashSet();
+    for (ResultStatus status : SortingMetadata.statuses(session.connector(), session.metadataTable())) {
+      registered.add(status.uuid());
+    }
+    
+    return registered;
+  }
+  
+  /**
+   * Read the metadata of a single uuid again, as it may have been registered since the uuids with metadata were read
+   * 
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   */
+  protected boolean isRegistered(String uuid) throws TableNotFoundException {
+    Scanner s = session.connector().createScanner(session.metadataTable(), Constants.NO_AUTHS);
+    s.setRange(new Range(uuid));
+    
+    return s.iterator().hasNext();
+  }
+  
+  /**
+   * @param table
+   * @param range
+   * @param now
+   * @return True if the range has entries, none of which were written within the time-to-live
+   * @throws TableNotFoundException
+   */
+  protected boolean isIdle(String table, Range range, long now) throws TableNotFoundException {
+    Scanner s = session.connector().createScanner(table, session.auths());
+    s.setRange(range);
+    
+    if (!s.iterator().hasNext()) {
+      return false;
+    }
+    
+    // Only the entries written within the time-to-live are returned
+    IteratorSetting recent = new IteratorSetting(50, "recent", TimestampFilter.class);
+    TimestampFilter.setStart(recent, now - ttl, false);
+    s.addScanIterator(recent);
+    
+    return !s.iterator().hasNext();
+  }
+  
+  /**
+   * Delete the tables created for a single result which has no metadata
+   */
+  protected int reclaimTables(Set<String> registered) {
+    final long now = System.currentTimeMillis();
+    final TableOperations tops = session.connector().tableOperations();
+    int reclaimed = 0;
+    
+    for (String table : tops.list()) {
+      final String uuid = tableUuid(table);
+      if (null == uuid || registered.contains(uuid)) {
+        continue;
+      }
+      
+      try {
+        // Tables are created before their result is registered, and may be written to by a result registered since
+        if (!isIdle(table, new Range(), now) || isRegistered(uuid)) {
+          continue;
+        }
+        
+        log.info("Reclaiming table '{}' which has no metadata", table);
+        
+        tops.delete(table);
+        reclaimed++;
+      } catch (TableNotFoundException e) {
+        // Deleted by someone else
+      } catch (AccumuloException e) {
+        log.error("Could not delete table '{}'", table, e);
+      } catch (AccumuloSecurityException e) {
+        log.error("Could not delete table '{}'", table, e);
+      }
+    }
+    
+    return reclaimed;
+  }
+  
+  /**
+   * Walk a shared data table, reading only the first row of each result (and document shard), and delete the rows of a result which has no metadata.
+   * Rows which are not {@link cosmos.options.KeyFormat#V1} are skipped a binary uuid at a time.
+   */
+  protected int reclaimRows(String table, Set<String> registered) throws TableNotFoundException, MutationsRejectedException {
+    if (!session.connector().tableOperations().exists(table)) {
+      return 0;
+    }
+    
+    final long now = System.currentTimeMillis();
+    final Map<Text,String> candidates = Maps.newLinkedHashMap();
+    final Scanner s = session.connector().createScanner(table, session.auths());
+    
+    Iterator<Entry<Key,Value>> iter = s.iterator();
+    while (iter.hasNext()) {
+      final Text row = iter.next().getKey().getRow();
+      final Text prefix = uuidPrefix(row);
+      if (null == prefix) {
+        // Skip the remaining rows which begin with the same binary uuid, or document shard and the start of the binary uuid
+        final Text skipped = new Text();
+        skipped.set(row.getBytes(), 0, Math.min(row.getLength(), RowLayout.UUID_LENGTH));
+        
+        final Text following = Range.followingPrefix(skipped);
+        if (null == following) {
+          break;
+        }
+        
+        s.setRange(new Range(following, true, null, false));
+        iter = s.iterator();
+        continue;
+      }
+      
+      final String uuid = uuid(prefix);
+      if (!registered.contains(uuid)) {
+        candidates.put(prefix, uuid);
+      }
+      
+      // Skip the remaining rows for this uuid
+      s.setRange(new Range(Range.followingPrefix(prefix), true, null, false));
+      iter = s.iterator();
+    }
+    
+    final List<Range> unregistered = Lists.newArrayList();
+    for (Entry<Text,String> candidate : candidates.entrySet()) {
+      final Range range = Range.prefix(candidate.getKey());
+      
+      // Written recently, or registered since the uuids with metadata were read
+      if (!isIdle(table, range, now) || isRegistered(candidate.getValue())) {
+        continue;
+      }
+      
+      log.info("Reclaiming rows beginning with {} in '{}' which have no metadata", candidate.getValue(), table);
+      
+      unregistered.add(range);
+    }
+    
+    if (unregistered.isEmpty()) {
+      return 0;
+    }
+    
+    // No row is equal to a prefix, which ends in a null byte
+    cosmos.deleteRows(session.connector(), table, session.auths(), unregistered);
+    
+    return unregistered.size();
+  }
+  
+  /**
+   * @param row
+   * @return The prefix of a {@link cosmos.options.KeyFormat#V1} row, {@code uuid\0} or {@code shard\0uuid\0}, or null if the row has no such prefix
+   */
+  protected static Text uuidPrefix(Text row) {
+    final byte[] bytes = row.getBytes();
+    
+    int start = 0;
+    if (row.getLength() > 3 + UUID_CHARS && 0 == bytes[2]) {
+      // A document sharded row
+      start = 3;
+    }
+    
+    for (int offset = start; offset >= 0; offset -= 3) {
+      final int end = offset + UUID_CHARS;
+      if (row.getLength() > end && 0 == bytes[end]) {
+        final Text prefix = new Text();
+        prefix.set(bytes, 0, end + 1);
+        
+        if (isUuid(uuid(prefix))) {
+          return prefix;
+        }
+      }
+    }
+    
+    return null;
+  }
+  
+  protected static String uuid(Text prefix) {
+    try {
+      return Text.decode(prefix.getBytes(), prefix.getLength() - 1 - UUID_CHARS, UUID_CHARS);
+    } catch (CharacterCodingException e) {
+      return "";
+    }
+  }
+  
+  protected static boolean isTtl(String ttl) {
+    if (ttl.isEmpty()) {
+      return false;
+    }
+    
+    for (int i = 0; i < ttl.length(); i++) {
+      if (!Character.isDigit(ttl.charAt(i))) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  protected static boolean isUuid(String uuid) {
+    if (UUID_CHARS != uuid.length()) {
+      return false;
+    }
+    
+    try {
+      UUID.fromString(uuid);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+  
+  @Override
+  public void run() {
+    Stopwatch sw = new Stopwatch().start();
+    
+    try {
+      int stale = reclaimStale().size();
+      int unregistered = reclaimUnregistered();
+      
+      sw.stop();
+      
+      log.debug("Reclaimed {} stale results and {} unregistered data in {}ms", new Object[] {stale, unregistered, sw.elapsed(TimeUnit.MILLISECONDS)});
+    } catch (Exception e) {
+      // Throwing would cancel any later runs
+      log.error("Could not reclaim results in '{}'", session.dataTable(), e);
+    }
+  }
+}
@@ -0,0 +1,467 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.accumulo.core.client.lexicoder.ReverseLexicoder;
+import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.client.lexicoder.UUIDLexicoder;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import cosmos.options.Defaults;
+import cosmos.options.KeyFormat;
+import cosmos.options.Order;
+
+/**
+ * Encapsulates how the rows for a {@link SortableResult} are laid out in the data table.
+ *
+ * <p>
+ * Documents are stored in the row {@code uuid\0docId} and index entries in the row {@code uuid\0value}. When index sharding is enabled, index rows are
+ * suffixed with a shard derived from the docId, {@code uuid\0value\0shard}, so that the entries for a value shared by many documents are spread across
+ * multiple rows which Accumulo can split across tablet servers. The shards for a value are contiguous in the table, so ordering by value is unaffected.
+ * 
+ * <p>
+ * When document sharding is enabled, every row is additionally prefixed by a shard derived from the docId, {@code shard\0uuid\0docId}, with the index
+ * entries for a document placed in the same shard as the document. The shards are spread evenly over the hex alphabet so that a single
+ * {@link SortableResult} is distributed across the whole table instead of occupying one contiguous range. Each shard is independently sorted, so ordered
+ * reads must merge the shards, comparing rows after {@link #shardPrefixLength()}.
+ * 
+ * <p>
+ * The {@link KeyFormat} determines how the uuid is encoded. With {@link KeyFormat#V2}, the uuid is the 16 bytes from the {@link UUIDLexicoder} and is not
+ * followed by a null byte, as the uuid itself may contain null bytes. Shards are then a single byte rather than two hex characters.
+ * 
+ * <p>
+ * A {@link RowLayout} can be serialized via {@link #toOptions()} so that iterators can interpret the rows they read.
+ */
+public class RowLayout {
+  public static final String INDEX_SHARDS = "layout.index.shards";
+  public static final String DOCUMENT_SHARDS = "layout.document.shards";
+  public static final String FORMAT = "layout.format";
+  
+  /**
+   * Document shards are encoded as two hex characters, or a single byte
+   */
+  public static final int MAX_DOCUMENT_SHARDS = 256;
+  
+  /**
+   * Length of a {@link KeyFormat#V2} uuid
+   */
+  public static final int UUID_LENGTH = 16;
+  
+  private static final byte[] NULL_BYTE = new byte[] {0};
+  
+  protected final String uuid;
+  protected final int indexShards;
+  protected final int indexShardWidth;
+  protected final int documentShards;
+  protected final KeyFormat format;
+  protected final byte[] uuidBytes;
+  
+  private final ReverseLexicoder<String> revLex = new ReverseLexicoder<String>(new StringLexicoder());
+  
+  public RowLayout(String uuid) {
+    this(uuid, 1);
+  }
+  
+  public RowLayout(String uuid, int indexShards) {
+    this(uuid, indexShards, 1);
+  }
+  
+  public RowLayout(String uuid, int indexShards, int documentShards) {
+    this(uuid, indexShards, documentShards, Defaults.KEY_FORMAT);
+  }
+  
+  public RowLayout(String uuid, int indexShards, int documentShards, KeyFormat format) {
+    checkNotNull(format);
+    checkArgument(0 < indexShards, "Number of index shards must be positive");
+    checkArgument(0 < documentShards && documentShards <= MAX_DOCUMENT_SHARDS, "Number of document shards must be between 1 and " + MAX_DOCUMENT_SHARDS);
+    
+    this.uuid = uuid;
+    this.indexShards = indexShards;
+    this.indexShardWidth = Integer.toHexString(indexShards - 1).length();
+    this.documentShards = documentShards;
+    this.format = format;
+    
+    if (null == uuid) {
+      this.uuidBytes = null;
+    } else if (KeyFormat.V1.equals(format)) {
+      this.uuidBytes = uuid.getBytes();
+    } else {
+      this.uuidBytes = new UUIDLexicoder().encode(UUID.fromString(uuid));
+    }
+  }
+  
+  /**
+   * Recreate a {@link RowLayout} from the options given to an iterator. The layout will not be able to construct rows as it is not bound to a
+   * {@link SortableResult}, but can interpret existing rows.
+   *
+   * @param options
+   * @return
+   */
+  public static RowLayout fromOptions(Map<String,String> options) {
+    checkNotNull(options);
+    
+    int indexShards = 1, documentShards = 1;
+    KeyFormat format = KeyFormat.V1;
+    if (options.containsKey(INDEX_SHARDS)) {
+      indexShards = Integer.parseInt(options.get(INDEX_SHARDS));
+    }
+    if (options.containsKey(DOCUMENT_SHARDS)) {
+      documentShards = Integer.parseInt(options.get(DOCUMENT_SHARDS));
+    }
+    if (options.containsKey(FORMAT)) {
+      format = KeyFormat.valueOf(options.get(FORMAT));
+    }
+    
+    return new RowLayout(null, indexShards, documentShards, format);
+  }
+  
+  public Map<String,String> toOptions() {
+    Map<String,String> options = Maps.newHashMap();
+    options.put(INDEX_SHARDS, Integer.toString(this.indexShards));
+    options.put(DOCUMENT_SHARDS, Integer.toString(this.documentShards));
+    options.put(FORMAT, this.format.toString());
+    return options;
+  }
+  
+  public String uuid() {
+    return this.uuid;
+  }
+  
+  public KeyFormat format() {
+    return this.format;
+  }
+  
+  public int indexShards() {
+    return this.indexShards;
+  }
+  
+  public boolean isIndexSharded() {
+    return 1 < this.indexShards;
+  }
+  
+  public int documentShards() {
+    return this.documentShards;
+  }
+  
+  public boolean isDocumentSharded() {
+    return 1 < this.documentShards;
+  }
+  
+  /**
+   * @return True if the index entries for a single value may be split across rows which are not contiguous, and thus may be counted by different tablets
+   */
+  public boolean valuesSpanShards() {
+    return isIndexSharded() || isDocumentSharded();
+  }
+  
+  /**
+   * @return The symbols which the leading byte of every row is drawn from
+   */
+  public byte[] alphabet() {
+    if (KeyFormat.V1.equals(format)) {
+      // Both the textual UUID and the document shards are hex
+      return SplitManager.HEX_ALPHABET;
+    }
+    
+    return SplitManager.BINARY_ALPHABET;
+  }
+  
+  /**
+   * @return The number of leading bytes of each row which are the document shard
+   */
+  public int shardPrefixLength() {
+    if (!isDocumentSharded()) {
+      return 0;
+    }
+    
+    return KeyFormat.V1.equals(format) ? 3 : 1;
+  }
+  
+  /**
+   * @return The row which holds the document with the given docId
+   */
+  public Text documentRow(String docId) {
+    checkNotNull(docId);
+    
+    Text t = prefix(docId);
+    byte[] b = docId.getBytes();
+    t.append(b, 0, b.length);
+    
+    return t;
+  }
+  
+  /**
+   * @return The row which holds the index entry for the given value in the given document
+   */
+  public Text indexRow(String value, Order order, String docId) {
+    checkNotNull(value);
+    checkNotNull(order);
+    checkNotNull(docId);
+    
+    Text t = prefix(docId);
+    
+    byte[] b;
+    if (Order.ASCENDING.equals(order)) {
+      b = value.getBytes();
+    } else {
+      b = this.revLex.encode(value);
+    }
+    t.append(b, 0, b.length);
+    
+    if (isIndexSharded()) {
+      t.append(NULL_BYTE, 0, 1);
+      b = indexShard(docId).getBytes();
+      t.append(b, 0, b.length);
+    }
+    
+    return t;
+  }
+  
+  /**
+   * @return The {@link Range}s, one per document shard, which contain every row for the {@link SortableResult}
+   */
+  public List<Range> resultRanges() {
+    checkNotNull(uuid);
+    
+    if (!isDocumentSharded()) {
+      return Collections.singletonList(Range.prefix(new Text(uuidBytes)));
+    }
+    
+    List<Range> ranges = Lists.newArrayListWithCapacity(documentShards);
+    for (int i = 0; i < documentShards; i++) {
+      Text t = documentShard(i);
+      t.append(uuidBytes, 0, uuidBytes.length);
+      ranges.add(Range.prefix(t));
+    }
+    
+    return ranges;
+  }
+  
+  /**
+   * @return A {@link Range} over the row for the given docId
+   */
+  public Range documentRange(String docId) {
+    return Range.exact(documentRow(docId));
+  }
+  
+  /**
+   * @return The {@link Range}s, one per document shard, over the ascending index rows for the given value
+   */
+  public List<Range> valueRanges(String value) {
+    checkNotNull(value);
+    
+    List<Range> ranges = Lists.newArrayListWithCapacity(documentShards);
+    for (int i = 0; i < documentShards; i++) {
+      Text t = isDocumentSharded() ? documentShard(i) : new Text();
+      appendUuid(t);
+      byte[] b = value.getBytes();
+      t.append(b, 0, b.length);
+      
+      if (isIndexSharded()) {
+        t.append(NULL_BYTE, 0, 1);
+        ranges.add(Range.prefix(t));
+      } else {
+        ranges.add(Range.exact(t));
+      }
+    }
+    
+    return ranges;
+  }
+  
+  /**
+   * Compute the {@link Range} containing every row for the same value as the given index row, i.e. all of the index shards for that value within its document shard.
+   *
+   * @param row
+   * @return
+   */
+  public Range groupRange(Text row) {
+    if (isIndexSharded()) {
+      Text t = new Text();
+      t.set(row.getBytes(), 0, indexShardOffset(row) + 1);
+      return Range.prefix(t);
+    }
+    
+    return Range.exact(row);
+  }
+  
+  /**
+   * Extract the value from an ascending index row
+   *
+   * @param row
+   * @return
+   */
+  public String value(Text row) {
+    int start = valueOffset(row);
+    int end = isIndexSharded() ? indexShardOffset(row) : row.getLength();
+    
+    try {
+      return Text.decode(row.getBytes(), start, end - start);
+    } catch (CharacterCodingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+  
+  /**
+   * @return True if the given index rows hold the same value, regardless of the document and index shards they were written to
+   */
+  public boolean sameValue(Text row1, Text row2) {
+    int start1 = valueOffset(row1), start2 = valueOffset(row2);
+    int end1 = isIndexSharded() ? indexShardOffset(row1) : row1.getLength();
+    int end2 = isIndexSharded() ? indexShardOffset(row2) : row2.getLength();
+    
+    return 0 == WritableComparator.compareBytes(row1.getBytes(), start1, end1 - start1, row2.getBytes(), start2, end2 - start2);
+  }
+  
+  protected int valueOffset(Text row) {
+    if (KeyFormat.V2.equals(format)) {
+      int offset = shardPrefixLength() + UUID_LENGTH;
+      
+      if (row.getLength() < offset) {
+        throw new IllegalArgumentException("Row is shorter than the uuid: " + row);
+      }
+      
+      return offset;
+    }
+    
+    int index = row.find(Defaults.NULL_BYTE_STR, shardPrefixLength());
+    
+    if (-1 == index) {
+      throw new IllegalArgumentException("Found no null byte in row: " + row);
+    }
+    
+    return index + 1;
+  }
+  
+  /**
+   * @return The offset of the null byte which separates the value from the index shard
+   */
+  protected int indexShardOffset(Text row) {
+    int offset = row.getLength() - indexShardWidth - 1;
+    
+    if (offset < valueOffset(row) || 0 != row.getBytes()[offset]) {
+      throw new IllegalArgumentException("Found no index shard in row: " + row);
+    }
+    
+    return offset;
+  }
+  
+  protected String indexShard(String docId) {
+    int shard = (docId.hashCode() & Integer.MAX_VALUE) % indexShards;
+    return Strings.padStart(Integer.toHexString(shard), indexShardWidth, '0');
+  }
+  
+  /**
+   * @return The first row of the given document shard. Shards are spread evenly over the hex alphabet
+   */
+  protected Text documentShard(int shard) {
+    final int offset = shard * MAX_DOCUMENT_SHARDS / documentShards;
+    Text t = new Text();
+    
+    if (KeyFormat.V1.equals(format)) {
+      byte[] b = Strings.padStart(Integer.toHexString(offset), 2, '0').getBytes();
+      t.append(b, 0, b.length);
+      t.append(NULL_BYTE, 0, 1);
+    } else {
+      t.append(new byte[] {(byte) offset}, 0, 1);
+    }
+    
+    return t;
+  }
+  
+  /**
+   * @return The document shard which the given row is in
+   */
+  protected int documentShardOf(Text row) {
+    int offset;
+    if (KeyFormat.V1.equals(format)) {
+      offset = Integer.parseInt(new String(row.getBytes(), 0, 2), 16);
+    } else {
+      offset = row.getBytes()[0] & 0xff;
+    }
+    
+    // Invert the spreading of the shards over the alphabet in documentShard(int)
+    return (offset * documentShards + MAX_DOCUMENT_SHARDS - 1) / MAX_DOCUMENT_SHARDS;
+  }
+  
+  /**
+   * Rewrite a row from this layout into the equivalent row in the given layout. Both layouts must shard rows identically.
+   * 
+   * @param row
+   * @param target
+   * @return
+   */
+  public Text convert(Text row, RowLayout target) {
+    checkNotNull(row);
+    checkNotNull(target);
+    checkArgument(indexShards == target.indexShards && documentShards == target.documentShards, "Layouts must have the same number of shards");
+    
+    Text t = isDocumentSharded() ? target.documentShard(documentShardOf(row)) : new Text();
+    target.appendUuid(t);
+    
+    int offset = valueOffset(row);
+    t.append(row.getBytes(), offset, row.getLength() - offset);
+    
+    return t;
+  }
+  
+  protected Text prefix(String docId) {
+    checkNotNull(uuid);
+    
+    Text t;
+    if (isDocumentSharded()) {
+      // Use a different hash than the index shards, otherwise every document in a document shard would share the same index shard
+      int hash = Hashing.murmur3_32().hashBytes(docId.getBytes()).asInt();
+      t = documentShard((hash & Integer.MAX_VALUE) % documentShards);
+    } else {
+      t = new Text();
+    }
+    
+    appendUuid(t);
+    
+    return t;
+  }
+  
+  protected void appendUuid(Text t) {
+    checkNotNull(uuid);
+    
+    t.append(uuidBytes, 0, uuidBytes.length);
+    
+    // The binary uuid is fixed-length
+    if (KeyFormat.V1.equals(format)) {
+      t.append(NULL_BYTE, 0, 1);
+    }
+  }
+}
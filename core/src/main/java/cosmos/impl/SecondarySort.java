@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.SValue;
+import cosmos.results.impl.MultimapQueryResult;
+
+/**
+ * Orders the records read from the index of one column by the values of further columns. The index entries are already sorted by the first column, so only
+ * the records which share a value for the first column are sorted by the remaining columns before they are returned. Such a group of ties is sorted by an
+ * {@link ExternalSort}, so at most the sort buffer size of it is held in memory, and the rest is spilled to disk.
+ * 
+ * <p>
+ * A record is compared by its smallest value in an ascending column and its largest value in a descending column. Records without a value for a column are
+ * placed after those with one, and records which are otherwise equal are ordered by docId.
+ * 
+ * @param <T>
+ *          The type of the index entries
+ */
+public class SecondarySort<T> implements Iterable<MultimapQueryResult>, Closeable {
+  
+  /**
+   * Decides whether two consecutive index entries hold the same value for the first column
+   */
+  public interface Grouping<T> {
+    boolean sameValue(T first, T other);
+  }
+  
+  protected final Iterable<T> entries;
+  protected final Grouping<? super T> grouping;
+  protected final Function<? super T,MultimapQueryResult> transform;
+  protected final List<Index> orderings;
+  protected final List<Order> orders;
+  protected final long bufferSize;
+  protected final File directory;
+  
+  protected final List<ExternalSort> sorters = Lists.newArrayList();
+  
+  /**
+   * @param entries
+   *          Index entries, in the order of the first column
+   * @param grouping
+   * @param transform
+   *          Fetches the record for an index entry, or returns null if it has none
+   * @param orderings
+   *          The columns to order records with the same value for the first column by
+   * @param bufferSize
+   *          Number of bytes of a group of ties to hold in memory before spilling to disk
+   * @param directory
+   *          Directory for the spilled ties, or null for the default temporary directory
+   */
+  public SecondarySort(Iterable<T> entries, Grouping<? super T> grouping, Function<? super T,MultimapQueryResult> transform, List<Index> orderings,
+      long bufferSize, File directory) {
+    checkNotNull(entries);
+    checkNotNull(grouping);
+    checkNotNull(transform);
+    checkNotNull(orderings);
+    checkArgument(!orderings.isEmpty(), "At least one secondary ordering is required");
+    checkArgument(0 < bufferSize, "Buffer size must be positive");
+    
+    this.entries = entries;
+    this.grouping = grouping;
+    this.transform = transform;
+    this.orderings = ImmutableList.copyOf(orderings);
+    this.bufferSize = bufferSize;
+    this.directory = directory;
+    
+    List<Order> orders = Lists.newArrayListWithCapacity(orderings.size());
+    for (Index ordering : orderings) {
+      orders.add(ordering.order());
+    }
+    this.orders = Collections.unmodifiableList(orders);
+  }
+  
+  /**
+   * @return A {@link Grouping} of the entries of an index in the data table, which ignores the document and index shards of their rows
+   */
+  public static Grouping<Entry<Key,Value>> byValue(final RowLayout layout) {
+    checkNotNull(layout);
+    
+    return new Grouping<Entry<Key,Value>>() {
+      @Override
+      public boolean sameValue(Entry<Key,Value> first, Entry<Key,Value> other) {
+        return layout.sameValue(first.getKey().getRow(), other.getKey().getRow());
+      }
+    };
+  }
+  
+  /**
+   * @return The value of the record which it is sorted by, or null if it has no values for the column
+   */
+  protected static String sortValue(MultimapQueryResult record, Index ordering) {
+    String sortValue = null;
+    
+    for (SValue value : record.get(ordering.column())) {
+      if (null == sortValue) {
+        sortValue = value.value();
+      } else {
+        int result = value.value().compareTo(sortValue);
+        if (Order.ASCENDING.equals(ordering.order()) ? result < 0 : result > 0) {
+          sortValue = value.value();
+        }
+      }
+    }
+    
+    return sortValue;
+  }
+  
+  @Override
+  public Iterator<MultimapQueryResult> iterator() {
+    final PeekingIterator<T> source = Iterators.peekingIterator(entries.iterator());
+    
+    return new AbstractIterator<MultimapQueryResult>() {
+      private Iterator<MultimapQueryResult> group = Collections.<MultimapQueryResult> emptyList().iterator();
+      private ExternalSort sorter = null;
+      
+      @Override
+      protected MultimapQueryResult computeNext() {
+        while (!group.hasNext()) {
+          // The previous group of ties has been returned
+          if (null != sorter) {
+            release(sorter);
+            sorter = null;
+          }
+          
+          if (!source.hasNext()) {
+            return endOfData();
+          }
+          
+          final T first = source.next();
+          final MultimapQueryResult record = transform.apply(first);
+          
+          // A value with a single record needs no sorting
+          if (!source.hasNext() || !grouping.sameValue(first, source.peek())) {
+            group = null == record ? Collections.<MultimapQueryResult> emptyList().iterator() : Iterators.singletonIterator(record);
+            continue;
+          }
+          
+          sorter = sorter();
+          add(sorter, record);
+          
+          while (source.hasNext() && grouping.sameValue(first, source.peek())) {
+            add(sorter, transform.apply(source.next()));
+          }
+          
+          try {
+            group = Iterators.transform(sorter.sorted().iterator(), new Function<Value,MultimapQueryResult>() {
+              @Override
+              public MultimapQueryResult apply(Value input) {
+                return KeyValueToMultimapQueryResult.transform(input);
+              }
+            });
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        
+        return group.next();
+      }
+    };
+  }
+  
+  protected ExternalSort sorter() {
+    ExternalSort sorter = new ExternalSort(orders, bufferSize, directory, ExternalSort.DEFAULT_FAN_IN);
+    
+    synchronized (sorters) {
+      sorters.add(sorter);
+    }
+    
+    return sorter;
+  }
+  
+  protected void release(ExternalSort sorter) {
+    sorter.close();
+    
+    synchronized (sorters) {
+      sorters.remove(sorter);
+    }
+  }
+  
+  protected void add(ExternalSort sorter, MultimapQueryResult record) {
+    // Records which were deleted or are not visible are dropped
+    if (null == record) {
+      return;
+    }
+    
+    List<String> values = Lists.newArrayListWithCapacity(orderings.size());
+    for (Index ordering : orderings) {
+      values.add(sortValue(record, ordering));
+    }
+    
+    try {
+      sorter.add(values, record.docId(), record.toValue());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Remove any ties which were spilled to disk
+   */
+  @Override
+  public void close() {
+    synchronized (sorters) {
+      for (ExternalSort sorter : sorters) {
+        sorter.close();
+      }
+      
+      sorters.clear();
+    }
+  }
+}
@@ -19,32 +19,49 @@
  */
 package cosmos.impl;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.UUID.randomUUID;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.LongCombiner;
+import org.apache.accumulo.core.iterators.user.AgeOffFilter;
+import org.apache.accumulo.core.iterators.user.SummingCombiner;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.hadoop.io.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Sets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
+import cosmos.SortingMetadata;
+import cosmos.options.Codec;
 import cosmos.options.Defaults;
 import cosmos.options.Index;
+import cosmos.options.IndexBuildPolicy;
+import cosmos.options.KeyFormat;
 import cosmos.trace.AccumuloTraceStore;
 import cosmos.trace.Tracer;
 import cosmos.util.IdentitySet;
@@ -52,8 +69,30 @@ import cosmos.util.IdentitySet;
 public class SortableResult {
   private static final Logger log = LoggerFactory.getLogger(SortableResult.class);
   
-  private static final SortedSet<Text> SPLITS = ImmutableSortedSet.of(new Text("0"), new Text("1"), new Text("2"), new Text("3"), new Text("4"), new Text("5"),
-      new Text("6"), new Text("7"), new Text("8"), new Text("9"));
+  /**
+   * Names of the options recorded in the metadata table, alongside those of the {@link RowLayout}
+   */
+  public static final String LOCK_ON_UPDATES = "result.lock.on.updates";
+  public static final String DATA_TABLE = "result.data.table";
+  public static final String SPLIT_THRESHOLD = "result.split.threshold";
+  public static final String CONTENTS_CODEC = "result.contents.codec";
+  public static final String TABLE_COMPRESSION = "result.table.compression";
+  public static final String SORT_UNINDEXED = "result.sort.unindexed";
+  public static final String SORT_BUFFER_SIZE = "result.sort.buffer.size";
+  public static final String INDEX_BUILD_POLICY = "result.index.build.policy";
+  public static final String INDEX_BUILD_TIMEOUT = "result.index.build.timeout";
+  public static final String RECORD_QUERIES = "result.record.queries";
+  public static final String TABLE_PER_RESULT = "result.table.per.result";
+  public static final String EPHEMERAL_TTL = "result.ephemeral.ttl";
+  public static final String SCHEMA_EPOCHS = "result.schema.epochs";
+  
+  /**
+   * Name of the age-off iterator on the data table of ephemeral results
+   */
+  public static final String AGE_OFF = "ageoff";
+  
+  private static final Cache<String,Recorded> OPENED = CacheBuilder.newBuilder().maximumSize(Defaults.OPENED_RESULTS)
+      .expireAfterWrite(Defaults.OPENED_RESULT_SECS, TimeUnit.SECONDS).build();
   
   protected final Connector connector;
   protected final Authorizations auths;
@@ -61,8 +100,28 @@ public class SortableResult {
   protected final String dataTable, metadataTable;
   protected final String UUID;
   protected final Tracer tracer;
+  protected final RowLayout layout;
+  protected final SplitManager splitManager;
+  protected final Codec contentsCodec;
+  protected final String tableCompression;
+  protected final boolean sortUnindexed;
+  protected final long sortBufferSize;
+  protected final File sortDirectory;
+  protected final IndexBuildPolicy indexBuildPolicy;
+  protected final long indexBuildTimeout;
+  protected final boolean recordQueries;
+  protected final boolean tablePerResult;
+  protected final long ephemeralTtl;
+  protected final boolean schemaEpochs;
   
   protected Set<Index> columnsToIndex;
+  protected volatile Long registered = null;
+  
+  // The index schema epoch at which columnsToIndex was last refreshed
+  protected volatile long epoch = -1;
+  
+  // The version of the catalog of indexes at which dropped indexes were last removed from columnsToIndex
+  protected volatile long catalogVersion = 0;
   
   public SortableResult(Connector connector, Authorizations auths, Set<Index> columnsToIndex) {
     this(connector, auths, columnsToIndex, Defaults.LOCK_ON_UPDATES, Defaults.DATA_TABLE, Defaults.METADATA_TABLE);
@@ -73,36 +132,97 @@ public class SortableResult {
   }
   
   public SortableResult(Connector connector, Authorizations auths, Set<Index> columnsToIndex, boolean lockOnUpdates, String dataTable, String metadataTable) {
-    checkNotNull(connector);
-    checkNotNull(auths);
-    checkNotNull(columnsToIndex);
-    checkNotNull(dataTable);
-    checkNotNull(metadataTable);
+    this(builder(connector, auths, columnsToIndex).lockOnUpdates(lockOnUpdates).dataTable(dataTable).metadataTable(metadataTable));
+  }
+  
+  protected SortableResult(Builder builder) {
+    checkNotNull(builder);
     
-    this.connector = connector;
-    this.auths = auths;
-    this.lockOnUpdates = lockOnUpdates;
+    this.connector = builder.connector;
+    this.auths = builder.auths;
+    this.lockOnUpdates = builder.lockOnUpdates;
     
     // Make sure we don't try to make a real Set out of the IdentitySet
-    if (columnsToIndex instanceof IdentitySet) {
-      this.columnsToIndex = columnsToIndex;
+    if (builder.columnsToIndex instanceof IdentitySet) {
+      this.columnsToIndex = builder.columnsToIndex;
     } else {
-      this.columnsToIndex = Sets.newHashSet(columnsToIndex);
+      // An opened result is shared by every thread which opens it
+      this.columnsToIndex = Collections.newSetFromMap(new ConcurrentHashMap<Index,Boolean>());
+      this.columnsToIndex.addAll(builder.columnsToIndex);
     }
     
-    this.dataTable = dataTable;
-    this.metadataTable = metadataTable;
+    // The compression of a shared table would apply to every result in it
+    checkArgument(null != builder.uuid || null == builder.tableCompression || builder.tablePerResult,
+        "Table compression can only be set for a result with a table of its own");
     
-    this.UUID = randomUUID().toString();
+    this.UUID = null == builder.uuid ? randomUUID().toString() : builder.uuid;
+    this.tablePerResult = builder.tablePerResult;
+    this.ephemeralTtl = builder.ephemeralTtl;
+    this.schemaEpochs = builder.schemaEpochs;
     
+    // An opened result already knows the name of its own table
+    if (null == builder.uuid) {
+      String dataTable = builder.dataTable;
+      
+      // Entries are aged off by the table, so results with the same time-to-live share a table
+      if (isEphemeral()) {
+        dataTable += "_ephemeral_" + this.ephemeralTtl;
+      }
+      if (this.tablePerResult) {
+        dataTable += "_" + this.UUID.replace('-', '_');
+      }
+      
+      this.dataTable = dataTable;
+    } else {
+      this.dataTable = builder.dataTable;
+    }
+    this.metadataTable = builder.metadataTable;
+    
+    this.layout = new RowLayout(this.UUID, builder.indexShards, builder.documentShards, builder.keyFormat);
+    
+    // Results created by a session share the splits of their table, which are then only read once. A table of its own is not shared.
+    if (null == builder.uuid && null != builder.session && !this.tablePerResult) {
+      this.splitManager = builder.session.splitManager(this.dataTable, this.layout.alphabet(), builder.splitThreshold);
+    } else {
+      this.splitManager = new SplitManager(this.connector, this.dataTable, this.layout.alphabet(), builder.splitThreshold);
+    }
+    
+    this.contentsCodec = builder.contentsCodec;
+    this.tableCompression = builder.tableCompression;
+    this.sortUnindexed = builder.sortUnindexed;
+    this.sortBufferSize = builder.sortBufferSize;
+    this.sortDirectory = builder.sortDirectory;
+    this.indexBuildPolicy = builder.indexBuildPolicy;
+    this.indexBuildTimeout = builder.indexBuildTimeout;
+    this.recordQueries = builder.recordQueries;
+    
+    this.tracer = new Tracer(uuid());
+    
+    // The tables were configured by the client which created an opened result
+    if (null == builder.uuid) {
+      if (null == builder.session) {
+        setUpTables();
+      } else {
+        builder.session.setUp(this);
+      }
+    }
+  }
+  
+  /**
+   * Create and configure the data, metadata and tracing tables
+   */
+  protected void setUpTables() {
     TableOperations tops = this.connector.tableOperations();
     
     createIfNotExists(tops, this.dataTable());
-    splitTable(tops, this.dataTable());
+    splitTable();
     addLocalityGroups(tops, this.dataTable());
+    if (isEphemeral()) {
+      makeEphemeral(tops, this.dataTable());
+    }
     createIfNotExists(tops, this.metadataTable());
+    addQueryCounter(tops, this.metadataTable());
     
-    this.tracer = new Tracer(uuid());
     ensureTracingTableExists();
   }
   
@@ -132,33 +252,14 @@ public class SortableResult {
   /**
    * Make sure we have a reasonable number of splits for the data table
    * or else concurrency will just grind to a halt. 
-   * @param tops
-   * @param tableName
    */
-  protected void splitTable(TableOperations tops, String tableName) {
-    try {
-      // Having 10 splits should be no problem on a single machine
-      // so we can always split to that point
-      final int EXPECTED_SPLITS = 10;
-      Collection<Text> splits = tops.listSplits(tableName, EXPECTED_SPLITS);
-      
-      if (splits.size() < EXPECTED_SPLITS) {
-        tops.addSplits(tableName, SPLITS);
-      }
-    } catch (TableNotFoundException e) {
-      log.error("Could not add splits to table '{}'", tableName, e);
-      throw new RuntimeException(e);
-    } catch (AccumuloException e) {
-      log.error("Could not add splits to table '{}'", tableName, e);
-      throw new RuntimeException(e);
-    } catch (AccumuloSecurityException e) {
-      log.error("Could not add splits to table '{}'", tableName, e);
-      throw new RuntimeException(e);
-    }
+  protected void splitTable() {
+    this.splitManager.ensureSplits();
   }
  
   /**
-   * Ensure that the {@link Defaults.CONTENT_LG_NAME} locality group is configured
+   * Ensure that the {@link Defaults.CONTENT_LG_NAME} locality group is configured, and apply the file compression, if one was provided. Accumulo only
+   * configures compression for the whole table, not for each locality group, so compression is only applied to a table of a single result.
    * @param tops
    * @param tableName
    */
@@ -178,6 +279,10 @@ public class SortableResult {
           log.warn("The {} locality group does not contain the expected column family {}", Defaults.CONTENTS_LG_NAME, Defaults.CONTENTS_COLFAM_TEXT);
         }
       }
+      
+      if (null != this.tableCompression && this.tablePerResult) {
+        tops.setProperty(tableName, Property.TABLE_FILE_COMPRESSION_TYPE.getKey(), this.tableCompression);
+      }
     } catch (AccumuloException e) {
       log.error("Could not add locality groups to table '{}'", tableName, e);
       throw new RuntimeException(e);
@@ -190,6 +295,63 @@ public class SortableResult {
     }
   }
   
+  /**
+   * Disable the write-ahead log for the table, and age off every entry once the time-to-live has passed since its timestamp. The age-off filter runs at
+   * scan time and during compactions, so expired entries are hidden immediately and removed from disk as the table is compacted.
+   * 
+   * @param tops
+   * @param tableName
+   */
+  protected void makeEphemeral(TableOperations tops, String tableName) {
+    try {
+      tops.setProperty(tableName, Property.TABLE_WALOG_ENABLED.getKey(), Boolean.FALSE.toString());
+      
+      if (!tops.listIterators(tableName).containsKey(AGE_OFF)) {
+        IteratorSetting cfg = new IteratorSetting(10, AGE_OFF, AgeOffFilter.class);
+        AgeOffFilter.setTTL(cfg, this.ephemeralTtl);
+        
+        tops.attachIterator(tableName, cfg);
+      }
+    } catch (AccumuloException e) {
+      log.error("Could not make table '{}' ephemeral", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloSecurityException e) {
+      log.error("Could not make table '{}' ephemeral", tableName, e);
+      throw new RuntimeException(e);
+    } catch (TableNotFoundException e) {
+      log.error("Could not make table '{}' ephemeral", tableName, e);
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Ensure that the combiner which sums the query counts in the metadata table is configured. It must run before the versioning iterator, which would
+   * otherwise hide all but the most recent count.
+   * 
+   * @param tops
+   * @param tableName
+   */
+  protected void addQueryCounter(TableOperations tops, String tableName) {
+    try {
+      if (!tops.listIterators(tableName).containsKey(SortingMetadata.QUERY_COUNTER)) {
+        IteratorSetting cfg = new IteratorSetting(10, SortingMetadata.QUERY_COUNTER, SummingCombiner.class);
+        LongCombiner.setEncodingType(cfg, LongCombiner.Type.STRING);
+        Combiner.setColumns(cfg, Collections.singletonList(new IteratorSetting.Column(SortingMetadata.QUERY_COLFAM)));
+        
+        tops.attachIterator(tableName, cfg);
+      }
+    } catch (AccumuloException e) {
+      log.error("Could not add the query counter to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloSecurityException e) {
+      log.error("Could not add the query counter to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (TableNotFoundException e) {
+      log.error("Could not add the query counter to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    }
+  }
+  
   protected void ensureTracingTableExists() {    
     try {
       AccumuloTraceStore.ensureTables(connector());
@@ -233,9 +395,209 @@ public class SortableResult {
     return this.tracer;
   }
   
+  public RowLayout layout() {
+    return this.layout;
+  }
+  
+  public SplitManager splitManager() {
+    return this.splitManager;
+  }
+  
+  public Codec contentsCodec() {
+    return this.contentsCodec;
+  }
+  
+  public String tableCompression() {
+    return this.tableCompression;
+  }
+  
+  public boolean sortUnindexed() {
+    return this.sortUnindexed;
+  }
+  
+  public long sortBufferSize() {
+    return this.sortBufferSize;
+  }
+  
+  public File sortDirectory() {
+    return this.sortDirectory;
+  }
+  
+  /**
+   * @return True if indexes are built on demand rather than as records are added
+   */
+  public boolean isLazilyIndexed() {
+    return null != this.indexBuildPolicy;
+  }
+  
+  public IndexBuildPolicy indexBuildPolicy() {
+    return this.indexBuildPolicy;
+  }
+  
+  /**
+   * @return Milliseconds to wait for an index to be built on demand
+   */
+  public long indexBuildTimeout() {
+    return this.indexBuildTimeout;
+  }
+  
+  public boolean recordQueries() {
+    return this.recordQueries;
+  }
+  
+  /**
+   * @return True if the data table holds only this {@link SortableResult}
+   */
+  public boolean isTablePerResult() {
+    return this.tablePerResult;
+  }
+  
+  /**
+   * @return True if the data table does not write ahead, and ages off each entry of this {@link SortableResult} once {@link #ephemeralTtl()} has
+   *         passed since it was written
+   */
+  public boolean isEphemeral() {
+    return 0 < this.ephemeralTtl;
+  }
+  
+  /**
+   * @return Milliseconds after it is written at which an entry of an ephemeral {@link SortableResult} expires
+   */
+  public long ephemeralTtl() {
+    return this.ephemeralTtl;
+  }
+  
+  /**
+   * @return True if index consistency is maintained with the index schema epoch in the metadata table, rather than by locking
+   */
+  public boolean usesSchemaEpochs() {
+    return this.schemaEpochs;
+  }
+  
+  /**
+   * @return The index schema epoch at which {@link #columnsToIndex()} was last refreshed, or -1 if it has not been
+   */
+  public long epoch() {
+    return this.epoch;
+  }
+  
+  protected void epoch(long epoch) {
+    this.epoch = epoch;
+  }
+  
+  /**
+   * @return The time at which this ephemeral {@link SortableResult} was registered, as recorded in the metadata table
+   * @throws TableNotFoundException
+   */
+  public long registered() throws TableNotFoundException {
+    if (!isEphemeral()) {
+      throw new IllegalStateException("Only the registration time of an ephemeral result is recorded");
+    }
+    
+    if (null == this.registered) {
+      Long registered = SortingMetadata.getRegistered(this);
+      if (null == registered) {
+        throw new IllegalStateException(this.UUID + " has not been registered");
+      }
+      
+      this.registered = registered;
+    }
+    
+    return this.registered;
+  }
+  
+  protected void registered(long registered) {
+    this.registered = registered;
+  }
+  
+  /**
+   * @return The options which are recorded in the metadata table when the {@link SortableResult} is registered, from which it can be opened by other
+   *         clients. The local sort directory is not recorded.
+   */
+  public Map<String,String> toOptions() {
+    Map<String,String> options = Maps.newHashMap(this.layout.toOptions());
+    options.put(LOCK_ON_UPDATES, Boolean.toString(this.lockOnUpdates));
+    options.put(DATA_TABLE, this.dataTable);
+    options.put(SPLIT_THRESHOLD, Long.toString(this.splitManager.splitThreshold()));
+    options.put(CONTENTS_CODEC, this.contentsCodec.toString());
+    options.put(SORT_UNINDEXED, Boolean.toString(this.sortUnindexed));
+    options.put(SORT_BUFFER_SIZE, Long.toString(this.sortBufferSize));
+    options.put(INDEX_BUILD_TIMEOUT, Long.toString(this.indexBuildTimeout));
+    options.put(RECORD_QUERIES, Boolean.toString(this.recordQueries));
+    options.put(TABLE_PER_RESULT, Boolean.toString(this.tablePerResult));
+    options.put(EPHEMERAL_TTL, Long.toString(this.ephemeralTtl));
+    options.put(SCHEMA_EPOCHS, Boolean.toString(this.schemaEpochs));
+    
+    if (null != this.tableCompression) {
+      options.put(TABLE_COMPRESSION, this.tableCompression);
+    }
+    if (null != this.indexBuildPolicy) {
+      options.put(INDEX_BUILD_POLICY, this.indexBuildPolicy.toString());
+    }
+    
+    return options;
+  }
+  
+  /**
+   * Add any {@link Index}es which other clients have added to the catalog in the metadata table since this {@link SortableResult} was created or opened
+   * 
+   * @return True if an {@link Index} was added
+   * @throws TableNotFoundException
+   */
+  public boolean refreshIndexes() throws TableNotFoundException {
+    if (this.columnsToIndex instanceof IdentitySet) {
+      return false;
+    }
+    
+    Set<Index> indexes = SortingMetadata.indexes(this.connector, this.metadataTable, this.UUID);
+    if (!(indexes instanceof IdentitySet) && this.columnsToIndex.containsAll(indexes)) {
+      return false;
+    }
+    
+    addColumnsToIndex(indexes);
+    
+    return true;
+  }
+  
+  /**
+   * Remove any {@link Index}es which other clients have removed from the catalog in the metadata table since it was last checked. Only the version of
+   * the catalog is read unless an {@link Index} has been removed.
+   * 
+   * @return True if an {@link Index} was removed
+   * @throws TableNotFoundException
+   */
+  public boolean refreshDroppedIndexes() throws TableNotFoundException {
+    if (this.columnsToIndex instanceof IdentitySet) {
+      return false;
+    }
+    
+    final long version = SortingMetadata.getCatalogVersion(this);
+    if (version == this.catalogVersion) {
+      return false;
+    }
+    
+    Set<Index> indexes = SortingMetadata.indexes(this.connector, this.metadataTable, this.UUID);
+    this.catalogVersion = version;
+    
+    if (indexes instanceof IdentitySet) {
+      return false;
+    }
+    
+    return this.columnsToIndex.retainAll(indexes);
+  }
+  
   public void sendTraces() {
+    sendTraces(tracer());
+  }
+  
+  /**
+   * Send the given traces, such as a copy of {@link #tracer()} taken before this {@link SortableResult} was handed to another thread
+   * 
+   * @param tracer
+   */
+  protected void sendTraces(Tracer tracer) {
     try {
-      AccumuloTraceStore.serialize(tracer(), connector());
+      AccumuloTraceStore.serialize(tracer, connector());
     } catch (MutationsRejectedException e) {
       log.debug("Could not persist trace information", e);
     } catch (TableNotFoundException e) {
@@ -255,6 +617,22 @@ public class SortableResult {
     }
   }
   
+  /**
+   * Stop indexing the given {@link Index}. An {@link IdentitySet} indexes every column, so no single {@link Index} can be removed from it.
+   * 
+   * @param index
+   * @return True if the {@link Index} was removed
+   */
+  protected boolean removeColumnToIndex(Index index) {
+    checkNotNull(index);
+    
+    if (IdentitySet.class.isAssignableFrom(this.columnsToIndex.getClass())) {
+      return false;
+    }
+    
+    return this.columnsToIndex.remove(index);
+  }
+  
   public static SortableResult create(Connector connector, Authorizations auths, Set<Index> columnsToIndex) {
     return new SortableResult(connector, auths, columnsToIndex);
   }
@@ -268,4 +646,469 @@ public class SortableResult {
     return new SortableResult(connector, auths, columnsToIndex, lockOnUpdates, dataTable, metadataTable);
   }
   
+  public static Builder builder(Connector connector, Authorizations auths, Set<Index> columnsToIndex) {
+    return new Builder(connector, auths, columnsToIndex);
+  }
+  
+  /**
+   * Open a {@link SortableResult} which was registered by another client in the default metadata table, reading with all of the authorizations of the
+   * connecting user.
+   * 
+   * @param connector
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   * @throws AccumuloException
+   * @throws AccumuloSecurityException
+   * @see #open(Connector, Authorizations, String, String)
+   */
+  public static SortableResult open(Connector connector, String uuid) throws TableNotFoundException, AccumuloException, AccumuloSecurityException {
+    checkNotNull(connector);
+    
+    return open(connector, connector.securityOperations().getUserAuthorizations(connector.whoami()), Defaults.METADATA_TABLE, uuid);
+  }
+  
+  /**
+   * Open a {@link SortableResult} which was registered by another client, with the options and {@link Index}es recorded in the metadata table. What was
+   * recorded is cached, so readers which open the same result in one process only read the metadata table once, but each reader is given its own instance
+   * with its own {@link Tracer}.
+   * 
+   * @param connector
+   * @param auths
+   * @param metadataTable
+   * @param uuid
+   * @return
+   * @throws TableNotFoundException
+   * @throws IllegalArgumentException
+   *           If no options were recorded for the uuid
+   */
+  public static SortableResult open(final Connector connector, final Authorizations auths, final String metadataTable, final String uuid)
+      throws TableNotFoundException {
+    checkNotNull(connector);
+    checkNotNull(auths);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    
+    final Recorded recorded;
+    try {
+      recorded = OPENED.get(openedKey(connector, metadataTable, uuid), new Callable<Recorded>() {
+        @Override
+        public Recorded call() throws Exception {
+          return load(connector, metadataTable, uuid);
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TableNotFoundException) {
+        throw (TableNotFoundException) e.getCause();
+      }
+      
+      throw new RuntimeException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+    
+    return reopen(connector, auths, Defaults.DATA_TABLE, metadataTable, uuid, recorded.options, recorded.indexes, recorded.format);
+  }
+  
+  /**
+   * Forget what was recorded for an opened result, as it was deleted or its recorded options changed. Results opened afterwards read the metadata table
+   * again.
+   * 
+   * @param connector
+   * @param metadataTable
+   * @param uuid
+   */
+  public static void evict(Connector connector, String metadataTable, String uuid) {
+    checkNotNull(connector);
+    checkNotNull(metadataTable);
+    checkNotNull(uuid);
+    
+    OPENED.invalidate(openedKey(connector, metadataTable, uuid));
+  }
+  
+  /**
+   * The metadata is read without authorizations, so what was recorded is shared by every user of an instance
+   */
+  protected static String openedKey(Connector connector, String metadataTable, String uuid) {
+    return connector.getInstance().getInstanceID() + Defaults.NULL_BYTE_STR + metadataTable + Defaults.NULL_BYTE_STR + uuid;
+  }
+  
+  protected static Recorded load(Connector connector, String metadataTable, String uuid) throws TableNotFoundException {
+    Map<String,String> options = SortingMetadata.getOptions(connector, metadataTable, uuid);
+    if (options.isEmpty()) {
+      throw new IllegalArgumentException("No options were recorded for " + uuid + " in " + metadataTable);
+    }
+    
+    return new Recorded(options, SortingMetadata.indexes(connector, metadataTable, uuid), SortingMetadata.getFormat(connector, metadataTable, uuid));
+  }
+  
+  /**
+   * The options, catalog of {@link Index}es and key format recorded for a {@link SortableResult}
+   */
+  protected static class Recorded {
+    protected final Map<String,String> options;
+    protected final Set<Index> indexes;
+    protected final KeyFormat format;
+    
+    protected Recorded(Map<String,String> options, Set<Index> indexes, KeyFormat format) {
+      this.options = Collections.unmodifiableMap(options);
+      this.indexes = indexes instanceof IdentitySet ? indexes : Collections.unmodifiableSet(indexes);
+      this.format = format;
+    }
+  }
+  
+  /**
+   * Rebuild the {@link SortableResult} for the given uuid from its recorded options. A result registered before options were recorded is assumed to be in
+   * the given data table, with the default options.
+   * 
+   * @param connector
+   * @param auths
+   * @param dataTable
+   * @param metadataTable
+   * @param uuid
+   * @param options
+   * @return
+   * @throws TableNotFoundException
+   */
+  protected static SortableResult reopen(Connector connector, Authorizations auths, String dataTable, String metadataTable, String uuid,
+      Map<String,String> options) throws TableNotFoundException {
+    // The format is changed in place by a migration
+    return reopen(connector, auths, dataTable, metadataTable, uuid, options, SortingMetadata.indexes(connector, metadataTable, uuid),
+        SortingMetadata.getFormat(connector, metadataTable, uuid));
+  }
+  
+  protected static SortableResult reopen(Connector connector, Authorizations auths, String dataTable, String metadataTable, String uuid,
+      Map<String,String> options, Set<Index> indexes, KeyFormat format) {
+    Builder builder = builder(connector, auths, indexes).dataTable(dataTable).metadataTable(metadataTable).options(options);
+    builder.uuid = uuid;
+    builder.keyFormat = format;
+    
+    return builder.build();
+  }
+  
+  /**
+   * Collects the options for a {@link SortableResult}, falling back to the values in {@link Defaults} for those which are not set.
+   */
+  public static class Builder {
+    protected final Connector connector;
+    protected final Authorizations auths;
+    protected final Set<Index> columnsToIndex;
+    protected boolean lockOnUpdates = Defaults.LOCK_ON_UPDATES;
+    protected String dataTable = Defaults.DATA_TABLE, metadataTable = Defaults.METADATA_TABLE;
+    protected int indexShards = Defaults.INDEX_SHARDS;
+    protected int documentShards = Defaults.DOCUMENT_SHARDS;
+    protected long splitThreshold = Defaults.SPLIT_THRESHOLD;
+    protected KeyFormat keyFormat = Defaults.KEY_FORMAT;
+    protected Codec contentsCodec = Defaults.CONTENTS_CODEC;
+    protected String tableCompression = null;
+    protected boolean sortUnindexed = Defaults.SORT_UNINDEXED;
+    protected long sortBufferSize = Defaults.SORT_BUFFER_SIZE;
+    protected File sortDirectory = null;
+    protected IndexBuildPolicy indexBuildPolicy = null;
+    protected long indexBuildTimeout = Defaults.INDEX_BUILD_TIMEOUT;
+    protected boolean recordQueries = Defaults.RECORD_QUERIES;
+    protected boolean tablePerResult = Defaults.TABLE_PER_RESULT;
+    protected long ephemeralTtl = 0;
+    protected boolean schemaEpochs = Defaults.SCHEMA_EPOCHS;
+    protected String uuid = null;
+    protected CosmosSession session = null;
+    
+    protected Builder(Connector connector, Authorizations auths, Set<Index> columnsToIndex) {
+      checkNotNull(connector);
+      checkNotNull(auths);
+      checkNotNull(columnsToIndex);
+      
+      this.connector = connector;
+      this.auths = auths;
+      this.columnsToIndex = columnsToIndex;
+    }
+    
+    public Builder lockOnUpdates(boolean lockOnUpdates) {
+      this.lockOnUpdates = lockOnUpdates;
+      return this;
+    }
+    
+    public Builder dataTable(String dataTable) {
+      checkNotNull(dataTable);
+      
+      this.dataTable = dataTable;
+      return this;
+    }
+    
+    public Builder metadataTable(String metadataTable) {
+      checkNotNull(metadataTable);
+      
+      this.metadataTable = metadataTable;
+      return this;
+    }
+    
+    /**
+     * Spread the index entries for each value across the given number of rows, keyed by a hash of the docId. Useful when a small number of values are
+     * shared by a large fraction of the records, as each value would otherwise be a single row which cannot be split across tablet servers.
+     * 
+     * @param indexShards
+     *          Number of rows to spread each value across, 1 disables sharding
+     * @return
+     */
+    public Builder indexShards(int indexShards) {
+      checkArgument(0 < indexShards, "Number of index shards must be positive");
+      
+      this.indexShards = indexShards;
+      return this;
+    }
+    
+    /**
+     * Partition the documents, and their index entries, across the given number of shards. Each shard is a separate range of the table, so a single
+     * {@link SortableResult} can be ingested and scanned in parallel by multiple tablet servers. Ordered reads must merge each shard.
+     * 
+     * @param documentShards
+     *          Number of shards, 1 disables sharding
+     * @return
+     */
+    public Builder documentShards(int documentShards) {
+      checkArgument(0 < documentShards && documentShards <= RowLayout.MAX_DOCUMENT_SHARDS, "Number of document shards must be between 1 and "
+          + RowLayout.MAX_DOCUMENT_SHARDS);
+      
+      this.documentShards = documentShards;
+      return this;
+    }
+    
+    /**
+     * Split a tablet of the data table once it has received this many entries from this {@link SortableResult}, and more than its share of the entries.
+     * 
+     * @param splitThreshold
+     * @return
+     */
+    public Builder splitThreshold(long splitThreshold) {
+      checkArgument(0 < splitThreshold, "Split threshold must be positive");
+      
+      this.splitThreshold = splitThreshold;
+      return this;
+    }
+    
+    /**
+     * Encode the uuid at the start of each row with the given {@link KeyFormat}
+     * 
+     * @param keyFormat
+     * @return
+     */
+    public Builder keyFormat(KeyFormat keyFormat) {
+      checkNotNull(keyFormat);
+      
+      this.keyFormat = keyFormat;
+      return this;
+    }
+    
+    /**
+     * Compress each document written to the CONTENTS column with the given {@link Codec}. Documents are decompressed transparently when read.
+     * 
+     * @param contentsCodec
+     * @return
+     */
+    public Builder contentsCodec(Codec contentsCodec) {
+      checkNotNull(contentsCodec);
+      
+      this.contentsCodec = contentsCodec;
+      return this;
+    }
+    
+    /**
+     * Set the compression of the files for the data table, e.g. "gz", "lzo" or "none". As this applies to the entire table, it can only be set along
+     * with {@link #tablePerResult(boolean)}.
+     * 
+     * @param tableCompression
+     * @return
+     */
+    public Builder tableCompression(String tableCompression) {
+      checkNotNull(tableCompression);
+      
+      this.tableCompression = tableCompression;
+      return this;
+    }
+    
+    /**
+     * Store the {@link SortableResult} in its own data table, named by suffixing the data table with the uuid, so that deleting the result only has to
+     * delete the table. Each result then has the overhead of a table in Accumulo, so this suits a small number of large results.
+     * 
+     * @param tablePerResult
+     * @return
+     */
+    public Builder tablePerResult(boolean tablePerResult) {
+      this.tablePerResult = tablePerResult;
+      return this;
+    }
+    
+    /**
+     * Trade durability for ingest throughput. The result is stored in a data table, named by suffixing the data table with the time-to-live, which does
+     * not write ahead and ages off every entry once the time-to-live has passed since it was written. Entries keep the time they were written as their
+     * timestamp, so that deletes, such as those of {@link cosmos.Cosmos#dropIndex(SortableResult, cosmos.options.Index)}, only hide the entries written
+     * before them. Entries which have not been flushed from memory are lost if a tablet server fails. Records which aged off before the index entries
+     * referencing them are skipped when fetching, and a {@link Reclaimer} deletes the result once all of its entries have aged off.
+     * 
+     * @param ttl
+     * @param unit
+     * @return
+     */
+    public Builder ephemeral(long ttl, TimeUnit unit) {
+      checkArgument(0 < ttl, "TTL must be positive");
+      checkNotNull(unit);
+      
+      this.ephemeralTtl = unit.toMillis(ttl);
+      return this;
+    }
+    
+    /**
+     * Keep the indexes consistent with an index schema epoch in the metadata table instead of ZooKeeper locks, so that adding records never waits on
+     * ZooKeeper. Each record is tagged with the epoch its writer read. {@link cosmos.Cosmos#index(SortableResult, Set)} advances the epoch and indexes
+     * only the records tagged with an older one, and a writer which sees the epoch advance while it writes indexes its own records. Takes precedence over
+     * {@link #lockOnUpdates(boolean)} for adding records and building indexes.
+     * 
+     * @param schemaEpochs
+     * @return
+     */
+    public Builder schemaEpochs(boolean schemaEpochs) {
+      this.schemaEpochs = schemaEpochs;
+      return this;
+    }
+    
+    /**
+     * Allow ordered fetches on columns which are not indexed. The records are read from the CONTENTS column and sorted by the client, spilling to local
+     * disk once {@link #sortBufferSize(long)} bytes are held in memory.
+     * 
+     * @param sortUnindexed
+     * @return
+     */
+    public Builder sortUnindexed(boolean sortUnindexed) {
+      this.sortUnindexed = sortUnindexed;
+      return this;
+    }
+    
+    /**
+     * @param sortBufferSize
+     *          Number of bytes of records to hold in memory when sorting on a column which is not indexed, or when ordering the records which tie on
+     *          the first of several columns
+     * @return
+     */
+    public Builder sortBufferSize(long sortBufferSize) {
+      checkArgument(0 < sortBufferSize, "Sort buffer size must be positive");
+      
+      this.sortBufferSize = sortBufferSize;
+      return this;
+    }
+    
+    /**
+     * @param sortDirectory
+     *          Local directory for the files written when sorting on a column which is not indexed, or when ordering the records which tie on the
+     *          first of several columns
+     * @return
+     */
+    public Builder sortDirectory(File sortDirectory) {
+      checkNotNull(sortDirectory);
+      
+      this.sortDirectory = sortDirectory;
+      return this;
+    }
+    
+    /**
+     * Only record which columns each record contains as it is added. An {@link Index} from the columns to index is built in the background the first
+     * time it is queried, and the query then behaves according to the given {@link IndexBuildPolicy}.
+     * 
+     * @param indexBuildPolicy
+     * @return
+     */
+    public Builder lazyIndexing(IndexBuildPolicy indexBuildPolicy) {
+      checkNotNull(indexBuildPolicy);
+      
+      this.indexBuildPolicy = indexBuildPolicy;
+      return this;
+    }
+    
+    /**
+     * @param timeout
+     *          Time for a query to wait for an index to be built on demand with {@link IndexBuildPolicy#WAIT}
+     * @param unit
+     * @return
+     */
+    public Builder indexBuildTimeout(long timeout, TimeUnit unit) {
+      checkArgument(0 < timeout, "Index build timeout must be positive");
+      checkNotNull(unit);
+      
+      this.indexBuildTimeout = unit.toMillis(timeout);
+      return this;
+    }
+    
+    /**
+     * Count the queries which read each {@link Index} in the metadata table, for use by an {@link IndexAdvisor}. Each fetch and group by then also writes
+     * to the metadata table before it returns, so this is off by default.
+     * 
+     * @param recordQueries
+     * @return
+     */
+    public Builder recordQueries(boolean recordQueries) {
+      this.recordQueries = recordQueries;
+      return this;
+    }
+    
+    /**
+     * Apply the options given by {@link SortableResult#toOptions()}
+     * 
+     * @param options
+     * @return
+     */
+    protected Builder options(Map<String,String> options) {
+      checkNotNull(options);
+      
+      RowLayout layout = RowLayout.fromOptions(options);
+      this.indexShards = layout.indexShards();
+      this.documentShards = layout.documentShards();
+      this.keyFormat = layout.format();
+      
+      if (options.containsKey(LOCK_ON_UPDATES)) {
+        this.lockOnUpdates = Boolean.parseBoolean(options.get(LOCK_ON_UPDATES));
+      }
+      if (options.containsKey(DATA_TABLE)) {
+        this.dataTable = options.get(DATA_TABLE);
+      }
+      if (options.containsKey(SPLIT_THRESHOLD)) {
+        this.splitThreshold = Long.parseLong(options.get(SPLIT_THRESHOLD));
+      }
+      if (options.containsKey(CONTENTS_CODEC)) {
+        this.contentsCodec = Codec.valueOf(options.get(CONTENTS_CODEC));
+      }
+      if (options.containsKey(TABLE_COMPRESSION)) {
+        this.tableCompression = options.get(TABLE_COMPRESSION);
+      }
+      if (options.containsKey(SORT_UNINDEXED)) {
+        this.sortUnindexed = Boolean.parseBoolean(options.get(SORT_UNINDEXED));
+      }
+      if (options.containsKey(SORT_BUFFER_SIZE)) {
+        this.sortBufferSize = Long.parseLong(options.get(SORT_BUFFER_SIZE));
+      }
+      if (options.containsKey(INDEX_BUILD_POLICY)) {
+        this.indexBuildPolicy = IndexBuildPolicy.valueOf(options.get(INDEX_BUILD_POLICY));
+      }
+      if (options.containsKey(INDEX_BUILD_TIMEOUT)) {
+        this.indexBuildTimeout = Long.parseLong(options.get(INDEX_BUILD_TIMEOUT));
+      }
+      if (options.containsKey(RECORD_QUERIES)) {
+        this.recordQueries = Boolean.parseBoolean(options.get(RECORD_QUERIES));
+      }
+      if (options.containsKey(TABLE_PER_RESULT)) {
+        this.tablePerResult = Boolean.parseBoolean(options.get(TABLE_PER_RESULT));
+      }
+      if (options.containsKey(EPHEMERAL_TTL)) {
+        this.ephemeralTtl = Long.parseLong(options.get(EPHEMERAL_TTL));
+      }
+      if (options.containsKey(SCHEMA_EPOCHS)) {
+        this.schemaEpochs = Boolean.parseBoolean(options.get(SCHEMA_EPOCHS));
+      }
+      
+      return this;
+    }
+    
+    public SortableResult build() {
+      return new SortableResult(this);
+    }
+  }
+  
 }
@@ -0,0 +1,452 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+
+import cosmos.trace.Tracer;
+
+/**
+ * Manages the split points of the data table. Split points are spread evenly over the alphabet of the leading bytes of the row keys, e.g. the hex
+ * characters of a textual UUID, as splitting on characters which never appear leaves some tablets empty and others overloaded. The number of tablets is
+ * derived from the number of live tablet servers.
+ *
+ * <p>
+ * As records are written, the number of entries sent to each tablet is tracked, along with a sample of the rows. When a tablet has received more than the
+ * split threshold since the last rebalance, and more than its fair share of those entries, it is split at the median of the sampled rows. The load on
+ * each tablet is reported to the {@link Tracer} for the {@link SortableResult}. One instance is shared by the results of a {@link CosmosSession}, so
+ * each writing thread samples its rows separately and the samples are drained and merged when the tablets are rebalanced.
+ */
+public class SplitManager {
+  private static final Logger log = LoggerFactory.getLogger(SplitManager.class);
+  
+  public static final byte[] HEX_ALPHABET = "0123456789abcdef".getBytes();
+  public static final byte[] BINARY_ALPHABET = new byte[256];
+  public static final int TABLETS_PER_SERVER = 4;
+  public static final int MIN_TABLETS = 16;
+  public static final int SAMPLE_SIZE = 64;
+  public static final String TABLET_LOAD_PREFIX = "Cosmos:tabletLoad:";
+  
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+  
+  protected final Connector connector;
+  protected final String tableName;
+  protected final byte[] alphabet;
+  protected final long splitThreshold;
+  
+  static {
+    for (int i = 0; i < BINARY_ALPHABET.length; i++) {
+      BINARY_ALPHABET[i] = (byte) i;
+    }
+  }
+  
+  // The end row of each tablet, as of the last time the splits were read. Replaced, never modified.
+  protected volatile Text[] splits;
+  
+  // Each writing thread counts and samples its own rows, and the counts are drained when the tablets are rebalanced. The recorders of threads which
+  // have exited are removed once drained.
+  protected final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+  protected final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+    @Override
+    protected Recorder initialValue() {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      return recorder;
+    }
+  };
+  
+  public SplitManager(Connector connector, String tableName, byte[] alphabet, long splitThreshold) {
+    checkNotNull(connector);
+    checkNotNull(tableName);
+    checkNotNull(alphabet);
+    checkArgument(1 < alphabet.length, "Alphabet must contain more than one symbol");
+    checkArgument(0 < splitThreshold, "Split threshold must be positive");
+    
+    this.connector = connector;
+    this.tableName = tableName;
+    this.alphabet = alphabet;
+    this.splitThreshold = splitThreshold;
+  }
+  
+  public long splitThreshold() {
+    return this.splitThreshold;
+  }
+  
+  /**
+   * @return The number of live tablet servers, at least one
+   */
+  public int liveTabletServers() {
+    return Math.max(1, connector.instanceOperations().getTabletServers().size());
+  }
+  
+  /**
+   * Compute split points which divide the alphabet into the given number of tablets
+   *
+   * @param numTablets
+   * @return
+   */
+  public SortedSet<Text> splitPoints(int numTablets) {
+    checkArgument(0 < numTablets, "Number of tablets must be positive");
+    
+    // Use as few symbols per split point as possible
+    int width = 1;
+    long combinations = alphabet.length;
+    while (combinations < numTablets) {
+      combinations *= alphabet.length;
+      width++;
+    }
+    
+    SortedSet<Text> points = Sets.newTreeSet();
+    for (int i = 1; i < numTablets; i++) {
+      long offset = i * combinations / numTablets;
+      
+      byte[] point = new byte[width];
+      for (int j = width - 1; j >= 0; j--) {
+        point[j] = alphabet[(int) (offset % alphabet.length)];
+        offset /= alphabet.length;
+      }
+      
+      points.add(new Text(point));
+    }
+    
+    return points;
+  }
+  
+  /**
+   * Add any split points which the table is missing for the current number of live tablet servers
+   */
+  public synchronized void ensureSplits() {
+    final int numTablets = Math.max(MIN_TABLETS, liveTabletServers() * TABLETS_PER_SERVER);
+    
+    try {
+      SortedSet<Text> missing = splitPoints(numTablets);
+      missing.removeAll(connector.tableOperations().listSplits(tableName));
+      
+      if (!missing.isEmpty()) {
+        log.debug("Adding {} splits to {}", missing.size(), tableName);
+        connector.tableOperations().addSplits(tableName, missing);
+      }
+      
+      refreshSplits();
+    } catch (TableNotFoundException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloSecurityException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    }
+  }
+  
+  protected void refreshSplits() throws TableNotFoundException, AccumuloSecurityException, AccumuloException {
+    SortedSet<Text> sorted = Sets.newTreeSet(connector.tableOperations().listSplits(tableName));
+    
+    // Counts made against the previous splits are discarded by each Recorder
+    this.splits = sorted.toArray(new Text[sorted.size()]);
+  }
+  
+  /**
+   * @return The index of the tablet containing the given row: that with the first end row not less than the row, or the length of the splits for the
+   *         last tablet
+   */
+  protected static int tablet(Text[] splits, byte[] row) {
+    int low = 0, high = splits.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      final Text endRow = splits[mid];
+      
+      if (WritableComparator.compareBytes(endRow.getBytes(), 0, endRow.getLength(), row, 0, row.length) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    
+    return low;
+  }
+  
+  /**
+   * Note that an entry for the given row was written. Each thread records into its own {@link Recorder}, so writers do not contend with each other.
+   *
+   * @param row
+   */
+  public void record(byte[] row) {
+    checkNotNull(row);
+    
+    Text[] current = splits;
+    if (null == current) {
+      ensureSplits();
+      current = splits;
+    }
+    
+    recorder.get().record(current, row);
+  }
+  
+  /**
+   * Report the load on each tablet since the last rebalance to the given {@link Tracer} and split any tablets which have received too many entries.
+   * The end rows in the {@link Tracer} are hex encoded, as the rows of some {@link cosmos.options.KeyFormat}s are binary.
+   *
+   * @param tracer
+   */
+  public synchronized void rebalance(Tracer tracer) {
+    checkNotNull(tracer);
+    
+    final Text[] current = splits;
+    if (null == current) {
+      return;
+    }
+    
+    // Merge and reset what each thread recorded against the current splits
+    List<List<TabletLoad>> loads = Lists.newArrayListWithCapacity(current.length + 1);
+    for (int i = 0; i <= current.length; i++) {
+      loads.add(Lists.<TabletLoad> newArrayList());
+    }
+    
+    for (Recorder threadRecorder : recorders) {
+      threadRecorder.drainTo(current, loads);
+      
+      if (threadRecorder.isAbandoned()) {
+        recorders.remove(threadRecorder);
+      }
+    }
+    
+    long total = 0;
+    for (List<TabletLoad> tabletLoads : loads) {
+      total += TabletLoad.entries(tabletLoads);
+    }
+    
+    if (0 == total) {
+      return;
+    }
+    
+    final long fairShare = total / (current.length + 1);
+    SortedSet<Text> newSplits = Sets.newTreeSet();
+    
+    for (int i = 0; i <= current.length; i++) {
+      final List<TabletLoad> tabletLoads = loads.get(i);
+      final long entries = TabletLoad.entries(tabletLoads);
+      
+      if (0 == entries) {
+        continue;
+      }
+      
+      final String endRow = i == current.length ? "default" : HEX.encode(current[i].getBytes(), 0, current[i].getLength());
+      tracer.addMetadata(TABLET_LOAD_PREFIX + endRow, Long.toString(entries));
+      
+      if (entries >= splitThreshold && entries > 2 * fairShare) {
+        Text median = TabletLoad.median(tabletLoads);
+        
+        if (null != median) {
+          newSplits.add(median);
+        }
+      }
+    }
+    
+    if (newSplits.isEmpty()) {
+      return;
+    }
+    
+    try {
+      log.debug("Splitting {} at {}", tableName, newSplits);
+      
+      connector.tableOperations().addSplits(tableName, newSplits);
+      refreshSplits();
+    } catch (TableNotFoundException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    } catch (AccumuloSecurityException e) {
+      log.error("Could not add splits to table '{}'", tableName, e);
+      throw new RuntimeException(e);
+    }
+  }
+  
+  public Collection<Text> splits() {
+    if (null == splits) {
+      ensureSplits();
+    }
+    
+    return Collections.unmodifiableList(Arrays.asList(splits));
+  }
+  
+  /**
+   * The rows written by a single thread. Only the owning thread records into it, so its lock is contended only while the tablets are rebalanced.
+   */
+  protected static class Recorder {
+    protected final Random random = new Random();
+    protected final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+    
+    // The splits which the loads were counted against
+    protected Text[] splits;
+    protected TabletLoad[] loads;
+    
+    protected synchronized void record(Text[] current, byte[] row) {
+      if (current != splits) {
+        splits = current;
+        loads = new TabletLoad[current.length + 1];
+      }
+      
+      final int tablet = tablet(current, row);
+      
+      TabletLoad load = loads[tablet];
+      if (null == load) {
+        load = new TabletLoad();
+        loads[tablet] = load;
+      }
+      
+      load.record(row, random);
+    }
+    
+    /**
+     * Move the loads counted against the given splits into the list for each tablet, and start counting again
+     */
+    protected synchronized void drainTo(Text[] current, List<List<TabletLoad>> merged) {
+      if (current == splits) {
+        for (int i = 0; i < loads.length; i++) {
+          if (null != loads[i]) {
+            merged.get(i).add(loads[i]);
+          }
+        }
+      }
+      
+      splits = null;
+      loads = null;
+    }
+    
+    /**
+     * @return True if the thread which records into this {@link Recorder} has exited, so nothing more will be recorded
+     */
+    protected boolean isAbandoned() {
+      Thread thread = owner.get();
+      return null == thread || !thread.isAlive();
+    }
+  }
+  
+  protected static class TabletLoad {
+    protected long entries = 0;
+    protected final List<byte[]> sample = Lists.newArrayListWithCapacity(SAMPLE_SIZE);
+    
+    protected void record(byte[] row, Random random) {
+      entries++;
+      
+      // Reservoir sample of the rows for this tablet, only copying the rows which are kept
+      if (sample.size() < SAMPLE_SIZE) {
+        sample.add(row.clone());
+      } else {
+        long index = (long) (random.nextDouble() * entries);
+        if (index < SAMPLE_SIZE) {
+          sample.set((int) index, row.clone());
+        }
+      }
+    }
+    
+    protected static long entries(Collection<TabletLoad> loads) {
+      long entries = 0;
+      for (TabletLoad load : loads) {
+        entries += load.entries;
+      }
+      
+      return entries;
+    }
+    
+    /**
+     * @return The median of the rows sampled by the given loads, each sampled row standing in for an equal share of the entries of its load, or null if
+     *         there is no row which would divide the samples
+     */
+    protected static Text median(Collection<TabletLoad> loads) {
+      List<Entry<Text,Double>> weighted = Lists.newArrayList();
+      double total = 0;
+      
+      for (TabletLoad load : loads) {
+        if (load.sample.isEmpty()) {
+          continue;
+        }
+        
+        final double weight = (double) load.entries / load.sample.size();
+        for (byte[] row : load.sample) {
+          weighted.add(Maps.immutableEntry(new Text(row), weight));
+          total += weight;
+        }
+      }
+      
+      if (weighted.isEmpty()) {
+        return null;
+      }
+      
+      Collections.sort(weighted, new Comparator<Entry<Text,Double>>() {
+        @Override
+        public int compare(Entry<Text,Double> o1, Entry<Text,Double> o2) {
+          return o1.getKey().compareTo(o2.getKey());
+        }
+      });
+      
+      int index = 0;
+      double seen = weighted.get(0).getValue();
+      while (seen < total / 2 && index < weighted.size() - 1) {
+        index++;
+        seen += weighted.get(index).getValue();
+      }
+      
+      Text median = weighted.get(index).getKey();
+      final Text largest = weighted.get(weighted.size() - 1).getKey();
+      
+      // Splitting on the largest row would not move anything out of the tablet
+      for (int i = index; i >= 0 && median.equals(largest); i--) {
+        median = weighted.get(i).getKey();
+      }
+      
+      if (median.equals(largest)) {
+        return null;
+      }
+      
+      return median;
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.options;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Describes how the values of a column are collapsed into buckets when grouping, e.g. truncating timestamps to the hour or placing numbers into fixed-width
+ * ranges. A {@link Bucket} maps each value to the lower bound of the bucket which contains it.
+ *
+ * <p>
+ * Instances are not thread-safe as date parsing relies on {@link SimpleDateFormat}.
+ */
+public abstract class Bucket {
+  
+  public static final String TYPE = "bucket.type";
+  public static final String WIDTH = "bucket.width";
+  public static final String BASE = "bucket.base";
+  public static final String UNIT = "bucket.unit";
+  public static final String PATTERN = "bucket.pattern";
+  
+  public enum Type {
+    DATE,
+    FIXED_WIDTH,
+    LOG_SCALE
+  }
+  
+  public enum DateUnit {
+    MINUTE,
+    HOUR,
+    DAY,
+    MONTH,
+    YEAR
+  }
+  
+  protected final Type type;
+  
+  protected Bucket(Type type) {
+    Preconditions.checkNotNull(type);
+    this.type = type;
+  }
+  
+  /**
+   * Bucket dates, represented as milliseconds since the epoch, by truncating them to the given unit
+   */
+  public static Bucket date(DateUnit unit) {
+    return new DateBucket(unit, null);
+  }
+  
+  /**
+   * Bucket dates, formatted using the given {@link SimpleDateFormat} pattern in UTC, by truncating them to the given unit
+   */
+  public static Bucket date(DateUnit unit, String pattern) {
+    Preconditions.checkNotNull(pattern);
+    return new DateBucket(unit, pattern);
+  }
+  
+  /**
+   * Bucket numbers into ranges of the given width, e.g. a width of 10 gives [0,10), [10,20), ...
+   */
+  public static Bucket fixedWidth(double width) {
+    return new FixedWidthBucket(width);
+  }
+  
+  /**
+   * Bucket numbers into ranges which grow by the given base, e.g. a base of 10 gives [1,10), [10,100), ...
+   */
+  public static Bucket logScale(double base) {
+    return new LogScaleBucket(base);
+  }
+  
+  public static Bucket fromOptions(Map<String,String> options) {
+    Preconditions.checkNotNull(options);
+    Preconditions.checkArgument(options.containsKey(TYPE), "No bucket type was provided: " + TYPE);
+    
+    Type type = Type.valueOf(options.get(TYPE));
+    switch (type) {
+      case DATE:
+        Preconditions.checkArgument(options.containsKey(UNIT), "No date unit was provided: " + UNIT);
+        return new DateBucket(DateUnit.valueOf(options.get(UNIT)), options.get(PATTERN));
+      case FIXED_WIDTH:
+        Preconditions.checkArgument(options.containsKey(WIDTH), "No bucket width was provided: " + WIDTH);
+        return new FixedWidthBucket(Double.parseDouble(options.get(WIDTH)));
+      case LOG_SCALE:
+        Preconditions.checkArgument(options.containsKey(BASE), "No bucket base was provided: " + BASE);
+        return new LogScaleBucket(Double.parseDouble(options.get(BASE)));
+      default:
+        throw new IllegalArgumentException("Unknown bucket type: " + type);
+    }
+  }
+  
+  public Type type() {
+    return this.type;
+  }
+  
+  /**
+   * Compute the lower bound of the bucket that the given value falls in
+   *
+   * @param value
+   * @return The lower bound, or null if the value could not be interpreted by this Bucket
+   */
+  public abstract Double lowerBound(String value);
+  
+  /**
+   * Render the lower bound of a bucket for presentation to the client
+   *
+   * @param lowerBound
+   * @return
+   */
+  public abstract String label(double lowerBound);
+  
+  /**
+   * Serialize this Bucket so it can be passed to an iterator
+   *
+   * @return
+   */
+  public Map<String,String> toOptions() {
+    Map<String,String> options = Maps.newHashMap();
+    options.put(TYPE, this.type.toString());
+    return options;
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof Bucket) {
+      return toOptions().equals(((Bucket) o).toOptions());
+    }
+    
+    return false;
+  }
+  
+  @Override
+  public int hashCode() {
+    return toOptions().hashCode();
+  }
+  
+  @Override
+  public String toString() {
+    return toOptions().toString();
+  }
+  
+  protected static Double parseNumber(String value) {
+    try {
+      return Double.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+  
+  protected static String formatNumber(double d) {
+    if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < Long.MAX_VALUE) {
+      return Long.toString((long) d);
+    }
+    
+    return Double.toString(d);
+  }
+  
+  protected static class DateBucket extends Bucket {
+    protected final DateUnit unit;
+    protected final String pattern;
+    protected final SimpleDateFormat format;
+    protected final Calendar calendar;
+    
+    protected DateBucket(DateUnit unit, String pattern) {
+      super(Type.DATE);
+      Preconditions.checkNotNull(unit);
+      
+      this.unit = unit;
+      this.pattern = pattern;
+      
+      TimeZone utc = TimeZone.getTimeZone("UTC");
+      this.calendar = Calendar.getInstance(utc);
+      
+      if (null != pattern) {
+        this.format = new SimpleDateFormat(pattern);
+        this.format.setTimeZone(utc);
+        this.format.setLenient(false);
+      } else {
+        this.format = null;
+      }
+    }
+    
+    @Override
+    public Double lowerBound(String value) {
+      Long millis;
+      if (null == format) {
+        try {
+          millis = Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      } else {
+        try {
+          millis = format.parse(value).getTime();
+        } catch (ParseException e) {
+          return null;
+        }
+      }
+      
+      calendar.setTimeInMillis(millis);
+      
+      // Deliberately fall through, zero'ing each finer field
+      switch (unit) {
+        case YEAR:
+          calendar.set(Calendar.MONTH, Calendar.JANUARY);
+        case MONTH:
+          calendar.set(Calendar.DAY_OF_MONTH, 1);
+        case DAY:
+          calendar.set(Calendar.HOUR_OF_DAY, 0);
+        case HOUR:
+          calendar.set(Calendar.MINUTE, 0);
+        case MINUTE:
+          calendar.set(Calendar.SECOND, 0);
+          calendar.set(Calendar.MILLISECOND, 0);
+      }
+      
+      return (double) calendar.getTimeInMillis();
+    }
+    
+    @Override
+    public String label(double lowerBound) {
+      if (null == format) {
+        return Long.toString((long) lowerBound);
+      }
+      
+      return format.format(new Date((long) lowerBound));
+    }
+    
+    @Override
+    public Map<String,String> toOptions() {
+      Map<String,String> options = super.toOptions();
+      options.put(UNIT, unit.toString());
+      if (null != pattern) {
+        options.put(PATTERN, pattern);
+      }
+      return options;
+    }
+  }
+  
+  protected static class FixedWidthBucket extends Bucket {
+    protected final double width;
+    
+    protected FixedWidthBucket(double width) {
+      super(Type.FIXED_WIDTH);
+      Preconditions.checkArgument(0 < width, "Bucket width must be positive");
+      
+      this.width = width;
+    }
+    
+    @Override
+    public Double lowerBound(String value) {
+      Double d = parseNumber(value);
+      if (null == d) {
+        return null;
+      }
+      
+      return Math.floor(d / width) * width;
+    }
+    
+    @Override
+    public String label(double lowerBound) {
+      return formatNumber(lowerBound);
+    }
+    
+    @Override
+    public Map<String,String> toOptions() {
+      Map<String,String> options = super.toOptions();
+      options.put(WIDTH, Double.toString(width));
+      return options;
+    }
+  }
+  
+  protected static class LogScaleBucket extends Bucket {
+    protected final double base;
+    
+    protected LogScaleBucket(double base) {
+      super(Type.LOG_SCALE);
+      Preconditions.checkArgument(1 < base, "Bucket base must be greater than one");
+      
+      this.base = base;
+    }
+    
+    @Override
+    public Double lowerBound(String value) {
+      Double d = parseNumber(value);
+      if (null == d) {
+        return null;
+      }
+      
+      if (0d == d) {
+        return 0d;
+      }
+      
+      // Negative values mirror the positive buckets: [-base^(k+1), -base^k)
+      if (d < 0) {
+        return -Math.pow(base, exponent(-d) + (isPower(-d) ? 0 : 1));
+      }
+      
+      return Math.pow(base, exponent(d));
+    }
+    
+    /**
+     * floor(log_base(d)), correcting for floating point error around exact powers
+     */
+    protected int exponent(double d) {
+      int k = (int) Math.floor(Math.log(d) / Math.log(base));
+      
+      if (Math.pow(base, k + 1) <= d) {
+        k++;
+      } else if (Math.pow(base, k) > d) {
+        k--;
+      }
+      
+      return k;
+    }
+    
+    protected boolean isPower(double d) {
+      return Math.pow(base, exponent(d)) == d;
+    }
+    
+    @Override
+    public String label(double lowerBound) {
+      return formatNumber(lowerBound);
+    }
+    
+    @Override
+    public Map<String,String> toOptions() {
+      Map<String,String> options = super.toOptions();
+      options.put(BASE, Double.toString(base));
+      return options;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.options;
+
+/**
+ * The compression applied to each document stored in the CONTENTS column.
+ * 
+ * <p>
+ * {@code NONE} stores the serialized document as is. {@code DEFLATE} uses the JDK {@link java.util.zip.Deflater}, which compresses best but costs the most
+ * CPU. {@code LZ} uses {@link cosmos.util.LZCompression}, a pure-Java LZ77 codec which is much cheaper to compress and decompress.
+ */
+public enum Codec {
+  NONE,
+  DEFLATE,
+  LZ;
+}
@@ -26,6 +26,22 @@ public abstract class Defaults {
   public static final boolean LOCK_ON_UPDATES = false;
   public static final String DATA_TABLE = "cosmos";
   public static final String METADATA_TABLE = "metacosmos";
+  public static final int INDEX_SHARDS = 1;
+  public static final int DOCUMENT_SHARDS = 1;
+  public static final long SPLIT_THRESHOLD = 500000;
+  public static final KeyFormat KEY_FORMAT = KeyFormat.V1;
+  public static final Codec CONTENTS_CODEC = Codec.NONE;
+  public static final boolean SORT_UNINDEXED = false;
+  public static final long SORT_BUFFER_SIZE = 64 * 1024 * 1024;
+  public static final long INDEX_BUILD_TIMEOUT = 5 * 60 * 1000;
+  public static final int INDEX_BUILD_THREADS = 2;
+  public static final int RECLAIM_THREADS = 2;
+  public static final long RECLAIM_SHUTDOWN_SECS = 30;
+  public static final boolean RECORD_QUERIES = false;
+  public static final boolean TABLE_PER_RESULT = false;
+  public static final boolean SCHEMA_EPOCHS = false;
+  public static final int OPENED_RESULTS = 1000;
+  public static final long OPENED_RESULT_SECS = 5 * 60;
   
   public static final String NULL_BYTE_STR = "\u0000";
   public static final String EIN_BYTE_STR = "\u0001";
@@ -0,0 +1,438 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.options;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import cosmos.results.Column;
+import cosmos.results.SValue;
+import cosmos.results.impl.LazyQueryResult;
+
+/**
+ * A predicate over the contents of a document, which can be evaluated on the tablet servers against the CONTENTS column. A comparison on a
+ * {@link Column} is true when any value of that column satisfies it, and values are compared as strings. Comparisons are combined with {@link #and},
+ * {@link #or} and {@link #not}.
+ */
+public abstract class FilterExpression {
+  
+  public static final String EXPRESSION = "filter.expression";
+  
+  public enum Type {
+    EQUALS,
+    RANGE,
+    PREFIX,
+    REGEX,
+    EXISTS,
+    AND,
+    OR,
+    NOT;
+  }
+  
+  protected final Type type;
+  
+  protected FilterExpression(Type type) {
+    checkNotNull(type);
+    
+    this.type = type;
+  }
+  
+  public static FilterExpression equalTo(Column column, String value) {
+    return new ValueExpression(Type.EQUALS, column, value);
+  }
+  
+  /**
+   * Values between the given bounds
+   * 
+   * @param column
+   * @param low
+   *          Lower bound, or null for no lower bound
+   * @param lowInclusive
+   * @param high
+   *          Upper bound, or null for no upper bound
+   * @param highInclusive
+   * @return
+   */
+  public static FilterExpression range(Column column, String low, boolean lowInclusive, String high, boolean highInclusive) {
+    return new RangeExpression(column, low, lowInclusive, high, highInclusive);
+  }
+  
+  public static FilterExpression prefix(Column column, String prefix) {
+    return new ValueExpression(Type.PREFIX, column, prefix);
+  }
+  
+  /**
+   * Values which match the given regular expression in their entirety
+   * 
+   * @param column
+   * @param regex
+   * @return
+   */
+  public static FilterExpression regex(Column column, String regex) {
+    return new RegexExpression(column, regex);
+  }
+  
+  public static FilterExpression exists(Column column) {
+    return new ValueExpression(Type.EXISTS, column, "");
+  }
+  
+  public static FilterExpression and(FilterExpression... expressions) {
+    return new BooleanExpression(Type.AND, Arrays.asList(expressions));
+  }
+  
+  public static FilterExpression or(FilterExpression... expressions) {
+    return new BooleanExpression(Type.OR, Arrays.asList(expressions));
+  }
+  
+  public static FilterExpression not(FilterExpression expression) {
+    return new BooleanExpression(Type.NOT, Collections.singletonList(expression));
+  }
+  
+  public Type type() {
+    return this.type;
+  }
+  
+  /**
+   * @param document
+   * @return True if the document satisfies this expression
+   */
+  public abstract boolean matches(LazyQueryResult document);
+  
+  protected abstract void write(DataOutput out) throws IOException;
+  
+  protected static FilterExpression read(DataInput in) throws IOException {
+    final Type type = Type.values()[WritableUtils.readVInt(in)];
+    
+    switch (type) {
+      case EQUALS:
+      case PREFIX:
+      case EXISTS:
+        return new ValueExpression(type, Column.recreate(in), Text.readString(in));
+      case RANGE:
+        Column column = Column.recreate(in);
+        String low = in.readBoolean() ? Text.readString(in) : null;
+        boolean lowInclusive = in.readBoolean();
+        String high = in.readBoolean() ? Text.readString(in) : null;
+        boolean highInclusive = in.readBoolean();
+        return new RangeExpression(column, low, lowInclusive, high, highInclusive);
+      case REGEX:
+        return new RegexExpression(Column.recreate(in), Text.readString(in));
+      case AND:
+      case OR:
+      case NOT:
+        final int count = WritableUtils.readVInt(in);
+        List<FilterExpression> children = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+          children.add(read(in));
+        }
+        return new BooleanExpression(type, children);
+      default:
+        throw new IOException("Unknown filter expression type: " + type);
+    }
+  }
+  
+  /**
+   * @return A string form of this expression, suitable for an iterator option
+   */
+  public String serialize() {
+    DataOutputBuffer out = new DataOutputBuffer();
+    
+    try {
+      write(out);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    
+    return new String(Base64.encodeBase64(bytes));
+  }
+  
+  public static FilterExpression deserialize(String serialized) {
+    checkNotNull(serialized);
+    
+    byte[] bytes = Base64.decodeBase64(serialized.getBytes());
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    
+    try {
+      return read(in);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not deserialize filter expression: " + serialized, e);
+    }
+  }
+  
+  public static FilterExpression fromOptions(Map<String,String> options) {
+    checkNotNull(options);
+    
+    String serialized = options.get(EXPRESSION);
+    if (null == serialized) {
+      throw new IllegalArgumentException("No filter expression was provided: " + EXPRESSION);
+    }
+    
+    return deserialize(serialized);
+  }
+  
+  public Map<String,String> toOptions() {
+    return Collections.singletonMap(EXPRESSION, serialize());
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof FilterExpression) {
+      return serialize().equals(((FilterExpression) o).serialize());
+    }
+    
+    return false;
+  }
+  
+  @Override
+  public int hashCode() {
+    return serialize().hashCode();
+  }
+  
+  /**
+   * A comparison against the values of a single {@link Column}
+   */
+  protected abstract static class ColumnExpression extends FilterExpression {
+    protected final Column column;
+    
+    protected ColumnExpression(Type type, Column column) {
+      super(type);
+      checkNotNull(column);
+      
+      this.column = column;
+    }
+    
+    @Override
+    public boolean matches(LazyQueryResult document) {
+      for (SValue value : document.get(column)) {
+        if (matches(value.value())) {
+          return true;
+        }
+      }
+      
+      return false;
+    }
+    
+    protected abstract boolean matches(String value);
+  }
+  
+  protected static class ValueExpression extends ColumnExpression {
+    protected final String value;
+    
+    protected ValueExpression(Type type, Column column, String value) {
+      super(type, column);
+      checkNotNull(value);
+      
+      this.value = value;
+    }
+    
+    @Override
+    protected boolean matches(String candidate) {
+      switch (type) {
+        case EQUALS:
+          return value.equals(candidate);
+        case PREFIX:
+          return candidate.startsWith(value);
+        case EXISTS:
+          return true;
+        default:
+          throw new IllegalStateException("Unexpected type: " + type);
+      }
+    }
+    
+    @Override
+    protected void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, type.ordinal());
+      column.write(out);
+      Text.writeString(out, value);
+    }
+    
+    @Override
+    public String toString() {
+      return Type.EXISTS.equals(type) ? type + "(" + column + ")" : type + "(" + column + ", " + value + ")";
+    }
+  }
+  
+  protected static class RangeExpression extends ColumnExpression {
+    protected final String low, high;
+    protected final boolean lowInclusive, highInclusive;
+    
+    protected RangeExpression(Type type, Column column, String low, boolean lowInclusive, String high, boolean highInclusive) {
+      super(type, column);
+      
+      this.low = low;
+      this.lowInclusive = lowInclusive;
+      this.high = high;
+      this.highInclusive = highInclusive;
+    }
+    
+    protected RangeExpression(Column column, String low, boolean lowInclusive, String high, boolean highInclusive) {
+      this(Type.RANGE, column, low, lowInclusive, high, highInclusive);
+    }
+    
+    @Override
+    protected boolean matches(String value) {
+      if (null != low) {
+        int cmp = value.compareTo(low);
+        if (cmp < 0 || (0 == cmp && !lowInclusive)) {
+          return false;
+        }
+      }
+      
+      if (null != high) {
+        int cmp = value.compareTo(high);
+        if (cmp > 0 || (0 == cmp && !highInclusive)) {
+          return false;
+        }
+      }
+      
+      return true;
+    }
+    
+    @Override
+    protected void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, type.ordinal());
+      column.write(out);
+      
+      out.writeBoolean(null != low);
+      if (null != low) {
+        Text.writeString(out, low);
+      }
+      out.writeBoolean(lowInclusive);
+      
+      out.writeBoolean(null != high);
+      if (null != high) {
+        Text.writeString(out, high);
+      }
+      out.writeBoolean(highInclusive);
+    }
+    
+    @Override
+    public String toString() {
+      return type + "(" + column + ", " + (lowInclusive ? "[" : "(") + Objects.firstNonNull(low, "") + ", " + Objects.firstNonNull(high, "")
+          + (highInclusive ? "]" : ")") + ")";
+    }
+  }
+  
+  protected static class RegexExpression extends ColumnExpression {
+    protected final String regex;
+    protected final Pattern pattern;
+    
+    protected RegexExpression(Column column, String regex) {
+      super(Type.REGEX, column);
+      checkNotNull(regex);
+      
+      this.regex = regex;
+      this.pattern = Pattern.compile(regex);
+    }
+    
+    @Override
+    protected boolean matches(String value) {
+      return pattern.matcher(value).matches();
+    }
+    
+    @Override
+    protected void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, type.ordinal());
+      column.write(out);
+      Text.writeString(out, regex);
+    }
+    
+    @Override
+    public String toString() {
+      return type + "(" + column + ", " + regex + ")";
+    }
+  }
+  
+  protected static class BooleanExpression extends FilterExpression {
+    protected final List<FilterExpression> children;
+    
+    protected BooleanExpression(Type type, Collection<FilterExpression> children) {
+      super(type);
+      checkNotNull(children);
+      checkArgument(!children.isEmpty(), "At least one expression is required");
+      checkArgument(!Type.NOT.equals(type) || 1 == children.size(), "NOT takes exactly one expression");
+      
+      this.children = ImmutableList.copyOf(children);
+    }
+    
+    @Override
+    public boolean matches(LazyQueryResult document) {
+      switch (type) {
+        case AND:
+          for (FilterExpression child : children) {
+            if (!child.matches(document)) {
+              return false;
+            }
+          }
+          return true;
+        case OR:
+          for (FilterExpression child : children) {
+            if (child.matches(document)) {
+              return true;
+            }
+          }
+          return false;
+        case NOT:
+          return !children.get(0).matches(document);
+        default:
+          throw new IllegalStateException("Unexpected type: " + type);
+      }
+    }
+    
+    @Override
+    protected void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, type.ordinal());
+      WritableUtils.writeVInt(out, children.size());
+      for (FilterExpression child : children) {
+        child.write(out);
+      }
+    }
+    
+    @Override
+    public String toString() {
+      return type + "(" + Joiner.on(", ").join(children) + ")";
+    }
+  }
+}
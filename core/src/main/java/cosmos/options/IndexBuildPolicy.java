@@ -0,0 +1,32 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.options;
+
+/**
+ * How a query on an {@link Index} which has not yet been built behaves when indexes are built on demand.
+ * 
+ * <p>
+ * {@code WAIT} blocks the query until the build completes. {@code FAIL_FAST} starts the build and immediately fails the query, so the client can retry
+ * later.
+ */
+public enum IndexBuildPolicy {
+  WAIT,
+  FAIL_FAST;
+}
@@ -21,6 +21,8 @@ package cosmos.results;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
@@ -41,20 +43,27 @@ import cosmos.trace.Tracer;
  */
 public class CloseableIterable<T> implements Results<T> {
   
-  protected final ScannerBase scanner;
+  protected final Collection<? extends ScannerBase> scanners;
   protected final Iterable<T> iterable;
   protected final Tracer tracer;
   protected final String description;
   protected final Stopwatch sw;
   
   public CloseableIterable(ScannerBase scanner, Iterable<T> iterable, Tracer t, String desc, Stopwatch sw) {
-    checkNotNull(scanner);
+    this(Collections.singleton(checkNotNull(scanner)), iterable, t, desc, sw);
+  }
+  
+  /**
+   * For results which are read from multiple scanners, e.g. one per shard, all of which are closed together
+   */
+  public CloseableIterable(Collection<? extends ScannerBase> scanners, Iterable<T> iterable, Tracer t, String desc, Stopwatch sw) {
+    checkNotNull(scanners);
     checkNotNull(iterable);
     checkNotNull(t);
     checkNotNull(desc);
     checkNotNull(sw);
     
-    this.scanner = scanner;
+    this.scanners = scanners;
     this.iterable = iterable;
     this.tracer = t;
     this.description = desc;
@@ -65,6 +74,10 @@ public class CloseableIterable<T> implements Results<T> {
     return new CloseableIterable<T>(scanner, iterable, t, desc, sw);
   }
   
+  public static <T> CloseableIterable<T> create(Collection<? extends ScannerBase> scanners, Iterable<T> iterable, Tracer t, String desc, Stopwatch sw) {
+    return new CloseableIterable<T>(scanners, iterable, t, desc, sw);
+  }
+  
   public static <T> CloseableIterable<T> transform(ScannerBase scanner, Function<Entry<Key,Value>,T> func, Tracer t, String desc, Stopwatch sw) {
     return new CloseableIterable<T>(scanner, Iterables.transform(scanner, func), t, desc, sw);
   }
@@ -74,8 +87,8 @@ public class CloseableIterable<T> implements Results<T> {
     return new CloseableIterable<T>(scanner, Iterables.transform(Iterables.filter(scanner, filter), func), t, desc, sw);
   }
   
-  protected ScannerBase source() {
-    return scanner;
+  protected Collection<? extends ScannerBase> sources() {
+    return scanners;
   }
   
   @Override
@@ -116,7 +129,9 @@ public class CloseableIterable<T> implements Results<T> {
       tracer.addTiming(description, sw.elapsed(TimeUnit.MILLISECONDS));
     }
     
-    scanner.close();
+    for (ScannerBase scanner : scanners) {
+      scanner.close();
+    }
   }
   
 }
@@ -28,6 +28,8 @@ import org.apache.hadoop.io.Writable;
 
 import com.google.common.base.Preconditions;
 
+import cosmos.util.Interning;
+
 public class Column implements Writable {
   private String column;
   
@@ -49,9 +51,7 @@ public class Column implements Writable {
   }
   
   public static Column recreate(DataInput in) throws IOException {
-    final Column column = new Column();
-    column.readFields(in);
-    return column;
+    return Interning.readColumn(in);
   }
   
   @Override
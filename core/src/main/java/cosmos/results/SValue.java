@@ -30,6 +30,8 @@ import org.apache.hadoop.io.WritableUtils;
 
 import com.google.common.base.Preconditions;
 
+import cosmos.util.Interning;
+
 public class SValue implements Writable, Comparable<SValue> {
   private String value;
   private ColumnVisibility visibility;
@@ -95,12 +97,7 @@ public class SValue implements Writable, Comparable<SValue> {
 
   public void readFields(DataInput in) throws IOException {
     this.value = Text.readString(in);
-    
-    final int cvLength = WritableUtils.readVInt(in);
-    final byte[] cvBytes = new byte[cvLength];
-    in.readFully(cvBytes);
-    
-    this.visibility = new ColumnVisibility(cvBytes);
+    this.visibility = Interning.readVisibility(in);
   }
 
   @Override
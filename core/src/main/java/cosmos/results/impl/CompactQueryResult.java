@@ -0,0 +1,341 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import cosmos.results.Column;
+import cosmos.results.QueryResult;
+import cosmos.results.SValue;
+import cosmos.util.Interning;
+
+/**
+ * An immutable {@link QueryResult} which stores its entries in parallel arrays, sorted by {@link Column} and then {@link SValue}, rather than in a
+ * {@link Multimap}. Equal {@link Column}s are interned by {@link Interning}, so the documents held by a producer share a single instance of each. As
+ * with {@link MultimapQueryResult}, a duplicate entry is only stored once. The serialized form is that of {@link DocumentFormat}.
+ */
+public class CompactQueryResult implements QueryResult<CompactQueryResult> {
+  private static final Column[] NO_COLUMNS = new Column[0];
+  private static final SValue[] NO_VALUES = new SValue[0];
+  
+  protected static final Comparator<Entry<Column,SValue>> ENTRY_COMPARATOR = new Comparator<Entry<Column,SValue>>() {
+    @Override
+    public int compare(Entry<Column,SValue> o1, Entry<Column,SValue> o2) {
+      int res = o1.getKey().column().compareTo(o2.getKey().column());
+      
+      if (0 == res) {
+        return o1.getValue().compareTo(o2.getValue());
+      }
+      
+      return res;
+    }
+  };
+  
+  protected String docId;
+  protected ColumnVisibility docVisibility;
+  protected Column[] columns;
+  protected SValue[] values;
+  
+  protected CompactQueryResult() {}
+  
+  protected CompactQueryResult(String docId, ColumnVisibility docVisibility, Column[] columns, SValue[] values) {
+    this.docId = docId;
+    this.docVisibility = docVisibility;
+    this.columns = columns;
+    this.values = values;
+  }
+  
+  public static Builder builder(String docId, ColumnVisibility docVisibility) {
+    return new Builder(docId, docVisibility);
+  }
+  
+  public static CompactQueryResult create(QueryResult<?> other) {
+    checkNotNull(other);
+    
+    return builder(other.docId(), other.documentVisibility()).putAll(other.columnValues()).build();
+  }
+  
+  public static CompactQueryResult recreate(DataInput in) throws IOException {
+    CompactQueryResult result = new CompactQueryResult();
+    result.readFields(in);
+    return result;
+  }
+  
+  public String docId() {
+    return this.docId;
+  }
+  
+  public String document() {
+    return columnValues().toString();
+  }
+  
+  public CompactQueryResult typedDocument() {
+    return this;
+  }
+  
+  public ColumnVisibility documentVisibility() {
+    return this.docVisibility;
+  }
+  
+  public List<Entry<Column,SValue>> columnValues() {
+    return new AbstractList<Entry<Column,SValue>>() {
+      @Override
+      public Entry<Column,SValue> get(int index) {
+        return Maps.immutableEntry(columns[index], values[index]);
+      }
+      
+      @Override
+      public int size() {
+        return values.length;
+      }
+    };
+  }
+  
+  /**
+   * @return The number of entries in the document
+   */
+  public int size() {
+    return this.values.length;
+  }
+  
+  /**
+   * @return The distinct {@link Column}s in the document, in sorted order
+   */
+  public List<Column> columns() {
+    List<Column> distinct = Lists.newArrayList();
+    for (int i = 0; i < this.columns.length; i++) {
+      if (0 == i || this.columns[i - 1] != this.columns[i]) {
+        distinct.add(this.columns[i]);
+      }
+    }
+    
+    return distinct;
+  }
+  
+  public boolean containsKey(Column column) {
+    return !get(column).isEmpty();
+  }
+  
+  /**
+   * Binary search for the values of the given {@link Column}
+   *
+   * @param column
+   * @return The values for the column, in sorted order
+   */
+  public List<SValue> get(Column column) {
+    checkNotNull(column);
+    
+    final String name = column.column();
+    
+    // The first entry for the column
+    int low = 0, high = this.columns.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.columns[mid].column().compareTo(name) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    
+    int end = low;
+    while (end < this.columns.length && this.columns[end].column().equals(name)) {
+      end++;
+    }
+    
+    return Collections.unmodifiableList(Arrays.asList(this.values).subList(low, end));
+  }
+  
+  public MultimapQueryResult toMultimapQueryResult() {
+    Multimap<Column,SValue> document = HashMultimap.create();
+    for (int i = 0; i < this.values.length; i++) {
+      document.put(this.columns[i], this.values[i]);
+    }
+    
+    return new MultimapQueryResult(document, this.docId, this.docVisibility);
+  }
+  
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    final Builder[] builder = new Builder[1];
+    
+    DocumentFormat.read(in, new DocumentFormat.Receiver() {
+      @Override
+      public void header(String docId, ColumnVisibility docVisibility, int numEntries) {
+        builder[0] = new Builder(docId, docVisibility, numEntries);
+      }
+      
+      @Override
+      public void entry(Column column, SValue value) {
+        builder[0].put(column, value);
+      }
+    });
+    
+    CompactQueryResult result = builder[0].build();
+    
+    this.docId = result.docId;
+    this.docVisibility = result.docVisibility;
+    this.columns = result.columns;
+    this.values = result.values;
+  }
+  
+  @Override
+  public void write(DataOutput out) throws IOException {
+    DocumentFormat.write(out, this.docId, this.docVisibility, columnValues());
+  }
+  
+  @Override
+  public Value toValue() throws IOException {
+    DataOutputBuffer buf = new DataOutputBuffer();
+    this.write(buf);
+    buf.close();
+    byte[] bytes = new byte[buf.getLength()];
+    System.arraycopy(buf.getData(), 0, bytes, 0, buf.getLength());
+    
+    return new Value(bytes);
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(256);
+    
+    sb.append(this.docId).append(" ").append(this.docVisibility).append(" - ").append(document());
+    
+    return sb.toString();
+  }
+  
+  @Override
+  public int hashCode() {
+    HashCodeBuilder hcb = new HashCodeBuilder(17, 31);
+    hcb.append(this.docId);
+    hcb.append(this.docVisibility.hashCode());
+    hcb.append(Arrays.hashCode(this.columns));
+    hcb.append(Arrays.hashCode(this.values));
+    return hcb.toHashCode();
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof CompactQueryResult) {
+      CompactQueryResult other = (CompactQueryResult) o;
+      return this.docId.equals(other.docId) && this.docVisibility.equals(other.docVisibility) && Arrays.equals(this.columns, other.columns)
+          && Arrays.equals(this.values, other.values);
+    }
+    
+    return false;
+  }
+  
+  public static class Builder {
+    protected final String docId;
+    protected final ColumnVisibility docVisibility;
+    protected final List<Entry<Column,SValue>> entries;
+    
+    protected Builder(String docId, ColumnVisibility docVisibility) {
+      this(docId, docVisibility, 16);
+    }
+    
+    protected Builder(String docId, ColumnVisibility docVisibility, int expectedSize) {
+      checkNotNull(docId);
+      checkNotNull(docVisibility);
+      
+      this.docId = docId;
+      this.docVisibility = docVisibility;
+      this.entries = Lists.newArrayListWithCapacity(expectedSize);
+    }
+    
+    public Builder put(Column column, SValue value) {
+      checkNotNull(column);
+      checkNotNull(value);
+      
+      this.entries.add(Maps.immutableEntry(column, value));
+      return this;
+    }
+    
+    /**
+     * Add a value which has the visibility of the document
+     */
+    public Builder put(Column column, String value) {
+      return put(column, SValue.create(value, this.docVisibility));
+    }
+    
+    public Builder putAll(Iterable<Entry<Column,SValue>> entries) {
+      checkNotNull(entries);
+      
+      for (Entry<Column,SValue> entry : entries) {
+        put(entry.getKey(), entry.getValue());
+      }
+      
+      return this;
+    }
+    
+    public CompactQueryResult build() {
+      Collections.sort(this.entries, ENTRY_COMPARATOR);
+      
+      // Drop duplicate entries, as a Multimap would
+      int distinct = 0;
+      for (int i = 0; i < this.entries.size(); i++) {
+        if (0 == i || 0 != ENTRY_COMPARATOR.compare(this.entries.get(i - 1), this.entries.get(i))) {
+          distinct++;
+        }
+      }
+      
+      if (0 == distinct) {
+        return new CompactQueryResult(this.docId, this.docVisibility, NO_COLUMNS, NO_VALUES);
+      }
+      
+      Column[] columns = new Column[distinct];
+      SValue[] values = new SValue[distinct];
+      
+      int j = 0;
+      for (int i = 0; i < this.entries.size(); i++) {
+        if (0 == i || 0 != ENTRY_COMPARATOR.compare(this.entries.get(i - 1), this.entries.get(i))) {
+          Entry<Column,SValue> entry = this.entries.get(i);
+          
+          // Consecutive entries for the same column can share the previous instance
+          columns[j] = (0 < j && columns[j - 1].equals(entry.getKey())) ? columns[j - 1] : Interning.column(entry.getKey());
+          values[j] = entry.getValue();
+          j++;
+        }
+      }
+      
+      return new CompactQueryResult(this.docId, this.docVisibility, columns, values);
+    }
+  }
+}
@@ -0,0 +1,354 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import cosmos.options.Codec;
+import cosmos.results.Column;
+import cosmos.results.SValue;
+import cosmos.util.Interning;
+import cosmos.util.LZCompression;
+
+/**
+ * Serialization of a document, as stored in the CONTENTS column of the data table.
+ *
+ * <p>
+ * A {@code V1} document is the docId, the document visibility, and then each {@link Column} and {@link SValue} written in full.
+ *
+ * <p>
+ * A {@code V2} document begins with a negative marker, which can never be the length of a {@code V1} docId. The names of the distinct columns are written
+ * once, each value references its column by index, and the visibility of a value is only written when it differs from the visibility of the document. All
+ * lengths and counts are variable-length integers.
+ *
+ * <p>
+ * A document of either version may be compressed by a {@link Codec}. A compressed document begins with the marker for its codec, the length of the
+ * uncompressed document, and the length of the compressed bytes which follow.
+ */
+public class DocumentFormat {
+  public static final int V1 = 1, V2 = 2;
+  
+  /**
+   * The version written by {@link #write(DataOutput, String, ColumnVisibility, Collection)}
+   */
+  public static final int CURRENT = V2;
+  
+  /**
+   * Leading vint of a {@code V2} document
+   */
+  public static final int V2_MARKER = -2;
+  
+  /**
+   * Leading vints of compressed documents
+   */
+  public static final int DEFLATE_MARKER = -3, LZ_MARKER = -4;
+  
+  /**
+   * Receives the parts of a document as it is read
+   */
+  public interface Receiver {
+    public void header(String docId, ColumnVisibility docVisibility, int numEntries);
+    
+    public void entry(Column column, SValue value);
+  }
+  
+  public static void write(DataOutput out, String docId, ColumnVisibility docVisibility, Collection<Entry<Column,SValue>> entries) throws IOException {
+    write(out, CURRENT, docId, docVisibility, entries);
+  }
+  
+  public static void write(DataOutput out, int version, String docId, ColumnVisibility docVisibility, Collection<Entry<Column,SValue>> entries)
+      throws IOException {
+    switch (version) {
+      case V1:
+        writeV1(out, docId, docVisibility, entries);
+        break;
+      case V2:
+        writeV2(out, docId, docVisibility, entries);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown document version: " + version);
+    }
+  }
+  
+  protected static void writeV1(DataOutput out, String docId, ColumnVisibility docVisibility, Collection<Entry<Column,SValue>> entries) throws IOException {
+    Text.writeString(out, docId);
+    
+    writeBytes(out, docVisibility.getExpression());
+    
+    WritableUtils.writeVInt(out, entries.size());
+    for (Entry<Column,SValue> entry : entries) {
+      entry.getKey().write(out);
+      entry.getValue().write(out);
+    }
+  }
+  
+  protected static void writeV2(DataOutput out, String docId, ColumnVisibility docVisibility, Collection<Entry<Column,SValue>> entries) throws IOException {
+    WritableUtils.writeVInt(out, V2_MARKER);
+    
+    Text.writeString(out, docId);
+    
+    final byte[] docVisibilityBytes = docVisibility.getExpression();
+    writeBytes(out, docVisibilityBytes);
+    
+    // Number each distinct column in the order it is first seen
+    final Map<Column,Integer> columnIndices = Maps.newLinkedHashMap();
+    for (Entry<Column,SValue> entry : entries) {
+      if (!columnIndices.containsKey(entry.getKey())) {
+        columnIndices.put(entry.getKey(), columnIndices.size());
+      }
+    }
+    
+    WritableUtils.writeVInt(out, columnIndices.size());
+    for (Column column : columnIndices.keySet()) {
+      Text.writeString(out, column.column());
+    }
+    
+    WritableUtils.writeVInt(out, entries.size());
+    for (Entry<Column,SValue> entry : entries) {
+      final SValue value = entry.getValue();
+      final byte[] visibilityBytes = value.visibility().getExpression();
+      final boolean differentVisibility = !Arrays.equals(docVisibilityBytes, visibilityBytes);
+      
+      // The low bit denotes whether the visibility follows the value
+      WritableUtils.writeVInt(out, (columnIndices.get(entry.getKey()) << 1) | (differentVisibility ? 1 : 0));
+      Text.writeString(out, value.value());
+      
+      if (differentVisibility) {
+        writeBytes(out, visibilityBytes);
+      }
+    }
+  }
+  
+  /**
+   * Read a document of any version, passing its contents to the given {@link Receiver}
+   *
+   * @param in
+   * @param receiver
+   * @throws IOException
+   */
+  public static void read(DataInput in, Receiver receiver) throws IOException {
+    final int lead = WritableUtils.readVInt(in);
+    
+    if (0 <= lead) {
+      // The length of the docId for a v1 document
+      readV1(in, lead, receiver);
+    } else if (V2_MARKER == lead) {
+      readV2(in, receiver);
+    } else if (DEFLATE_MARKER == lead || LZ_MARKER == lead) {
+      final int rawLength = WritableUtils.readVInt(in);
+      final byte[] compressed = new byte[WritableUtils.readVInt(in)];
+      in.readFully(compressed);
+      
+      final byte[] raw = decompress(lead, compressed, 0, compressed.length, rawLength);
+      
+      DataInputBuffer buf = new DataInputBuffer();
+      buf.reset(raw, raw.length);
+      read(buf, receiver);
+    } else {
+      throw new IOException("Unknown document format marker: " + lead);
+    }
+  }
+  
+  protected static void readV1(DataInput in, int docIdLength, Receiver receiver) throws IOException {
+    final byte[] docIdBytes = new byte[docIdLength];
+    in.readFully(docIdBytes);
+    
+    final String docId = Text.decode(docIdBytes);
+    final ColumnVisibility docVisibility = Interning.readVisibility(in);
+    final int entryCount = WritableUtils.readVInt(in);
+    
+    receiver.header(docId, docVisibility, entryCount);
+    
+    for (int i = 0; i < entryCount; i++) {
+      receiver.entry(Column.recreate(in), SValue.recreate(in));
+    }
+  }
+  
+  protected static void readV2(DataInput in, Receiver receiver) throws IOException {
+    final String docId = Text.readString(in);
+    final ColumnVisibility docVisibility = Interning.readVisibility(in);
+    
+    final int columnCount = WritableUtils.readVInt(in);
+    final List<Column> columns = Lists.newArrayListWithCapacity(columnCount);
+    for (int i = 0; i < columnCount; i++) {
+      columns.add(Interning.readColumn(in));
+    }
+    
+    final int entryCount = WritableUtils.readVInt(in);
+    
+    receiver.header(docId, docVisibility, entryCount);
+    
+    for (int i = 0; i < entryCount; i++) {
+      final int reference = WritableUtils.readVInt(in);
+      final String value = Text.readString(in);
+      final ColumnVisibility visibility = (0 == (reference & 1)) ? docVisibility : Interning.readVisibility(in);
+      
+      receiver.entry(columns.get(reference >>> 1), SValue.create(value, visibility));
+    }
+  }
+  
+  /**
+   * Compress a serialized document with the given {@link Codec}. The document is left uncompressed if compression would not make it smaller.
+   *
+   * @param value
+   * @param codec
+   * @return
+   * @throws IOException
+   */
+  public static Value compress(Value value, Codec codec) throws IOException {
+    checkNotNull(value);
+    checkNotNull(codec);
+    
+    final byte[] raw = value.get();
+    final int rawLength = value.getSize();
+    
+    final int marker;
+    final byte[] compressed;
+    switch (codec) {
+      case NONE:
+        return value;
+      case DEFLATE:
+        marker = DEFLATE_MARKER;
+        compressed = deflate(raw, rawLength);
+        break;
+      case LZ:
+        marker = LZ_MARKER;
+        compressed = LZCompression.compress(raw, 0, rawLength);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown codec: " + codec);
+    }
+    
+    DataOutputBuffer out = new DataOutputBuffer(compressed.length + 12);
+    WritableUtils.writeVInt(out, marker);
+    WritableUtils.writeVInt(out, rawLength);
+    writeBytes(out, compressed);
+    
+    if (out.getLength() >= rawLength) {
+      return value;
+    }
+    
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    
+    return new Value(bytes);
+  }
+  
+  /**
+   * @param value
+   * @return The uncompressed form of the given serialized document, which is the same {@link Value} if it was not compressed
+   * @throws IOException
+   */
+  public static Value decompress(Value value) throws IOException {
+    checkNotNull(value);
+    
+    final byte[] bytes = value.get();
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, value.getSize());
+    
+    final int lead = WritableUtils.readVInt(in);
+    if (DEFLATE_MARKER != lead && LZ_MARKER != lead) {
+      return value;
+    }
+    
+    final int rawLength = WritableUtils.readVInt(in);
+    final int compressedLength = WritableUtils.readVInt(in);
+    
+    return new Value(decompress(lead, bytes, in.getPosition(), compressedLength, rawLength));
+  }
+  
+  protected static byte[] decompress(int marker, byte[] compressed, int offset, int length, int rawLength) throws IOException {
+    if (LZ_MARKER == marker) {
+      return LZCompression.decompress(compressed, offset, length, rawLength);
+    }
+    
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed, offset, length);
+      
+      final byte[] raw = new byte[rawLength];
+      int inflated = 0;
+      while (inflated < rawLength && !inflater.finished()) {
+        int read = inflater.inflate(raw, inflated, rawLength - inflated);
+        if (0 == read && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += read;
+      }
+      
+      if (inflated != rawLength) {
+        throw new IOException("Expected " + rawLength + " bytes but inflated " + inflated);
+      }
+      
+      return raw;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+  
+  protected static byte[] deflate(byte[] raw, int length) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw, 0, length);
+      deflater.finish();
+      
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        int written = deflater.deflate(buffer);
+        out.write(buffer, 0, written);
+      }
+      
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+  
+  protected static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+    WritableUtils.writeVInt(out, bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.results.Column;
+import cosmos.results.QueryResult;
+import cosmos.results.SValue;
+import cosmos.util.Interning;
+
+/**
+ * A {@link QueryResult} which wraps the serialized bytes of a document, as read from the CONTENTS column, and only decodes the fields which are accessed.
+ * Reading the docId only decodes the header of the document. The first access of a column builds a table of the offset of each entry, after which only the
+ * entries for the requested column are decoded. Both {@link DocumentFormat#V1} and {@link DocumentFormat#V2} documents are supported. A compressed document
+ * is decompressed when first accessed.
+ */
+public class LazyQueryResult implements QueryResult<LazyQueryResult> {
+  
+  protected Value value;
+  
+  // Header, decoded on first access
+  protected String docId = null;
+  protected ColumnVisibility docVisibility = null;
+  protected int version, headerEnd;
+  
+  // Offset table, built on first access of the entries
+  protected int[] columnOffsets = null, entryColumns, valueOffsets, visibilityOffsets;
+  protected Column[] columns;
+  
+  protected LazyQueryResult() {}
+  
+  public LazyQueryResult(Value value) {
+    checkNotNull(value);
+    
+    this.value = value;
+  }
+  
+  public static LazyQueryResult create(Value value) {
+    return new LazyQueryResult(value);
+  }
+  
+  public static LazyQueryResult recreate(DataInput in) throws IOException {
+    LazyQueryResult result = new LazyQueryResult();
+    result.readFields(in);
+    return result;
+  }
+  
+  protected byte[] bytes() {
+    return this.value.get();
+  }
+  
+  protected void header() {
+    if (null != this.docId) {
+      return;
+    }
+    
+    int lead = vint(bytes(), 0);
+    if (DocumentFormat.DEFLATE_MARKER == lead || DocumentFormat.LZ_MARKER == lead) {
+      try {
+        this.value = DocumentFormat.decompress(this.value);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      
+      lead = vint(bytes(), 0);
+    }
+    
+    final byte[] bytes = bytes();
+    
+    int docIdOffset;
+    if (0 <= lead) {
+      // The docId length of a v1 document
+      this.version = DocumentFormat.V1;
+      docIdOffset = 0;
+    } else if (DocumentFormat.V2_MARKER == lead) {
+      this.version = DocumentFormat.V2;
+      docIdOffset = WritableUtils.decodeVIntSize(bytes[0]);
+    } else {
+      throw new IllegalStateException("Unknown document format marker: " + lead);
+    }
+    
+    final int docVisibilityOffset = skip(bytes, docIdOffset);
+    
+    this.headerEnd = skip(bytes, docVisibilityOffset);
+    this.docVisibility = visibility(bytes, docVisibilityOffset);
+    this.docId = decode(bytes, docIdOffset);
+  }
+  
+  protected void index() {
+    if (null != this.columnOffsets) {
+      return;
+    }
+    
+    header();
+    
+    final byte[] bytes = bytes();
+    int pos = this.headerEnd;
+    
+    if (DocumentFormat.V2 == this.version) {
+      final int columnCount = vint(bytes, pos);
+      pos += WritableUtils.decodeVIntSize(bytes[pos]);
+      
+      this.columnOffsets = new int[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        this.columnOffsets[i] = pos;
+        pos = skip(bytes, pos);
+      }
+    }
+    
+    final int entryCount = vint(bytes, pos);
+    pos += WritableUtils.decodeVIntSize(bytes[pos]);
+    
+    if (DocumentFormat.V1 == this.version) {
+      // Every v1 entry contains its own column
+      this.columnOffsets = new int[entryCount];
+    }
+    
+    this.entryColumns = new int[entryCount];
+    this.valueOffsets = new int[entryCount];
+    this.visibilityOffsets = new int[entryCount];
+    
+    for (int i = 0; i < entryCount; i++) {
+      boolean hasVisibility = true;
+      
+      if (DocumentFormat.V2 == this.version) {
+        final int reference = vint(bytes, pos);
+        pos += WritableUtils.decodeVIntSize(bytes[pos]);
+        
+        this.entryColumns[i] = reference >>> 1;
+        hasVisibility = 1 == (reference & 1);
+      } else {
+        this.columnOffsets[i] = pos;
+        this.entryColumns[i] = i;
+        pos = skip(bytes, pos);
+      }
+      
+      this.valueOffsets[i] = pos;
+      pos = skip(bytes, pos);
+      
+      // -1 denotes the document visibility
+      this.visibilityOffsets[i] = hasVisibility ? pos : -1;
+      if (hasVisibility) {
+        pos = skip(bytes, pos);
+      }
+    }
+    
+    this.columns = new Column[this.columnOffsets.length];
+  }
+  
+  public String docId() {
+    header();
+    return this.docId;
+  }
+  
+  public String document() {
+    return toMultimap().toString();
+  }
+  
+  public LazyQueryResult typedDocument() {
+    return this;
+  }
+  
+  public ColumnVisibility documentVisibility() {
+    header();
+    return this.docVisibility;
+  }
+  
+  /**
+   * @return The number of entries in the document
+   */
+  public int size() {
+    index();
+    return this.valueOffsets.length;
+  }
+  
+  public Set<Column> columns() {
+    index();
+    
+    Set<Column> distinct = Sets.newHashSet();
+    for (int i = 0; i < this.columns.length; i++) {
+      distinct.add(column(i));
+    }
+    
+    return distinct;
+  }
+  
+  public boolean containsKey(Column column) {
+    checkNotNull(column);
+    
+    return !get(column).isEmpty();
+  }
+  
+  /**
+   * Decode only the values for the given column. The name of each column is compared without being decoded.
+   *
+   * @param column
+   * @return
+   */
+  public Collection<SValue> get(Column column) {
+    checkNotNull(column);
+    
+    index();
+    
+    final ByteBuffer target;
+    try {
+      target = Text.encode(column.column());
+    } catch (CharacterCodingException e) {
+      throw new RuntimeException(e);
+    }
+    
+    final byte[] bytes = bytes();
+    final boolean[] matches = new boolean[this.columnOffsets.length];
+    boolean any = false;
+    for (int i = 0; i < this.columnOffsets.length; i++) {
+      final int offset = this.columnOffsets[i];
+      final int start = offset + WritableUtils.decodeVIntSize(bytes[offset]);
+      final int length = vint(bytes, offset);
+      
+      matches[i] = 0 == WritableComparator.compareBytes(bytes, start, length, target.array(), target.arrayOffset(), target.limit());
+      any |= matches[i];
+    }
+    
+    if (!any) {
+      return Collections.emptyList();
+    }
+    
+    List<SValue> values = Lists.newArrayList();
+    for (int i = 0; i < this.valueOffsets.length; i++) {
+      if (matches[this.entryColumns[i]]) {
+        values.add(value(i));
+      }
+    }
+    
+    return values;
+  }
+  
+  public Iterable<Entry<Column,SValue>> columnValues() {
+    index();
+    
+    return new Iterable<Entry<Column,SValue>>() {
+      @Override
+      public Iterator<Entry<Column,SValue>> iterator() {
+        return new AbstractIterator<Entry<Column,SValue>>() {
+          private int i = 0;
+          
+          @Override
+          protected Entry<Column,SValue> computeNext() {
+            if (i >= valueOffsets.length) {
+              return endOfData();
+            }
+            
+            Entry<Column,SValue> entry = Maps.immutableEntry(column(entryColumns[i]), value(i));
+            i++;
+            return entry;
+          }
+        };
+      }
+    };
+  }
+  
+  protected Column column(int index) {
+    if (null == this.columns[index]) {
+      final byte[] bytes = bytes();
+      final int offset = this.columnOffsets[index];
+      this.columns[index] = Interning.column(bytes, offset + WritableUtils.decodeVIntSize(bytes[offset]), vint(bytes, offset));
+    }
+    
+    return this.columns[index];
+  }
+  
+  protected SValue value(int entry) {
+    final byte[] bytes = bytes();
+    final int visibilityOffset = this.visibilityOffsets[entry];
+    final ColumnVisibility visibility = -1 == visibilityOffset ? this.docVisibility : visibility(bytes, visibilityOffset);
+    
+    return SValue.create(decode(bytes, this.valueOffsets[entry]), visibility);
+  }
+  
+  /**
+   * Decode the entire document
+   *
+   * @return
+   */
+  public MultimapQueryResult toMultimapQueryResult() {
+    return new MultimapQueryResult(toMultimap(), docId(), documentVisibility());
+  }
+  
+  protected Multimap<Column,SValue> toMultimap() {
+    Multimap<Column,SValue> document = HashMultimap.create();
+    for (Entry<Column,SValue> entry : columnValues()) {
+      document.put(entry.getKey(), entry.getValue());
+    }
+    
+    return document;
+  }
+  
+  @Override
+  public void write(DataOutput out) throws IOException {
+    // The wrapped bytes are already serialized
+    out.write(bytes(), 0, this.value.getSize());
+  }
+  
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    // A serialized document does not contain its own length, so it must be read to find its end
+    this.value = MultimapQueryResult.recreate(in).toValue();
+    this.docId = null;
+    this.docVisibility = null;
+    this.columnOffsets = null;
+  }
+  
+  @Override
+  public Value toValue() throws IOException {
+    return this.value;
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(256);
+    
+    sb.append(docId()).append(" ").append(documentVisibility()).append(" - ").append(document());
+    
+    return sb.toString();
+  }
+  
+  @Override
+  public int hashCode() {
+    return toMultimapQueryResult().hashCode();
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof LazyQueryResult) {
+      return toMultimapQueryResult().equals(((LazyQueryResult) o).toMultimapQueryResult());
+    }
+    
+    return false;
+  }
+  
+  /**
+   * @return The offset following the length-prefixed bytes at the given offset
+   */
+  protected static int skip(byte[] bytes, int offset) {
+    return offset + WritableUtils.decodeVIntSize(bytes[offset]) + vint(bytes, offset);
+  }
+  
+  protected static int vint(byte[] bytes, int offset) {
+    try {
+      return WritableComparator.readVInt(bytes, offset);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  protected static ColumnVisibility visibility(byte[] bytes, int offset) {
+    return Interning.visibility(bytes, offset + WritableUtils.decodeVIntSize(bytes[offset]), vint(bytes, offset));
+  }
+  
+  protected static String decode(byte[] bytes, int offset) {
+    try {
+      return Text.decode(bytes, offset + WritableUtils.decodeVIntSize(bytes[offset]), vint(bytes, offset));
+    } catch (CharacterCodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -31,8 +31,6 @@ import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableUtils;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Maps;
@@ -103,36 +101,24 @@ public class MapQueryResult implements QueryResult<MapQueryResult> {
   
   @Override
   public void readFields(DataInput in) throws IOException {
-    this.docId = Text.readString(in);
-    
-    final int cvLength = WritableUtils.readVInt(in);
-    final byte[] cvBytes = new byte[cvLength];
-    in.readFully(cvBytes);
-    
-    this.docVisibility = new ColumnVisibility(cvBytes);
-    
-    final int entryCount = WritableUtils.readVInt(in);
-    this.document = Maps.newHashMapWithExpectedSize(entryCount);
-    
-    for (int i = 0; i < entryCount; i++) {
+    DocumentFormat.read(in, new DocumentFormat.Receiver() {
+      @Override
+      public void header(String docId, ColumnVisibility docVisibility, int numEntries) {
+        MapQueryResult.this.docId = docId;
+        MapQueryResult.this.docVisibility = docVisibility;
+        MapQueryResult.this.document = Maps.newHashMapWithExpectedSize(numEntries);
+      }
       
-      this.document.put(Column.recreate(in), SValue.recreate(in));
-    }
+      @Override
+      public void entry(Column column, SValue value) {
+        MapQueryResult.this.document.put(column, value);
+      }
+    });
   }
 
   @Override
   public void write(DataOutput out) throws IOException {
-    Text.writeString(out, this.docId);
-
-    byte[] cvBytes = this.docVisibility.flatten();
-    WritableUtils.writeVInt(out, cvBytes.length);
-    out.write(cvBytes);
-    
-    WritableUtils.writeVInt(out, this.document.size());
-    for (Entry<Column,SValue> entry : this.document.entrySet()) {
-      entry.getKey().write(out);
-      entry.getValue().write(out);
-    }
+    DocumentFormat.write(out, this.docId, this.docVisibility, this.document.entrySet());
   }
   
   @Override
@@ -31,8 +31,6 @@ import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableUtils;
 
 import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
@@ -130,36 +128,24 @@ public class MultimapQueryResult implements QueryResult<MultimapQueryResult> {
 
   @Override
   public void readFields(DataInput in) throws IOException {
-    this.docId = Text.readString(in);
-    
-    final int cvLength = WritableUtils.readVInt(in);
-    final byte[] cvBytes = new byte[cvLength];
-    in.readFully(cvBytes);
-    
-    this.docVisibility = new ColumnVisibility(cvBytes);
-    
-    final int entryCount = WritableUtils.readVInt(in);
-    this.document = HashMultimap.create(); 
-    
-    for (int i = 0; i < entryCount; i++) {
+    DocumentFormat.read(in, new DocumentFormat.Receiver() {
+      @Override
+      public void header(String docId, ColumnVisibility docVisibility, int numEntries) {
+        MultimapQueryResult.this.docId = docId;
+        MultimapQueryResult.this.docVisibility = docVisibility;
+        MultimapQueryResult.this.document = HashMultimap.create();
+      }
       
-      this.document.put(Column.recreate(in), SValue.recreate(in));
-    }
+      @Override
+      public void entry(Column column, SValue value) {
+        MultimapQueryResult.this.document.put(column, value);
+      }
+    });
   }
 
   @Override
   public void write(DataOutput out) throws IOException {
-    Text.writeString(out, this.docId);
-    
-    byte[] cvBytes = this.docVisibility.getExpression();
-    WritableUtils.writeVInt(out, cvBytes.length);
-    out.write(cvBytes);
-    
-    WritableUtils.writeVInt(out, this.document.size());
-    for (Entry<Column,SValue> entry : this.document.entries()) {
-      entry.getKey().write(out);
-      entry.getValue().write(out);
-    }
+    DocumentFormat.write(out, this.docId, this.docVisibility, this.document.entries());
   }
   
   @Override
@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import cosmos.results.Column;
+
+/**
+ * Bounded, concurrent caches of the {@link Column}s and {@link ColumnVisibility}s read while decoding results, keyed by their serialized bytes. A document
+ * typically contains only a handful of distinct column names and visibilities, so decoding can return a shared instance instead of allocating a new one.
+ * A cached {@link ColumnVisibility} retains its parse tree, so an expression is only parsed the first time it is seen.
+ *
+ * <p>
+ * A cached {@link Column} is shared by every document which contains it, so it refuses to be changed by {@link Column#readFields(DataInput)}.
+ */
+public class Interning {
+  public static final int MAX_COLUMNS = 10000;
+  public static final int MAX_VISIBILITIES = 10000;
+  
+  private static final Cache<ByteBuffer,Column> COLUMNS = CacheBuilder.newBuilder().maximumSize(MAX_COLUMNS).build();
+  private static final Cache<ByteBuffer,ColumnVisibility> VISIBILITIES = CacheBuilder.newBuilder().maximumSize(MAX_VISIBILITIES).build();
+  
+  private Interning() {}
+  
+  /**
+   * @param bytes
+   * @param offset
+   * @param length
+   * @return The {@link Column} whose UTF-8 encoded name is the given bytes
+   */
+  public static Column column(byte[] bytes, int offset, int length) {
+    checkNotNull(bytes);
+    
+    // Only the bytes of a cache miss need to be copied
+    Column column = COLUMNS.getIfPresent(ByteBuffer.wrap(bytes, offset, length));
+    if (null == column) {
+      try {
+        column = new InternedColumn(Text.decode(bytes, offset, length));
+      } catch (CharacterCodingException e) {
+        throw new RuntimeException(e);
+      }
+      
+      COLUMNS.put(copy(bytes, offset, length), column);
+    }
+    
+    return column;
+  }
+  
+  /**
+   * @param column
+   * @return The shared instance of a {@link Column} with the same name as the given one
+   */
+  public static Column column(Column column) {
+    checkNotNull(column);
+    
+    if (column instanceof InternedColumn) {
+      return column;
+    }
+    
+    final ByteBuffer bytes;
+    try {
+      bytes = Text.encode(column.column());
+    } catch (CharacterCodingException e) {
+      throw new RuntimeException(e);
+    }
+    
+    return column(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+  }
+  
+  /**
+   * Read a {@link Column} written by {@link Column#write(java.io.DataOutput)}
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static Column readColumn(DataInput in) throws IOException {
+    final byte[] bytes = new byte[WritableUtils.readVInt(in)];
+    in.readFully(bytes);
+    
+    return column(bytes, 0, bytes.length);
+  }
+  
+  /**
+   * @param bytes
+   * @param offset
+   * @param length
+   * @return The {@link ColumnVisibility} whose expression is the given bytes
+   */
+  public static ColumnVisibility visibility(byte[] bytes, int offset, int length) {
+    checkNotNull(bytes);
+    
+    ColumnVisibility visibility = VISIBILITIES.getIfPresent(ByteBuffer.wrap(bytes, offset, length));
+    if (null == visibility) {
+      ByteBuffer key = copy(bytes, offset, length);
+      visibility = new ColumnVisibility(key.array());
+      
+      VISIBILITIES.put(key, visibility);
+    }
+    
+    return visibility;
+  }
+  
+  public static ColumnVisibility visibility(byte[] bytes) {
+    checkNotNull(bytes);
+    
+    return visibility(bytes, 0, bytes.length);
+  }
+  
+  public static ColumnVisibility visibility(ByteSequence bytes) {
+    checkNotNull(bytes);
+    
+    if (bytes.isBackedByArray()) {
+      return visibility(bytes.getBackingArray(), bytes.offset(), bytes.length());
+    }
+    
+    return visibility(bytes.toArray());
+  }
+  
+  /**
+   * Read a vint length followed by the expression of a {@link ColumnVisibility}
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static ColumnVisibility readVisibility(DataInput in) throws IOException {
+    final byte[] bytes = new byte[WritableUtils.readVInt(in)];
+    in.readFully(bytes);
+    
+    return visibility(bytes);
+  }
+  
+  /**
+   * A {@link Column} which cannot be changed after it is cached
+   */
+  protected static class InternedColumn extends Column {
+    protected InternedColumn(String column) {
+      super(column);
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      throw new UnsupportedOperationException("Cannot change a shared Column");
+    }
+  }
+  
+  protected static ByteBuffer copy(byte[] bytes, int offset, int length) {
+    byte[] copy = new byte[length];
+    System.arraycopy(bytes, offset, copy, 0, length);
+    return ByteBuffer.wrap(copy);
+  }
+}
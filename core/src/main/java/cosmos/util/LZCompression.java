@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A small LZ77 codec in the style of LZF. The compressed form is a sequence of control bytes. A control byte below 32 is followed by that many literal
+ * bytes, plus one. Otherwise, the top 3 bits are the length of a back-reference, less two, with 7 denoting that another byte of length follows, and the
+ * low 5 bits and the next byte are the distance back to the referenced bytes, less one.
+ */
+public class LZCompression {
+  protected static final int HASH_BITS = 14;
+  protected static final int MAX_LITERALS = 32;
+  protected static final int MAX_DISTANCE = 1 << 13;
+  protected static final int MAX_LENGTH = 264;
+  
+  private LZCompression() {}
+  
+  public static byte[] compress(byte[] in, int offset, int length) {
+    checkNotNull(in);
+    
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+    
+    // Last position (plus one) of each 3 byte sequence
+    final int[] table = new int[1 << HASH_BITS];
+    final int end = offset + length;
+    
+    int literalStart = offset, pos = offset;
+    while (pos + 2 < end) {
+      final int hash = hash(in, pos);
+      final int ref = table[hash] - 1;
+      table[hash] = pos + 1;
+      
+      final int distance = pos - ref - 1;
+      if (0 <= ref && distance < MAX_DISTANCE && in[ref] == in[pos] && in[ref + 1] == in[pos + 1] && in[ref + 2] == in[pos + 2]) {
+        final int maxLength = Math.min(MAX_LENGTH, end - pos);
+        int matched = 3;
+        while (matched < maxLength && in[ref + matched] == in[pos + matched]) {
+          matched++;
+        }
+        
+        literals(out, in, literalStart, pos);
+        
+        final int encoded = matched - 2;
+        if (encoded < 7) {
+          out.write((encoded << 5) | (distance >>> 8));
+        } else {
+          out.write((7 << 5) | (distance >>> 8));
+          out.write(encoded - 7);
+        }
+        out.write(distance & 0xff);
+        
+        pos += matched;
+        literalStart = pos;
+      } else {
+        pos++;
+      }
+    }
+    
+    literals(out, in, literalStart, end);
+    
+    return out.toByteArray();
+  }
+  
+  public static byte[] decompress(byte[] in, int offset, int length, int rawLength) throws IOException {
+    checkNotNull(in);
+    
+    final byte[] out = new byte[rawLength];
+    final int end = offset + length;
+    
+    int pos = offset, outPos = 0;
+    try {
+      while (pos < end) {
+        final int control = in[pos++] & 0xff;
+        
+        if (control < MAX_LITERALS) {
+          final int literals = control + 1;
+          System.arraycopy(in, pos, out, outPos, literals);
+          pos += literals;
+          outPos += literals;
+        } else {
+          int matched = control >>> 5;
+          if (7 == matched) {
+            matched += in[pos++] & 0xff;
+          }
+          matched += 2;
+          
+          int ref = outPos - ((control & 0x1f) << 8) - (in[pos++] & 0xff) - 1;
+          if (ref < 0) {
+            throw new IOException("Invalid back-reference at offset " + (pos - offset));
+          }
+          
+          // The referenced bytes may overlap the bytes being written
+          for (int i = 0; i < matched; i++) {
+            out[outPos++] = out[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Compressed data is corrupt", e);
+    }
+    
+    if (outPos != rawLength) {
+      throw new IOException("Expected " + rawLength + " bytes but decompressed " + outPos);
+    }
+    
+    return out;
+  }
+  
+  protected static void literals(ByteArrayOutputStream out, byte[] in, int start, int end) {
+    while (start < end) {
+      final int count = Math.min(MAX_LITERALS, end - start);
+      out.write(count - 1);
+      out.write(in, start, count);
+      start += count;
+    }
+  }
+  
+  protected static int hash(byte[] in, int pos) {
+    final int value = ((in[pos] & 0xff) << 16) | ((in[pos + 1] & 0xff) << 8) | (in[pos + 2] & 0xff);
+    return (int) (((value * 2654435761L) >>> (32 - HASH_BITS)) & ((1 << HASH_BITS) - 1));
+  }
+}
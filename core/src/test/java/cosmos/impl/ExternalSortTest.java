@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.Files;
+
+import cosmos.options.Order;
+
+@RunWith(JUnit4.class)
+public class ExternalSortTest {
+  
+  @Test
+  public void boundedMerge() throws Exception {
+    File directory = Files.createTempDir();
+    
+    // Every record spills, and at most 3 files are read at once
+    ExternalSort sorter = new ExternalSort(Collections.singletonList(Order.ASCENDING), 1, directory, 3);
+    
+    for (int i = 0; i < 50; i++) {
+      String value = String.format("%02d", (i * 7) % 50);
+      sorter.add(value, Integer.toString(i), new Value(value.getBytes()));
+    }
+    
+    Assert.assertEquals(50, sorter.spills());
+    
+    int count = 0;
+    for (Value document : sorter.sorted()) {
+      Assert.assertEquals(String.format("%02d", count), new String(document.get()));
+      
+      // The remaining files and the buffer are merged at once
+      Assert.assertTrue(sorter.spills() < 3);
+      count++;
+    }
+    
+    Assert.assertEquals(50, count);
+    
+    sorter.close();
+    
+    Assert.assertEquals(0, directory.listFiles().length);
+    directory.delete();
+  }
+}
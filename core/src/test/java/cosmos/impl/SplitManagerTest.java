@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.impl;
+
+import java.util.List;
+import java.util.SortedSet;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import cosmos.Cosmos;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.results.AbstractSortableTest;
+import cosmos.results.Column;
+import cosmos.results.QueryResult;
+import cosmos.results.SValue;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.trace.Tracer;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class SplitManagerTest extends AbstractSortableTest {
+  
+  @Test
+  public void hexSplitPoints() {
+    SplitManager manager = new SplitManager(c, Defaults.DATA_TABLE, SplitManager.HEX_ALPHABET, 1);
+    
+    SortedSet<Text> points = manager.splitPoints(16);
+    Assert.assertEquals(15, points.size());
+    Assert.assertEquals(new Text("1"), points.first());
+    Assert.assertEquals(new Text("f"), points.last());
+    Assert.assertTrue(points.contains(new Text("a")));
+    
+    points = manager.splitPoints(32);
+    Assert.assertEquals(31, points.size());
+    Assert.assertEquals(new Text("08"), points.first());
+    Assert.assertEquals(new Text("f8"), points.last());
+  }
+  
+  @Test
+  public void initialSplits() throws Exception {
+    SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    List<Text> splits = Lists.newArrayList(c.tableOperations().listSplits(Defaults.DATA_TABLE));
+    Assert.assertTrue(splits.size() >= SplitManager.MIN_TABLETS - 1);
+    Assert.assertTrue(splits.contains(new Text("a")));
+    Assert.assertTrue(splits.contains(new Text("f")));
+  }
+  
+  @Test
+  public void resplitHotTablet() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, IdentitySet.<Index> create()).splitThreshold(10).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    final int initialSplits = c.tableOperations().listSplits(Defaults.DATA_TABLE).size();
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(Column.create("NAME"), SValue.create("name" + i, VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    // Every row for the result lands in the same tablet, which should have been split
+    Assert.assertTrue(c.tableOperations().listSplits(Defaults.DATA_TABLE).size() > initialSplits);
+    
+    boolean reported = false;
+    for (String name : id.tracer().getMetadata().keySet()) {
+      reported |= name.startsWith(SplitManager.TABLET_LOAD_PREFIX);
+    }
+    Assert.assertTrue("Expected tablet load in " + id.tracer().getMetadata(), reported);
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void drainRecorders() throws Exception {
+    final SplitManager manager = new SplitManager(c, Defaults.DATA_TABLE, SplitManager.HEX_ALPHABET, 1000);
+    
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        manager.record("a0".getBytes());
+      }
+    });
+    writer.start();
+    writer.join();
+    
+    Assert.assertEquals(1, manager.recorders.size());
+    
+    Tracer tracer = new Tracer("drain");
+    manager.rebalance(tracer);
+    Assert.assertEquals(1, tabletLoads(tracer));
+    
+    // The recorder of the exited thread is dropped, and its load is not reported again
+    Assert.assertTrue(manager.recorders.isEmpty());
+    
+    tracer = new Tracer("drain");
+    manager.rebalance(tracer);
+    Assert.assertEquals(0, tabletLoads(tracer));
+  }
+  
+  protected int tabletLoads(Tracer tracer) {
+    int loads = 0;
+    for (String name : tracer.getMetadata().keySet()) {
+      if (name.startsWith(SplitManager.TABLET_LOAD_PREFIX)) {
+        loads++;
+      }
+    }
+    
+    return loads;
+  }
+}
@@ -19,6 +19,8 @@
  */
 package cosmos.results;
 
+import java.util.List;
+
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.mock.MockInstance;
 import org.apache.accumulo.core.client.security.tokens.PasswordToken;
@@ -28,7 +30,12 @@ import org.apache.curator.test.TestingServer;
 import org.junit.After;
 import org.junit.Before;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
 import cosmos.options.Defaults;
+import cosmos.results.impl.MultimapQueryResult;
 
 /**
  * 
@@ -36,6 +43,7 @@ import cosmos.options.Defaults;
 public class AbstractSortableTest {
   protected static final ColumnVisibility VIZ = new ColumnVisibility("test");
   protected static final Authorizations AUTHS = new Authorizations("test");
+  protected static final Column NAME = Column.create("NAME"), AGE = Column.create("AGE");
   
   protected Connector c;
   protected TestingServer zk;
@@ -62,4 +70,24 @@ public class AbstractSortableTest {
   protected String zkConnectString() {
     return zk.getConnectString();
   }
+  
+  /**
+   * @return Records with the docIds from start to start + count, each with a {@link #NAME} and an {@link #AGE}
+   */
+  protected List<QueryResult<?>> results(int start, int count) {
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = start; i < start + count; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(NAME, SValue.create("name" + i, VIZ));
+      data.put(AGE, SValue.create(Integer.toString(i), VIZ));
+      
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    return results;
+  }
+  
+  protected List<QueryResult<?>> results() {
+    return results(0, 10);
+  }
 }
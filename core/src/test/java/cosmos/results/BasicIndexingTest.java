@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.Scanner;
@@ -86,6 +87,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(8, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.finalize(id);
@@ -133,12 +136,16 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(4, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.finalize(id);
     
     s.delete(id);
     
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    
     scanner = c.createScanner(Defaults.DATA_TABLE, new Authorizations("test"));
     Assert.assertEquals(0, Iterables.size(scanner));
     
@@ -169,6 +176,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(2, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.index(id, Collections.singleton(Index.define("TEXT")));
@@ -177,6 +186,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(4, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.close();
@@ -209,6 +220,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(8, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.finalize(id);
@@ -253,6 +266,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(12, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(3, Iterables.size(scanner));
     
     s.finalize(id);
@@ -342,6 +357,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(2, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.index(id, Sets.newHashSet(Index.define("TEXT"), Index.define("DOESNTEXIST")));
@@ -350,6 +367,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     Assert.assertEquals(5, Iterables.size(scanner));
     
     scanner = c.createScanner(Defaults.METADATA_TABLE, new Authorizations("test"));
+    scanner.fetchColumnFamily(SortingMetadata.STATE_COLFAM);
+    scanner.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
     Assert.assertEquals(2, Iterables.size(scanner));
     
     s.close();
@@ -452,6 +471,8 @@ public class BasicIndexingTest extends AbstractSortableTest {
     
     s.delete(id);
     
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    
     BatchScanner bs = c.createBatchScanner(id.metadataTable(), id.auths(), 1);
     bs.setRanges(Collections.singleton(Range.exact(id.uuid())));
     bs.fetchColumnFamily(SortingMetadata.COLUMN_COLFAM);
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Bucket;
+import cosmos.options.Bucket.DateUnit;
+import cosmos.options.Index;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class BucketedGroupByTest extends AbstractSortableTest {
+  
+  @Test
+  public void bucketFunctions() {
+    Bucket fixed = Bucket.fixedWidth(10);
+    Assert.assertEquals(Double.valueOf(0), fixed.lowerBound("9"));
+    Assert.assertEquals(Double.valueOf(10), fixed.lowerBound("10"));
+    Assert.assertEquals(Double.valueOf(-10), fixed.lowerBound("-1"));
+    Assert.assertNull(fixed.lowerBound("foo"));
+    
+    Bucket log = Bucket.logScale(10);
+    Assert.assertEquals(Double.valueOf(1), log.lowerBound("9"));
+    Assert.assertEquals(Double.valueOf(1000), log.lowerBound("1000"));
+    Assert.assertEquals(Double.valueOf(0), log.lowerBound("0"));
+    Assert.assertEquals(Double.valueOf(-10), log.lowerBound("-5"));
+    
+    Bucket hours = Bucket.date(DateUnit.HOUR, "yyyy-MM-dd HH:mm:ss");
+    Assert.assertEquals("2013-10-01 04:00:00", hours.label(hours.lowerBound("2013-10-01 04:59:59")));
+    
+    Bucket days = Bucket.date(DateUnit.DAY);
+    Assert.assertEquals(Double.valueOf(86400000l), days.lowerBound(Long.toString(86400000l + 3600000l)));
+    
+    Assert.assertEquals(hours, Bucket.fromOptions(hours.toOptions()));
+    Assert.assertEquals(log, Bucket.fromOptions(log.toOptions()));
+  }
+  
+  @Test
+  public void numericHistogram() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Lexicographically, "100" sorts before "15" which sorts before "9"
+    String[] sizes = new String[] {"1", "9", "15", "12", "100", "105", "bogus"};
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < sizes.length; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(Column.create("SIZE"), SValue.create(sizes[i], VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    CloseableIterable<Entry<SValue,Long>> histogram = s.groupResults(id, Column.create("SIZE"), Bucket.fixedWidth(10));
+    List<Entry<SValue,Long>> buckets = Lists.newArrayList(histogram);
+    histogram.close();
+    
+    Assert.assertEquals(3, buckets.size());
+    Assert.assertEquals(Maps.immutableEntry("0", 2l), Maps.immutableEntry(buckets.get(0).getKey().value(), buckets.get(0).getValue()));
+    Assert.assertEquals(Maps.immutableEntry("10", 2l), Maps.immutableEntry(buckets.get(1).getKey().value(), buckets.get(1).getValue()));
+    Assert.assertEquals(Maps.immutableEntry("100", 2l), Maps.immutableEntry(buckets.get(2).getKey().value(), buckets.get(2).getValue()));
+    
+    histogram = s.groupResults(id, Column.create("SIZE"), Bucket.logScale(10));
+    buckets = Lists.newArrayList(histogram);
+    histogram.close();
+    
+    Assert.assertEquals(3, buckets.size());
+    Assert.assertEquals("1", buckets.get(0).getKey().value());
+    Assert.assertEquals(Long.valueOf(2), buckets.get(0).getValue());
+    Assert.assertEquals("10", buckets.get(1).getKey().value());
+    Assert.assertEquals(Long.valueOf(2), buckets.get(1).getValue());
+    Assert.assertEquals("100", buckets.get(2).getKey().value());
+    Assert.assertEquals(Long.valueOf(2), buckets.get(2).getValue());
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void dateHistogram() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    String[] dates = new String[] {"2013-10-01T04:15:00", "2013-10-01T04:45:00", "2013-10-01T05:00:00", "2013-10-02T04:15:00"};
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < dates.length; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(Column.create("TIME"), SValue.create(dates[i], VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    CloseableIterable<Entry<SValue,Long>> histogram = s.groupResults(id, Column.create("TIME"), Bucket.date(DateUnit.DAY, "yyyy-MM-dd'T'HH:mm:ss"));
+    List<Entry<SValue,Long>> buckets = Lists.newArrayList(histogram);
+    histogram.close();
+    
+    Assert.assertEquals(2, buckets.size());
+    Assert.assertEquals("2013-10-01T00:00:00", buckets.get(0).getKey().value());
+    Assert.assertEquals(Long.valueOf(3), buckets.get(0).getValue());
+    Assert.assertEquals("2013-10-02T00:00:00", buckets.get(1).getKey().value());
+    Assert.assertEquals(Long.valueOf(1), buckets.get(1).getValue());
+    
+    s.delete(id);
+    s.close();
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import cosmos.results.impl.CompactQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+
+public class CompactQueryResultTest extends AbstractSortableTest {
+  
+  @Test
+  public void sortedLookups() {
+    CompactQueryResult result = CompactQueryResult.builder("1", VIZ).put(Column.create("TEXT"), "foo").put(Column.create("NAME"), "bob")
+        .put(Column.create("TEXT"), "bar").put(Column.create("TEXT"), "foo").put(Column.create("AGE"), "42").build();
+    
+    // The duplicate is dropped
+    Assert.assertEquals(4, result.size());
+    Assert.assertEquals(Lists.newArrayList(Column.create("AGE"), Column.create("NAME"), Column.create("TEXT")), result.columns());
+    Assert.assertEquals(Lists.newArrayList(SValue.create("bar", VIZ), SValue.create("foo", VIZ)), result.get(Column.create("TEXT")));
+    Assert.assertEquals(Lists.newArrayList(SValue.create("42", VIZ)), result.get(Column.create("AGE")));
+    Assert.assertTrue(result.get(Column.create("MISSING")).isEmpty());
+    Assert.assertTrue(result.get(Column.create("A")).isEmpty());
+    Assert.assertTrue(result.get(Column.create("ZZZ")).isEmpty());
+    
+    CompactQueryResult other = CompactQueryResult.builder("2", VIZ).put(Column.create("TEXT"), "baz").build();
+    
+    // Columns are shared between documents
+    Assert.assertSame(result.columns().get(2), other.columns().get(0));
+  }
+  
+  @Test
+  public void sharedColumnsAreImmutable() throws Exception {
+    final Column text = Column.create("TEXT");
+    CompactQueryResult result = CompactQueryResult.builder("1", VIZ).put(text, "foo").build();
+    
+    // The caller's instance is not the one shared with other documents
+    Assert.assertNotSame(text, result.columns().get(0));
+    
+    DataOutputBuffer out = new DataOutputBuffer();
+    Column.create("NAME").write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    
+    try {
+      result.columns().get(0).readFields(in);
+      Assert.fail("Expected a shared Column to refuse to change");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    
+    Assert.assertEquals(text, result.columns().get(0));
+  }
+  
+  @Test
+  public void writableCompatibility() throws Exception {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    
+    data.put(Column.create("TEXT"), SValue.create("foo", VIZ));
+    data.put(Column.create("TEXT"), SValue.create("bar", VIZ));
+    data.put(Column.create("SECRET"), SValue.create("baz", new ColumnVisibility("secret")));
+    
+    MultimapQueryResult mqr = new MultimapQueryResult(data, "1", VIZ);
+    CompactQueryResult compact = CompactQueryResult.create(mqr);
+    
+    Assert.assertEquals(mqr, compact.toMultimapQueryResult());
+    
+    // A MultimapQueryResult can read a CompactQueryResult
+    DataOutputBuffer out = new DataOutputBuffer();
+    compact.write(out);
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    
+    Assert.assertEquals(mqr, MultimapQueryResult.recreate(in));
+    
+    // And vice versa
+    out = new DataOutputBuffer();
+    mqr.write(out);
+    
+    in.reset(out.getData(), out.getLength());
+    
+    CompactQueryResult compact2 = CompactQueryResult.recreate(in);
+    Assert.assertEquals(compact, compact2);
+    
+    List<SValue> secret = compact2.get(Column.create("SECRET"));
+    Assert.assertEquals(1, secret.size());
+    Assert.assertEquals(new ColumnVisibility("secret"), secret.get(0).visibility());
+  }
+  
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Codec;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.DocumentFormat;
+import cosmos.results.impl.LazyQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.LZCompression;
+
+@RunWith(JUnit4.class)
+public class CompressionTest extends AbstractSortableTest {
+  
+  protected MultimapQueryResult document(String docId) {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    for (int i = 0; i < 50; i++) {
+      data.put(Column.create("TEXT"), SValue.create("the quick brown fox jumps over the lazy dog " + i, VIZ));
+    }
+    
+    return new MultimapQueryResult(data, docId, VIZ);
+  }
+  
+  @Test
+  public void lzRoundTrip() throws Exception {
+    Random r = new Random(42);
+    
+    byte[] random = new byte[10000];
+    r.nextBytes(random);
+    
+    byte[] repetitive = new byte[10000];
+    for (int i = 0; i < repetitive.length; i++) {
+      repetitive[i] = (byte) ('a' + (i % 7));
+    }
+    
+    for (byte[] raw : new byte[][] {random, repetitive, new byte[0], new byte[] {1, 2}}) {
+      byte[] compressed = LZCompression.compress(raw, 0, raw.length);
+      Assert.assertArrayEquals(raw, LZCompression.decompress(compressed, 0, compressed.length, raw.length));
+    }
+    
+    Assert.assertTrue(LZCompression.compress(repetitive, 0, repetitive.length).length < repetitive.length / 10);
+  }
+  
+  @Test
+  public void compressedDocuments() throws Exception {
+    MultimapQueryResult mqr = document("1");
+    Value raw = mqr.toValue();
+    
+    for (Codec codec : new Codec[] {Codec.DEFLATE, Codec.LZ}) {
+      Value compressed = DocumentFormat.compress(raw, codec);
+      Assert.assertTrue(codec + " did not compress", compressed.getSize() < raw.getSize());
+      
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(compressed.get(), compressed.getSize());
+      Assert.assertEquals(mqr, MultimapQueryResult.recreate(in));
+      
+      Assert.assertEquals(raw, DocumentFormat.decompress(compressed));
+      Assert.assertEquals(mqr, LazyQueryResult.create(compressed).toMultimapQueryResult());
+    }
+    
+    Assert.assertSame(raw, DocumentFormat.compress(raw, Codec.NONE));
+    Assert.assertSame(raw, DocumentFormat.decompress(raw));
+  }
+  
+  @Test
+  public void compressedResult() throws Exception {
+    final Column text = Column.create("TEXT");
+    Set<Index> columns = Sets.newHashSet(Index.define(text, Order.ASCENDING));
+    SortableResult id = SortableResult.builder(c, AUTHS, columns).contentsCodec(Codec.LZ).tableCompression("gz").tablePerResult(true).build();
+    
+    Assert.assertEquals("gz", getProperty(id.dataTable(), Property.TABLE_FILE_COMPRESSION_TYPE.getKey()));
+    Assert.assertFalse("gz".equals(getProperty(Defaults.DATA_TABLE, Property.TABLE_FILE_COMPRESSION_TYPE.getKey())));
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      results.add(document(Integer.toString(i)));
+    }
+    
+    s.addResults(id, results);
+    
+    Assert.assertEquals(results.get(3), s.contents(id, "3"));
+    Assert.assertEquals(results.get(3), s.lazyContents(id, "3").toMultimapQueryResult());
+    
+    CloseableIterable<MultimapQueryResult> all = s.fetch(id);
+    Assert.assertEquals(5, Lists.newArrayList(all).size());
+    all.close();
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void compressionOfSharedTable() throws Exception {
+    SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(Column.create("TEXT")))).tableCompression("gz").build();
+  }
+  
+  protected String getProperty(String table, String key) throws Exception {
+    for (Entry<String,String> property : c.tableOperations().getProperties(table)) {
+      if (key.equals(property.getKey())) {
+        return property.getValue();
+      }
+    }
+    
+    return null;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.accumulo.core.client.Connector;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.CosmosSession;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class CosmosSessionTest extends AbstractSortableTest {
+  
+  protected static class CountingSession extends CosmosSession {
+    protected final AtomicInteger verified = new AtomicInteger();
+    
+    public CountingSession(Connector connector, String dataTable, String metadataTable) {
+      super(connector, AUTHS, dataTable, metadataTable);
+    }
+    
+    @Override
+    protected void verify(SortableResult id) {
+      verified.incrementAndGet();
+      super.verify(id);
+    }
+  }
+  
+  @Test
+  public void tablesSetUpOnce() throws Exception {
+    CountingSession session = new CountingSession(c, "sessionData", "sessionMetadata");
+    
+    Assert.assertFalse(c.tableOperations().exists("sessionData"));
+    
+    SortableResult id1 = session.create(Sets.newHashSet(Index.define(NAME)));
+    SortableResult id2 = session.create(Sets.newHashSet(Index.define(NAME)));
+    
+    Assert.assertEquals(1, session.verified.get());
+    Assert.assertTrue(c.tableOperations().exists("sessionData"));
+    Assert.assertTrue(c.tableOperations().exists("sessionMetadata"));
+    Assert.assertEquals("sessionData", id2.dataTable());
+    Assert.assertFalse(id1.uuid().equals(id2.uuid()));
+    
+    // Results of the same table track its splits together
+    Assert.assertSame(id1.splitManager(), id2.splitManager());
+    
+    // A different key format has different split points
+    session.builder(Sets.newHashSet(Index.define(NAME))).keyFormat(KeyFormat.V2).build();
+    Assert.assertEquals(2, session.verified.get());
+    
+    session.invalidate();
+    SortableResult id3 = session.create(Sets.newHashSet(Index.define(NAME)));
+    Assert.assertEquals(3, session.verified.get());
+    Assert.assertNotSame(id1.splitManager(), id3.splitManager());
+  }
+  
+  @Test
+  public void sessionResults() throws Exception {
+    CosmosSession session = new CosmosSession(c, AUTHS);
+    SortableResult id = session.create(Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    s.addResults(id, results());
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(session.open(id.uuid()), Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    s.close();
+  }
+}
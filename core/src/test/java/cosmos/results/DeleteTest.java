@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Range;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.State;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class DeleteTest extends AbstractSortableTest {
+  
+  protected int entries(SortableResult id) throws Exception {
+    int count = 0;
+    for (Range range : id.layout().resultRanges()) {
+      Scanner s = c.createScanner(id.dataTable(), AUTHS);
+      s.setRange(range);
+      count += Iterables.size(s);
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void deleteRowsOfOneResult() throws Exception {
+    for (KeyFormat format : KeyFormat.values()) {
+      SortableResult id1 = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).keyFormat(format).documentShards(4).build();
+      SortableResult id2 = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).keyFormat(format).documentShards(4).build();
+      
+      CosmosImpl s = new CosmosImpl(zkConnectString());
+      
+      s.register(id1);
+      s.register(id2);
+      s.addResults(id1, results());
+      s.addResults(id2, results());
+      
+      // A document and docId entry per record, and one index entry
+      Assert.assertEquals(30, entries(id1));
+      Assert.assertEquals(30, entries(id2));
+      
+      s.delete(id1);
+      
+      Assert.assertTrue(s.awaitDeletion(id1, 30, TimeUnit.SECONDS));
+      Assert.assertEquals(0, entries(id1));
+      Assert.assertEquals(30, entries(id2));
+      Assert.assertEquals(State.UNKNOWN, SortingMetadata.getState(id1));
+      
+      s.delete(id2);
+      
+      Assert.assertTrue(s.awaitDeletion(id2, 30, TimeUnit.SECONDS));
+      Assert.assertEquals(0, entries(id2));
+      
+      s.close();
+    }
+  }
+  
+  @Test
+  public void deleteTablePerResult() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).tablePerResult(true).build();
+    
+    Assert.assertTrue(id.dataTable().startsWith(Defaults.DATA_TABLE + "_"));
+    Assert.assertTrue(c.tableOperations().exists(id.dataTable()));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(SortableResult.open(c, id.uuid()), Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    Assert.assertFalse(c.tableOperations().exists(id.dataTable()));
+    Assert.assertTrue(c.tableOperations().exists(Defaults.DATA_TABLE));
+    
+    s.close();
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.UnindexedColumnException;
+import cosmos.accumulo.DropIndexFilter;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class DropIndexTest extends AbstractSortableTest {
+  
+  protected int entries(SortableResult id, Index index, IteratorSetting... iterators) throws Exception {
+    int count = 0;
+    for (Range range : id.layout().resultRanges()) {
+      Scanner s = c.createScanner(id.dataTable(), AUTHS);
+      s.setRange(range);
+      s.fetchColumnFamily(new Text(index.column().column()));
+      for (IteratorSetting iterator : iterators) {
+        s.addScanIterator(iterator);
+      }
+      
+      for (Entry<Key,Value> entry : s) {
+        if (entry.getKey().getColumnQualifier().toString().startsWith(Order.direction(index.order()))) {
+          count++;
+        }
+      }
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void dropOneDirection() throws Exception {
+    final Index nameAsc = Index.define(NAME), nameDesc = Index.define(NAME, Order.DESCENDING), ageAsc = Index.define(AGE);
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(nameAsc, nameDesc, ageAsc));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    Assert.assertEquals(10, entries(id, nameAsc));
+    Assert.assertEquals(10, entries(id, nameDesc));
+    Assert.assertEquals(10, entries(id, ageAsc));
+    
+    s.dropIndex(id, nameAsc);
+    
+    Assert.assertEquals(0, entries(id, nameAsc));
+    Assert.assertEquals(10, entries(id, nameDesc));
+    Assert.assertEquals(10, entries(id, ageAsc));
+    Assert.assertEquals(Sets.newHashSet(nameDesc, ageAsc), id.columnsToIndex());
+    
+    try {
+      s.fetch(id, nameAsc);
+      Assert.fail("Should not be able to fetch by a dropped index");
+    } catch (UnindexedColumnException e) {
+      // expected
+    }
+    
+    CloseableIterable<MultimapQueryResult> results = s.fetch(id, nameDesc);
+    Assert.assertEquals(10, Iterables.size(results));
+    results.close();
+    
+    // New records are no longer indexed by the dropped index
+    Multimap<Column,SValue> data = HashMultimap.create();
+    data.put(NAME, SValue.create("name10", VIZ));
+    s.addResult(id, new MultimapQueryResult(data, "10", VIZ));
+    
+    Assert.assertEquals(0, entries(id, nameAsc));
+    Assert.assertEquals(11, entries(id, nameDesc));
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void filterOnlyDropsOneResult() throws Exception {
+    final Index nameAsc = Index.define(NAME);
+    SortableResult id1 = SortableResult.create(c, AUTHS, Sets.newHashSet(nameAsc, Index.define(AGE)));
+    SortableResult id2 = SortableResult.create(c, AUTHS, Sets.newHashSet(nameAsc));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id1);
+    s.register(id2);
+    s.addResults(id1, results());
+    s.addResults(id2, results());
+    
+    IteratorSetting dropper = new IteratorSetting(50, "dropIndex", DropIndexFilter.class);
+    DropIndexFilter.setIndex(dropper, id1.layout(), nameAsc);
+    
+    Assert.assertEquals(0, entries(id1, nameAsc, dropper));
+    Assert.assertEquals(10, entries(id1, Index.define(AGE), dropper));
+    Assert.assertEquals(10, entries(id2, nameAsc, dropper));
+    
+    s.delete(id1);
+    s.delete(id2);
+    s.close();
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void eagerIdentitySet() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    try {
+      s.dropIndex(id, Index.define(NAME));
+    } finally {
+      s.close();
+    }
+  }
+  
+  @Test
+  public void droppedByAnotherClient() throws Exception {
+    final Index nameAsc = Index.define(NAME), ageAsc = Index.define(AGE);
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(nameAsc, ageAsc));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results(0, 10));
+    
+    SortableResult opened = SortableResult.open(c, id.uuid());
+    Assert.assertTrue(opened.columnsToIndex().contains(nameAsc));
+    
+    s.dropIndex(id, nameAsc);
+    
+    // The other handle stops writing the dropped index
+    s.addResults(opened, results(10, 10));
+    Assert.assertEquals(Sets.newHashSet(ageAsc), opened.columnsToIndex());
+    Assert.assertEquals(0, entries(id, nameAsc));
+    Assert.assertEquals(20, entries(id, ageAsc));
+    
+    s.delete(id);
+    s.close();
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.EnumSet;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.results.impl.LazyQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class EphemeralTest extends AbstractSortableTest {
+  
+  @Test
+  public void ephemeralTable() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).ephemeral(1, TimeUnit.HOURS).build();
+    SortableResult durable = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)));
+    
+    Assert.assertTrue(id.isEphemeral());
+    Assert.assertEquals(Defaults.DATA_TABLE + "_ephemeral_" + TimeUnit.HOURS.toMillis(1), id.dataTable());
+    Assert.assertEquals(Defaults.DATA_TABLE, durable.dataTable());
+    
+    boolean walDisabled = false;
+    for (Entry<String,String> property : c.tableOperations().getProperties(id.dataTable())) {
+      if (Property.TABLE_WALOG_ENABLED.getKey().equals(property.getKey())) {
+        walDisabled = "false".equals(property.getValue());
+      }
+    }
+    Assert.assertTrue(walDisabled);
+    
+    Assert.assertEquals(EnumSet.allOf(IteratorScope.class), c.tableOperations().listIterators(id.dataTable()).get(SortableResult.AGE_OFF));
+    Assert.assertFalse(c.tableOperations().listIterators(durable.dataTable()).containsKey(SortableResult.AGE_OFF));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Every entry is written at the time it was added
+    final long registered = id.registered();
+    final long before = System.currentTimeMillis();
+    s.addResults(id, results());
+    
+    Scanner scanner = c.createScanner(id.dataTable(), AUTHS);
+    for (Entry<Key,Value> entry : scanner) {
+      Assert.assertTrue(before <= entry.getKey().getTimestamp());
+    }
+    Assert.assertEquals(30, Iterables.size(scanner));
+    
+    // Other clients find the same table and registration time
+    SortableResult opened = SortableResult.open(c, id.uuid());
+    Assert.assertTrue(opened.isEphemeral());
+    Assert.assertEquals(id.dataTable(), opened.dataTable());
+    Assert.assertEquals(registered, opened.registered());
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(opened, Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void rebuildAfterDrop() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).ephemeral(1, TimeUnit.HOURS).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    // The entries written again are newer than the deletes of the drop
+    s.dropIndex(id, Index.define(NAME));
+    s.index(id, Sets.newHashSet(Index.define(NAME)));
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(id, Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void registeredOnlyWhenEphemeral() throws Exception {
+    SortableResult durable = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(durable);
+    
+    Assert.assertNull(SortingMetadata.getRegistered(durable));
+    
+    try {
+      durable.registered();
+      Assert.fail("Only ephemeral results record their registration time");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    
+    s.delete(durable);
+    s.close();
+  }
+  
+  @Test
+  public void indexOutlivesRecords() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).ephemeral(1, TimeUnit.SECONDS).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    Thread.sleep(600);
+    
+    // Written after the records, so these index entries outlive them
+    s.index(id, Sets.newHashSet(Index.define(AGE)));
+    
+    Thread.sleep(600);
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(id, Index.define(AGE));
+    Assert.assertEquals(0, Iterables.size(fetched));
+    fetched.close();
+    
+    CloseableIterable<LazyQueryResult> lazy = s.fetchLazily(id, Index.define(AGE), true);
+    Assert.assertEquals(0, Iterables.size(lazy));
+    lazy.close();
+    
+    s.close();
+  }
+  
+  @Test
+  public void ageOff() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).ephemeral(500, TimeUnit.MILLISECONDS).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(id, Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    Thread.sleep(1000);
+    
+    fetched = s.fetch(id, Index.define(NAME));
+    Assert.assertEquals(0, Iterables.size(fetched));
+    fetched.close();
+    
+    Scanner scanner = c.createScanner(id.dataTable(), AUTHS);
+    scanner.setRange(new Range());
+    Assert.assertEquals(0, Iterables.size(scanner));
+    
+    s.close();
+  }
+}
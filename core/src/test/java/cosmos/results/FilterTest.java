@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.FilterExpression;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.LazyQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class FilterTest extends AbstractSortableTest {
+  
+  protected static final Column CITY = Column.create("CITY");
+  
+  protected MultimapQueryResult record(int i) {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    data.put(NAME, SValue.create("name" + i, VIZ));
+    data.put(AGE, SValue.create(Integer.toString(20 + i), VIZ));
+    if (0 == i % 2) {
+      data.put(CITY, SValue.create("Baltimore", VIZ));
+    }
+    
+    return new MultimapQueryResult(data, Integer.toString(i), VIZ);
+  }
+  
+  @Test
+  public void expressions() throws Exception {
+    LazyQueryResult doc = LazyQueryResult.create(record(4).toValue());
+    
+    Assert.assertTrue(FilterExpression.equalTo(NAME, "name4").matches(doc));
+    Assert.assertFalse(FilterExpression.equalTo(NAME, "name5").matches(doc));
+    Assert.assertTrue(FilterExpression.range(AGE, "22", true, "24", true).matches(doc));
+    Assert.assertFalse(FilterExpression.range(AGE, "22", true, "24", false).matches(doc));
+    Assert.assertTrue(FilterExpression.range(AGE, null, false, "30", false).matches(doc));
+    Assert.assertTrue(FilterExpression.prefix(CITY, "Balt").matches(doc));
+    Assert.assertTrue(FilterExpression.regex(NAME, "name[0-4]").matches(doc));
+    Assert.assertFalse(FilterExpression.regex(NAME, "name").matches(doc));
+    Assert.assertTrue(FilterExpression.exists(CITY).matches(doc));
+    Assert.assertFalse(FilterExpression.exists(Column.create("ZIP")).matches(doc));
+    Assert.assertTrue(FilterExpression.and(FilterExpression.exists(CITY), FilterExpression.equalTo(AGE, "24")).matches(doc));
+    Assert.assertFalse(FilterExpression.and(FilterExpression.exists(CITY), FilterExpression.equalTo(AGE, "25")).matches(doc));
+    Assert.assertTrue(FilterExpression.or(FilterExpression.equalTo(AGE, "25"), FilterExpression.equalTo(AGE, "24")).matches(doc));
+    Assert.assertTrue(FilterExpression.not(FilterExpression.equalTo(AGE, "25")).matches(doc));
+  }
+  
+  @Test
+  public void serialization() throws Exception {
+    FilterExpression expr = FilterExpression.and(FilterExpression.range(AGE, "22", false, null, true),
+        FilterExpression.or(FilterExpression.regex(NAME, "name\\d"), FilterExpression.not(FilterExpression.exists(CITY))),
+        FilterExpression.prefix(CITY, "Bal"));
+    
+    FilterExpression copy = FilterExpression.deserialize(expr.serialize());
+    Assert.assertEquals(expr, copy);
+    Assert.assertEquals(expr.toString(), copy.toString());
+    Assert.assertEquals(expr, FilterExpression.fromOptions(expr.toOptions()));
+  }
+  
+  @Test
+  public void filteredFetch() throws Exception {
+    Set<Index> columns = Sets.newHashSet(Index.define(NAME, Order.ASCENDING));
+    SortableResult id = SortableResult.create(c, AUTHS, columns);
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      results.add(record(i));
+    }
+    
+    s.addResults(id, results);
+    
+    // Neither AGE nor CITY is indexed
+    FilterExpression filter = FilterExpression.and(FilterExpression.exists(CITY), FilterExpression.range(AGE, "23", true, null, false));
+    
+    CloseableIterable<MultimapQueryResult> matching = s.fetch(id, filter);
+    Set<String> docIds = Sets.newHashSet();
+    for (MultimapQueryResult result : matching) {
+      Assert.assertEquals(record(Integer.parseInt(result.docId())), result);
+      docIds.add(result.docId());
+    }
+    matching.close();
+    
+    Assert.assertEquals(Sets.newHashSet("4", "6", "8"), docIds);
+    
+    CloseableIterable<MultimapQueryResult> projected = s.fetch(id, FilterExpression.equalTo(CITY, "Baltimore"), Sets.newHashSet(NAME));
+    int count = 0;
+    for (MultimapQueryResult result : projected) {
+      Assert.assertEquals(1, result.columnSize());
+      Assert.assertEquals("name" + result.docId(), result.get(NAME).iterator().next().value());
+      count++;
+    }
+    projected.close();
+    
+    Assert.assertEquals(5, count);
+    
+    s.delete(id);
+    s.close();
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.SortingMetadata.State;
+import cosmos.UnexpectedStateException;
+import cosmos.UnindexedColumnException;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.CosmosSession;
+import cosmos.impl.InMemoryCosmos;
+import cosmos.impl.SortableResult;
+import cosmos.options.Bucket;
+import cosmos.options.FilterExpression;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.options.Paging;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class InMemoryCosmosTest extends AbstractSortableTest {
+  
+  protected static final Column SIZE = Column.create("SIZE");
+  
+  protected MultimapQueryResult record(String docId, String name, String... sizes) {
+    return record(docId, VIZ, name, sizes);
+  }
+  
+  protected MultimapQueryResult record(String docId, ColumnVisibility viz, String name, String... sizes) {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    data.put(NAME, SValue.create(name, viz));
+    for (String size : sizes) {
+      data.put(SIZE, SValue.create(size, viz));
+    }
+    
+    return new MultimapQueryResult(data, docId, viz);
+  }
+  
+  @Override
+  protected List<QueryResult<?>> results() {
+    List<QueryResult<?>> results = Lists.newArrayList();
+    results.add(record("1", "b", "1", "100"));
+    results.add(record("2", "ab", "9"));
+    results.add(record("3", "a", "15"));
+    results.add(record("4", "ab", "12"));
+    results.add(record("5", "", "bogus"));
+    
+    return results;
+  }
+  
+  protected List<String> docIds(Iterable<? extends QueryResult<?>> results) {
+    List<String> docIds = Lists.newArrayList();
+    for (QueryResult<?> result : results) {
+      docIds.add(result.docId());
+    }
+    
+    if (results instanceof CloseableIterable) {
+      ((CloseableIterable<?>) results).close();
+    }
+    
+    return docIds;
+  }
+  
+  protected List<Entry<String,Long>> groups(CloseableIterable<Entry<SValue,Long>> results) {
+    List<Entry<String,Long>> groups = Lists.newArrayList();
+    for (Entry<SValue,Long> group : results) {
+      groups.add(Maps.immutableEntry(group.getKey().value(), group.getValue()));
+    }
+    results.close();
+    
+    return groups;
+  }
+  
+  protected SortableResult create() {
+    CosmosSession session = InMemoryCosmos.session(c, AUTHS);
+    
+    return session.builder(Sets.newHashSet(Index.define(NAME), Index.define(NAME, Order.DESCENDING), Index.define(SIZE))).dataTable("inMemory").build();
+  }
+  
+  @Test
+  public void noTables() throws Exception {
+    SortableResult id = create();
+    
+    InMemoryCosmos s = new InMemoryCosmos();
+    
+    s.register(id);
+    s.addResults(id, results());
+    s.finalize(id);
+    
+    Assert.assertEquals(State.LOADED, s.state(id));
+    Assert.assertFalse(c.tableOperations().exists("inMemory"));
+    Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"), docIds(s.fetch(id)));
+    Assert.assertEquals(Sets.newHashSet(NAME, SIZE), Sets.newHashSet(s.columns(id)));
+    
+    s.delete(id);
+    
+    Assert.assertEquals(State.UNKNOWN, s.state(id));
+    
+    try {
+      s.fetch(id);
+      Assert.fail("Should not be able to fetch a deleted result");
+    } catch (UnexpectedStateException e) {
+      // expected
+    }
+    
+    s.close();
+  }
+  
+  @Test
+  public void ordering() throws Exception {
+    SortableResult id = create();
+    
+    Cosmos s = new InMemoryCosmos();
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    // A value sorts before the values it prefixes when ascending, and after them when descending
+    Assert.assertEquals(Arrays.asList("5", "3", "2", "4", "1"), docIds(s.fetch(id, Index.define(NAME))));
+    Assert.assertEquals(Arrays.asList("1", "2", "4", "3", "5"), docIds(s.fetch(id, Index.define(NAME, Order.DESCENDING))));
+    Assert.assertEquals(Arrays.asList("1", "1", "4", "3", "2", "5"), docIds(s.fetch(id, Index.define(SIZE))));
+    Assert.assertEquals(Arrays.asList("1", "4", "3", "2", "5"), docIds(s.fetch(id, Index.define(SIZE), false)));
+    Assert.assertEquals(Arrays.asList("1", "2", "4", "3", "5"), docIds(s.fetchLazily(id, Index.define(NAME, Order.DESCENDING), true)));
+    
+    Assert.assertEquals(Arrays.asList("2", "4"), docIds(s.fetch(id, NAME, "ab")));
+    Assert.assertEquals(Collections.emptyList(), docIds(s.fetch(id, NAME, "abc")));
+    
+    // Ties on NAME are broken by SIZE
+    Assert.assertEquals(Arrays.asList("1", "4", "2", "3", "5"),
+        docIds(s.fetch(id, Arrays.asList(Index.define(NAME, Order.DESCENDING), Index.define(SIZE)), true)));
+    
+    try {
+      s.fetch(id, Index.define(SIZE, Order.DESCENDING));
+      Assert.fail("SIZE is not indexed descending");
+    } catch (UnindexedColumnException e) {
+      // expected
+    }
+    
+    s.close();
+  }
+  
+  @Test
+  public void pagingAndGrouping() throws Exception {
+    SortableResult id = create();
+    
+    Cosmos s = new InMemoryCosmos();
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    PagedQueryResult<MultimapQueryResult> pages = s.fetch(id, Index.define(NAME), Paging.create(2, 5l));
+    List<List<String>> docIds = Lists.newArrayList();
+    for (List<MultimapQueryResult> page : pages) {
+      docIds.add(docIds(page));
+    }
+    pages.close();
+    
+    Assert.assertEquals(Arrays.asList(Arrays.asList("5", "3"), Arrays.asList("2", "4"), Arrays.asList("1")), docIds);
+    
+    Assert.assertEquals(
+        Arrays.asList(Maps.immutableEntry("", 1l), Maps.immutableEntry("a", 1l), Maps.immutableEntry("ab", 2l), Maps.immutableEntry("b", 1l)),
+        groups(s.groupResults(id, NAME)));
+    
+    Assert.assertEquals(Arrays.asList(Maps.immutableEntry("0", 2l), Maps.immutableEntry("10", 2l), Maps.immutableEntry("100", 1l)),
+        groups(s.groupResults(id, SIZE, Bucket.fixedWidth(10))));
+    
+    s.close();
+  }
+  
+  @Test
+  public void filtersAndContents() throws Exception {
+    SortableResult id = create();
+    
+    Cosmos s = new InMemoryCosmos();
+    
+    s.register(id);
+    s.addResults(id, results());
+    s.addResult(id, record("6", new ColumnVisibility("secret"), "aa", "3"));
+    
+    Assert.assertEquals(Arrays.asList("2", "4"), docIds(s.fetch(id, FilterExpression.prefix(NAME, "ab"))));
+    Assert.assertEquals(Arrays.asList("5", "3", "2", "4", "1"), docIds(s.fetch(id, Index.define(NAME))));
+    
+    CloseableIterable<MultimapQueryResult> projected = s.fetch(id, Index.define(NAME), true, Collections.singleton(SIZE));
+    for (MultimapQueryResult result : projected) {
+      Assert.assertFalse(result.containsKey(NAME));
+      Assert.assertTrue(result.containsKey(SIZE));
+    }
+    projected.close();
+    
+    Assert.assertEquals(results().get(0), s.contents(id, "1"));
+    Assert.assertEquals(results().get(0), s.lazyContents(id, "1").toMultimapQueryResult());
+    
+    try {
+      s.contents(id, "6");
+      Assert.fail("The record is not visible");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+    
+    s.close();
+  }
+  
+  @Test
+  public void indexAndDrop() throws Exception {
+    SortableResult id = InMemoryCosmos.session(c, AUTHS).create(Collections.<Index> emptySet());
+    
+    Cosmos s = new InMemoryCosmos();
+    
+    s.register(id);
+    s.addResults(id, results());
+    s.index(id, Collections.singleton(Index.define(SIZE, Order.DESCENDING)));
+    
+    Assert.assertEquals(Arrays.asList("5", "2", "3", "4", "1", "1"), docIds(s.fetch(id, Index.define(SIZE, Order.DESCENDING))));
+    
+    s.addResult(id, record("6", "c", "99"));
+    
+    Assert.assertEquals(Arrays.asList("5", "6", "2", "3", "4", "1", "1"), docIds(s.fetch(id, Index.define(SIZE, Order.DESCENDING))));
+    
+    s.dropIndex(id, Index.define(SIZE, Order.DESCENDING));
+    
+    try {
+      s.fetch(id, Index.define(SIZE, Order.DESCENDING));
+      Assert.fail("SIZE is no longer indexed");
+    } catch (UnindexedColumnException e) {
+      // expected
+    }
+    
+    s.close();
+  }
+  
+  @Test
+  public void matchesCosmosImpl() throws Exception {
+    SortableResult memory = InMemoryCosmos.session(c, AUTHS).create(IdentitySet.<Index> create());
+    SortableResult accumulo = SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    Cosmos inMemory = new InMemoryCosmos(), impl = new CosmosImpl(zkConnectString());
+    
+    for (Cosmos s : Arrays.asList(inMemory, impl)) {
+      SortableResult id = s == inMemory ? memory : accumulo;
+      
+      s.register(id);
+      s.addResults(id, results());
+      s.addResult(id, record("6", "a b", "A", "15"));
+    }
+    
+    for (Index ordering : Arrays.asList(Index.define(NAME), Index.define(NAME, Order.DESCENDING), Index.define(SIZE), Index.define(SIZE, Order.DESCENDING))) {
+      Assert.assertEquals(ordering.toString(), docIds(impl.fetch(accumulo, ordering)), docIds(inMemory.fetch(memory, ordering)));
+      Assert.assertEquals(ordering.toString(), docIds(impl.fetch(accumulo, ordering, false)), docIds(inMemory.fetch(memory, ordering, false)));
+    }
+    
+    Assert.assertEquals(groups(impl.groupResults(accumulo, SIZE)), groups(inMemory.groupResults(memory, SIZE)));
+    Assert.assertEquals(docIds(impl.fetch(accumulo, SIZE, "15")), docIds(inMemory.fetch(memory, SIZE, "15")));
+    
+    impl.delete(accumulo);
+    impl.close();
+    inMemory.close();
+  }
+}
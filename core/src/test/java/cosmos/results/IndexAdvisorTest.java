@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.QueryCount;
+import cosmos.SortingMetadata.QueryType;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.IndexAdvisor;
+import cosmos.impl.IndexAdvisor.Action;
+import cosmos.impl.IndexAdvisor.Decision;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class IndexAdvisorTest extends AbstractSortableTest {
+  
+  protected int entries(SortableResult id, Column column) throws Exception {
+    Scanner s = c.createScanner(id.dataTable(), AUTHS);
+    s.fetchColumnFamily(new Text(column.column()));
+    
+    int count = 0;
+    for (Entry<Key,Value> entry : s) {
+      if (entry.getKey().getRow().toString().contains(id.uuid())) {
+        count++;
+      }
+    }
+    
+    return count;
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void requiresRecordedQueries() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).sortUnindexed(true).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    try {
+      new IndexAdvisor(s, id, 3, 1, TimeUnit.MILLISECONDS);
+    } finally {
+      s.close();
+    }
+  }
+  
+  @Test
+  public void buildHotDropCold() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).sortUnindexed(true).recordQueries(true).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    s.addResults(id, results());
+    
+    IndexAdvisor advisor = new IndexAdvisor(s, id, 3, 1, TimeUnit.MILLISECONDS);
+    
+    for (int i = 0; i < 3; i++) {
+      CloseableIterable<MultimapQueryResult> sorted = s.fetch(id, Index.define(AGE));
+      Assert.assertEquals(10, Iterables.size(sorted));
+      sorted.close();
+    }
+    
+    List<QueryCount> counts = SortingMetadata.queryCounts(id);
+    Assert.assertEquals(1, counts.size());
+    Assert.assertEquals(QueryType.ORDER, counts.get(0).type());
+    Assert.assertEquals(Index.define(AGE), counts.get(0).index());
+    Assert.assertEquals(3, counts.get(0).count());
+    
+    Thread.sleep(10);
+    
+    List<Decision> decisions = advisor.advise();
+    Assert.assertEquals(2, decisions.size());
+    for (Decision decision : decisions) {
+      Assert.assertEquals(Action.BUILD.equals(decision.action()) ? Index.define(AGE) : Index.define(NAME), decision.index());
+    }
+    
+    Assert.assertEquals(10, entries(id, NAME));
+    Assert.assertEquals(0, entries(id, AGE));
+    
+    advisor.apply(decisions);
+    
+    Assert.assertEquals(Sets.newHashSet(Index.define(AGE)), id.columnsToIndex());
+    Assert.assertEquals(0, entries(id, NAME));
+    Assert.assertEquals(10, entries(id, AGE));
+    Assert.assertTrue(id.tracer().getMetadata().containsKey("IndexAdvisor:BUILD:AGE:ASCENDING"));
+    Assert.assertTrue(id.tracer().getMetadata().containsKey("IndexAdvisor:DROP:NAME:ASCENDING"));
+    
+    // AGE is dropped once it goes unqueried, and is not built again from the queries made before the drop
+    Thread.sleep(10);
+    
+    decisions = advisor.advise();
+    Assert.assertEquals(1, decisions.size());
+    Assert.assertEquals(Action.DROP, decisions.get(0).action());
+    Assert.assertEquals(Index.define(AGE), decisions.get(0).index());
+    
+    advisor.apply(decisions);
+    
+    Assert.assertTrue(SortingMetadata.queryCounts(id).isEmpty());
+    Assert.assertEquals(0, entries(id, AGE));
+    
+    for (Decision decision : advisor.advise()) {
+      Assert.assertFalse(Action.BUILD.equals(decision.action()) && Index.define(AGE).equals(decision.index()));
+    }
+    
+    s.delete(id);
+    s.close();
+  }
+}
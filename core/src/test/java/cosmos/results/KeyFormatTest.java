@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.MigrateRowKeys;
+import cosmos.SortingMetadata;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.RowLayout;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class KeyFormatTest extends AbstractSortableTest {
+  
+  protected List<QueryResult<?>> results(Column column, int count) {
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(column, SValue.create(Integer.toString(i % 5), VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    return results;
+  }
+  
+  protected long count(RowLayout layout) throws Exception {
+    BatchScanner bs = c.createBatchScanner(Defaults.DATA_TABLE, AUTHS, 2);
+    bs.setRanges(layout.resultRanges());
+    long count = Iterables.size(bs);
+    bs.close();
+    
+    return count;
+  }
+  
+  @Test
+  public void binaryUuid() throws Exception {
+    final Column column = Column.create("NUMBER");
+    Set<Index> columns = Sets.newHashSet(Index.define(column, Order.ASCENDING), Index.define(column, Order.DESCENDING));
+    SortableResult id = SortableResult.builder(c, AUTHS, columns).keyFormat(KeyFormat.V2).documentShards(4).indexShards(2).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    Assert.assertEquals(KeyFormat.V2, SortingMetadata.getFormat(c, Defaults.METADATA_TABLE, id.uuid()));
+    
+    List<QueryResult<?>> results = results(column, 20);
+    s.addResults(id, results);
+    
+    // No row should contain the textual uuid
+    Scanner scanner = c.createScanner(Defaults.DATA_TABLE, AUTHS);
+    for (Entry<Key,Value> entry : scanner) {
+      Assert.assertFalse(entry.getKey().getRow().toString().contains(id.uuid()));
+    }
+    
+    Assert.assertEquals(results.get(3), s.contents(id, "3"));
+    
+    CloseableIterable<MultimapQueryResult> matching = s.fetch(id, column, "2");
+    Assert.assertEquals(4, Lists.newArrayList(matching).size());
+    matching.close();
+    
+    CloseableIterable<Entry<SValue,Long>> counts = s.groupResults(id, column);
+    List<Entry<SValue,Long>> groups = Lists.newArrayList(counts);
+    counts.close();
+    
+    Assert.assertEquals(5, groups.size());
+    for (int i = 0; i < groups.size(); i++) {
+      Assert.assertEquals(Integer.toString(i), groups.get(i).getKey().value());
+      Assert.assertEquals(Long.valueOf(4), groups.get(i).getValue());
+    }
+    
+    CloseableIterable<MultimapQueryResult> ordered = s.fetch(id, Index.define(column, Order.DESCENDING));
+    List<MultimapQueryResult> records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(20, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(Integer.toString(4 - i / 4), records.get(i).get(column).iterator().next().value());
+    }
+    
+    s.delete(id);
+    s.close();
+    
+    Assert.assertFalse(c.createScanner(Defaults.DATA_TABLE, AUTHS).iterator().hasNext());
+  }
+  
+  @Test
+  public void migrate() throws Exception {
+    final Column column = Column.create("NUMBER");
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(column))).documentShards(4).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results(column, 10));
+    s.finalize(id);
+    
+    final long entries = count(id.layout());
+    Assert.assertEquals(KeyFormat.V1, SortingMetadata.getFormat(c, Defaults.METADATA_TABLE, id.uuid()));
+    
+    Assert.assertEquals(entries, MigrateRowKeys.migrate(c, AUTHS, Defaults.DATA_TABLE, Defaults.METADATA_TABLE, id.layout(), KeyFormat.V2));
+    
+    RowLayout migrated = new RowLayout(id.uuid(), 1, 4, KeyFormat.V2);
+    Assert.assertEquals(KeyFormat.V2, SortingMetadata.getFormat(c, Defaults.METADATA_TABLE, id.uuid()));
+    Assert.assertEquals(0, count(id.layout()));
+    Assert.assertEquals(entries, count(migrated));
+    
+    Scanner scanner = c.createScanner(Defaults.DATA_TABLE, AUTHS);
+    scanner.setRange(migrated.documentRange("7"));
+    scanner.fetchColumnFamily(Defaults.CONTENTS_COLFAM_TEXT);
+    Assert.assertEquals(1, Iterables.size(scanner));
+    
+    s.close();
+  }
+  
+  @Test
+  public void migrateWithWrongShards() throws Exception {
+    final Column column = Column.create("NUMBER");
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(column))).documentShards(4).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results(column, 10));
+    s.finalize(id);
+    
+    final long entries = count(id.layout());
+    
+    try {
+      MigrateRowKeys.migrate(c, AUTHS, Defaults.DATA_TABLE, Defaults.METADATA_TABLE, new RowLayout(id.uuid(), 1, 1, KeyFormat.V1), KeyFormat.V2);
+      Assert.fail("Expected the recorded shards to be checked");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    
+    // Nothing was rewritten or deleted
+    Assert.assertEquals(KeyFormat.V1, SortingMetadata.getFormat(c, Defaults.METADATA_TABLE, id.uuid()));
+    Assert.assertEquals(entries, count(id.layout()));
+    
+    s.close();
+  }
+}
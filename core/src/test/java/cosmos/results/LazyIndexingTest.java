@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import cosmos.Cosmos;
+import cosmos.IndexBuildingException;
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.IndexState;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.IndexBuildPolicy;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class LazyIndexingTest extends AbstractSortableTest {
+  
+  protected List<QueryResult<?>> records(int count) {
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(NAME, SValue.create("name" + (count - i), VIZ));
+      data.put(AGE, SValue.create(Integer.toString(i % 3), VIZ));
+      
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    return results;
+  }
+  
+  protected int entries(SortableResult id, Column column) throws Exception {
+    Scanner s = c.createScanner(id.dataTable(), AUTHS);
+    s.fetchColumnFamily(new Text(column.column()));
+    
+    int count = 0;
+    for (Entry<Key,Value> entry : s) {
+      if (entry.getKey().getRow().toString().contains(id.uuid())) {
+        count++;
+      }
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void buildOnFirstQuery() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, IdentitySet.<Index> create()).lazyIndexing(IndexBuildPolicy.WAIT).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, records(10));
+    
+    // Only the presence of each column is recorded
+    Assert.assertEquals(0, entries(id, NAME));
+    Assert.assertEquals(0, entries(id, AGE));
+    Assert.assertEquals(2, Iterables.size(s.columns(id)));
+    
+    CloseableIterable<MultimapQueryResult> results = s.fetch(id, Index.define(NAME, Order.DESCENDING));
+    List<MultimapQueryResult> ordered = Lists.newArrayList(results);
+    results.close();
+    
+    Assert.assertEquals(10, ordered.size());
+    Assert.assertEquals("1", ordered.get(0).docId());
+    Assert.assertEquals(IndexState.BUILT, SortingMetadata.getIndexState(id, Index.define(NAME, Order.DESCENDING)));
+    Assert.assertEquals(10, entries(id, NAME));
+    Assert.assertEquals(0, entries(id, AGE));
+    
+    // Records added after a build are indexed as they are written
+    s.addResult(id, records(11).get(10));
+    Assert.assertEquals(11, entries(id, NAME));
+    
+    CloseableIterable<Entry<SValue,Long>> groups = s.groupResults(id, AGE);
+    List<Entry<SValue,Long>> counts = Lists.newArrayList(groups);
+    groups.close();
+    
+    Assert.assertEquals(3, counts.size());
+    Assert.assertEquals(Long.valueOf(4), counts.get(0).getValue());
+    Assert.assertEquals(Long.valueOf(4), counts.get(1).getValue());
+    Assert.assertEquals(Long.valueOf(3), counts.get(2).getValue());
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void buildWhileAdding() throws Exception {
+    final SortableResult id = SortableResult.builder(c, AUTHS, IdentitySet.<Index> create()).lazyIndexing(IndexBuildPolicy.WAIT).build();
+    
+    final Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Build the index after the index states were read for the records, but before half of them are written
+    final List<QueryResult<?>> records = records(10);
+    Iterable<QueryResult<?>> adding = new Iterable<QueryResult<?>>() {
+      @Override
+      public Iterator<QueryResult<?>> iterator() {
+        return new AbstractIterator<QueryResult<?>>() {
+          private int next = 0;
+          
+          @Override
+          protected QueryResult<?> computeNext() {
+            if (records.size() == next) {
+              return endOfData();
+            }
+            
+            if (records.size() / 2 == next) {
+              try {
+                s.fetch(id, Index.define(NAME)).close();
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            }
+            
+            return records.get(next++);
+          }
+        };
+      }
+    };
+    
+    s.addResults(id, adding);
+    
+    Assert.assertEquals(IndexState.BUILT, SortingMetadata.getIndexState(id, Index.define(NAME)));
+    Assert.assertEquals(10, entries(id, NAME));
+    
+    CloseableIterable<MultimapQueryResult> results = s.fetch(id, Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(results));
+    results.close();
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void failFast() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, IdentitySet.<Index> create()).lazyIndexing(IndexBuildPolicy.FAIL_FAST).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, records(10));
+    
+    final Index index = Index.define(NAME);
+    try {
+      s.fetch(id, index);
+      Assert.fail("Expected the index to be built in the background");
+    } catch (IndexBuildingException e) {
+      // Expected
+    }
+    
+    for (int i = 0; i < 100 && !IndexState.BUILT.equals(SortingMetadata.getIndexState(id, index)); i++) {
+      Thread.sleep(100);
+    }
+    
+    CloseableIterable<MultimapQueryResult> results = s.fetch(id, index);
+    Assert.assertEquals(10, Iterables.size(results));
+    results.close();
+    
+    s.delete(id);
+    s.close();
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.DocumentFormat;
+import cosmos.results.impl.LazyQueryResult;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class LazyQueryResultTest extends AbstractSortableTest {
+  
+  protected MultimapQueryResult document() {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    
+    data.put(Column.create("TEXT"), SValue.create("foo", VIZ));
+    data.put(Column.create("TEXT"), SValue.create("bar", VIZ));
+    data.put(Column.create("SECRET"), SValue.create("baz", new ColumnVisibility("secret")));
+    
+    return new MultimapQueryResult(data, "1", VIZ);
+  }
+  
+  @Test
+  public void decodeOnDemand() throws Exception {
+    MultimapQueryResult mqr = document();
+    
+    for (int version : new int[] {DocumentFormat.V1, DocumentFormat.V2}) {
+      DataOutputBuffer out = new DataOutputBuffer();
+      DocumentFormat.write(out, version, mqr.docId(), mqr.documentVisibility(), Lists.newArrayList(mqr.columnValues()));
+      
+      byte[] bytes = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+      
+      LazyQueryResult lazy = LazyQueryResult.create(new Value(bytes));
+      
+      Assert.assertEquals("1", lazy.docId());
+      Assert.assertEquals(VIZ, lazy.documentVisibility());
+      Assert.assertEquals(3, lazy.size());
+      Assert.assertEquals(Sets.newHashSet(Column.create("TEXT"), Column.create("SECRET")), lazy.columns());
+      Assert.assertEquals(Sets.newHashSet(mqr.get(Column.create("TEXT"))), Sets.newHashSet(lazy.get(Column.create("TEXT"))));
+      Assert.assertEquals(new ColumnVisibility("secret"), lazy.get(Column.create("SECRET")).iterator().next().visibility());
+      Assert.assertTrue(lazy.get(Column.create("MISSING")).isEmpty());
+      Assert.assertEquals(mqr, lazy.toMultimapQueryResult());
+      
+      // The serialized form is the wrapped bytes
+      Assert.assertArrayEquals(bytes, lazy.toValue().get());
+    }
+  }
+  
+  @Test
+  public void fetchLazily() throws Exception {
+    final Column name = Column.create("NAME");
+    Set<Index> columns = Sets.newHashSet(Index.define(name, Order.ASCENDING));
+    SortableResult id = SortableResult.create(c, AUTHS, columns);
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(name, SValue.create("name" + (9 - i), VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    CloseableIterable<LazyQueryResult> all = s.fetchLazily(id);
+    Set<String> docIds = Sets.newHashSet();
+    for (LazyQueryResult lazy : all) {
+      docIds.add(lazy.docId());
+    }
+    all.close();
+    
+    Assert.assertEquals(10, docIds.size());
+    
+    CloseableIterable<LazyQueryResult> matching = s.fetchLazily(id, name, "name3");
+    List<LazyQueryResult> found = Lists.newArrayList(matching);
+    matching.close();
+    
+    Assert.assertEquals(1, found.size());
+    Assert.assertEquals(results.get(6), found.get(0).toMultimapQueryResult());
+    
+    CloseableIterable<LazyQueryResult> ordered = s.fetchLazily(id, Index.define(name, Order.ASCENDING), true);
+    List<LazyQueryResult> records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(10, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals("name" + i, records.get(i).get(name).iterator().next().value());
+    }
+    
+    s.delete(id);
+    s.close();
+  }
+}
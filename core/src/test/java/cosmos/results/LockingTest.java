@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.retry.RetryOneTime;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.trace.Timings.TimedRegions.TimedRegion;
+
+@RunWith(JUnit4.class)
+public class LockingTest extends AbstractSortableTest {
+  
+  protected long lockWait(SortableResult id, String operation) {
+    long wait = -1;
+    for (TimedRegion timing : id.tracer().getTimings()) {
+      if (("Cosmos:" + operation + ":lockWait").equals(timing.getDescription())) {
+        wait = Math.max(wait, timing.getDuration());
+      }
+    }
+    
+    return wait;
+  }
+  
+  @Test
+  public void writersShareTheLock() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)), true);
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    s.register(id);
+    
+    CuratorFramework curator = CuratorFrameworkFactory.newClient(zkConnectString(), new RetryOneTime(100));
+    curator.start();
+    
+    // Another writer holds the read lock
+    InterProcessMutex other = new InterProcessReadWriteLock(curator, Defaults.CURATOR_PREFIX + id.uuid()).readLock();
+    Assert.assertTrue(other.acquire(1, TimeUnit.SECONDS));
+    
+    try {
+      s.addResults(id, results(0, 10));
+      s.addResults(id, results(10, 10));
+    } finally {
+      other.release();
+      curator.close();
+    }
+    
+    Assert.assertTrue(0 <= lockWait(id, "addResults"));
+    Assert.assertTrue(lockWait(id, "addResults") < TimeUnit.SECONDS.toMillis(CosmosImpl.LOCK_SECS));
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(id, Index.define(NAME));
+    Assert.assertEquals(20, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void indexWaitsForWriters() throws Exception {
+    final SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)), true);
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    s.register(id);
+    s.addResults(id, results(0, 10));
+    
+    final CuratorFramework curator = CuratorFrameworkFactory.newClient(zkConnectString(), new RetryOneTime(100));
+    curator.start();
+    
+    final CountDownLatch acquired = new CountDownLatch(1);
+    
+    // A writer in another thread holds the read lock for a while
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        InterProcessMutex other = new InterProcessReadWriteLock(curator, Defaults.CURATOR_PREFIX + id.uuid()).readLock();
+        try {
+          if (other.acquire(1, TimeUnit.SECONDS)) {
+            acquired.countDown();
+            Thread.sleep(500);
+            other.release();
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    
+    Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    
+    s.index(id, Sets.newHashSet(Index.define(AGE)));
+    
+    writer.join();
+    curator.close();
+    
+    Assert.assertTrue(lockWait(id, "index") >= 250);
+    
+    CloseableIterable<MultimapQueryResult> fetched = s.fetch(id, Index.define(AGE));
+    Assert.assertEquals(10, Iterables.size(fetched));
+    fetched.close();
+    
+    s.delete(id);
+    s.close();
+  }
+}
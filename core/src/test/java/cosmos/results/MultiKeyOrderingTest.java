@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import cosmos.Cosmos;
+import cosmos.UnindexedColumnException;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class MultiKeyOrderingTest extends AbstractSortableTest {
+  
+  protected static final Column CITY = Column.create("CITY");
+  
+  protected MultimapQueryResult record(String docId, String city, String name, String age) {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    data.put(CITY, SValue.create(city, VIZ));
+    data.put(NAME, SValue.create(name, VIZ));
+    if (null != age) {
+      data.put(AGE, SValue.create(age, VIZ));
+    }
+    
+    return new MultimapQueryResult(data, docId, VIZ);
+  }
+  
+  protected List<String> docIds(CloseableIterable<MultimapQueryResult> results) {
+    List<String> docIds = Lists.newArrayList();
+    for (MultimapQueryResult result : results) {
+      docIds.add(result.docId());
+    }
+    results.close();
+    
+    return docIds;
+  }
+  
+  @Test
+  public void secondarySort() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(CITY), Index.define(CITY, Order.DESCENDING))).indexShards(4)
+        .build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    results.add(record("1", "Baltimore", "carol", "30"));
+    results.add(record("2", "Annapolis", "bob", "40"));
+    results.add(record("3", "Baltimore", "alice", "30"));
+    results.add(record("4", "Baltimore", "alice", "25"));
+    results.add(record("5", "Annapolis", "dave", null));
+    results.add(record("6", "Annapolis", "erin", "35"));
+    
+    s.addResults(id, results);
+    
+    // NAME and AGE are not indexed
+    Assert.assertEquals(Arrays.asList("2", "5", "6", "4", "3", "1"),
+        docIds(s.fetch(id, Arrays.asList(Index.define(CITY), Index.define(NAME), Index.define(AGE)), true)));
+    
+    Assert.assertEquals(Arrays.asList("2", "6", "5", "3", "1", "4"),
+        docIds(s.fetch(id, Arrays.asList(Index.define(CITY), Index.define(AGE, Order.DESCENDING), Index.define(NAME)), true)));
+    
+    Assert.assertEquals(Arrays.asList("1", "4", "3", "6", "5", "2"),
+        docIds(s.fetch(id, Arrays.asList(Index.define(CITY, Order.DESCENDING), Index.define(NAME, Order.DESCENDING), Index.define(AGE)), true)));
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void spillsTies() throws Exception {
+    File directory = Files.createTempDir();
+    
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(CITY))).sortBufferSize(1).sortDirectory(directory).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Every record ties on CITY
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      results.add(record(Integer.toString(i), "Baltimore", String.format("name%02d", (i * 7) % 20), null));
+    }
+    s.addResults(id, results);
+    
+    CloseableIterable<MultimapQueryResult> sorted = s.fetch(id, Arrays.asList(Index.define(CITY), Index.define(NAME)), true);
+    
+    int count = 0;
+    for (MultimapQueryResult result : sorted) {
+      // The buffer holds less than one record
+      Assert.assertTrue(0 < directory.listFiles().length);
+      Assert.assertEquals(String.format("name%02d", count), result.get(NAME).iterator().next().value());
+      count++;
+    }
+    sorted.close();
+    
+    Assert.assertEquals(20, count);
+    Assert.assertEquals(0, directory.listFiles().length);
+    
+    s.delete(id);
+    s.close();
+    
+    directory.delete();
+  }
+  
+  @Test(expected = UnindexedColumnException.class)
+  public void firstColumnIndexed() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(CITY)));
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, Lists.<QueryResult<?>> newArrayList(record("1", "Baltimore", "carol", "30")));
+    
+    try {
+      s.fetch(id, Arrays.asList(Index.define(NAME), Index.define(CITY)), true);
+    } finally {
+      s.delete(id);
+      s.close();
+    }
+  }
+}
@@ -28,6 +28,7 @@ import org.junit.Test;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 
+import cosmos.results.impl.DocumentFormat;
 import cosmos.results.impl.MultimapQueryResult;
 
 /**
@@ -85,4 +86,74 @@ public class MultimapQueryResultTest extends AbstractSortableTest {
     Assert.assertNotEquals(mqr3, mqr4);
   }
   
+  @Test
+  public void readsV1() throws Exception {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    
+    data.put(Column.create("TEXT"), SValue.create("foo", VIZ));
+    data.put(Column.create("TEXT"), SValue.create("bar", VIZ));
+    data.put(Column.create("SECRET"), SValue.create("baz", new ColumnVisibility("secret")));
+    
+    MultimapQueryResult mqr = new MultimapQueryResult(data, "1", VIZ);
+    
+    DataOutputBuffer out = new DataOutputBuffer();
+    DocumentFormat.write(out, DocumentFormat.V1, mqr.docId(), mqr.documentVisibility(), data.entries());
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    
+    Assert.assertEquals(mqr, MultimapQueryResult.recreate(in));
+  }
+  
+  @Test
+  public void compactV2() throws Exception {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    
+    for (int i = 0; i < 10; i++) {
+      data.put(Column.create("TEXT"), SValue.create("foo" + i, VIZ));
+    }
+    data.put(Column.create("SECRET"), SValue.create("baz", new ColumnVisibility("secret")));
+    
+    MultimapQueryResult mqr = new MultimapQueryResult(data, "1", VIZ);
+    
+    DataOutputBuffer v1 = new DataOutputBuffer();
+    DocumentFormat.write(v1, DocumentFormat.V1, mqr.docId(), mqr.documentVisibility(), data.entries());
+    
+    DataOutputBuffer v2 = new DataOutputBuffer();
+    mqr.write(v2);
+    
+    Assert.assertTrue("Expected v2 (" + v2.getLength() + ") to be smaller than v1 (" + v1.getLength() + ")", v2.getLength() < v1.getLength());
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(v2.getData(), v2.getLength());
+    
+    MultimapQueryResult mqr2 = MultimapQueryResult.recreate(in);
+    
+    Assert.assertEquals(mqr, mqr2);
+    Assert.assertEquals(new ColumnVisibility("secret"), mqr2.get(Column.create("SECRET")).iterator().next().visibility());
+  }
+  
+  @Test
+  public void internedOnRead() throws Exception {
+    Multimap<Column,SValue> data = HashMultimap.create();
+    data.put(Column.create("TEXT"), SValue.create("foo", new ColumnVisibility("secret")));
+    
+    MultimapQueryResult mqr = new MultimapQueryResult(data, "1", VIZ);
+    
+    DataOutputBuffer out = new DataOutputBuffer();
+    mqr.write(out);
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    MultimapQueryResult first = MultimapQueryResult.recreate(in);
+    
+    in.reset(out.getData(), out.getLength());
+    MultimapQueryResult second = MultimapQueryResult.recreate(in);
+    
+    // Decoding the same bytes again should reuse the same instances
+    Assert.assertSame(first.documentVisibility(), second.documentVisibility());
+    Assert.assertSame(first.columnValues().iterator().next().getKey(), second.columnValues().iterator().next().getKey());
+    Assert.assertSame(first.columnValues().iterator().next().getValue().visibility(), second.columnValues().iterator().next().getValue().visibility());
+  }
+  
 }
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.IndexState;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Codec;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.util.IdentitySet;
+
+@RunWith(JUnit4.class)
+public class OpenResultTest extends AbstractSortableTest {
+  
+  @Test
+  public void openWithRecordedOptions() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).indexShards(2).keyFormat(KeyFormat.V2)
+        .contentsCodec(Codec.DEFLATE).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    SortableResult opened = SortableResult.open(c, id.uuid());
+    
+    Assert.assertEquals(id.uuid(), opened.uuid());
+    Assert.assertEquals(id.dataTable(), opened.dataTable());
+    Assert.assertEquals(2, opened.layout().indexShards());
+    Assert.assertEquals(KeyFormat.V2, opened.layout().format());
+    Assert.assertEquals(Codec.DEFLATE, opened.contentsCodec());
+    Assert.assertEquals(Sets.newHashSet(Index.define(NAME)), opened.columnsToIndex());
+    Assert.assertEquals(IndexState.BUILT, SortingMetadata.getIndexState(opened, Index.define(NAME)));
+    
+    // Readers in the same process share what was recorded, but not their traces
+    SortableResult reopened = SortableResult.open(c, AUTHS, Defaults.METADATA_TABLE, id.uuid());
+    Assert.assertNotSame(opened, reopened);
+    Assert.assertNotSame(opened.tracer(), reopened.tracer());
+    Assert.assertEquals(opened.columnsToIndex(), reopened.columnsToIndex());
+    
+    CloseableIterable<MultimapQueryResult> results = s.fetch(opened, Index.define(NAME));
+    Assert.assertEquals(10, Iterables.size(results));
+    results.close();
+    
+    s.delete(id);
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    s.close();
+    
+    // A deleted result is no longer opened from what was recorded before
+    try {
+      SortableResult.open(c, id.uuid());
+      Assert.fail("Expected the options of the deleted result to be gone");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+  
+  @Test
+  public void indexesFromOtherClients() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    
+    SortableResult opened = SortableResult.open(c, id.uuid());
+    
+    s.index(id, Sets.newHashSet(Index.define(AGE)));
+    
+    // The catalog is reloaded when an unknown index is queried
+    CloseableIterable<MultimapQueryResult> results = s.fetch(opened, Index.define(AGE));
+    Assert.assertEquals(10, Iterables.size(results));
+    results.close();
+    
+    Assert.assertEquals(Sets.newHashSet(Index.define(NAME), Index.define(AGE)), opened.columnsToIndex());
+    
+    s.dropIndex(id, Index.define(NAME));
+    
+    Assert.assertEquals(Sets.newHashSet(Index.define(AGE)), SortingMetadata.indexes(c, Defaults.METADATA_TABLE, id.uuid()));
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void openIdentitySet() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, IdentitySet.<Index> create());
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    Assert.assertTrue(SortableResult.open(c, id.uuid()).columnsToIndex() instanceof IdentitySet);
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void openUnknownResult() throws Exception {
+    SortableResult.open(c, UUID.randomUUID().toString());
+  }
+}
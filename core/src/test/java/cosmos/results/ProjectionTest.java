@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Codec;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class ProjectionTest extends AbstractSortableTest {
+  
+  @Test
+  public void projectedFetch() throws Exception {
+    final Column name = Column.create("NAME"), age = Column.create("AGE");
+    Set<Index> columns = Sets.newHashSet(Index.define(name, Order.ASCENDING));
+    SortableResult id = SortableResult.builder(c, AUTHS, columns).contentsCodec(Codec.LZ).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(name, SValue.create("name" + i, VIZ));
+      data.put(age, SValue.create(Integer.toString(20 + i), VIZ));
+      for (int j = 0; j < 20; j++) {
+        data.put(Column.create("COLUMN" + j), SValue.create("value" + j, VIZ));
+      }
+      
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    final Set<Column> projection = Sets.newHashSet(name, age);
+    
+    MultimapQueryResult projected = s.contents(id, "3", projection);
+    Assert.assertEquals("3", projected.docId());
+    Assert.assertEquals(VIZ, projected.documentVisibility());
+    Assert.assertEquals(2, projected.columnSize());
+    Assert.assertEquals(SValue.create("name3", VIZ), projected.get(name).iterator().next());
+    Assert.assertEquals(SValue.create("23", VIZ), projected.get(age).iterator().next());
+    
+    CloseableIterable<MultimapQueryResult> all = s.fetch(id, projection);
+    int count = 0;
+    for (MultimapQueryResult result : all) {
+      Assert.assertEquals(2, result.columnSize());
+      count++;
+    }
+    all.close();
+    Assert.assertEquals(10, count);
+    
+    CloseableIterable<MultimapQueryResult> matching = s.fetch(id, name, "name5", Sets.newHashSet(age));
+    List<MultimapQueryResult> found = Lists.newArrayList(matching);
+    matching.close();
+    
+    Assert.assertEquals(1, found.size());
+    Assert.assertEquals(1, found.get(0).columnSize());
+    Assert.assertEquals(SValue.create("25", VIZ), found.get(0).get(age).iterator().next());
+    
+    CloseableIterable<MultimapQueryResult> ordered = s.fetch(id, Index.define(name, Order.ASCENDING), true, Sets.newHashSet(name));
+    List<MultimapQueryResult> records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(10, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(1, records.get(i).columnSize());
+      Assert.assertEquals("name" + i, records.get(i).get(name).iterator().next().value());
+    }
+    
+    // Without a projection, the whole record is returned
+    Assert.assertEquals(results.get(3), s.contents(id, "3"));
+    
+    s.delete(id);
+    s.close();
+  }
+}
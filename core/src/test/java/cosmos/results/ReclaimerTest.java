@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.SortingMetadata.State;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.CosmosSession;
+import cosmos.impl.Reclaimer;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.KeyFormat;
+
+@RunWith(JUnit4.class)
+public class ReclaimerTest extends AbstractSortableTest {
+  
+  protected int entries(SortableResult id) throws Exception {
+    int count = 0;
+    for (Range range : id.layout().resultRanges()) {
+      Scanner s = c.createScanner(id.dataTable(), AUTHS);
+      s.setRange(range);
+      count += Iterables.size(s);
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void deleteInBackground() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, results());
+    s.finalize(id);
+    
+    s.delete(id);
+    
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    Assert.assertEquals(0, entries(id));
+    Assert.assertEquals(State.UNKNOWN, SortingMetadata.getState(id));
+    
+    s.close();
+  }
+  
+  @Test
+  public void reclaimStaleResults() throws Exception {
+    CosmosSession session = new CosmosSession(c, AUTHS, "reclaimData", "reclaimMetadata");
+    SortableResult loading = session.create(Sets.newHashSet(Index.define(NAME)));
+    SortableResult loaded = session.create(Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(loading);
+    s.register(loaded);
+    s.addResults(loading, results());
+    s.addResults(loaded, results());
+    s.finalize(loaded);
+    
+    Reclaimer reclaimer = new Reclaimer(s, session, 1, TimeUnit.MILLISECONDS);
+    
+    Thread.sleep(10);
+    
+    List<SortableResult> reclaimed = reclaimer.reclaimStale();
+    Assert.assertEquals(1, reclaimed.size());
+    Assert.assertEquals(loading.uuid(), reclaimed.get(0).uuid());
+    
+    Assert.assertTrue(s.awaitDeletion(loading, 30, TimeUnit.SECONDS));
+    Assert.assertEquals(0, entries(loading));
+    Assert.assertEquals(State.UNKNOWN, SortingMetadata.getState(loading));
+    
+    Assert.assertEquals(30, entries(loaded));
+    Assert.assertEquals(State.LOADED, SortingMetadata.getState(loaded));
+    
+    // Recently modified results are left alone
+    Assert.assertTrue(new Reclaimer(s, session, 1, TimeUnit.HOURS).reclaimStale().isEmpty());
+    
+    s.close();
+  }
+  
+  @Test
+  public void reclaimExpiredEphemeralResults() throws Exception {
+    CosmosSession session = new CosmosSession(c, AUTHS, "reclaimData", "reclaimMetadata");
+    SortableResult ephemeral = session.builder(Sets.newHashSet(Index.define(NAME))).ephemeral(500, TimeUnit.MILLISECONDS).build();
+    SortableResult durable = session.create(Sets.newHashSet(Index.define(NAME)));
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    for (SortableResult id : Arrays.asList(ephemeral, durable)) {
+      s.register(id);
+      s.addResults(id, results());
+      s.finalize(id);
+    }
+    
+    Reclaimer reclaimer = new Reclaimer(s, session, 1, TimeUnit.HOURS);
+    
+    // Entries of the ephemeral result have not aged off yet
+    Assert.assertTrue(reclaimer.reclaimStale().isEmpty());
+    
+    Thread.sleep(1000);
+    
+    List<SortableResult> reclaimed = reclaimer.reclaimStale();
+    Assert.assertEquals(1, reclaimed.size());
+    Assert.assertEquals(ephemeral.uuid(), reclaimed.get(0).uuid());
+    
+    Assert.assertTrue(s.awaitDeletion(ephemeral, 30, TimeUnit.SECONDS));
+    Assert.assertEquals(State.UNKNOWN, SortingMetadata.getState(ephemeral));
+    
+    Assert.assertEquals(30, entries(durable));
+    Assert.assertEquals(State.LOADED, SortingMetadata.getState(durable));
+    
+    s.close();
+  }
+  
+  @Test
+  public void reclaimUnregisteredData() throws Exception {
+    CosmosSession session = new CosmosSession(c, AUTHS, "reclaimData", "reclaimMetadata");
+    SortableResult live = session.builder(Sets.newHashSet(Index.define(NAME))).documentShards(4).build();
+    SortableResult binary = session.builder(Sets.newHashSet(Index.define(NAME))).keyFormat(KeyFormat.V2).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    for (SortableResult id : Arrays.asList(live, binary)) {
+      s.register(id);
+      s.addResults(id, results());
+    }
+    
+    // Rows left behind by a result whose metadata was removed, written before the time-to-live
+    final long written = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+    final String orphan = UUID.randomUUID().toString();
+    BatchWriter bw = c.createBatchWriter(session.dataTable(), new BatchWriterConfig());
+    for (String row : new String[] {orphan + "\0doc1", orphan + "\0doc2", "03\0" + orphan + "\0doc3"}) {
+      Mutation m = new Mutation(row);
+      m.put("NAME", "value", VIZ, written, new Value(new byte[0]));
+      bw.addMutation(m);
+    }
+    bw.close();
+    
+    // A table for a single result which has no metadata
+    final String orphanTable = session.dataTable() + "_" + UUID.randomUUID().toString().replace('-', '_');
+    c.tableOperations().create(orphanTable);
+    bw = c.createBatchWriter(orphanTable, new BatchWriterConfig());
+    Mutation m = new Mutation("row");
+    m.put("NAME", "value", VIZ, written, new Value(new byte[0]));
+    bw.addMutation(m);
+    bw.close();
+    
+    Reclaimer reclaimer = new Reclaimer(s, session, 1, TimeUnit.HOURS);
+    
+    // The table, and the unsharded and sharded prefixes
+    Assert.assertEquals(3, reclaimer.reclaimUnregistered());
+    
+    Assert.assertFalse(c.tableOperations().exists(orphanTable));
+    
+    // Binary rows are skipped rather than reclaimed
+    Scanner scanner = c.createScanner(session.dataTable(), AUTHS);
+    Assert.assertEquals(60, Iterables.size(scanner));
+    Assert.assertEquals(30, entries(live));
+    Assert.assertEquals(30, entries(binary));
+    
+    Assert.assertEquals(0, reclaimer.reclaimUnregistered());
+    
+    s.close();
+  }
+  
+  @Test
+  public void reclaimUnregisteredEphemeralData() throws Exception {
+    CosmosSession session = new CosmosSession(c, AUTHS, "reclaimData", "reclaimMetadata");
+    SortableResult live = session.builder(Sets.newHashSet(Index.define(NAME))).ephemeral(1, TimeUnit.DAYS).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(live);
+    s.addResults(live, results());
+    
+    // Rows left behind in the table shared by ephemeral results, written before the time-to-live but not yet aged off
+    final long written = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+    BatchWriter bw = c.createBatchWriter(live.dataTable(), new BatchWriterConfig());
+    Mutation m = new Mutation(UUID.randomUUID().toString() + "\0doc1");
+    m.put("NAME", "value", VIZ, written, new Value(new byte[0]));
+    bw.addMutation(m);
+    bw.close();
+    
+    // A table for a single ephemeral result which has no metadata
+    final String orphanTable = live.dataTable() + "_" + UUID.randomUUID().toString().replace('-', '_');
+    c.tableOperations().create(orphanTable);
+    bw = c.createBatchWriter(orphanTable, new BatchWriterConfig());
+    m = new Mutation("row");
+    m.put("NAME", "value", VIZ, written, new Value(new byte[0]));
+    bw.addMutation(m);
+    bw.close();
+    
+    Reclaimer reclaimer = new Reclaimer(s, session, 1, TimeUnit.HOURS);
+    
+    // The table, and the prefix in the shared ephemeral table
+    Assert.assertEquals(2, reclaimer.reclaimUnregistered());
+    
+    Assert.assertFalse(c.tableOperations().exists(orphanTable));
+    Assert.assertTrue(c.tableOperations().exists(live.dataTable()));
+    
+    Scanner scanner = c.createScanner(live.dataTable(), AUTHS);
+    Assert.assertEquals(30, Iterables.size(scanner));
+    Assert.assertEquals(30, entries(live));
+    
+    Assert.assertEquals(0, reclaimer.reclaimUnregistered());
+    
+    s.close();
+  }
+  
+  @Test
+  public void keepResultsRegisteredDuringReclaim() throws Exception {
+    final CosmosSession session = new CosmosSession(c, AUTHS, "reclaimData", "reclaimMetadata");
+    final SortableResult shared = session.create(Sets.newHashSet(Index.define(NAME)));
+    final SortableResult perTable = session.builder(Sets.newHashSet(Index.define(NAME))).tablePerResult(true).build();
+    
+    final CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    // Register and write both results after the uuids with metadata are read, and let their rows outlive the time-to-live
+    Reclaimer reclaimer = new Reclaimer(s, session, 1, TimeUnit.MILLISECONDS) {
+      @Override
+      protected Set<String> registered() throws TableNotFoundException {
+        Set<String> registered = super.registered();
+        
+        try {
+          for (SortableResult id : Arrays.asList(shared, perTable)) {
+            s.register(id);
+            s.addResults(id, results());
+          }
+          
+          Thread.sleep(10);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        
+        return registered;
+      }
+    };
+    
+    Assert.assertEquals(0, reclaimer.reclaimUnregistered());
+    
+    Assert.assertTrue(c.tableOperations().exists(perTable.dataTable()));
+    Assert.assertEquals(30, entries(shared));
+    Assert.assertEquals(30, entries(perTable));
+    
+    s.close();
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import cosmos.SortingMetadata;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.results.impl.MultimapQueryResult;
+import cosmos.trace.Timings.TimedRegions.TimedRegion;
+
+@RunWith(JUnit4.class)
+public class SchemaEpochTest extends AbstractSortableTest {
+  
+  protected int fetched(CosmosImpl s, SortableResult id, Index index) throws Exception {
+    CloseableIterable<MultimapQueryResult> results = s.fetch(SortableResult.open(c, id.uuid()), index);
+    int count = Iterables.size(results);
+    results.close();
+    return count;
+  }
+  
+  @Test
+  public void indexAdvancesEpoch() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).lockOnUpdates(true).schemaEpochs(true).build();
+    
+    CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    Assert.assertEquals(0, SortingMetadata.getEpoch(id));
+    
+    s.addResults(id, results(0, 10));
+    
+    s.index(id, Sets.newHashSet(Index.define(AGE)));
+    
+    Assert.assertEquals(1, SortingMetadata.getEpoch(id));
+    
+    s.addResults(id, results(10, 10));
+    
+    Assert.assertEquals(20, fetched(s, id, Index.define(NAME)));
+    Assert.assertEquals(20, fetched(s, id, Index.define(AGE)));
+    
+    // Each record is tagged with the epoch it was written under
+    Scanner scanner = c.createScanner(Defaults.DATA_TABLE, AUTHS);
+    scanner.fetchColumnFamily(Defaults.DOCID_FIELD_NAME_TEXT);
+    int[] epochs = new int[2];
+    for (Entry<Key,Value> entry : scanner) {
+      epochs[Integer.parseInt(entry.getValue().toString())]++;
+    }
+    Assert.assertArrayEquals(new int[] {10, 10}, epochs);
+    
+    // No ZooKeeper locks were taken
+    for (TimedRegion timing : id.tracer().getTimings()) {
+      Assert.assertFalse(timing.getDescription().endsWith(":lockWait"));
+    }
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void writerBackfillsConcurrentIndex() throws Exception {
+    final SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).schemaEpochs(true).build();
+    
+    final CosmosImpl s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Another client indexes AGE while the records are being written
+    final List<QueryResult<?>> results = results(0, 20);
+    Iterable<QueryResult<?>> racing = new Iterable<QueryResult<?>>() {
+      @Override
+      public Iterator<QueryResult<?>> iterator() {
+        final Iterator<QueryResult<?>> iter = results.iterator();
+        return new Iterator<QueryResult<?>>() {
+          private int count = 0;
+          
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+          
+          @Override
+          public QueryResult<?> next() {
+            if (10 == count++) {
+              try {
+                s.index(SortableResult.open(c, id.uuid()), Sets.newHashSet(Index.define(AGE)));
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            }
+            
+            return iter.next();
+          }
+          
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+    
+    s.addResults(id, racing);
+    
+    Assert.assertEquals(1, id.epoch());
+    Assert.assertTrue(id.columnsToIndex().contains(Index.define(AGE)));
+    Assert.assertEquals(20, fetched(s, id, Index.define(AGE)));
+    
+    s.delete(id);
+    s.close();
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import cosmos.Cosmos;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.RowLayout;
+import cosmos.impl.SortableResult;
+import cosmos.options.Defaults;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class ShardedIndexTest extends AbstractSortableTest {
+  
+  @Test
+  public void layout() {
+    RowLayout layout = new RowLayout("uuid", 16);
+    
+    Text row = layout.indexRow("foo", Order.ASCENDING, "1");
+    Assert.assertEquals("foo", layout.value(row));
+    Assert.assertTrue(layout.valueRanges("foo").get(0).contains(new Key(row)));
+    Assert.assertFalse(layout.valueRanges("fo").get(0).contains(new Key(row)));
+    Assert.assertTrue(layout.groupRange(layout.indexRow("foo", Order.ASCENDING, "2")).contains(new Key(row)));
+    
+    RowLayout unsharded = new RowLayout("uuid");
+    row = unsharded.indexRow("foo", Order.ASCENDING, "1");
+    Assert.assertEquals(new Text("uuid" + Defaults.NULL_BYTE_STR + "foo"), row);
+    Assert.assertEquals("foo", unsharded.value(row));
+    
+    Assert.assertEquals(16, RowLayout.fromOptions(layout.toOptions()).indexShards());
+    
+    RowLayout partitioned = new RowLayout("uuid", 4, 8);
+    row = partitioned.indexRow("foo", Order.ASCENDING, "1");
+    Assert.assertEquals("foo", partitioned.value(row));
+    Assert.assertEquals(8, partitioned.resultRanges().size());
+    Assert.assertEquals(8, partitioned.valueRanges("foo").size());
+    
+    int containing = 0;
+    for (Range range : partitioned.valueRanges("foo")) {
+      if (range.contains(new Key(row))) {
+        containing++;
+      }
+    }
+    Assert.assertEquals(1, containing);
+    
+    Assert.assertEquals(8, RowLayout.fromOptions(partitioned.toOptions()).documentShards());
+  }
+  
+  @Test
+  public void hotValue() throws Exception {
+    final Column name = Column.create("NAME");
+    Set<Index> columns = Sets.newHashSet(Index.define(name, Order.ASCENDING), Index.define(name, Order.DESCENDING));
+    SortableResult id = SortableResult.builder(c, AUTHS, columns).indexShards(4).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(name, SValue.create(i < 16 ? "hot" : "cold", VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    // The entries for the hot value should be spread across multiple rows
+    Scanner scanner = c.createScanner(Defaults.DATA_TABLE, AUTHS);
+    scanner.setRange(id.layout().valueRanges("hot").get(0));
+    Set<Text> rows = Sets.newHashSet();
+    for (Entry<Key,Value> entry : scanner) {
+      rows.add(entry.getKey().getRow());
+    }
+    Assert.assertTrue("Expected more than one row but found " + rows, rows.size() > 1);
+    
+    CloseableIterable<MultimapQueryResult> hot = s.fetch(id, name, "hot");
+    Assert.assertEquals(16, Lists.newArrayList(hot).size());
+    hot.close();
+    
+    CloseableIterable<Entry<SValue,Long>> counts = s.groupResults(id, name);
+    List<Entry<SValue,Long>> groups = Lists.newArrayList(counts);
+    counts.close();
+    
+    Assert.assertEquals(2, groups.size());
+    Assert.assertEquals("cold", groups.get(0).getKey().value());
+    Assert.assertEquals(Long.valueOf(4), groups.get(0).getValue());
+    Assert.assertEquals("hot", groups.get(1).getKey().value());
+    Assert.assertEquals(Long.valueOf(16), groups.get(1).getValue());
+    
+    CloseableIterable<MultimapQueryResult> ordered = s.fetch(id, Index.define(name, Order.ASCENDING));
+    List<MultimapQueryResult> records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(20, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(i < 4 ? "cold" : "hot", records.get(i).get(name).iterator().next().value());
+    }
+    
+    ordered = s.fetch(id, Index.define(name, Order.DESCENDING));
+    records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(20, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(i < 16 ? "hot" : "cold", records.get(i).get(name).iterator().next().value());
+    }
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void documentShards() throws Exception {
+    final Column size = Column.create("SIZE");
+    Set<Index> columns = Sets.newHashSet(Index.define(size, Order.ASCENDING), Index.define(size, Order.DESCENDING));
+    SortableResult id = SortableResult.builder(c, AUTHS, columns).documentShards(8).indexShards(2).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(size, SValue.create(String.format("%02d", i % 10), VIZ));
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    s.addResults(id, results);
+    
+    // The result should be spread across the table
+    Set<Character> firstBytes = Sets.newHashSet();
+    for (Entry<Key,Value> entry : c.createScanner(Defaults.DATA_TABLE, AUTHS)) {
+      firstBytes.add(entry.getKey().getRow().toString().charAt(0));
+    }
+    Assert.assertTrue("Expected rows in multiple shards but found " + firstBytes, firstBytes.size() > 1);
+    
+    CloseableIterable<MultimapQueryResult> all = s.fetch(id);
+    Assert.assertEquals(50, Lists.newArrayList(all).size());
+    all.close();
+    
+    Assert.assertEquals(results.get(7), s.contents(id, "7"));
+    
+    CloseableIterable<MultimapQueryResult> matching = s.fetch(id, size, "03");
+    Assert.assertEquals(5, Lists.newArrayList(matching).size());
+    matching.close();
+    
+    CloseableIterable<Entry<SValue,Long>> counts = s.groupResults(id, size);
+    List<Entry<SValue,Long>> groups = Lists.newArrayList(counts);
+    counts.close();
+    
+    Assert.assertEquals(10, groups.size());
+    for (int i = 0; i < groups.size(); i++) {
+      Assert.assertEquals(String.format("%02d", i), groups.get(i).getKey().value());
+      Assert.assertEquals(Long.valueOf(5), groups.get(i).getValue());
+    }
+    
+    CloseableIterable<MultimapQueryResult> ordered = s.fetch(id, Index.define(size, Order.ASCENDING));
+    List<MultimapQueryResult> records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(50, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(String.format("%02d", i / 5), records.get(i).get(size).iterator().next().value());
+    }
+    
+    ordered = s.fetch(id, Index.define(size, Order.DESCENDING));
+    records = Lists.newArrayList(ordered);
+    ordered.close();
+    
+    Assert.assertEquals(50, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(String.format("%02d", 9 - i / 5), records.get(i).get(size).iterator().next().value());
+    }
+    
+    s.delete(id);
+    s.close();
+    
+    Assert.assertFalse(c.createScanner(Defaults.DATA_TABLE, AUTHS).iterator().hasNext());
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *  Copyright 2013 Josh Elser
+ *
+ */
+package cosmos.results;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import cosmos.Cosmos;
+import cosmos.UnindexedColumnException;
+import cosmos.impl.CosmosImpl;
+import cosmos.impl.SortableResult;
+import cosmos.options.Index;
+import cosmos.options.Order;
+import cosmos.results.impl.MultimapQueryResult;
+
+@RunWith(JUnit4.class)
+public class SortUnindexedTest extends AbstractSortableTest {
+  
+  protected List<QueryResult<?>> records(int count) {
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(NAME, SValue.create("name" + i, VIZ));
+      data.put(AGE, SValue.create(String.format("%03d", (i * 37) % count), VIZ));
+      
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    
+    return results;
+  }
+  
+  @Test(expected = UnindexedColumnException.class)
+  public void disabledByDefault() throws Exception {
+    SortableResult id = SortableResult.create(c, AUTHS, Sets.newHashSet(Index.define(NAME)));
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, records(5));
+    
+    try {
+      s.fetch(id, Index.define(AGE));
+    } finally {
+      s.delete(id);
+      s.close();
+    }
+  }
+  
+  @Test
+  public void withoutDuplicates() throws Exception {
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).sortUnindexed(true).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    
+    // Each record has the ages i and i + 10
+    List<QueryResult<?>> results = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Multimap<Column,SValue> data = HashMultimap.create();
+      data.put(AGE, SValue.create(String.format("%03d", i), VIZ));
+      data.put(AGE, SValue.create(String.format("%03d", i + 10), VIZ));
+      
+      results.add(new MultimapQueryResult(data, Integer.toString(i), VIZ));
+    }
+    s.addResults(id, results);
+    
+    CloseableIterable<MultimapQueryResult> all = s.fetch(id, Index.define(AGE), true);
+    Assert.assertEquals(20, Lists.newArrayList(all).size());
+    all.close();
+    
+    // Each record is returned once, at its first age in the order
+    for (Order order : new Order[] {Order.ASCENDING, Order.DESCENDING}) {
+      CloseableIterable<MultimapQueryResult> distinct = s.fetch(id, Index.define(AGE, order), false);
+      List<MultimapQueryResult> fetched = Lists.newArrayList(distinct);
+      distinct.close();
+      
+      Assert.assertEquals(10, fetched.size());
+      for (int i = 0; i < fetched.size(); i++) {
+        Assert.assertEquals(Integer.toString(Order.ASCENDING.equals(order) ? i : 9 - i), fetched.get(i).docId());
+      }
+    }
+    
+    s.delete(id);
+    s.close();
+  }
+  
+  @Test
+  public void spillsToDisk() throws Exception {
+    File directory = Files.createTempDir();
+    
+    SortableResult id = SortableResult.builder(c, AUTHS, Sets.newHashSet(Index.define(NAME))).sortUnindexed(true).sortBufferSize(4096)
+        .sortDirectory(directory).build();
+    
+    Cosmos s = new CosmosImpl(zkConnectString());
+    
+    s.register(id);
+    s.addResults(id, records(100));
+    
+    CloseableIterable<MultimapQueryResult> ascending = s.fetch(id, Index.define(AGE, Order.ASCENDING));
+    
+    // The buffer is far smaller than the records
+    Assert.assertTrue(0 < directory.listFiles().length);
+    
+    int count = 0;
+    for (MultimapQueryResult result : ascending) {
+      Assert.assertEquals(String.format("%03d", count), result.get(AGE).iterator().next().value());
+      Assert.assertEquals(2, result.columnSize());
+      count++;
+    }
+    ascending.close();
+    
+    Assert.assertEquals(100, count);
+    Assert.assertEquals(0, directory.listFiles().length);
+    
+    CloseableIterable<MultimapQueryResult> descending = s.fetch(id, Index.define(AGE, Order.DESCENDING), false, Sets.newHashSet(NAME));
+    List<MultimapQueryResult> results = Lists.newArrayList(descending);
+    descending.close();
+    
+    Assert.assertEquals(100, results.size());
+    for (int i = 0; i < results.size(); i++) {
+      Assert.assertEquals(1, results.get(i).columnSize());
+      Assert.assertTrue(results.get(i).containsKey(NAME));
+      
+      // 37 and 100 are coprime, so each age belongs to exactly one record
+      int docId = Integer.parseInt(results.get(i).docId());
+      Assert.assertEquals(99 - i, (docId * 37) % 100);
+    }
+    
+    Assert.assertEquals(0, directory.listFiles().length);
+    
+    s.delete(id);
+    s.close();
+    
+    directory.delete();
+  }
+}
@@ -20,6 +20,7 @@
 package cosmos.results;
 
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.Constants;
 import org.junit.Assert;
@@ -55,9 +56,11 @@ public class SortableResultStateTest extends AbstractSortableTest {
     
     Assert.assertEquals(State.LOADED, SortingMetadata.getState(id));
     
-    // Would be State.DELETING during this call
+    // State.DELETING until the rows are removed in the background
     s.delete(id);
     
+    Assert.assertTrue(s.awaitDeletion(id, 30, TimeUnit.SECONDS));
+    
     Assert.assertEquals(State.UNKNOWN, SortingMetadata.getState(id));
     
     s.close();
@@ -53,7 +53,6 @@ import org.mediawiki.xml.export_0.PageType;
 
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -70,7 +69,9 @@ import cosmos.options.Defaults;
 import cosmos.options.Index;
 import cosmos.results.CloseableIterable;
 import cosmos.results.Column;
+import cosmos.results.QueryResult;
 import cosmos.results.SValue;
+import cosmos.results.impl.CompactQueryResult;
 import cosmos.results.impl.MultimapQueryResult;
 import cosmos.results.integration.CosmosIntegrationSetup;
 import cosmos.util.IdentitySet;
@@ -99,31 +100,31 @@ public class MediawikiQueries {
     System.err.println(TIMINGS + numResults + " " + duration + " " + action);
   }
   
-  public static MultimapQueryResult pagesToQueryResult(Page p) {
-    HashMultimap<Column,SValue> data = HashMultimap.create();
-    
+  public static CompactQueryResult pagesToQueryResult(Page p) {
     String pageId = Long.toString(p.getId());
     
-    data.put(PAGE_ID, SValue.create(pageId, cv));
+    CompactQueryResult.Builder data = CompactQueryResult.builder(pageId, cv);
+    
+    data.put(PAGE_ID, pageId);
     
     Revision r = p.getRevision();
     if (null != r) {
-      data.put(REVISION_ID, SValue.create(Long.toString(r.getId()), cv));
-      data.put(REVISION_TIMESTAMP, SValue.create(r.getTimestamp(), cv));
+      data.put(REVISION_ID, Long.toString(r.getId()));
+      data.put(REVISION_TIMESTAMP, r.getTimestamp());
       
       Contributor c = r.getContributor();
       if (null != c) {
         if (null != c.getUsername()) {
-          data.put(CONTRIBUTOR_USERNAME, SValue.create(c.getUsername(), cv));
+          data.put(CONTRIBUTOR_USERNAME, c.getUsername());
         }
         
         if (0l != c.getId()) {
-          data.put(CONTRIBUTOR_ID, SValue.create(Long.toString(c.getId()), cv));
+          data.put(CONTRIBUTOR_ID, Long.toString(c.getId()));
         }
       }
     }
     
-    return new MultimapQueryResult(data, pageId, cv);
+    return data.build();
   }
   
   protected final Connector con;
@@ -157,9 +158,9 @@ public class MediawikiQueries {
       
       System.out.println(Thread.currentThread().getName() + ": " + id.uuid() + " - Iteration " + iters);
       long recordsReturned = 0l;
-      Function<Entry<Key,Value>,MultimapQueryResult> func = new Function<Entry<Key,Value>,MultimapQueryResult>() {
+      Function<Entry<Key,Value>,CompactQueryResult> func = new Function<Entry<Key,Value>,CompactQueryResult>() {
         @Override
-        public MultimapQueryResult apply(Entry<Key,Value> input) {
+        public CompactQueryResult apply(Entry<Key,Value> input) {
           Page p;
           try {
             p = Page.parseFrom(input.getValue().get());
@@ -171,7 +172,7 @@ public class MediawikiQueries {
       };
       
       Map<Column,Long> counts = Maps.newHashMap();
-      ArrayList<MultimapQueryResult> tformSource = Lists.newArrayListWithCapacity(20000);
+      ArrayList<CompactQueryResult> tformSource = Lists.newArrayListWithCapacity(20000);
       
       Stopwatch sw = new Stopwatch();
       Stopwatch tformSw = new Stopwatch();
@@ -179,7 +180,7 @@ public class MediawikiQueries {
       for (Entry<Key,Value> input : inputIterable) {
         tformSw.start();
         
-        MultimapQueryResult r = func.apply(input);
+        CompactQueryResult r = func.apply(input);
         tformSource.add(r);
         
         tformSw.stop();
@@ -263,7 +264,7 @@ public class MediawikiQueries {
     this.sorts.close();
   }
   
-  public void loadCountsForRecord(Map<Column,Long> counts, MultimapQueryResult r) {
+  public void loadCountsForRecord(Map<Column,Long> counts, QueryResult<?> r) {
 	  for (Entry<Column,SValue> entry : r.columnValues()) {
 		  Column c = entry.getKey();
 		  if (counts.containsKey(c)) {
@@ -41,7 +41,8 @@ import cosmos.trace.Timings.TimedRegions.TimedRegion;
 import cosmos.trace.Timings.TimedRegions.TimingMetadata;
 
 /**
- * 
+ * Timings and metadata recorded for one uuid. Background work, such as index builds and deletion, records into the same {@link Tracer} as the client
+ * which started it, so every access is synchronized on the {@link Tracer}.
  */
 public class Tracer {
   public static final String UUID = "uuid", TIME = "time";
@@ -64,10 +65,12 @@ public class Tracer {
   public Tracer(Tracer other) {
     checkNotNull(other);
     
-    this.uuid = other.uuid;
-    this.begin = other.begin;
-    this.timings = Lists.newArrayList(other.timings);
-    this.metadata = Maps.newHashMap(other.metadata);
+    synchronized (other) {
+      this.uuid = other.uuid;
+      this.begin = other.begin;
+      this.timings = Lists.newArrayList(other.timings);
+      this.metadata = Maps.newHashMap(other.metadata);
+    }
   }
   
   public Tracer(String uuid, long begin, List<TimedRegion> timings) {
@@ -116,7 +119,7 @@ public class Tracer {
     }
   }
   
-  public void addTiming(TimedRegion timing) {
+  public synchronized void addTiming(TimedRegion timing) {
     this.timings.add(timing);
   }
   
@@ -127,6 +130,17 @@ public class Tracer {
     addTiming(TimedRegion.newBuilder().setDescription(description).setDuration(duration).build());
   }
   
+  public synchronized void addMetadata(String name, String value) {
+    checkNotNull(name);
+    checkNotNull(value);
+    
+    this.metadata.put(name, value);
+  }
+  
+  public synchronized Map<String,String> getMetadata() {
+    return Collections.unmodifiableMap(Maps.newHashMap(metadata));
+  }
+  
   public String getUUID() {
     return this.uuid; 
   }
@@ -135,11 +149,11 @@ public class Tracer {
     return this.begin;
   }
   
-  public List<TimedRegion> getTimings() {
-    return Collections.unmodifiableList(timings);
+  public synchronized List<TimedRegion> getTimings() {
+    return Collections.unmodifiableList(Lists.newArrayList(timings));
   }
   
-  public List<Mutation> toMutations() {
+  public synchronized List<Mutation> toMutations() {
     if (this.timings.isEmpty()) {
       return Collections.emptyList();
     }
@@ -177,7 +191,7 @@ public class Tracer {
     if (o instanceof Tracer) {
       Tracer other = (Tracer) o;
       
-      return this.uuid.equals(other.uuid) && this.begin == other.begin && this.timings.equals(other.timings); 
+      return this.uuid.equals(other.uuid) && this.begin == other.begin && getTimings().equals(other.getTimings()); 
     }
     
     return false;